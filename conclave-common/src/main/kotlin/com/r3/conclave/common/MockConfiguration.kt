@@ -37,6 +37,10 @@ import java.util.*
  * information.
  *
  * @property maxPersistentMapSize The maximum size of the persistent map in bytes. Default value is 16MiB.
+ *
+ * @property persistentMapCheckpointInterval If non-zero, only the changes to the persistent map are sealed after each
+ * call and the entire map is sealed as a checkpoint at most every this many calls. Default value is 0, which seals the
+ * entire map after each call.
  */
 class MockConfiguration {
     var codeHash: SHA256Hash? = null
@@ -62,4 +66,10 @@ class MockConfiguration {
 
     var enablePersistentMap: Boolean? = null
     var maxPersistentMapSize: Long? = null
+
+    var persistentMapCheckpointInterval: Int? = null
+        set(data) {
+            require(data == null || data >= 0) { "Persistent map checkpoint interval must not be negative" }
+            field = data
+        }
 }
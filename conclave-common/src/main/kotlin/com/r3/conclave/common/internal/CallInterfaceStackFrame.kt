@@ -9,6 +9,7 @@ import java.nio.ByteBuffer
  */
 class CallInterfaceStackFrame<CALL_TYPE>(
         val callType: CALL_TYPE,
-        var returnBuffer: ByteBuffer? = null,
-        var exceptionBuffer: ByteBuffer? = null
+        // Volatile as the host may receive the reply on a switchless worker thread rather than the calling thread.
+        @Volatile var returnBuffer: ByteBuffer? = null,
+        @Volatile var exceptionBuffer: ByteBuffer? = null
 )
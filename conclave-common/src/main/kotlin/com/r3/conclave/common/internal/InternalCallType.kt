@@ -18,5 +18,13 @@ enum class InternalCallType {
     /**
      * New sealed state command.
      */
-    SEALED_STATE
+    SEALED_STATE,
+
+    /**
+     * New sealed state log record, which the host appends to the previous sealed state rather than replacing it.
+     */
+    SEALED_STATE_DELTA,
+
+    /** Inbound-to-enclave only, contains a batch of mails to be decrypted and delivered in a single call. */
+    MAIL_BATCH
 }
@@ -0,0 +1,67 @@
+package com.r3.conclave.common.internal
+
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.InetSocketAddress
+import java.net.StandardSocketOptions
+import java.nio.channels.Channels
+import java.nio.channels.SocketChannel
+
+/**
+ * A single stream connection between the [com.r3.conclave.host.internal.SocketHostEnclaveInterface] and
+ * [com.r3.conclave.enclave.internal.SocketEnclaveHostInterface] classes. The underlying transport is a socket channel
+ * to a loopback TCP socket.
+ *
+ * The [input] and [output] streams are for half-duplex use only, as the channel stream adapters serialise reads and
+ * writes. Multiplexed connections use the [channel] directly, see [SocketCallInterfaceMultiplexer].
+ */
+class SocketCallInterfaceConnection(val channel: SocketChannel) : Closeable {
+    init {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true)
+    }
+
+    val input = DataInputStream(Channels.newInputStream(channel))
+    val output = DataOutputStream(Channels.newOutputStream(channel))
+
+    override fun close() = channel.close()
+}
+
+/**
+ * Messages sent by the host over the initial (control) connection. The host uses these to ask the enclave to open
+ * call connections as they are required, rather than all of them at startup.
+ */
+enum class SocketCallInterfaceControlMessage {
+    OPEN_CONNECTION,                // Open one more call connection to the host.
+    OPEN_MULTIPLEXED_CONNECTION,    // Open one more connection to be shared between calls, see SocketCallInterfaceMultiplexer.
+    STOP;                           // No more connections will be requested.
+
+    fun toByte() = ordinal.toByte()
+
+    companion object {
+        private val VALUES = values()
+
+        fun fromByte(b: Byte) = VALUES[b.toInt()]
+    }
+}
+
+/**
+ * The address the enclave side of the socket call interface connects to.
+ */
+class SocketCallInterfaceAddress(val host: String, val port: Int) {
+    fun connect(): SocketCallInterfaceConnection {
+        return SocketCallInterfaceConnection(SocketChannel.open(InetSocketAddress(host, port)))
+    }
+
+    /** Encode the address in the form accepted by [parse], for passing it to the enclave process. */
+    fun toArgument(): String = port.toString()
+
+    companion object {
+        /** Parse the port number of a loopback TCP socket, in the form produced by [toArgument]. */
+        fun parse(string: String): SocketCallInterfaceAddress {
+            val port = string.toInt()
+            require(port in 0..65535) { "$port is not a valid port number. Value must be between 0 and 65535." }
+            return SocketCallInterfaceAddress("127.0.0.1", port)
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.r3.conclave.common.internal
+
+import java.io.Closeable
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.LinkedBlockingQueue
+
+/**
+ * A frame of the multiplexed socket call interface protocol. Frames carry the same messages as
+ * [SocketCallInterfaceMessage], but are tagged with the ID of the logical call stream they belong to, so that many
+ * concurrent calls can share a small number of connections.
+ *
+ * Frame layout: `[int frame size][int stream ID][byte message type][byte call type ID][byte has payload][payload]`
+ *
+ * Unlike [SocketCallInterfaceMessage], frames are not serialised to an intermediate byte array. The header and payload
+ * are written to the channel with a single gathering write and the payload is read straight into its final buffer.
+ */
+class SocketCallInterfaceFrame(
+        val streamID: Int,
+        val messageType: SocketCallInterfaceMessageType,
+        val callTypeID: Byte,
+        val payload: ByteBuffer?
+) {
+    companion object {
+        /** Size of the header fields that follow the frame size. */
+        private const val HEADER_FIELDS_SIZE = Int.SIZE_BYTES + 3
+        const val HEADER_SIZE = Int.SIZE_BYTES + HEADER_FIELDS_SIZE
+
+        /** Stream ID used for frames which apply to the whole connection. */
+        const val CONNECTION_STREAM_ID = 0
+
+        val STOP_FRAME = SocketCallInterfaceFrame(CONNECTION_STREAM_ID, SocketCallInterfaceMessageType.STOP, 0, null)
+
+        /**
+         * Read a frame from the channel. The [header] buffer must be at least [HEADER_SIZE] bytes and is overwritten.
+         * The payload of the returned frame is a heap buffer which is exactly the size of the payload.
+         */
+        fun read(channel: ReadableByteChannel, header: ByteBuffer): SocketCallInterfaceFrame {
+            header.clear()
+            header.limit(HEADER_SIZE)
+            channel.readFully(header)
+            header.flip()
+
+            val payloadSize = header.int - HEADER_FIELDS_SIZE
+            val streamID = header.int
+            val messageType = SocketCallInterfaceMessageType.fromByte(header.get())
+            val callTypeID = header.get()
+            val hasPayload = header.get() != 0.toByte()
+            check(payloadSize >= 0 && (hasPayload || payloadSize == 0)) { "Received malformed frame." }
+
+            val payload = if (hasPayload) {
+                ByteBuffer.allocate(payloadSize).also {
+                    channel.readFully(it)
+                    it.flip()
+                }
+            } else {
+                null
+            }
+            return SocketCallInterfaceFrame(streamID, messageType, callTypeID, payload)
+        }
+
+        private fun ReadableByteChannel.readFully(buffer: ByteBuffer) {
+            while (buffer.hasRemaining()) {
+                if (read(buffer) == -1) throw EOFException()
+            }
+        }
+    }
+
+    /** The frame as a [SocketCallInterfaceMessage]. The payload array is shared, not copied. */
+    fun toMessage(): SocketCallInterfaceMessage {
+        return SocketCallInterfaceMessage(messageType, callTypeID, payload?.let { checkNotNull(it.array()) })
+    }
+
+    /**
+     * Write the frame to the channel. The [header] buffer must be at least [HEADER_SIZE] bytes and is overwritten.
+     * As with [SocketCallInterfaceMessage], the payload is sent from position zero up to its limit. A direct payload
+     * buffer is written without any copying.
+     */
+    fun write(channel: GatheringByteChannel, header: ByteBuffer) {
+        val payloadBuffer = payload?.duplicate()?.also { it.rewind() }
+
+        header.clear()
+        header.putInt(HEADER_FIELDS_SIZE + (payloadBuffer?.remaining() ?: 0))
+        header.putInt(streamID)
+        header.put(messageType.toByte())
+        header.put(callTypeID)
+        header.put(if (payloadBuffer != null) 1 else 0)
+        header.flip()
+
+        if (payloadBuffer == null) {
+            while (header.hasRemaining()) channel.write(header)
+        } else {
+            val buffers = arrayOf(header, payloadBuffer)
+            while (header.hasRemaining() || payloadBuffer.hasRemaining()) channel.write(buffers)
+        }
+    }
+}
+
+/**
+ * Shares a small number of connections between many logical call streams. Each connection has a reader thread which
+ * routes incoming frames to the stream they belong to. A frame for a stream which isn't open locally starts a new
+ * stream, which is passed to [onNewStream] together with the frame. This is how the receiving side of a call learns
+ * about it.
+ *
+ * Stream IDs are chosen by the side which starts the stream and must not be re-used while the stream is open.
+ */
+class SocketCallInterfaceMultiplexer(
+        private val onNewStream: (Stream, SocketCallInterfaceFrame) -> Unit
+) : Closeable {
+    private val connections = CopyOnWriteArrayList<MultiplexedConnection>()
+    private val streams = ConcurrentHashMap<Int, Stream>()
+
+    @Volatile
+    private var closed = false
+
+    val connectionCount: Int get() = connections.size
+
+    /** Start routing frames received over the given channel. */
+    fun addConnection(channel: SocketChannel) {
+        val connection = MultiplexedConnection(channel)
+        connections.add(connection)
+        connection.readerThread.start()
+    }
+
+    /** Open a new stream, assigning it to one of the connections. */
+    fun openStream(streamID: Int): Stream {
+        return openStream(streamID, connections[Math.floorMod(streamID, connections.size)])
+    }
+
+    /**
+     * Open a stream on the given connection. A stream started by the other side is bound to the connection its first
+     * frame arrived on, as the two sides need not have the same connections in the same order.
+     */
+    private fun openStream(streamID: Int, connection: MultiplexedConnection): Stream {
+        check(streamID != SocketCallInterfaceFrame.CONNECTION_STREAM_ID) { "Stream ID $streamID is reserved." }
+        val stream = Stream(streamID, connection)
+        check(streams.putIfAbsent(streamID, stream) == null) { "Stream $streamID is already open." }
+        return stream
+    }
+
+    /** Tell the other side that no more frames will be sent over any of the connections. */
+    fun stop() {
+        for (connection in connections) {
+            connection.write(SocketCallInterfaceFrame.STOP_FRAME)
+        }
+    }
+
+    /** Block until the reader threads have received stop frames or their connections have closed. */
+    fun awaitTermination() {
+        for (connection in connections) {
+            connection.readerThread.join()
+        }
+    }
+
+    override fun close() {
+        closed = true
+        for (connection in connections) {
+            connection.channel.close()
+        }
+    }
+
+    /** A logical call stream. Frames sent on a stream are received, in order, by the other side's stream. */
+    inner class Stream internal constructor(
+            val streamID: Int,
+            internal val connection: MultiplexedConnection
+    ) : Closeable {
+        private val incomingFrames = LinkedBlockingQueue<SocketCallInterfaceFrame>()
+
+        fun send(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?) {
+            connection.write(SocketCallInterfaceFrame(streamID, messageType, callTypeID, payload))
+        }
+
+        /** Block until the next frame arrives on this stream. */
+        fun receive(): SocketCallInterfaceFrame {
+            val frame = incomingFrames.take()
+            check(frame.messageType != SocketCallInterfaceMessageType.STOP) { "Call interface connection closed." }
+            return frame
+        }
+
+        internal fun deliver(frame: SocketCallInterfaceFrame) = incomingFrames.put(frame)
+
+        override fun close() {
+            streams.remove(streamID, this)
+        }
+    }
+
+    inner class MultiplexedConnection internal constructor(val channel: SocketChannel) {
+        /** Writes are serialised on the write header so that frames from different streams do not interleave. */
+        private val writeHeader = ByteBuffer.allocateDirect(SocketCallInterfaceFrame.HEADER_SIZE)
+        private val readHeader = ByteBuffer.allocateDirect(SocketCallInterfaceFrame.HEADER_SIZE)
+
+        val readerThread = Thread(::readerLoop, "Conclave call interface multiplexer").apply { isDaemon = true }
+
+        fun write(frame: SocketCallInterfaceFrame) {
+            synchronized(writeHeader) {
+                frame.write(channel, writeHeader)
+            }
+        }
+
+        private fun readerLoop() {
+            try {
+                while (true) {
+                    val frame = SocketCallInterfaceFrame.read(channel, readHeader)
+                    if (frame.messageType == SocketCallInterfaceMessageType.STOP) break
+                    val stream = streams[frame.streamID]
+                    if (stream != null) {
+                        stream.deliver(frame)
+                    } else {
+                        onNewStream(openStream(frame.streamID, this), frame)
+                    }
+                }
+            } catch (e: Exception) {
+                if (!closed) throw e
+            } finally {
+                /** Wake up any streams still waiting for frames from this connection. */
+                for (stream in streams.values) {
+                    if (stream.connection === this) {
+                        stream.deliver(SocketCallInterfaceFrame.STOP_FRAME)
+                    }
+                }
+            }
+        }
+    }
+}
@@ -58,9 +58,11 @@ sealed class Attestation {
         fun getFromBuffer(buffer: ByteBuffer): Attestation {
             val attestationType = buffer.get()
             val attestationSlice = buffer.getIntLengthPrefixSlice()
+            // The hardware attestations are verified when they're deserialised, which is expensive, so cache them.
+            val cache = VerifiedAttestationCache.INSTANCE
             return when (attestationType.toInt()) {
-                0 -> EpidAttestation.getFromBuffer(attestationSlice)
-                1 -> DcapAttestation.getFromBuffer(attestationSlice)
+                0 -> cache.getOrVerify(attestationType, attestationSlice, EpidAttestation::getFromBuffer)
+                1 -> cache.getOrVerify(attestationType, attestationSlice, DcapAttestation::getFromBuffer)
                 2 -> MockAttestation.getFromBuffer(attestationSlice)
                 else -> throw IllegalArgumentException("Unknown attestation type $attestationType")
             }
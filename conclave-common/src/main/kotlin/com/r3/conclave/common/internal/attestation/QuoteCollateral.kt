@@ -10,6 +10,7 @@ import java.nio.ByteBuffer
 import java.security.cert.CertPath
 import java.security.cert.CertificateFactory
 import java.security.cert.X509CRL
+import java.time.Instant
 
 data class QuoteCollateral(
     val version: Int,
@@ -37,6 +38,19 @@ data class QuoteCollateral(
         SignedEnclaveIdentity.fromJson(attestationObjectMapper.readTree(rawSignedQeIdentity.inputStream()))
     }
 
+    /**
+     * The earliest time by which newer versions of any part of the collateral will have been issued, i.e. the earliest
+     * `nextUpdate` of the TCB info, QE identity and CRLs.
+     */
+    val nextUpdate: Instant by lazy {
+        var nextUpdate = minOf(signedTcbInfo.tcbInfo.nextUpdate, signedQeIdentity.enclaveIdentity.nextUpdate)
+        for (crl in arrayOf(rootCaCrl, pckCrl)) {
+            val crlNextUpdate = crl.nextUpdate?.toInstant() ?: continue
+            nextUpdate = minOf(nextUpdate, crlNextUpdate)
+        }
+        nextUpdate
+    }
+
     private fun parseCertPath(bytes: OpaqueBytes): CertPath {
         return AttestationUtils.parsePemCertPath(bytes.inputStream())
     }
@@ -0,0 +1,71 @@
+package com.r3.conclave.common.internal.attestation
+
+import com.r3.conclave.common.SHA256Hash
+import com.r3.conclave.utilities.internal.digest
+import com.r3.conclave.utilities.internal.x509Certs
+import java.nio.ByteBuffer
+import java.time.Clock
+import java.time.Instant
+
+/**
+ * A bounded cache of verified [HardwareAttestation]s, keyed on the SHA-256 digest of their serialised form. Verifying a
+ * hardware attestation involves certificate path validation and several signature checks, and the same serialised
+ * [com.r3.conclave.common.EnclaveInstanceInfo] tends to be deserialised again and again by both clients and hosts.
+ *
+ * The result of the verification only depends on the serialised bytes. Even so, an entry is only kept for as long as
+ * the attestation's data is current: until the next update of the collateral for DCAP, and until the earliest expiry
+ * of the report signing certificates for EPID. Once the cache is full the least recently used entry is evicted.
+ */
+class VerifiedAttestationCache(private val maxSize: Int, private val clock: Clock = Clock.systemUTC()) {
+    companion object {
+        /** The cache used when deserialising attestations. Its size can be set with a system property, zero disables it. */
+        val INSTANCE = VerifiedAttestationCache(Integer.getInteger("conclave.attestation.verificationCacheSize", 256))
+    }
+
+    private class Entry(val attestation: HardwareAttestation, val expiry: Instant)
+
+    /** Guarded by itself. */
+    private val entries = object : LinkedHashMap<SHA256Hash, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<SHA256Hash, Entry>): Boolean = size > maxSize
+    }
+
+    /**
+     * Return the attestation serialised in the remaining bytes of [serialised], either from the cache or by passing the
+     * bytes to [deserialise], which must verify them. The position of [serialised] is only advanced in the latter case.
+     */
+    fun getOrVerify(
+        attestationType: Byte,
+        serialised: ByteBuffer,
+        deserialise: (ByteBuffer) -> HardwareAttestation
+    ): HardwareAttestation {
+        if (maxSize == 0) return deserialise(serialised)
+
+        val key = SHA256Hash.wrap(digest("SHA-256") {
+            update(attestationType)
+            update(serialised.duplicate())
+        })
+        synchronized(entries) {
+            val entry = entries[key]
+            if (entry != null) {
+                if (clock.instant() < entry.expiry) return entry.attestation
+                entries.remove(key)
+            }
+        }
+
+        val attestation = deserialise(serialised)
+        val expiry = expiryOf(attestation)
+        if (clock.instant() < expiry) {
+            synchronized(entries) {
+                entries[key] = Entry(attestation, expiry)
+            }
+        }
+        return attestation
+    }
+
+    private fun expiryOf(attestation: HardwareAttestation): Instant {
+        return when (attestation) {
+            is DcapAttestation -> attestation.collateral.nextUpdate
+            is EpidAttestation -> attestation.certPath.x509Certs.minOf { it.notAfter }.toInstant()
+        }
+    }
+}
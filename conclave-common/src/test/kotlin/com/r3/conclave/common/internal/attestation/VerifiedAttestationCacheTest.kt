@@ -0,0 +1,69 @@
+package com.r3.conclave.common.internal.attestation
+
+import com.r3.conclave.utilities.internal.getIntLengthPrefixSlice
+import com.r3.conclave.utilities.internal.writeData
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+
+class VerifiedAttestationCacheTest {
+    private val attestation = QuoteVerifierTest.loadSampleDcapAttestation()
+    private val attestationType: Byte
+    private val serialised: ByteBuffer
+    private var verifyCount = 0
+
+    init {
+        val buffer = ByteBuffer.wrap(writeData { attestation.writeTo(this) })
+        attestationType = buffer.get()
+        serialised = buffer.getIntLengthPrefixSlice()
+    }
+
+    @Test
+    fun `attestation is only verified once whilst its collateral is current`() {
+        val cache = VerifiedAttestationCache(16, clockAt(attestation.collateral.signedTcbInfo.tcbInfo.issueDate))
+        val first = cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        val second = cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        assertThat(second).isSameAs(first)
+        assertThat(second).isEqualTo(attestation)
+        assertThat(verifyCount).isEqualTo(1)
+    }
+
+    @Test
+    fun `attestation is verified every time once its collateral is out of date`() {
+        val cache = VerifiedAttestationCache(16, clockAt(attestation.collateral.nextUpdate))
+        cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        assertThat(verifyCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `least recently used attestation is evicted`() {
+        val cache = VerifiedAttestationCache(1, clockAt(attestation.collateral.signedTcbInfo.tcbInfo.issueDate))
+        // Different attestation types give different keys for the same bytes.
+        val otherType = (attestationType + 1).toByte()
+        cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        cache.getOrVerify(otherType, serialised.duplicate(), ::verify)
+        cache.getOrVerify(otherType, serialised.duplicate(), ::verify)
+        assertThat(verifyCount).isEqualTo(2)
+        cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        assertThat(verifyCount).isEqualTo(3)
+    }
+
+    @Test
+    fun `cache of size zero is disabled`() {
+        val cache = VerifiedAttestationCache(0, clockAt(attestation.collateral.signedTcbInfo.tcbInfo.issueDate))
+        cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        cache.getOrVerify(attestationType, serialised.duplicate(), ::verify)
+        assertThat(verifyCount).isEqualTo(2)
+    }
+
+    private fun verify(buffer: ByteBuffer): HardwareAttestation {
+        verifyCount++
+        return DcapAttestation.getFromBuffer(buffer)
+    }
+
+    private fun clockAt(instant: Instant): Clock = Clock.fixed(instant, ZoneOffset.UTC)
+}
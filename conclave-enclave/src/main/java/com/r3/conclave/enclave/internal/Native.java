@@ -108,15 +108,30 @@ public class Native {
      * the filesystem sizes to FatFs encryption layer.
      * @param inMemoryFsSize Size (bytes) of the in-memory filesystem.
      * @param persistentFsSize Size (bytes) of the persistent encrypted filesystem.
+     * @param persistentFsCacheSize Size (bytes) of the cache of decrypted sectors of the persistent filesystem.
+     * @param persistentFsEncryptionThreads Number of enclave threads encrypting and decrypting the sectors of the
+     * persistent filesystems in parallel, 0 to use only the calling thread.
      * @param inMemoryMountPath Mount point of the in-memory filesystem.
      * @param persistentMountPath Mount point of the persistent filesystem.
+     * @param additionalPersistentMountPaths Mount points of the additional persistent filesystems.
+     * @param additionalPersistentSizes Sizes (bytes) of the additional persistent filesystems, in the same order.
      * @param encryptionKey Byte array of the encryption key.
      */
     public static native void setupFileSystems(
             long inMemoryFsSize,
             long persistentFsSize,
+            long persistentFsCacheSize,
+            int persistentFsEncryptionThreads,
             String inMemoryMountPath,
             String persistentMountPath,
+            String[] additionalPersistentMountPaths,
+            long[] additionalPersistentSizes,
             byte[] encryptionKey
     );
+
+    /**
+     * JNI function (implemented in api.cpp) to release the threads held by the filesystems when the enclave is
+     * shut down.
+     */
+    public static native void shutdownFileSystems();
 }
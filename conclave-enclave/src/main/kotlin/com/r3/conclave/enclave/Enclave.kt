@@ -23,6 +23,8 @@ import com.r3.conclave.mail.internal.MailDecryptingStream
 import com.r3.conclave.mail.internal.noise.protocol.Noise
 import com.r3.conclave.mail.internal.readEnclaveStateId
 import com.r3.conclave.utilities.internal.*
+import java.io.DataInputStream
+import java.io.DataOutputStream
 import java.io.IOException
 import java.io.OutputStream
 import java.io.PrintStream
@@ -69,11 +71,9 @@ abstract class Enclave {
         // The constant key name used for the KDS persistence key. This value cannot change without breaking the
         // enclave's ability to decrypt previously sealed data.
         private const val KDS_PERSISTENCE_KEY_NAME = "EnclavePersistence"
-
-        private fun getMailDecryptingStream(input: ByteBuffer): MailDecryptingStream {
-            // Wrap the remaining bytes in a InputStream to avoid copying.
-            return MailDecryptingStream(input.inputStream())
-        }
+        // Marks each record of a sealed state log, see [EnclaveEnvironment.persistentMapCheckpointInterval]. A single
+        // sealed state blob, as emitted when the log is disabled, does not start with this value.
+        private const val SEALED_STATE_LOG_RECORD_MAGIC = 0x434c4f47  // "CLOG"
     }
 
     private var kdsEiiForPersistence: EnclaveInstanceInfo? = null
@@ -87,7 +87,7 @@ abstract class Enclave {
     private val getEnclaveInstanceInfoQuoteCallHandler = GetEnclaveInstanceInfoQuoteCallHandler()
     private val enclaveMessageHandler = EnclaveMessageHandler()
 
-    private val lastSeenStateIds = HashMap<PublicKey, EnclaveStateId>()
+    private val lastSeenStateIds = ConcurrentHashMap<PublicKey, EnclaveStateId>()
     private val postOffices = HashMap<PublicKeyAndTopic, SessionEnclavePostOffice>()
     private val lock = ReentrantLock()
     private val enclaveQuiescentCondition = lock.newCondition()
@@ -102,7 +102,26 @@ abstract class Enclave {
      */
     private var numberReceiveCallsExecuting = 0
 
-    private val _persistentMap = LinkedHashMap<String, ByteArray>()
+    private val _persistentMap = TrackedPersistentMap()
+
+    /**
+     * The view of [_persistentMap] given to thread safe enclaves.
+     */
+    private val concurrentPersistentMap = ConcurrentPersistentMap(_persistentMap) {
+        enclaveMessageHandler.currentReceiveContext?.persistentMapTransaction
+    }
+
+    /**
+     * Held by thread safe enclaves whilst committing the changes of a receive call and emitting the resulting sealed
+     * state, so that the host receives the sealed states in the same order as the commits.
+     */
+    private val persistentMapCommitLock = ReentrantLock()
+    private val clientLeases = ClientLeases()
+
+    /**
+     * Guarded by [lock], or by [persistentMapCommitLock] if the enclave is thread safe.
+     */
+    private val sealedStateLog = SealedStateLog()
 
     /**
      * Returns a persistent key-value store where string keys can be mapped to byte values. Use this [MutableMap] to
@@ -113,10 +132,23 @@ abstract class Enclave {
      * re-initialise the enclave. Conclave makes a best-effort attempt at preventing the host from being able to rewind
      * map, i.e. using an older version instead of the latest.
      *
+     * If the `persistentMapCheckpointInterval` configuration is set then only the entries which changed during the
+     * call are serialised and encrypted, and the host appends them to a log. The entire map is written as a checkpoint
+     * which replaces the log at most every that many calls, or sooner if the log has grown bigger than the previous
+     * checkpoint. In this mode a value which is modified in place must be put back into the map for the change to
+     * be persisted.
+     *
+     * If the enclave is multi-threaded (i.e. [threadSafe] is overridden to return `true`) then each receive call sees
+     * the map as it was when the call started, plus its own changes. The call's changes only become visible to other
+     * calls, and are sealed, once it has finished, and they are discarded if it throws an exception. If a key the call
+     * has read or changed is changed by another call which finishes first, then the call fails with a
+     * [java.util.ConcurrentModificationException] and its changes and mail are discarded. Also, whilst a call has
+     * unfinished mail for a client, other calls which create mail for the same client wait for it to finish. This keeps
+     * the state IDs the client receives in the same order as the sealed states.
+     *
      * The persistent map is not enabled by default. This is done by setting the
      * [`enablePersistentMap`](https://docs.conclave.net/enclave-configuration.html#enablepersistentmap-maxpersistentmapsize)
-     * configuration in the enclave's build.gradle to true. The map is also not available if the enclave is multi-threaded
-     * (i.e. [threadSafe] is overridden to return `true`). Support for this maybe added in a future version.
+     * configuration in the enclave's build.gradle to true.
      *
      * Note, the keys are encoded using UTF-8 and the encoded size of each key cannot be more than 65535 bytes.
      *
@@ -128,7 +160,7 @@ abstract class Enclave {
             "\"def enablePersistentMap = true\" to your enclave build.gradle. For more information on the persistent " +
             "map and the consequences of enabling it, consult the Conclave documentation."
         }
-        return _persistentMap
+        return if (threadSafe) concurrentPersistentMap else _persistentMap
     }
 
     /**
@@ -198,6 +230,21 @@ abstract class Enclave {
      */
     protected open val threadSafe: Boolean get() = false
 
+    /**
+     * If this property is false (the default) then the body of each mail is decrypted in full before it's delivered to
+     * [receiveMail]. Override it to return true to have the body decrypted only as it's read from
+     * [EnclaveMail.bodyAsStream], so that large mail can be processed without holding the entire body in memory.
+     *
+     * In that case only the mail's headers are authenticated before it's delivered, and any corruption of the body is
+     * detected as it's read, with a [MailDecryptionException] from the stream. Mail which is still being read should
+     * therefore not be acted upon until the end of the stream has been reached. The stream can only be read whilst
+     * [receiveMail] is executing. Using [EnclaveMail.bodyAsBytes] instead decrypts the whole body as before.
+     *
+     * The body of mail which the sender made seekable can also be read with random access from
+     * [EnclaveMail.bodyAsChannel], which decrypts only the packets that are read.
+     */
+    protected open val streamMailBodies: Boolean get() = false
+
     /**
      * Override this method to receive bytes from the untrusted host via [com.r3.conclave.host.EnclaveHost.callEnclave].
      *
@@ -374,13 +421,23 @@ abstract class Enclave {
     private fun setupFileSystems() {
         val inMemorySize = env.inMemoryFileSystemSize
         val persistentSize = env.persistentFileSystemSize
+        val persistentCacheSize = env.persistentFileSystemCacheSize
+        val persistentEncryptionThreads = env.persistentFileSystemEncryptionThreads
+        //  These are mounted under the root filesystem, whichever of the two it is
+        val additionalPersistent = env.additionalPersistentFileSystems
 
         if (inMemorySize > 0L && persistentSize == 0L ||
             inMemorySize == 0L && persistentSize > 0L) {
             //  We do not allow other mount point apart from "/" when only one filesystem is present
-            env.setupFileSystems(inMemorySize, persistentSize,"/", "/", aesPersistenceKey)
+            env.setupFileSystems(
+                inMemorySize, persistentSize, persistentCacheSize, persistentEncryptionThreads,
+                "/", "/", additionalPersistent, aesPersistenceKey
+            )
         } else if (inMemorySize > 0L && persistentSize > 0L) {
-            env.setupFileSystems(inMemorySize, persistentSize, "/tmp/", "/", aesPersistenceKey)
+            env.setupFileSystems(
+                inMemorySize, persistentSize, persistentCacheSize, persistentEncryptionThreads,
+                "/tmp/", "/", additionalPersistent, aesPersistenceKey
+            )
         }
     }
 
@@ -407,33 +464,130 @@ abstract class Enclave {
 
     private fun applySealedState(sealedStateBlob: ByteBuffer) {
         if (!env.enablePersistentMap) return
-        // Decrypt sealed state using KDS key when the Enclave has been configured to obtain one, otherwise use the
-        // unsealing functions.
+
+        if (sealedStateBlob.remaining() < Int.SIZE_BYTES ||
+            sealedStateBlob.getInt(sealedStateBlob.position()) != SEALED_STATE_LOG_RECORD_MAGIC) {
+            // A single sealed state blob. The host cannot append log records to it, so if the log is enabled the
+            // next sealed state will be a checkpoint.
+            unsealState(sealedStateBlob).deserialise {
+                check(read() == 1)
+                readFullState()
+            }
+        } else {
+            var lastStateId: EnclaveStateId? = null
+            while (sealedStateBlob.hasRemaining()) {
+                check(sealedStateBlob.int == SEALED_STATE_LOG_RECORD_MAGIC) { "The sealed state log is corrupt." }
+                val recordSize = sealedStateBlob.int
+                lastStateId = unsealState(sealedStateBlob.getSlice(recordSize)).deserialise {
+                    when (read()) {
+                        1 -> {
+                            sealedStateLog.checkpoint(recordSize)
+                            readFullState()
+                        }
+                        2 -> {
+                            sealedStateLog.delta(recordSize)
+                            readStateDelta(lastStateId)
+                        }
+                        else -> throw IllegalStateException("Unknown sealed state log record.")
+                    }
+                }
+            }
+            sealedStateLog.lastStateId = lastStateId
+        }
+        _persistentMap.clearChanges()
+    }
+
+    /** Replace the persistent map and last seen state IDs with the version 1 state. Returns the state ID. */
+    private fun DataInputStream.readFullState(): EnclaveStateId {
+        val stateId = readEnclaveStateId()
+        // TODO Feed the time into native code https://r3-cev.atlassian.net/browse/CON-615
+        run {
+            val epochSecond = readLong()
+            val nano = readInt()
+            Instant.ofEpochSecond(epochSecond, nano.toLong())
+        }
+        _persistentMap.clear()
+        repeat(readInt()) {
+            val key = readUTF()
+            val value = readIntLengthPrefixBytes()
+            _persistentMap[key] = value
+        }
+        lastSeenStateIds.clear()
+        repeat(readInt()) {
+            val clientPublicKey = Curve25519PublicKey(readExactlyNBytes(32))
+            val lastSeenStateId = readEnclaveStateId()
+            lastSeenStateIds[clientPublicKey] = lastSeenStateId
+        }
+        return stateId
+    }
+
+    /**
+     * Apply the changes of a version 2 log record, which must directly follow the record with [previousStateId].
+     * Returns the state ID of the record.
+     */
+    private fun DataInputStream.readStateDelta(previousStateId: EnclaveStateId?): EnclaveStateId {
+        val stateId = readEnclaveStateId()
+        check(readEnclaveStateId() == previousStateId) { "The sealed state log is incomplete or out of order." }
+        // The timestamp, which is not used currently.
+        readLong()
+        readInt()
+        repeat(readInt()) {
+            val key = readUTF()
+            when (val value = nullableRead { readIntLengthPrefixBytes() }) {
+                null -> _persistentMap.remove(key)
+                else -> _persistentMap[key] = value
+            }
+        }
+        repeat(readInt()) {
+            lastSeenStateIds[Curve25519PublicKey(readExactlyNBytes(32))] = stateId
+        }
+        return stateId
+    }
+
+    // Decrypt sealed state using KDS key when the Enclave has been configured to obtain one, otherwise use the
+    // unsealing functions.
+    private fun unsealState(sealedStateBlob: ByteBuffer): ByteArray {
         val sealedState = if (env.kdsConfiguration != null) {
             EnclaveUtils.unsealData(aesPersistenceKey, sealedStateBlob)
         } else {
             env.unsealData(sealedStateBlob)
         }
-        sealedState.plaintext.deserialise {
-            val version = read()
-            check(version == 1)
-            readEnclaveStateId()  // This is not used currently but it's here in case it's needed later.
-            // TODO Feed the time into native code https://r3-cev.atlassian.net/browse/CON-615
-            run {
-                val epochSecond = readLong()
-                val nano = readInt()
-                Instant.ofEpochSecond(epochSecond, nano.toLong())
-            }
-            repeat(readInt()) {
-                val key = readUTF()
-                val value = readIntLengthPrefixBytes()
-                _persistentMap[key] = value
-            }
-            repeat(readInt()) {
-                val clientPublicKey = Curve25519PublicKey(readExactlyNBytes(32))
-                val lastSeenStateId = readEnclaveStateId()
-                lastSeenStateIds[clientPublicKey] = lastSeenStateId
-            }
+        return sealedState.plaintext
+    }
+
+    private fun sealState(plaintext: ByteArray): ByteArray {
+        return if (env.kdsConfiguration != null) {
+            EnclaveUtils.sealData(aesPersistenceKey, PlaintextAndEnvelope(plaintext))
+        } else {
+            env.sealData(PlaintextAndEnvelope(plaintext))
+        }
+    }
+
+    /**
+     * Tracks the records the host holds in its sealed state log since the last checkpoint. Only used if the
+     * `persistentMapCheckpointInterval` configuration is set.
+     */
+    private class SealedStateLog {
+        /** The state ID of the last record, or null if the next record must be a checkpoint. */
+        var lastStateId: EnclaveStateId? = null
+        var checkpointSize = 0L
+        var deltaCount = 0
+        var deltaSize = 0L
+
+        fun checkpoint(size: Int) {
+            checkpointSize = size.toLong()
+            deltaCount = 0
+            deltaSize = 0
+        }
+
+        fun delta(size: Int) {
+            deltaCount++
+            deltaSize += size
+        }
+
+        /** Compact the log into a new checkpoint once it has had enough deltas or has outgrown the last checkpoint. */
+        fun isCheckpointDue(checkpointInterval: Int): Boolean {
+            return deltaCount >= checkpointInterval || deltaSize >= checkpointSize
         }
     }
 
@@ -443,6 +597,9 @@ abstract class Enclave {
      * used to protect against state rewind by the host.
      */
     private fun getMailPrivateHeader(receiveContext: ReceiveContext, publicKey: PublicKey): ByteArray {
+        if (threadSafe) {
+            clientLeases.acquire(publicKey, receiveContext)
+        }
         receiveContext.outboundClients += publicKey
 
         return writeData {
@@ -539,7 +696,7 @@ abstract class Enclave {
      */
     private inner class SetKdsPersistenceKeyCallHandler : CallHandler {
         fun getKdsPrivateKeyResponse(input: ByteBuffer): KdsPrivateKeyResponse {
-            val mailDecryptingStream = getMailDecryptingStream(input.getIntLengthPrefixSlice())
+            val mailDecryptingStream = MailDecryptingStream(input.getIntLengthPrefixSlice())
             val kdsResponseMail = mailDecryptingStream.decryptMail(encryptionKeyPair.private)
             val kdsEnclaveInstanceInfo = EnclaveInstanceInfo.deserialize(input.getIntLengthPrefixSlice())
             return KdsPrivateKeyResponse(kdsResponseMail, kdsEnclaveInstanceInfo)
@@ -567,10 +724,6 @@ abstract class Enclave {
      */
     private inner class StartCallHandler : CallHandler {
         override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
-            if (env.enablePersistentMap && threadSafe) {
-                throw EnclaveStartException("The persistent map is not available in multi-threaded enclaves.")
-            }
-
             lock.withLock {
                 /*
                 Functions that are not strictly related to the enclave initialization but that needs to be executed
@@ -614,7 +767,11 @@ abstract class Enclave {
                 // This method call must be at the top so the enclave derived class can release its resources
                 // Any code that releases resources used by the enclave must be placed after the function
                 // onShutdown
-                onShutdown()
+                try {
+                    onShutdown()
+                } finally {
+                    env.shutdownFileSystems()
+                }
             }
             return null
         }
@@ -644,19 +801,19 @@ abstract class Enclave {
     private inner class EnclaveMessageHandler : CallHandler {
         private val kdsPrivateKeyCache = ConcurrentHashMap<KDSKeySpec, PrivateKey>()
 
+        /** The ID of the host call the current thread is executing, if any. */
         private val currentEnclaveCall = ThreadLocal<Long>()
+        /** The state of each host call in progress, keyed by the call ID. Removed once the top-level call returns. */
         private val enclaveCalls = ConcurrentHashMap<Long, StateManager<CallState>>()
         // Maps sender + topic pairs to the highest sequence number seen so far. Sequence numbers must start from zero
         // and can only increment by one for each delivered mail.
         private val sequenceWatermarks = HashMap<PublicKeyAndTopic, SequenceWatermark>()
         /**
-         * Holds the current [ReceiveContext], or null if there isn't a receive* action being executed of if the thread
-         * is multi-threaded, in which case this is always null.
-         *
-         * Note, if the current receive context was also needed to be tracked for multi-threaded enclaves then this
-         * variable would be a [ThreadLocal].
+         * Holds the thread's current [ReceiveContext], or null if there isn't a receive* action being executed or if
+         * the persistent map is not enabled.
          */
-        var currentReceiveContext: ReceiveContext? = null
+        private val _currentReceiveContext = ThreadLocal<ReceiveContext>()
+        val currentReceiveContext: ReceiveContext? get() = _currentReceiveContext.get()
 
         // .values() returns a fresh array each time so cache it here.
         private val callTypeValues = InternalCallType.values()
@@ -667,50 +824,109 @@ abstract class Enclave {
         // This method can be called concurrently by the host.
         override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
             val type = callTypeValues[parameterBuffer.get().toInt()]
-            val hostThreadId = parameterBuffer.long
-            // Assign the host thread ID to the current thread so that callUntrustedHost/postMail/etc can pick up the
-            // right state for the thread.
-            currentEnclaveCall.set(hostThreadId)
-            val stateManager = enclaveCalls.computeIfAbsent(hostThreadId) {
+            val hostCallId = parameterBuffer.long
+            // Assign the host call ID to the current thread so that callUntrustedHost/postMail/etc can pick up the
+            // right state for the call. The previous ID is restored afterwards as this may be a nested call.
+            val previousCallId = currentEnclaveCall.get()
+            currentEnclaveCall.set(hostCallId)
+            var isTopLevel = false
+            val stateManager = enclaveCalls.computeIfAbsent(hostCallId) {
+                isTopLevel = true
                 // The initial state is to receive on receiveFromUntrustedHost.
                 StateManager(Receive(receiveFromUntrustedHostCallback, receiveFromUntrustedHost = true))
             }
-            when (type) {
-                MAIL -> onMail(hostThreadId, parameterBuffer)
-                UNTRUSTED_HOST -> onUntrustedHost(stateManager, hostThreadId, parameterBuffer)
-                CALL_RETURN -> onCallReturn(stateManager, parameterBuffer)
-                SEALED_STATE -> throw UnsupportedOperationException("SEALED_STATE is not expected from the host")
+            try {
+                when (type) {
+                    MAIL -> onMail(hostCallId, parameterBuffer)
+                    MAIL_BATCH -> onMailBatch(hostCallId, parameterBuffer)
+                    UNTRUSTED_HOST -> onUntrustedHost(stateManager, hostCallId, parameterBuffer)
+                    CALL_RETURN -> onCallReturn(stateManager, parameterBuffer)
+                    SEALED_STATE, SEALED_STATE_DELTA -> {
+                        throw UnsupportedOperationException("$type is not expected from the host")
+                    }
+                }
+            } finally {
+                // The host gives each top-level call a new ID, so its state is no longer needed once it's returned.
+                if (isTopLevel) {
+                    enclaveCalls.remove(hostCallId)
+                }
+                if (previousCallId != null) {
+                    currentEnclaveCall.set(previousCallId)
+                } else {
+                    currentEnclaveCall.remove()
+                }
             }
             return null
         }
 
         // TODO Mail acks: https://r3-cev.atlassian.net/browse/CON-616
-        private fun onMail(hostThreadId: Long, input: ByteBuffer) {
+        private fun onMail(hostCallId: Long, input: ByteBuffer) {
+            val inboundMail = readInboundMail(input, input)
+            val preReceiveAction = if (inboundMail.checkOrdering) {
+                { checkMailOrdering(inboundMail.mail) }
+            } else {
+                { }
+            }
+            try {
+                executeReceive(hostCallId, preReceiveAction) { receiveMail(inboundMail.mail, inboundMail.routingHint) }
+            } finally {
+                // The input buffer isn't valid once this call returns.
+                inboundMail.mail.closeBodyStream()
+            }
+        }
+
+        /**
+         * Deliver a batch of mail in a single receive. All the mail is decrypted before any of it is delivered, so a
+         * mail which fails to decrypt fails the whole batch. (If [streamMailBodies] is true then this only applies to
+         * the headers.) The mail is then delivered in order, with any changes to the persistent map sealed once at the
+         * end of the batch.
+         */
+        private fun onMailBatch(hostCallId: Long, input: ByteBuffer) {
+            val inboundMails = List(input.getInt()) {
+                readInboundMail(input, input.getIntLengthPrefixSlice())
+            }
+            try {
+                executeReceive(hostCallId, preReceive = { }) {
+                    for (inboundMail in inboundMails) {
+                        if (inboundMail.checkOrdering) {
+                            // The lock is already held if the enclave isn't thread safe, but needs to be taken otherwise.
+                            lock.withLock { checkMailOrdering(inboundMail.mail) }
+                        }
+                        receiveMail(inboundMail.mail, inboundMail.routingHint)
+                    }
+                }
+            } finally {
+                for (inboundMail in inboundMails) {
+                    inboundMail.mail.closeBodyStream()
+                }
+            }
+        }
+
+        /**
+         * Read the routing hint and the KDS private key response from [input] and decrypt the mail in [mailBytes].
+         */
+        private fun readInboundMail(input: ByteBuffer, mailBytes: ByteBuffer): InboundMail {
             val routingHint = input.getNullable { getIntLengthPrefixString() }
             // This is the KDS private key response the host made on behalf of the enclave. The host is only required
             // to provide this if the enclave hasn't previously cached the private key this Mail needs. The host
             // determines this by examining the mail's unencrypted derivation header.
             val kdsPrivateKeyResponse = input.getNullable { setKdsPersistenceKeyCallHandler.getKdsPrivateKeyResponse(this) }
-            val mailStream = getMailDecryptingStream(input)
+            val mailStream = MailDecryptingStream(mailBytes)
 
-            val keyDerivation = MailKeyDerivation.deserialiseFromMailStream(mailStream)
-            val mail = when (keyDerivation) {
-                RandomSessionKeyDerivation -> mailStream.decryptMail(encryptionKeyPair.private)
+            return when (val keyDerivation = MailKeyDerivation.deserialiseFromMailStream(mailStream)) {
+                RandomSessionKeyDerivation -> {
+                    val mail = mailStream.decryptMail(encryptionKeyPair.private, streamMailBodies)
+                    InboundMail(mail, routingHint, checkOrdering = true)
+                }
                 is KdsKeySpecKeyDerivation -> {
-                    mailStream.decryptKdsMail(getKdsPrivateKey(keyDerivation.keySpec, kdsPrivateKeyResponse))
+                    val privateKey = getKdsPrivateKey(keyDerivation.keySpec, kdsPrivateKeyResponse)
+                    // We don't check the sequence numbers for KDS encrypted mail because such a mail could be processed
+                    // by any number of enclave instances, example: horizontal scaling of an enclave application. In
+                    // such a scenario the first mail in the sequence might go to enclave 1 and the second mail to
+                    // enclave 2. Enclave 2 would then complain that the sequence number has not started from zero.
+                    InboundMail(mailStream.decryptKdsMail(privateKey, streamMailBodies), routingHint, checkOrdering = false)
                 }
             }
-
-            val preReceiveAction = if (keyDerivation is KdsKeySpecKeyDerivation) {
-                // We don't check the sequence numbers for KDS encrypted mail because such a mail could be processed by
-                // any number of enclave instances, example: horizontal scaling of an enclave application. In such a
-                // scenario the first mail in the sequence might go to enclave 1 and the second mail to enclave 2.
-                // Enclave 2 would then complain that the sequence number has not started from zero.
-                { }
-            } else {
-                { checkMailOrdering(mail) }
-            }
-            executeReceive(hostThreadId, preReceiveAction) { receiveMail(mail, routingHint) }
         }
 
         private fun getKdsPrivateKey(keySpec: KDSKeySpec, kdsPrivateKeyResponse: KdsPrivateKeyResponse?): PrivateKey {
@@ -736,7 +952,7 @@ abstract class Enclave {
             return kdsPrivateKey
         }
 
-        private fun onUntrustedHost(stateManager: StateManager<CallState>, hostThreadId: Long, input: ByteBuffer) {
+        private fun onUntrustedHost(stateManager: StateManager<CallState>, hostCallId: Long, input: ByteBuffer) {
             val state = stateManager.checkStateIs<Receive>()
             checkNotNull(state.callback) {
                 "The enclave has not provided a callback to callUntrustedHost to receive the host's call back in."
@@ -747,7 +963,7 @@ abstract class Enclave {
             val response = if (state.callback == receiveFromUntrustedHostCallback) {
                 // Top-level, i.e. receiveFromUntrustedHost
                 executeReceive(
-                    hostThreadId,
+                    hostCallId,
                     preReceive = { },
                     receiveMethod = { receiveFromUntrustedHost(bytes) }
                 )
@@ -767,7 +983,7 @@ abstract class Enclave {
                 // lock, because it'll be held whilst calling out to the enclave during an operation which is when
                 // there's actual risk of corruption. By the time we get here the enclave should be done and ready
                 // for the next request.
-                sendToHost(CALL_RETURN, hostThreadId, response.size) { buffer ->
+                sendToHost(CALL_RETURN, hostCallId, response.size) { buffer ->
                     buffer.put(response)
                 }
             }
@@ -783,63 +999,116 @@ abstract class Enclave {
             watermark.checkOrdering(mail)
         }
 
-        private fun sendSealedState(hostThreadId: Long, receiveContext: ReceiveContext) {
+        private fun sendSealedState(hostCallId: Long, receiveContext: ReceiveContext) {
             // For every client that has outbound mail, its last seen state ID needs to be updated to the new state ID.
             for (outboundClient in receiveContext.outboundClients) {
                 lastSeenStateIds[outboundClient] = receiveContext.stateId
             }
 
-            // TODO Add padding to the sealed state blobs: https://r3-cev.atlassian.net/browse/CON-620
-            val serialised = writeData {
-                writeByte(1)  // Version
-                write(receiveContext.stateId.bytes)
-                Instant.now().also {
-                    writeLong(it.epochSecond)
-                    writeInt(it.nano)
+            val checkpointInterval = env.persistentMapCheckpointInterval
+            if (checkpointInterval == 0) {
+                // TODO Add padding to the sealed state blobs: https://r3-cev.atlassian.net/browse/CON-620
+                val sealedState = sealState(serialiseFullState(receiveContext.stateId))
+                sendToHost(SEALED_STATE, hostCallId, sealedState.size) { buffer ->
+                    buffer.put(sealedState)
                 }
+                _persistentMap.clearChanges()
+                return
+            }
+
+            val previousStateId = sealedStateLog.lastStateId
+            val isCheckpoint = previousStateId == null || sealedStateLog.isCheckpointDue(checkpointInterval)
+            val sealedRecord = if (previousStateId == null || isCheckpoint) {
+                sealState(serialiseFullState(receiveContext.stateId))
+            } else {
+                sealState(serialiseStateDelta(receiveContext, previousStateId))
+            }
+            val recordSize = 2 * Int.SIZE_BYTES + sealedRecord.size
+            sendToHost(if (isCheckpoint) SEALED_STATE else SEALED_STATE_DELTA, hostCallId, recordSize) { buffer ->
+                buffer.putInt(SEALED_STATE_LOG_RECORD_MAGIC)
+                buffer.putInt(sealedRecord.size)
+                buffer.put(sealedRecord)
+            }
+
+            if (isCheckpoint) sealedStateLog.checkpoint(sealedRecord.size) else sealedStateLog.delta(sealedRecord.size)
+            sealedStateLog.lastStateId = receiveContext.stateId
+            _persistentMap.clearChanges()
+        }
+
+        /** Version 1 of the sealed state, which contains the entire persistent map and all last seen state IDs. */
+        private fun serialiseFullState(stateId: EnclaveStateId): ByteArray {
+            return writeData {
+                writeByte(1)  // Version
+                write(stateId.bytes)
+                writeTimestamp()
                 var persistentMapBytesWritten: Long = 0
                 writeMap(_persistentMap) { key, value ->
                     val streamPositionStart = this.size()
-                    try {
-                        writeUTF(key)
-                    } catch (e: UTFDataFormatException) {
-                        // TODO Check the key size upon insertion rather than here so that the user has better context
-                        //  of the offending key.
-                        throw IllegalArgumentException(
-                                "The persistent map does not support keys which are bigger " +
-                                "than 65535 bytes when UTF-8 encoded.")
-                    }
+                    writePersistentMapKey(key)
                     writeIntLengthPrefixBytes(value)
                     persistentMapBytesWritten += this.size() - streamPositionStart
-                    check(persistentMapBytesWritten <= env.maxPersistentMapSize) {
-                            "The persistent map capacity has been exceeded. To increase the size of the " +
-                            "persistent map for your project, add \"def maxPersistentMapSize = <size>\" to your " +
-                            "enclave build.gradle. For more information on the persistent map and the " +
-                            "consequences of increasing it's size, consult the Conclave documentation."
-                    }
+                    checkPersistentMapSize(persistentMapBytesWritten)
                 }
                 writeMap(lastSeenStateIds) { clientPublicKey, lastSeenStateId ->
                     write(clientPublicKey.encoded)
                     write(lastSeenStateId.bytes)
                 }
             }
+        }
 
-            val sealedState = if (env.kdsConfiguration != null) {
-                EnclaveUtils.sealData(aesPersistenceKey, PlaintextAndEnvelope(serialised))
-            } else {
-                env.sealData(PlaintextAndEnvelope(serialised))
+        /**
+         * Version 2 of the sealed state, which is a log record containing just the persistent map entries which have
+         * changed since the previous record, and the clients whose last seen state ID is now this record's.
+         */
+        private fun serialiseStateDelta(receiveContext: ReceiveContext, previousStateId: EnclaveStateId): ByteArray {
+            checkPersistentMapSize(_persistentMap.encodedSize)
+            return writeData {
+                writeByte(2)  // Version
+                write(receiveContext.stateId.bytes)
+                write(previousStateId.bytes)
+                writeTimestamp()
+                writeInt(_persistentMap.changes.size)
+                for (key in _persistentMap.changes) {
+                    writePersistentMapKey(key)
+                    nullableWrite(_persistentMap[key]) { writeIntLengthPrefixBytes(it) }
+                }
+                writeList(receiveContext.outboundClients) { write(it.encoded) }
+            }
+        }
+
+        private fun DataOutputStream.writeTimestamp() {
+            Instant.now().also {
+                writeLong(it.epochSecond)
+                writeInt(it.nano)
             }
+        }
+
+        private fun DataOutputStream.writePersistentMapKey(key: String) {
+            try {
+                writeUTF(key)
+            } catch (e: UTFDataFormatException) {
+                // TODO Check the key size upon insertion rather than here so that the user has better context
+                //  of the offending key.
+                throw IllegalArgumentException(
+                        "The persistent map does not support keys which are bigger " +
+                        "than 65535 bytes when UTF-8 encoded.")
+            }
+        }
 
-            sendToHost(SEALED_STATE, hostThreadId, sealedState.size) { buffer ->
-                buffer.put(sealedState)
+        private fun checkPersistentMapSize(size: Long) {
+            check(size <= env.maxPersistentMapSize) {
+                    "The persistent map capacity has been exceeded. To increase the size of the " +
+                    "persistent map for your project, add \"def maxPersistentMapSize = <size>\" to your " +
+                    "enclave build.gradle. For more information on the persistent map and the " +
+                    "consequences of increasing it's size, consult the Conclave documentation."
             }
         }
 
         fun callUntrustedHost(bytes: ByteArray, callback: HostCallback?): ByteArray? {
-            val hostThreadId = checkNotNull(currentEnclaveCall.get()) {
+            val hostCallId = checkNotNull(currentEnclaveCall.get()) {
                 "Thread ${Thread.currentThread()} may not attempt to call out to the host outside the context of a call."
             }
-            val stateManager = enclaveCalls.getValue(hostThreadId)
+            val stateManager = enclaveCalls.getValue(hostCallId)
             val newReceiveState = Receive(callback, receiveFromUntrustedHost = false)
             // We don't expect the enclave to be in the Response state here as that implies a bug since Response is only
             // a temporary holder to capture the return value.
@@ -850,7 +1119,7 @@ abstract class Enclave {
             var response: Response? = null
             try {
                 // This could re-enter the enclave in onReceive, if the user has provided a callback.
-                sendToHost(UNTRUSTED_HOST, hostThreadId, bytes.size) { buffer ->
+                sendToHost(UNTRUSTED_HOST, hostCallId, bytes.size) { buffer ->
                     buffer.put(bytes)
                 }
             } finally {
@@ -866,7 +1135,7 @@ abstract class Enclave {
             return response?.bytes
         }
 
-        private fun <T> executeReceive(hostThreadId: Long, preReceive: () -> Unit, receiveMethod: () -> T): T {
+        private fun <T> executeReceive(hostCallId: Long, preReceive: () -> Unit, receiveMethod: () -> T): T {
             // We do locking for the user by default, because otherwise it'd be easy to forget that the host can
             // enter on multiple threads even if you aren't prepared for it. Spotting missing thread safety would
             // require spotting the absence of something rather than the presence of something, which is hard.
@@ -884,7 +1153,7 @@ abstract class Enclave {
                     return if (env.enablePersistentMap) {
                         val receiveContext = ReceiveContext()
                         val response = executeReceive(receiveMethod, receiveContext)
-                        sendSealedState(hostThreadId, receiveContext)
+                        sendSealedState(hostCallId, receiveContext)
                         response
                     } else {
                         receiveMethod()
@@ -898,7 +1167,11 @@ abstract class Enclave {
                 }
 
                 try {
-                    return receiveMethod()
+                    return if (env.enablePersistentMap) {
+                        executeConcurrentReceive(hostCallId, receiveMethod)
+                    } else {
+                        receiveMethod()
+                    }
                 } finally {
                     lock.withLock {
                         --numberReceiveCallsExecuting
@@ -910,15 +1183,48 @@ abstract class Enclave {
             }
         }
 
+        /**
+         * The thread safe version of the persistent map handling. The call's changes to the map are buffered in its
+         * [ConcurrentPersistentMap.Transaction] and only committed once it has finished successfully. The commit and
+         * the sealing of the resulting state happen together under [persistentMapCommitLock], so each sealed state
+         * contains only complete calls.
+         *
+         * If the call isn't committed, either because it threw or because what it read from the map has since been
+         * changed by another call, then the host discards the mail it posted. The sequence numbers of that mail are
+         * handed out again, which is safe as the call still holds the leases of the clients the mail was for.
+         */
+        private fun <T> executeConcurrentReceive(hostCallId: Long, receiveMethod: () -> T): T {
+            val receiveContext = ReceiveContext(ConcurrentPersistentMap.Transaction())
+            var isCommitted = false
+            try {
+                val response = executeReceive(receiveMethod, receiveContext)
+                persistentMapCommitLock.withLock {
+                    concurrentPersistentMap.commit(receiveContext.persistentMapTransaction!!)
+                    isCommitted = true
+                    concurrentPersistentMap.readLocked {
+                        sendSealedState(hostCallId, receiveContext)
+                    }
+                }
+                return response
+            } finally {
+                if (!isCommitted) {
+                    for ((postOffice, sequenceNumber) in receiveContext.firstSequenceNumbers) {
+                        postOffice.resetSequenceNumber(sequenceNumber)
+                    }
+                }
+                clientLeases.release(receiveContext)
+            }
+        }
+
         private fun <T> executeReceive(receiveMethod: () -> T, receiveContext: ReceiveContext): T {
             check(currentReceiveContext == null) {
                 "deliverMail cannot be called in a callback to another deliverMail when the persistent map is enabled."
             }
-            currentReceiveContext = receiveContext
+            _currentReceiveContext.set(receiveContext)
             val response = try {
                 receiveMethod()
             } finally {
-                currentReceiveContext = null
+                _currentReceiveContext.remove()
             }
             check(receiveContext.pendingPostMails == 0) {
                 "There were ${receiveContext.pendingPostMails} mail(s) created which were not posted with postMail."
@@ -932,31 +1238,31 @@ abstract class Enclave {
          * @param type Tells the host whether these bytes are the return value of a callback
          * (in which case it has to return itself) or are from [callUntrustedHost] (in which case they need to be passed
          * to the callback).
-         * @param hostThreadId The thread ID received from the host which is sent back as is so that the host can know
+         * @param hostCallId The call ID received from the host which is sent back as is so that the host can know
          * which of the possible many concurrent calls this response is for.
          */
         private fun sendToHost(
             type: InternalCallType,
-            hostThreadId: Long,
+            hostCallId: Long,
             payloadSize: Int,
             payload: (ByteBuffer) -> Unit
         ) {
             val buffer = ByteBuffer.allocate(1 + Long.SIZE_BYTES + payloadSize).apply {
                 put(type.ordinal.toByte())
-                putLong(hostThreadId)
+                putLong(hostCallId)
                 payload(this)
             }
             env.sendEnclaveMessageResponse(buffer)
         }
 
         fun postMail(encryptedBytes: ByteArray, routingHint: String?) {
-            val hostThreadId = checkNotNull(currentEnclaveCall.get()) {
+            val hostCallId = checkNotNull(currentEnclaveCall.get()) {
                 "Thread ${Thread.currentThread()} may not attempt to send mail outside the context of a callEnclave " +
                         "or deliverMail."
             }
             val routingHintBytes = routingHint?.toByteArray()
             val size = nullableSize(routingHintBytes) { it.intLengthPrefixSize } + encryptedBytes.size
-            sendToHost(MAIL, hostThreadId, size) { buffer ->
+            sendToHost(MAIL, hostCallId, size) { buffer ->
                 buffer.putNullable(routingHintBytes) { putIntLengthPrefixBytes(it) }
                 buffer.put(encryptedBytes)
             }
@@ -992,14 +1298,75 @@ abstract class Enclave {
         }
     }
 
+    /** A mail delivered by the host, with its routing hint and whether its sequence number must be checked. */
+    private class InboundMail(val mail: DecryptedEnclaveMail, val routingHint: String?, val checkOrdering: Boolean)
+
     /**
      * Represents an execution of [receiveMail] or [receiveFromUntrustedHost] and captures information needed to create
      * the sealed state and necessary header information that needs to be attached to any outbound mail.
      */
-    private class ReceiveContext {
+    private class ReceiveContext(
+        /** The buffered changes to the persistent map, if the enclave is thread safe. */
+        val persistentMapTransaction: ConcurrentPersistentMap.Transaction? = null
+    ) {
         val stateId = EnclaveStateId()
         val outboundClients = HashSet<PublicKey>()
         var pendingPostMails = 0
+        /** The client whose lease this call is waiting for in [ClientLeases.acquire]. */
+        var waitingForLease: PublicKey? = null
+        /** The sequence number of the first mail each post office created in this call, if thread safe. */
+        val firstSequenceNumbers = HashMap<SessionEnclavePostOffice, Long>()
+    }
+
+    /**
+     * Used by thread safe enclaves with the persistent map enabled to make sure each client receives state IDs in the
+     * same order as the sealed states are emitted. The first time a call creates mail for a client it takes that
+     * client's lease, and it releases it once its changes have been committed and sealed. Any other call which wants
+     * to create mail for the same client in the meantime must wait.
+     */
+    private class ClientLeases {
+        private val lock = ReentrantLock()
+        private val leaseReleased = lock.newCondition()
+        private val holders = HashMap<PublicKey, ReceiveContext>()
+
+        fun acquire(publicKey: PublicKey, receiveContext: ReceiveContext) {
+            lock.withLock {
+                while (true) {
+                    val holder = holders[publicKey]
+                    if (holder == null) {
+                        holders[publicKey] = receiveContext
+                        return
+                    }
+                    if (holder === receiveContext) return
+                    // Waiting on a call which is itself, directly or indirectly, waiting on this one would never end.
+                    var waiter: ReceiveContext? = holder
+                    while (waiter != null) {
+                        check(waiter !== receiveContext) {
+                            "Concurrent calls have created mail for the same clients in a different order. The " +
+                                    "persistent map of a thread safe enclave requires mail for multiple clients to " +
+                                    "be created in a consistent order."
+                        }
+                        waiter = waiter.waitingForLease?.let { holders[it] }
+                    }
+                    receiveContext.waitingForLease = publicKey
+                    try {
+                        leaseReleased.await()
+                    } finally {
+                        receiveContext.waitingForLease = null
+                    }
+                }
+            }
+        }
+
+        fun release(receiveContext: ReceiveContext) {
+            if (receiveContext.outboundClients.isEmpty()) return
+            lock.withLock {
+                for (publicKey in receiveContext.outboundClients) {
+                    holders.remove(publicKey, receiveContext)
+                }
+                leaseReleased.signalAll()
+            }
+        }
     }
 
     private sealed class CallState {
@@ -1155,7 +1522,19 @@ abstract class Enclave {
 
         override val nextSequenceNumber: Long get() = sequenceNumber
 
-        override fun getAndIncrementSequenceNumber(): Long = sequenceNumber++
+        override fun getAndIncrementSequenceNumber(): Long {
+            enclaveMessageHandler.currentReceiveContext?.let { receiveContext ->
+                if (receiveContext.persistentMapTransaction != null) {
+                    receiveContext.firstSequenceNumbers.putIfAbsent(this, sequenceNumber)
+                }
+            }
+            return sequenceNumber++
+        }
+
+        /** Undo the mail created since [sequenceNumber], which the host has discarded. */
+        fun resetSequenceNumber(sequenceNumber: Long) {
+            this.sequenceNumber = sequenceNumber
+        }
 
         override val senderPrivateKey: PrivateKey get() = encryptionKeyPair.private
 
@@ -2,6 +2,7 @@ package com.r3.conclave.enclave
 
 import com.r3.conclave.mail.*
 import com.r3.conclave.mail.internal.postoffice.AbstractPostOffice
+import java.nio.ByteBuffer
 import java.security.PrivateKey
 import java.security.PublicKey
 
@@ -105,5 +106,19 @@ abstract class EnclavePostOffice(
      */
     fun encryptMail(body: ByteArray, envelope: ByteArray?): ByteArray = encryptMail(body, envelope, privateHeader)
 
+    /**
+     * Encrypts the remaining bytes of [body] in the same way as [encryptMail], but writes the encrypted mail straight
+     * into [destination] rather than returning a new array. The positions of both buffers are advanced. This avoids the
+     * intermediate copies of the mail when it's going to be written into a buffer anyway.
+     *
+     * @return the number of bytes written to [destination].
+     *
+     * @throws IllegalArgumentException If [destination] doesn't have enough space for the encrypted mail. Nothing is
+     * written in this case and the sequence number isn't used up.
+     */
+    fun encryptMail(body: ByteBuffer, envelope: ByteArray?, destination: ByteBuffer): Int {
+        return encryptMail(body, envelope, privateHeader, destination)
+    }
+
     protected abstract val privateHeader: ByteArray?
 }
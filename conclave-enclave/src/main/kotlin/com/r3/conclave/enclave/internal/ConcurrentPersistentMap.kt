@@ -0,0 +1,204 @@
+package com.r3.conclave.enclave.internal
+
+import java.util.ConcurrentModificationException
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * The [com.r3.conclave.enclave.Enclave.persistentMap] of a thread-safe enclave. The map has a committed version, held
+ * in a [TrackedPersistentMap], which is shared by all threads. Each receive call gets its own [Transaction] in which
+ * its changes are buffered, and the call sees the committed map overlaid with its own changes. When the call finishes
+ * its changes are applied to the committed map in one go, by [commit]. Changes made outside of a receive call, such as
+ * in `onStartup`, are applied to the committed map straight away.
+ *
+ * This means the committed map only ever contains complete calls, and so a snapshot of it taken under [readLocked]
+ * is consistent no matter how many calls are executing concurrently.
+ *
+ * Each transaction records the versions of the keys it reads, and [commit] fails with a
+ * [ConcurrentModificationException] if any of them have since been changed by another call. Changing a key counts as
+ * reading it, as [put] and [remove] return the previous value. The versions are kept per stripe of keys rather than
+ * per key, so a transaction can also fail because of a change to an unrelated key in the same stripe. Reading the
+ * whole map, such as with [size] or by iterating over it, conflicts with any change.
+ */
+class ConcurrentPersistentMap(
+    private val committed: TrackedPersistentMap,
+    private val currentTransaction: () -> Transaction?
+) : AbstractMutableMap<String, ByteArray>() {
+    private val lock = ReentrantReadWriteLock()
+    // Both are only changed under the write lock.
+    private val stripeVersions = LongArray(STRIPES)
+    private var version = 0L
+
+    /** The changes of a single receive call. A null value means the key has been removed. */
+    class Transaction {
+        val changes = LinkedHashMap<String, ByteArray?>()
+        /** The version of each stripe of keys when the transaction first read from it. */
+        internal val readStripeVersions = HashMap<Int, Long>()
+        /** The version of the whole map when the transaction first read all of it, or -1 if it hasn't. */
+        internal var readVersion = -1L
+    }
+
+    /**
+     * Apply the changes of the transaction to the committed map.
+     *
+     * @throws ConcurrentModificationException If anything the transaction read has been changed since. None of the
+     * changes are applied in that case.
+     */
+    fun commit(transaction: Transaction) {
+        lock.write {
+            if (transaction.isStale()) {
+                throw ConcurrentModificationException(
+                    "The persistent map has been changed by a concurrent call since this call read from it. The " +
+                            "call's changes have been discarded."
+                )
+            }
+            for ((key, value) in transaction.changes) {
+                if (value != null) committed[key] = value else committed.remove(key)
+                stripeVersions[stripeOf(key)]++
+            }
+            if (transaction.changes.isNotEmpty()) version++
+        }
+    }
+
+    /** Execute [block] whilst preventing any changes from being committed. */
+    fun <T> readLocked(block: () -> T): T = lock.read(block)
+
+    override val size: Int get() {
+        val transaction = currentTransaction() ?: return lock.read { committed.size }
+        return lock.read {
+            transaction.recordFullRead()
+            var size = committed.size
+            for ((key, value) in transaction.changes) {
+                val isCommitted = committed.containsKey(key)
+                if (value != null && !isCommitted) size++ else if (value == null && isCommitted) size--
+            }
+            size
+        }
+    }
+
+    override fun get(key: String): ByteArray? {
+        val transaction = currentTransaction()
+        if (transaction != null && key in transaction.changes) return transaction.changes[key]
+        return lock.read {
+            if (transaction != null) {
+                val stripe = stripeOf(key)
+                transaction.readStripeVersions.putIfAbsent(stripe, stripeVersions[stripe])
+            }
+            committed[key]
+        }
+    }
+
+    override fun containsKey(key: String): Boolean = get(key) != null
+
+    override fun put(key: String, value: ByteArray): ByteArray? {
+        val transaction = currentTransaction() ?: return lock.write { committed.put(key, value).also { changed(key) } }
+        val previous = get(key)
+        transaction.changes[key] = value
+        return previous
+    }
+
+    override fun remove(key: String): ByteArray? {
+        val transaction = currentTransaction() ?: return lock.write { committed.remove(key).also { changed(key) } }
+        val previous = get(key) ?: return null
+        transaction.changes[key] = null
+        return previous
+    }
+
+    override fun clear() {
+        val transaction = currentTransaction() ?: return lock.write {
+            committed.keys.forEach(::changed)
+            committed.clear()
+        }
+        for (key in keys.toList()) {
+            transaction.changes[key] = null
+        }
+    }
+
+    /**
+     * The entries are a snapshot of the map taken when the set is iterated. Removing an entry or setting its value
+     * goes through the map, but is not reflected in the snapshot of an ongoing iteration.
+     */
+    override val entries: MutableSet<MutableMap.MutableEntry<String, ByteArray>> =
+        object : AbstractMutableSet<MutableMap.MutableEntry<String, ByteArray>>() {
+            override val size: Int get() = this@ConcurrentPersistentMap.size
+
+            override fun add(element: MutableMap.MutableEntry<String, ByteArray>): Boolean {
+                throw UnsupportedOperationException()
+            }
+
+            override fun iterator(): MutableIterator<MutableMap.MutableEntry<String, ByteArray>> {
+                val iterator = snapshot().iterator()
+                return object : MutableIterator<MutableMap.MutableEntry<String, ByteArray>> {
+                    private var current: MutableMap.MutableEntry<String, ByteArray>? = null
+
+                    override fun hasNext(): Boolean = iterator.hasNext()
+
+                    override fun next(): MutableMap.MutableEntry<String, ByteArray> {
+                        return SnapshotEntry(iterator.next()).also { current = it }
+                    }
+
+                    override fun remove() {
+                        this@ConcurrentPersistentMap.remove(checkNotNull(current).key)
+                        current = null
+                    }
+                }
+            }
+        }
+
+    private fun snapshot(): Map<String, ByteArray> {
+        val transaction = currentTransaction()
+        val snapshot = lock.read {
+            transaction?.recordFullRead()
+            LinkedHashMap(committed)
+        }
+        transaction?.changes?.forEach { (key, value) ->
+            if (value != null) snapshot[key] = value else snapshot.remove(key)
+        }
+        return snapshot
+    }
+
+    /** Must be called with the lock held. */
+    private fun Transaction.isStale(): Boolean {
+        if (readVersion != -1L && readVersion != version) return true
+        return readStripeVersions.any { (stripe, readVersion) -> stripeVersions[stripe] != readVersion }
+    }
+
+    /** Must be called with the read lock held. */
+    private fun Transaction.recordFullRead() {
+        if (readVersion == -1L) readVersion = version
+    }
+
+    /** A change made outside of a transaction. Must be called with the write lock held. */
+    private fun changed(key: String) {
+        stripeVersions[stripeOf(key)]++
+        version++
+    }
+
+    private fun stripeOf(key: String): Int = key.hashCode() and (STRIPES - 1)
+
+    private inner class SnapshotEntry(entry: Map.Entry<String, ByteArray>) : MutableMap.MutableEntry<String, ByteArray> {
+        override val key: String = entry.key
+        private var _value: ByteArray = entry.value
+        override val value: ByteArray get() = _value
+
+        override fun setValue(newValue: ByteArray): ByteArray {
+            val previous = _value
+            put(key, newValue)
+            _value = newValue
+            return previous
+        }
+
+        override fun equals(other: Any?): Boolean {
+            return other is Map.Entry<*, *> && key == other.key && value == other.value
+        }
+
+        override fun hashCode(): Int = key.hashCode() xor value.hashCode()
+        override fun toString(): String = "$key=$value"
+    }
+
+    private companion object {
+        // Must be a power of two.
+        private const val STRIPES = 1024
+    }
+}
@@ -20,8 +20,11 @@ abstract class EnclaveEnvironment(enclaveProperties: Properties, kdsConfig: Encl
             setProperty("revocationLevel", 0.toString())
             setProperty("enablePersistentMap", "false")
             setProperty("maxPersistentMapSize", (16 * 1024 * 1024).toString())
+            setProperty("persistentMapCheckpointInterval", 0.toString())
             setProperty("inMemoryFileSystemSize", (64 * 1024 * 1024).toString())
             setProperty("persistentFileSystemSize", 0.toString())
+            setProperty("persistentFileSystemCacheSize", (1024 * 1024).toString())
+            setProperty("persistentFileSystemEncryptionThreads", 0.toString())
             // If this property is not set to true, then the kds is assumed not to be in use, and won't be configured
             // during enclave startup. By default, the KDS is not enabled.
             setProperty("kds.configurationPresent", "false")
@@ -53,8 +56,28 @@ abstract class EnclaveEnvironment(enclaveProperties: Properties, kdsConfig: Encl
     open val revocationLevel: Int = enclaveProperties.getProperty("revocationLevel").toInt()
     open val enablePersistentMap: Boolean = enclaveProperties.getProperty("enablePersistentMap").toBoolean()
     open val maxPersistentMapSize: Long = enclaveProperties.getProperty("maxPersistentMapSize").toLong()
+    // Enclaves built before this property was introduced don't have it, in which case the log is disabled.
+    open val persistentMapCheckpointInterval: Int =
+        enclaveProperties.getProperty("persistentMapCheckpointInterval", "0").toInt()
     open val inMemoryFileSystemSize: Long = enclaveProperties.getProperty("inMemoryFileSystemSize").toLong()
     open val persistentFileSystemSize: Long = enclaveProperties.getProperty("persistentFileSystemSize").toLong()
+    // Enclaves built before this property was introduced don't have it, in which case they get the default cache.
+    open val persistentFileSystemCacheSize: Long =
+        enclaveProperties.getProperty("persistentFileSystemCacheSize", (1024 * 1024).toString()).toLong()
+    // Enclaves built before this property was introduced don't have it, in which case the sectors are encrypted and
+    // decrypted on the calling thread only.
+    open val persistentFileSystemEncryptionThreads: Int =
+        enclaveProperties.getProperty("persistentFileSystemEncryptionThreads", "0").toInt()
+    // Mount path -> size, stored as additionalPersistentFileSystems.<index>.mountPath/size
+    open val additionalPersistentFileSystems: Map<String, Long> = generateSequence(0) { it + 1 }
+        .map { index ->
+            val prefix = "additionalPersistentFileSystems.$index"
+            enclaveProperties.getProperty("$prefix.mountPath")?.let { mountPath ->
+                mountPath to enclaveProperties.getProperty("$prefix.size").toLong()
+            }
+        }
+        .takeWhile { it != null }
+        .associate { it!! }
 
     // KDS configuration from build system
     open val kdsConfiguration: EnclaveKdsConfig? = kdsConfig ?: EnclaveKdsConfig.loadConfiguration(enclaveProperties)
@@ -122,17 +145,29 @@ abstract class EnclaveEnvironment(enclaveProperties: Properties, kdsConfig: Encl
      * Set up the in-memory and the persistent filesystems.
      * @param inMemoryFsSize Size (bytes) of the in-memory filesystem.
      * @param persistentFsSize Size (bytes) of the persistent encrypted filesystem.
+     * @param persistentFsCacheSize Size (bytes) of the cache of decrypted sectors of the persistent filesystem.
+     * @param persistentFsEncryptionThreads Number of enclave threads encrypting and decrypting the sectors of the
+     * persistent filesystems in parallel, 0 to use only the calling thread.
      * @param inMemoryMountPath Mount point of the in-memory filesystem.
      * @param persistentMountPath Mount point of the persistent filesystem.
+     * @param additionalPersistentFileSystems Mount point -> size (bytes) of the additional persistent filesystems.
      * @param encryptionKey Byte array of the encryption key.
      */
     abstract fun setupFileSystems(
         inMemoryFsSize: Long,
         persistentFsSize: Long,
+        persistentFsCacheSize: Long,
+        persistentFsEncryptionThreads: Int,
         inMemoryMountPath: String,
         persistentMountPath: String,
+        additionalPersistentFileSystems: Map<String, Long>,
         encryptionKey: ByteArray)
 
+    /**
+     * Release the resources held by the filesystems, such as their encryption threads, when the enclave is shut down.
+     */
+    abstract fun shutdownFileSystems()
+
     /** Call interface functions */
     /**
      * Send enclave info to the host.
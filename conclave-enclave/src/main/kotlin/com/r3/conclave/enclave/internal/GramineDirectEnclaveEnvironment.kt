@@ -78,13 +78,20 @@ class GramineDirectEnclaveEnvironment(
     override fun setupFileSystems(
         inMemoryFsSize: Long,
         persistentFsSize: Long,
+        persistentFsCacheSize: Long,
+        persistentFsEncryptionThreads: Int,
         inMemoryMountPath: String,
         persistentMountPath: String,
+        additionalPersistentFileSystems: Map<String, Long>,
         encryptionKey: ByteArray
     ) {
         //  TODO: Gramine filesystem support
     }
 
+    override fun shutdownFileSystems() {
+        //  No op, Gramine provides the filesystems itself and so there are no Conclave filesystems to shut down
+    }
+
     private val simulationMrEnclave: ByteArray by lazy {
         enclaveClass.protectionDomain.codeSource.location.openStream().use {
             it.digest("SHA-256")
@@ -4,6 +4,7 @@ import com.r3.conclave.common.EnclaveMode
 import com.r3.conclave.common.SHA256Hash
 import com.r3.conclave.common.internal.CallHandler
 import com.r3.conclave.common.internal.EnclaveCallType
+import com.r3.conclave.common.internal.SocketCallInterfaceAddress
 import com.r3.conclave.common.internal.PluginUtils.GRAMINE_MANIFEST
 import com.r3.conclave.common.internal.PluginUtils.GRAMINE_SGX_MANIFEST
 import com.r3.conclave.common.internal.PluginUtils.PYTHON_FILE
@@ -33,8 +34,8 @@ object GramineEntryPoint {
 
     @JvmStatic
     fun main(args: Array<String>) {
-        val port = getPortFromArgs(args)
-        val hostInterface = SocketEnclaveHostInterface("127.0.0.1", port, conclaveWorkerThreads)
+        val address = getAddressFromArgs(args)
+        val hostInterface = SocketEnclaveHostInterface(address, conclaveWorkerThreads)
 
         /** Register the enclave initialisation call handler. */
         hostInterface.registerCallHandler(EnclaveCallType.INITIALISE_ENCLAVE, object : CallHandler {
@@ -55,25 +56,21 @@ object GramineEntryPoint {
     }
 
     /** The host passes the port on the command line. */
-    private fun getPortFromArgs(args: Array<String>): Int {
+    private fun getAddressFromArgs(args: Array<String>): SocketCallInterfaceAddress {
         if (args.isEmpty()) {
             System.err.println(USAGE_STRING)
             exitProcess(EXIT_ERR)
         }
 
-        val port = try {
-            args[0].toInt()
+        return try {
+            SocketCallInterfaceAddress.parse(args[0])
         } catch (e: NumberFormatException) {
             System.err.println("${args[0]} is not a valid port number.")
             exitProcess(EXIT_ERR)
-        }
-
-        if (port > 65535 || port < 0) {
-            System.err.println("$port is not a valid port number. Value must be between 0 and 65535.")
+        } catch (e: IllegalArgumentException) {
+            System.err.println(e.message)
             exitProcess(EXIT_ERR)
         }
-
-        return port
     }
 
     private fun initialiseEnclave(
@@ -81,13 +81,20 @@ class GramineSGXEnclaveEnvironment(
     override fun setupFileSystems(
         inMemoryFsSize: Long,
         persistentFsSize: Long,
+        persistentFsCacheSize: Long,
+        persistentFsEncryptionThreads: Int,
         inMemoryMountPath: String,
         persistentMountPath: String,
+        additionalPersistentFileSystems: Map<String, Long>,
         encryptionKey: ByteArray
     ) {
         //  TODO: Gramine filesystem support
     }
 
+    override fun shutdownFileSystems() {
+        //  No op, Gramine provides the filesystems itself and so there are no Conclave filesystems to shut down
+    }
+
     @Synchronized
     private fun retrieveReport(targetInfoBytes: ByteArray, userReportDataBytes: ByteArray): ByteArray {
         writeTargetInfo(targetInfoBytes)
@@ -83,6 +83,9 @@ class MockEnclaveEnvironment(
     override val maxPersistentMapSize: Long
         get() = configuration.maxPersistentMapSize ?: super.maxPersistentMapSize
 
+    override val persistentMapCheckpointInterval: Int
+        get() = configuration.persistentMapCheckpointInterval ?: super.persistentMapCheckpointInterval
+
     override val enclaveMode: EnclaveMode
         get() = EnclaveMode.MOCK
 
@@ -169,10 +172,17 @@ class MockEnclaveEnvironment(
     override fun setupFileSystems(
         inMemoryFsSize: Long,
         persistentFsSize: Long,
+        persistentFsCacheSize: Long,
+        persistentFsEncryptionThreads: Int,
         inMemoryMountPath: String,
         persistentMountPath: String,
+        additionalPersistentFileSystems: Map<String, Long>,
         encryptionKey: ByteArray
     ) {
         //  NO op for Mock mode
     }
+
+    override fun shutdownFileSystems() {
+        //  NO op for Mock mode
+    }
 }
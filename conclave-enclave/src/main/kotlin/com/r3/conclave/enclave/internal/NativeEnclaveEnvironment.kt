@@ -137,8 +137,11 @@ class NativeEnclaveEnvironment(
     override fun setupFileSystems(
         inMemoryFsSize: Long,
         persistentFsSize: Long,
+        persistentFsCacheSize: Long,
+        persistentFsEncryptionThreads: Int,
         inMemoryMountPath: String,
         persistentMountPath: String,
+        additionalPersistentFileSystems: Map<String, Long>,
         encryptionKey: ByteArray
     ) {
         val inMemoryMountPathModified =
@@ -148,12 +151,20 @@ class NativeEnclaveEnvironment(
         Native.setupFileSystems(
             inMemoryFsSize,
             persistentFsSize,
+            persistentFsCacheSize,
+            persistentFsEncryptionThreads,
             inMemoryMountPathModified,
             persistentMountPathModified,
+            additionalPersistentFileSystems.keys.toTypedArray(),
+            additionalPersistentFileSystems.values.toLongArray(),
             encryptionKey
         )
     }
 
+    override fun shutdownFileSystems() {
+        Native.shutdownFileSystems()
+    }
+
     override val enclaveMode: EnclaveMode
         get() {
             return when {
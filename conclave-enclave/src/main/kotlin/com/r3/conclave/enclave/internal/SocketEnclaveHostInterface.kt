@@ -6,13 +6,10 @@ import com.r3.conclave.utilities.internal.getAllBytes
 import com.r3.conclave.utilities.internal.readIntLengthPrefixBytes
 import com.r3.conclave.utilities.internal.writeIntLengthPrefixBytes
 import java.io.Closeable
-import java.io.DataInputStream
-import java.io.DataOutputStream
-import java.net.Socket
 import java.nio.ByteBuffer
-import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
-import java.util.concurrent.Semaphore
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 /**
  * This class is the implementation of the [EnclaveHostInterface] for native enclaves.
@@ -22,10 +19,16 @@ import java.util.concurrent.Semaphore
  *  - Handle the low-level details of the messaging protocol (socket with streamed ECalls and OCalls).
  */
 class SocketEnclaveHostInterface(
-        private val host: String,
-        private val port: Int,
+        private val address: SocketCallInterfaceAddress,
         private val maximumConcurrentCalls: Int
 ) :  CallInterface<HostCallType, EnclaveCallType>(), Closeable {
+    constructor(host: String, port: Int, maximumConcurrentCalls: Int) :
+            this(SocketCallInterfaceAddress(host, port), maximumConcurrentCalls)
+
+    private companion object {
+        private const val HANDLER_THREAD_KEEP_ALIVE_SECONDS = 60L
+    }
+
     var sanitiseExceptions = false
 
     /** Represents the lifecycle of the interface. */
@@ -37,10 +40,18 @@ class SocketEnclaveHostInterface(
 
     private var stateManager = StateManager<State>(State.Ready)
 
-    private lateinit var callExecutor: ExecutorService
+    /**
+     * Call handler threads are created as the host opens connections, up to [maximumConcurrentCalls], and are
+     * discarded again after being idle for [HANDLER_THREAD_KEEP_ALIVE_SECONDS].
+     */
+    private lateinit var callExecutor: ThreadPoolExecutor
+
+    /** Receives connection requests from the host over the initial connection. */
+    private lateinit var connectorThread: Thread
 
-    /** Tracks the number of running threads, used for graceful shutdown. */
-    private val shutdownSemaphore = Semaphore(0)
+    /** Created by the connector thread when the host opens the first multiplexed connection. */
+    @Volatile
+    private var multiplexer: SocketCallInterfaceMultiplexer? = null
 
     fun start() {
         synchronized(stateManager) {
@@ -48,21 +59,28 @@ class SocketEnclaveHostInterface(
             stateManager.transitionStateFrom<State.Ready>(to = State.Running)
 
             try {
-                /** Send the maximum number of concurrent calls to the host. */
-                Socket(host, port).use { initialSocket ->
-                    DataOutputStream(initialSocket.getOutputStream()).writeInt(maximumConcurrentCalls)
-                }
-
-                callExecutor = Executors.newFixedThreadPool(maximumConcurrentCalls)
-
                 /**
-                 * Connect sockets and instantiate handler threads.
-                 * TODO: Create connections lazily as they are required, rather than greedily at startup
+                 * Send the maximum number of concurrent calls to the host. The initial connection is kept open and
+                 * the host uses it to request call connections as they are required.
                  */
-                for (i in 0 until maximumConcurrentCalls) {
-                    val socket = Socket(host, port).apply { tcpNoDelay = true }
-                    callExecutor.execute { EnclaveCallContext(socket).handlerLoop() }
+                val controlConnection = address.connect()
+                try {
+                    controlConnection.output.writeInt(maximumConcurrentCalls)
+                } catch (e: Exception) {
+                    controlConnection.close()
+                    throw e
                 }
+
+                callExecutor = ThreadPoolExecutor(
+                        maximumConcurrentCalls,
+                        maximumConcurrentCalls,
+                        HANDLER_THREAD_KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        LinkedBlockingQueue()
+                ).apply { allowCoreThreadTimeOut(true) }
+
+                connectorThread = Thread({ connectorLoop(controlConnection) }, "Conclave call interface connector")
+                connectorThread.start()
             } catch (e: Exception) {
                 stateManager.transitionStateFrom<State.Running>(to = State.Stopped)
                 throw e
@@ -70,6 +88,36 @@ class SocketEnclaveHostInterface(
         }
     }
 
+    /** Open call connections on request from the host until told by the host to stop. */
+    private fun connectorLoop(controlConnection: SocketCallInterfaceConnection) {
+        controlConnection.use {
+            while (true) {
+                when (SocketCallInterfaceControlMessage.fromByte(it.input.readByte())) {
+                    SocketCallInterfaceControlMessage.OPEN_CONNECTION -> {
+                        val connection = address.connect()
+                        callExecutor.execute { ConnectionCallContext(connection).handlerLoop() }
+                    }
+                    SocketCallInterfaceControlMessage.OPEN_MULTIPLEXED_CONNECTION -> {
+                        val multiplexer = multiplexer ?: SocketCallInterfaceMultiplexer(::onNewStream).also {
+                            multiplexer = it
+                        }
+                        multiplexer.addConnection(address.connect().channel)
+                    }
+                    SocketCallInterfaceControlMessage.STOP -> break
+                }
+            }
+        }
+    }
+
+    /** A new stream is a top level call from the host, which is handled by one of the call executor threads. */
+    private fun onNewStream(stream: SocketCallInterfaceMultiplexer.Stream, frame: SocketCallInterfaceFrame) {
+        callExecutor.execute {
+            stream.use {
+                StreamCallContext(it).handleInitialCall(frame.toMessage())
+            }
+        }
+    }
+
     /**
      * The shutdown process starts on the host.
      * This function just blocks until the host sends a stop message and the message receive loop terminates.
@@ -84,26 +132,24 @@ class SocketEnclaveHostInterface(
         }
     }
 
-    /** Blocks until all call context worker threads have stopped. */
+    /**
+     * Blocks until all call context worker threads have stopped. The host stops every call connection before telling
+     * the connector thread to stop, so once it has exited only the remaining handler loops need to finish.
+     */
     fun awaitTermination() {
         if (stateManager.state == State.Stopped) return
         stateManager.checkStateIs<State.Running>()
-        shutdownSemaphore.acquire(maximumConcurrentCalls)
+        connectorThread.join()
+        multiplexer?.awaitTermination()
+        callExecutor.shutdown()
+        callExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)
+        multiplexer?.close()
     }
 
-    private inner class EnclaveCallContext(private val socket: Socket) {
-        private val toHost = DataOutputStream(socket.getOutputStream())
-        private val fromHost = DataInputStream(socket.getInputStream())
+    private abstract inner class EnclaveCallContext {
+        abstract fun receiveMessage(): SocketCallInterfaceMessage
 
-        fun receiveMessage(): SocketCallInterfaceMessage {
-            val messageBytes = fromHost.readIntLengthPrefixBytes()
-            return SocketCallInterfaceMessage.fromByteArray(messageBytes)
-        }
-
-        fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?) {
-            val message = SocketCallInterfaceMessage(messageType, callTypeID, payload?.getAllBytes(avoidCopying = true))
-            toHost.writeIntLengthPrefixBytes(message.toByteArray())
-        }
+        abstract fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?)
 
         fun sendCallMessage(callType: HostCallType, parameterBuffer: ByteBuffer) {
             sendMessage(SocketCallInterfaceMessageType.CALL, callType.toByte(), parameterBuffer)
@@ -174,22 +220,44 @@ class SocketEnclaveHostInterface(
             }
         }
 
+    }
+
+    /** A call context with a connection of its own, which handles one top level call at a time. */
+    private inner class ConnectionCallContext(private val connection: SocketCallInterfaceConnection) : EnclaveCallContext() {
+        private val toHost = connection.output
+        private val fromHost = connection.input
+
+        override fun receiveMessage(): SocketCallInterfaceMessage {
+            val messageBytes = fromHost.readIntLengthPrefixBytes()
+            return SocketCallInterfaceMessage.fromByteArray(messageBytes)
+        }
+
+        override fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?) {
+            val message = SocketCallInterfaceMessage(messageType, callTypeID, payload?.getAllBytes(avoidCopying = true))
+            toHost.writeIntLengthPrefixBytes(message.toByteArray())
+        }
+
         /** Handle calls from the host until told by the host to stop. */
         fun handlerLoop() {
-            try {
-                socket.use {
-                    var message = receiveMessage()
-                    while (message.messageType != SocketCallInterfaceMessageType.STOP) {
-                        handleInitialCall(message)
-                        message = receiveMessage()
-                    }
+            connection.use {
+                var message = receiveMessage()
+                while (message.messageType != SocketCallInterfaceMessageType.STOP) {
+                    handleInitialCall(message)
+                    message = receiveMessage()
                 }
-            } finally {
-                shutdownSemaphore.release()
             }
         }
     }
 
+    /** A call context for a single top level call from the host, using a stream on a shared connection. */
+    private inner class StreamCallContext(private val stream: SocketCallInterfaceMultiplexer.Stream) : EnclaveCallContext() {
+        override fun receiveMessage(): SocketCallInterfaceMessage = stream.receive().toMessage()
+
+        override fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?) {
+            stream.send(messageType, callTypeID, payload)
+        }
+    }
+
     /**
      * This contains the call context for the current thread.
      * It is used to link outgoing calls to the appropriate call worker.
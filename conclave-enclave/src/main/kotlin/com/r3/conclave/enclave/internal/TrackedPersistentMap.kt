@@ -0,0 +1,119 @@
+package com.r3.conclave.enclave.internal
+
+/**
+ * The backing store for [com.r3.conclave.enclave.Enclave.persistentMap]. Iteration order is insertion order, as with
+ * [LinkedHashMap], and the map keeps track of which keys have changed since [clearChanges] was last called. This allows
+ * the enclave to seal just the changes made during a call rather than the entire map.
+ *
+ * Only changes made through the map are tracked. Modifying a value array in place is not a change as far as this map
+ * is concerned, the entry must be put again.
+ */
+class TrackedPersistentMap : AbstractMutableMap<String, ByteArray>() {
+    private val delegate = LinkedHashMap<String, ByteArray>()
+    private val changedKeys = LinkedHashSet<String>()
+
+    /**
+     * The size of the map when serialised as `writeUTF(key)` followed by `writeIntLengthPrefixBytes(value)` for each
+     * entry, kept up to date as the map changes.
+     */
+    var encodedSize = 0L
+        private set
+
+    /** Keys which have been put or removed since [clearChanges] was last called. */
+    val changes: Set<String> get() = changedKeys
+
+    fun clearChanges() = changedKeys.clear()
+
+    override val size: Int get() = delegate.size
+
+    override fun get(key: String): ByteArray? = delegate[key]
+
+    override fun containsKey(key: String): Boolean = delegate.containsKey(key)
+
+    override fun put(key: String, value: ByteArray): ByteArray? {
+        val previous = delegate.put(key, value)
+        onPut(key, previous, value)
+        return previous
+    }
+
+    override fun remove(key: String): ByteArray? {
+        val previous = delegate.remove(key)
+        if (previous != null) onRemove(key, previous)
+        return previous
+    }
+
+    override fun clear() {
+        changedKeys += delegate.keys
+        delegate.clear()
+        encodedSize = 0
+    }
+
+    private fun onPut(key: String, previous: ByteArray?, value: ByteArray) {
+        changedKeys += key
+        encodedSize += if (previous == null) encodedEntrySize(key, value) else (value.size - previous.size).toLong()
+    }
+
+    private fun onRemove(key: String, previous: ByteArray) {
+        changedKeys += key
+        encodedSize -= encodedEntrySize(key, previous)
+    }
+
+    private fun encodedEntrySize(key: String, value: ByteArray): Long {
+        // writeUTF uses modified UTF-8, where the null character takes two bytes and surrogates three bytes each.
+        var keySize = 0L
+        for (c in key) {
+            keySize += when {
+                c in '\u0001'..'\u007f' -> 1
+                c <= '\u07ff' -> 2
+                else -> 3
+            }
+        }
+        return Short.SIZE_BYTES + keySize + Int.SIZE_BYTES + value.size
+    }
+
+    override val entries: MutableSet<MutableMap.MutableEntry<String, ByteArray>> =
+        object : AbstractMutableSet<MutableMap.MutableEntry<String, ByteArray>>() {
+            override val size: Int get() = delegate.size
+
+            override fun add(element: MutableMap.MutableEntry<String, ByteArray>): Boolean {
+                throw UnsupportedOperationException()
+            }
+
+            override fun iterator(): MutableIterator<MutableMap.MutableEntry<String, ByteArray>> {
+                val iterator = delegate.entries.iterator()
+                return object : MutableIterator<MutableMap.MutableEntry<String, ByteArray>> {
+                    private var current: MutableMap.MutableEntry<String, ByteArray>? = null
+
+                    override fun hasNext(): Boolean = iterator.hasNext()
+
+                    override fun next(): MutableMap.MutableEntry<String, ByteArray> {
+                        return TrackedEntry(iterator.next()).also { current = it }
+                    }
+
+                    override fun remove() {
+                        val entry = checkNotNull(current)
+                        iterator.remove()
+                        onRemove(entry.key, entry.value)
+                        current = null
+                    }
+                }
+            }
+        }
+
+    private inner class TrackedEntry(
+        private val entry: MutableMap.MutableEntry<String, ByteArray>
+    ) : MutableMap.MutableEntry<String, ByteArray> {
+        override val key: String get() = entry.key
+        override val value: ByteArray get() = entry.value
+
+        override fun setValue(newValue: ByteArray): ByteArray {
+            val previous = entry.setValue(newValue)
+            onPut(entry.key, previous, newValue)
+            return previous
+        }
+
+        override fun equals(other: Any?): Boolean = entry == other
+        override fun hashCode(): Int = entry.hashCode()
+        override fun toString(): String = entry.toString()
+    }
+}
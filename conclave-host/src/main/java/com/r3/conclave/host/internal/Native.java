@@ -1,14 +1,29 @@
 package com.r3.conclave.host.internal;
 
+import java.nio.ByteBuffer;
+
 /**
  * The JNI interface of the host. Requires symbols loaded with [NativeLoader]
  */
 public class Native {
-    public static native long createEnclave(String path, boolean isDebug);
+    /**
+     * Creates the enclave. If switchlessWorkerThreads is greater than zero then the enclave is created with that many
+     * untrusted worker threads for servicing switchless OCALLs, otherwise switchless calls fall back to regular OCALLs.
+     */
+    public static native long createEnclave(String path, boolean isDebug, int switchlessWorkerThreads);
 
     public static native void destroyEnclave(long enclaveId);
 
-    public static native void jvmECall(long enclaveId, byte callType, byte messageTypeID, byte[] data);
+    /**
+     * If hostFrameID is not zero then the enclave sends its reply to the call with it, see NativeApi.receiveReplyOCall.
+     */
+    public static native void jvmECall(long enclaveId, byte callType, byte messageTypeID, byte[] data, long hostFrameID);
+
+    /**
+     * Same as jvmECall but the message is read directly from the memory of a direct byte buffer, avoiding the copy
+     * into and out of a Java heap array. Only the bytes in the range [offset, offset + length) are sent.
+     */
+    public static native void jvmECallDirect(long enclaveId, byte callType, byte messageTypeID, ByteBuffer data, int offset, int length, long hostFrameID);
 
     /**
      * sgx_status_t sgx_init_quote(sgx_target_info_t *p_target_info, sgx_epid_group_id_t *p_gid)
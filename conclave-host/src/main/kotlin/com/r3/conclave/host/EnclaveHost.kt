@@ -30,7 +30,14 @@ import java.nio.ByteBuffer
 import java.nio.file.Path
 import java.security.PublicKey
 import java.util.*
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.function.Consumer
 import java.util.function.Function
 
@@ -62,6 +69,18 @@ class EnclaveHost private constructor(
         private val signatureScheme = SignatureSchemeEdDSA()
         private val jsonMapper = JsonMapper.builder().enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS).build()
 
+        /** The number of threads used to execute [callEnclaveAsync] and [deliverMailAsync] calls. */
+        private val asyncThreads = Integer.getInteger(
+            "conclave.host.asyncThreads",
+            Runtime.getRuntime().availableProcessors()
+        )
+
+        /**
+         * The maximum number of async calls which can be waiting for a thread. Further calls are rejected rather than
+         * queued without bound.
+         */
+        private val maxPendingAsyncCalls = Integer.getInteger("conclave.host.maxPendingAsyncCalls", 1024)
+
         /**
          * Diagnostics output outlining CPU capabilities. This is a free text field and should only be used for
          * debugging, logging. Don't try to parse the output.
@@ -326,6 +345,10 @@ class EnclaveHost private constructor(
 
     private lateinit var commandsCallback: Consumer<List<MailCommand>>
 
+    /** Executes the async calls into the enclave. Created on first use and guarded by [asyncExecutorLock]. */
+    private var asyncExecutor: ThreadPoolExecutor? = null
+    private val asyncExecutorLock = Any()
+
     /**
      * The name of the sub-class of Enclave that was loaded.
      */
@@ -375,6 +398,8 @@ class EnclaveHost private constructor(
      * mail (the contents of [com.r3.conclave.enclave.Enclave.persistentMap] is also part of this state). Each new sealed state that is
      * emitted via [MailCommand.StoreSealedState] supercedes the previous one and must be securely persisted. Failure
      * to do this will result in the enclave's clients detecting a "rollback" attack if the enclave is restarted.
+     * The exception is a sealed state with [MailCommand.StoreSealedState.isDelta] set, which is appended to the
+     * previous one instead, in which case the combined bytes are passed in here.
      * Typically the sealed state should be stored in a database, inside the same database transaction that
      * processes thhe other mail commands, such as [MailCommand.PostMail]. More information can be found
      * [here](https://github.com/R3Conclave/conclave-core-sdk/wiki/Enclave-Persistence).
@@ -406,6 +431,29 @@ class EnclaveHost private constructor(
         enclaveFileSystemFile: Path?,
         kdsConfiguration: KDSConfiguration?,
         commandsCallback: Consumer<List<MailCommand>>
+    ) {
+        start(attestationParameters, sealedState, enclaveFileSystemFile, emptyMap(), kdsConfiguration, commandsCallback)
+    }
+
+    /**
+     * Causes the enclave to be loaded, in the same way as the other [start] methods, for an enclave which is configured
+     * with additional persistent filesystems.
+     *
+     * @param additionalEnclaveFileSystemFiles The files where the enclave's additional persistent filesystems will be
+     * persisted to, keyed by the path at which the enclave mounts each of them (as configured in
+     * `additionalPersistentFileSystems`). Each filesystem can be placed on a different device.
+     *
+     * @see start
+     */
+    @Throws(EnclaveLoadException::class)
+    @Synchronized
+    fun start(
+        attestationParameters: AttestationParameters?,
+        sealedState: ByteArray?,
+        enclaveFileSystemFile: Path?,
+        additionalEnclaveFileSystemFiles: Map<String, Path>,
+        kdsConfiguration: KDSConfiguration?,
+        commandsCallback: Consumer<List<MailCommand>>
     ) {
         if (hostStateManager.state is Started) return
         hostStateManager.checkStateIsNot<Closed> { "The host has been closed." }
@@ -442,12 +490,16 @@ class EnclaveHost private constructor(
                 }
             }
 
+            val fileSystemFiles = additionalEnclaveFileSystemFiles.toMutableMap()
             if (enclaveFileSystemFile != null) {
+                fileSystemFiles["/"] = enclaveFileSystemFile
+            }
+            if (fileSystemFiles.isNotEmpty()) {
                 log.info("Setting up persistent enclave file system...")
             }
-            fileSystemHandler = prepareFileSystemHandler(enclaveFileSystemFile)
+            fileSystemHandler = prepareFileSystemHandler(fileSystemFiles)
             enclaveHandle.startEnclave(sealedState)
-            if (enclaveFileSystemFile != null) {
+            if (fileSystemFiles.isNotEmpty()) {
                 log.info("Setup of the file system completed successfully.")
             }
 
@@ -457,9 +509,8 @@ class EnclaveHost private constructor(
         }
     }
 
-    private fun prepareFileSystemHandler(enclaveFileSystemFile: Path?): FileSystemHandler? {
+    private fun prepareFileSystemHandler(fileSystemFilePaths: Map<String, Path>): FileSystemHandler? {
         return if (isFileSystemSupported()) {
-            val fileSystemFilePaths = if (enclaveFileSystemFile != null) listOf(enclaveFileSystemFile) else emptyList()
             FileSystemHandler(fileSystemFilePaths, enclaveMode)
         } else {
             null
@@ -691,6 +742,165 @@ class EnclaveHost private constructor(
         return checkStateFirst { enclaveMessageHandler.deliverMail(mail, callback, routingHint) }
     }
 
+    /**
+     * Delivers the given batch of encrypted mail to the enclave in a single call, rather than one call per mail as
+     * with [deliverMail]. This is more efficient when there are many small mails to deliver, as the cost of entering
+     * the enclave is paid only once for the whole batch.
+     *
+     * The enclave decrypts all the mail before delivering any of it to
+     * [com.r3.conclave.enclave.Enclave.receiveMail], in the order of the list. If any of the mail cannot be decrypted
+     * then a [MailDecryptionException] is thrown and none of the batch is delivered. If the enclave throws an
+     * exception whilst processing a mail then the mail after it is not delivered and the exception is rethrown.
+     *
+     * The [MailCommand]s the enclave emits for the whole batch are passed together to the callback provided to
+     * [start]. If the persistent map is enabled then the enclave only emits a single sealed state for the batch.
+     *
+     * @param mails The encrypted mail received from remote clients, with their routing hints.
+     * @param callback If the enclave calls [com.r3.conclave.enclave.Enclave.callUntrustedHost] then the
+     * bytes will be passed to this object for consumption and generation of the response.
+     *
+     * @throws UnsupportedOperationException If the enclave has not provided an implementation for
+     * [com.r3.conclave.enclave.Enclave.receiveMail].
+     * @throws MailDecryptionException If the enclave was unable to decrypt any of the mail due to either key mismatch
+     * or corrupted mail bytes.
+     * @throws IOException If any of the mail is encrypted with a KDS private key and the host was unable to
+     * communicate with the KDS to get it.
+     * @throws IllegalStateException If the host has not been started.
+     * @throws EnclaveException If an exception is raised from within the enclave.
+     */
+    @Throws(MailDecryptionException::class, IOException::class)
+    fun deliverMailBatch(mails: List<MailDelivery>, callback: Function<ByteArray, ByteArray?>) {
+        deliverMailBatchInternal(mails, callback)
+    }
+
+    /**
+     * Delivers the given batch of encrypted mail to the enclave in a single call. See the overload which takes in a
+     * callback for details.
+     *
+     * Note: The enclave does not have the option of using [com.r3.conclave.enclave.Enclave.callUntrustedHost] for
+     * sending bytes back to the host. Use the overload which takes in a callback [Function] instead.
+     *
+     * @param mails The encrypted mail received from remote clients, with their routing hints.
+     *
+     * @throws UnsupportedOperationException If the enclave has not provided an implementation for
+     * [com.r3.conclave.enclave.Enclave.receiveMail].
+     * @throws MailDecryptionException If the enclave was unable to decrypt any of the mail due to either key mismatch
+     * or corrupted mail bytes.
+     * @throws IOException If any of the mail is encrypted with a KDS private key and the host was unable to
+     * communicate with the KDS to get it.
+     * @throws IllegalStateException If the host has not been started.
+     * @throws EnclaveException If an exception is raised from within the enclave.
+     */
+    @Throws(MailDecryptionException::class, IOException::class)
+    fun deliverMailBatch(mails: List<MailDelivery>) = deliverMailBatchInternal(mails, null)
+
+    private fun deliverMailBatchInternal(mails: List<MailDelivery>, callback: EnclaveCallback?) {
+        return checkStateFirst { enclaveMessageHandler.deliverMailBatch(mails, callback) }
+    }
+
+    /**
+     * Asynchronous version of [callEnclave]. The call is executed on a thread from a bounded pool owned by this host,
+     * and the returned future completes with the enclave's response once it returns. Any exception thrown by the call,
+     * including [EnclaveException] and [IllegalStateException] if the host is not started, completes the future
+     * exceptionally instead of being thrown here.
+     *
+     * The callback, and the commands callback provided to [start], are invoked on the pool thread before the future
+     * completes.
+     *
+     * The pool has `conclave.host.asyncThreads` threads, which defaults to the number of available processors. If
+     * more than `conclave.host.maxPendingAsyncCalls` calls (default 1024) are already waiting for a thread then the
+     * future completes exceptionally with a [RejectedExecutionException], so that callers can apply back pressure.
+     *
+     * @param bytes Bytes to send to the enclave.
+     * @param callback Bytes received from the enclave via [com.r3.conclave.enclave.Enclave.callUntrustedHost].
+     *
+     * @return A future of the return value of the enclave's [com.r3.conclave.enclave.Enclave.receiveFromUntrustedHost].
+     */
+    fun callEnclaveAsync(bytes: ByteArray, callback: Function<ByteArray, ByteArray?>): CompletableFuture<ByteArray?> {
+        return submitAsync { callEnclaveInternal(bytes, callback) }
+    }
+
+    /**
+     * Asynchronous version of [callEnclave] for when the enclave does not need to use
+     * [com.r3.conclave.enclave.Enclave.callUntrustedHost]. See the overload which takes in a callback for details.
+     *
+     * @param bytes Bytes to send to the enclave.
+     *
+     * @return A future of the return value of the enclave's [com.r3.conclave.enclave.Enclave.receiveFromUntrustedHost].
+     */
+    fun callEnclaveAsync(bytes: ByteArray): CompletableFuture<ByteArray?> {
+        return submitAsync { callEnclaveInternal(bytes, null) }
+    }
+
+    /**
+     * Asynchronous version of [deliverMail]. The mail is delivered on a thread from a bounded pool owned by this host,
+     * and the returned future completes once the enclave has processed it. Any exception thrown by the delivery,
+     * including [MailDecryptionException], completes the future exceptionally instead of being thrown here.
+     *
+     * Any [MailCommand]s the enclave emits are passed to the commands callback provided to [start] on the pool thread,
+     * before the future completes. See [callEnclaveAsync] for how the pool is sized and when calls are rejected.
+     *
+     * @param mail The encrypted mail received from a remote client.
+     * @param routingHint An arbitrary bit of data identifying the sender on the host side.
+     * @param callback If the enclave calls [com.r3.conclave.enclave.Enclave.callUntrustedHost] then the
+     * bytes will be passed to this object for consumption and generation of the response.
+     */
+    fun deliverMailAsync(
+        mail: ByteArray,
+        routingHint: String?,
+        callback: Function<ByteArray, ByteArray?>
+    ): CompletableFuture<Void?> {
+        return submitAsync { deliverMailInternal(mail, routingHint, callback); null }
+    }
+
+    /**
+     * Asynchronous version of [deliverMail] for when the enclave does not need to use
+     * [com.r3.conclave.enclave.Enclave.callUntrustedHost]. See the overload which takes in a callback for details.
+     *
+     * @param mail The encrypted mail received from a remote client.
+     * @param routingHint An arbitrary bit of data identifying the sender on the host side.
+     */
+    fun deliverMailAsync(mail: ByteArray, routingHint: String?): CompletableFuture<Void?> {
+        return submitAsync { deliverMailInternal(mail, routingHint, null); null }
+    }
+
+    private fun <T> submitAsync(task: () -> T): CompletableFuture<T> {
+        val future = CompletableFuture<T>()
+        try {
+            getAsyncExecutor().execute {
+                try {
+                    future.complete(task())
+                } catch (t: Throwable) {
+                    future.completeExceptionally(t)
+                }
+            }
+        } catch (e: Exception) {
+            future.completeExceptionally(e)
+        }
+        return future
+    }
+
+    private fun getAsyncExecutor(): ThreadPoolExecutor {
+        synchronized(asyncExecutorLock) {
+            checkStateFirst { }
+            asyncExecutor?.let { return it }
+            val threadCount = AtomicInteger()
+            // The queue is bounded to give admission control.
+            val executor = ThreadPoolExecutor(
+                asyncThreads,
+                asyncThreads,
+                60,
+                SECONDS,
+                LinkedBlockingQueue(maxPendingAsyncCalls)
+            ) { runnable ->
+                Thread(runnable, "Conclave enclave async call ${threadCount.incrementAndGet()}").apply { isDaemon = true }
+            }
+            executor.allowCoreThreadTimeOut(true)
+            asyncExecutor = executor
+            return executor
+        }
+    }
+
     private inline fun <T> checkStateFirst(block: () -> T): T {
         return when (hostStateManager.state) {
             New -> throw IllegalStateException("The enclave host has not been started.")
@@ -722,6 +932,10 @@ class EnclaveHost private constructor(
             fileSystemHandler?.close()
         } finally {
             hostStateManager.state = Closed
+            // Calls which are still queued will fail on the closed state. No new calls will be accepted.
+            synchronized(asyncExecutorLock) {
+                asyncExecutor?.shutdown()
+            }
         }
     }
 
@@ -754,7 +968,11 @@ class EnclaveHost private constructor(
         }
     }
 
-    private class Transaction {
+    /**
+     * The state of a top-level call into the enclave and any nested calls made from its callbacks. The call ID is
+     * passed with every message between the host and enclave so that each side can find the state of the call.
+     */
+    private class Transaction(val callID: Long) {
         val stateManager = StateManager<CallState>(Ready)
         val mailCommands = LinkedList<MailCommand>()
 
@@ -770,7 +988,13 @@ class EnclaveHost private constructor(
     private inner class EnclaveMessageHandler : CallHandler {
         private val callTypeValues = InternalCallType.values()
         @PotentialPackagePrivate("Access for EnclaveHostMockTest")
-        private val threadIDToTransaction = ConcurrentHashMap<Long, Transaction>()
+        private val callIDToTransaction = ConcurrentHashMap<Long, Transaction>()
+        private val nextCallID = AtomicLong()
+        /**
+         * The transaction of the call the current thread is in, if any. This is used to relate calls back into the
+         * enclave from a callback to the call they are nested in.
+         */
+        private val currentTransaction = ThreadLocal<Transaction>()
         // Try to reduce the number of HTTP requests to the KDS, which also has the benefit for reducing the number
         // large ECALLs containing the KDS mail response and the KDE EII bytes (since the enclave also caches the
         // private key).
@@ -778,15 +1002,17 @@ class EnclaveHost private constructor(
 
         override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
             val type = callTypeValues[parameterBuffer.get().toInt()]
-            val threadID = parameterBuffer.getLong()
-            val transaction = threadIDToTransaction.getValue(threadID)
+            val callID = parameterBuffer.getLong()
+            val transaction = callIDToTransaction.getValue(callID)
             val callStateManager = transaction.stateManager
             val intoEnclaveState = callStateManager.checkStateIs<IntoEnclave>()
             when (type) {
                 MAIL -> onMail(transaction, parameterBuffer)
-                UNTRUSTED_HOST -> onUntrustedHost(intoEnclaveState, threadID, parameterBuffer)
+                UNTRUSTED_HOST -> onUntrustedHost(intoEnclaveState, callID, parameterBuffer)
                 CALL_RETURN -> onCallReturn(callStateManager, parameterBuffer)
-                SEALED_STATE -> onSealedState(transaction, parameterBuffer)
+                SEALED_STATE -> onSealedState(transaction, parameterBuffer, isDelta = false)
+                SEALED_STATE_DELTA -> onSealedState(transaction, parameterBuffer, isDelta = true)
+                MAIL_BATCH -> throw UnsupportedOperationException("$type is not expected from the enclave")
             }
             return null
         }
@@ -800,14 +1026,14 @@ class EnclaveHost private constructor(
             transaction.mailCommands.add(cmd)
         }
 
-        private fun onUntrustedHost(intoEnclaveState: IntoEnclave, threadID: Long, input: ByteBuffer) {
+        private fun onUntrustedHost(intoEnclaveState: IntoEnclave, callID: Long, input: ByteBuffer) {
             val bytes = input.getRemainingBytes()
             requireNotNull(intoEnclaveState.callback) {
                 "Enclave responded via callUntrustedHost but a callback was not provided to callEnclave."
             }
             val response = intoEnclaveState.callback.apply(bytes)
             if (response != null) {
-                sendToEnclave(CALL_RETURN, threadID, response.size) { buffer ->
+                sendToEnclave(CALL_RETURN, callID, response.size) { buffer ->
                     buffer.put(response)
                 }
             }
@@ -817,9 +1043,9 @@ class EnclaveHost private constructor(
             callStateManager.state = Response(input.getRemainingBytes())
         }
 
-        private fun onSealedState(transaction: Transaction, input: ByteBuffer) {
+        private fun onSealedState(transaction: Transaction, input: ByteBuffer, isDelta: Boolean) {
             val sealedState = input.getRemainingBytes()
-            val cmd = MailCommand.StoreSealedState(sealedState)
+            val cmd = MailCommand.StoreSealedState(sealedState, isDelta)
             transaction.mailCommands.add(cmd)
             // If a sealed state is received from the the enclave then it should be the last command the enclave sends
             // to the host. It triggers an execution of the commands callback. We do this here whilst the thread still
@@ -829,11 +1055,11 @@ class EnclaveHost private constructor(
         }
 
         fun callEnclave(bytes: ByteArray, callback: EnclaveCallback?): ByteArray? {
-            // To support concurrent calls into the enclave, the current thread's ID is used a call ID which is passed between
-            // the host and enclave. This enables each thread to have its own state for managing the calls.
+            // To support concurrent calls into the enclave, each top-level call is given an ID which is passed between
+            // the host and enclave. This enables each call to have its own state for managing nested calls.
             try {
-                return callIntoEnclave(callback) { threadID ->
-                    sendToEnclave(UNTRUSTED_HOST, threadID, bytes.size) { buffer ->
+                return callIntoEnclave(callback) { callID ->
+                    sendToEnclave(UNTRUSTED_HOST, callID, bytes.size) { buffer ->
                         buffer.put(bytes)
                     }
                 }
@@ -856,12 +1082,12 @@ class EnclaveHost private constructor(
             val kdsKeySpec = (mailKeyDerivation as? KdsKeySpecKeyDerivation)?.keySpec
             val privateKeyResponse = kdsKeySpec?.let { getKdsPrivateKeyResponse(kdsKeySpec) }
 
-            callIntoEnclave(callback) { threadID ->
+            callIntoEnclave(callback) { callID ->
                 val routingHintBytes = routingHint?.toByteArray()
                 val routingHintSize = nullableSize(routingHintBytes) { it.intLengthPrefixSize }
                 val privateKeyResponseSize = nullableSize(privateKeyResponse) { it.size }
                 val size = routingHintSize + privateKeyResponseSize + mailBytes.size
-                sendToEnclave(MAIL, threadID, size) { buffer ->
+                sendToEnclave(MAIL, callID, size) { buffer ->
                     buffer.putNullable(routingHintBytes) { putIntLengthPrefixBytes(it) }
                     buffer.putNullable(privateKeyResponse) { putKdsPrivateKeyResponse(it) }
                     buffer.put(mailBytes)
@@ -876,6 +1102,40 @@ class EnclaveHost private constructor(
             }
         }
 
+        fun deliverMailBatch(mails: List<MailDelivery>, callback: EnclaveCallback?) {
+            if (mails.isEmpty()) return
+            // As with deliverMail, the host makes any KDS requests on behalf of the enclave. The enclave decrypts the
+            // batch in order, and caches each private key as it goes, so the response only needs to be sent with the
+            // first mail for each key spec.
+            val batchKdsKeySpecs = HashSet<KDSKeySpec>()
+            val privateKeyResponses = mails.map { delivery ->
+                val mailKeyDerivation = MailKeyDerivation.deserialiseFromMailBytes(delivery.mail)
+                val kdsKeySpec = (mailKeyDerivation as? KdsKeySpecKeyDerivation)?.keySpec
+                if (kdsKeySpec != null && batchKdsKeySpecs.add(kdsKeySpec)) getKdsPrivateKeyResponse(kdsKeySpec) else null
+            }
+            val routingHints = mails.map { it.routingHint?.toByteArray() }
+
+            callIntoEnclave(callback) { callID ->
+                var size = Int.SIZE_BYTES
+                for (index in mails.indices) {
+                    size += nullableSize(routingHints[index]) { it.intLengthPrefixSize }
+                    size += nullableSize(privateKeyResponses[index]) { it.size }
+                    size += mails[index].mail.intLengthPrefixSize
+                }
+                sendToEnclave(MAIL_BATCH, callID, size) { buffer ->
+                    buffer.putInt(mails.size)
+                    for (index in mails.indices) {
+                        buffer.putNullable(routingHints[index]) { putIntLengthPrefixBytes(it) }
+                        buffer.putNullable(privateKeyResponses[index]) { putKdsPrivateKeyResponse(it) }
+                        buffer.putIntLengthPrefixBytes(mails[index].mail)
+                    }
+                }
+            }
+
+            // See deliverMail for why this is only done once the enclave has processed the mail.
+            seenKdsKeySpecs += batchKdsKeySpecs
+        }
+
         private fun getKdsPrivateKeyResponse(keySpec: KDSKeySpec): KDSPrivateKeyResponse? {
             // As an optimisation avoid sending the KDS response mail and KDS EII if the enclave has already cached
             // the private key. However we can't guarantee that the enclave has cached the private key until after
@@ -892,8 +1152,28 @@ class EnclaveHost private constructor(
 
         // Sets up the state tracking and handle re-entrancy.
         private fun callIntoEnclave(callback: EnclaveCallback?, body: (Long) -> Unit): ByteArray? {
-            val threadID = Thread.currentThread().id
-            val transaction = threadIDToTransaction.computeIfAbsent(threadID) { Transaction() }
+            val outerTransaction = currentTransaction.get()
+            if (outerTransaction != null) {
+                return callIntoEnclave(outerTransaction, callback, body)
+            }
+            // This is a top-level call so it gets a new ID. Its state is removed once it's complete so that nothing
+            // is retained for threads which are no longer calling into the enclave.
+            val transaction = Transaction(nextCallID.incrementAndGet())
+            callIDToTransaction[transaction.callID] = transaction
+            currentTransaction.set(transaction)
+            try {
+                return callIntoEnclave(transaction, callback, body)
+            } finally {
+                currentTransaction.remove()
+                callIDToTransaction.remove(transaction.callID)
+            }
+        }
+
+        private fun callIntoEnclave(
+            transaction: Transaction,
+            callback: EnclaveCallback?,
+            body: (Long) -> Unit
+        ): ByteArray? {
             val callStateManager = transaction.stateManager
             // It's allowed for the host to recursively call back into the enclave with callEnclave via the callback. In this
             // scenario previousCallState would represent the previous call into the enclave. Once this recursive step is
@@ -906,7 +1186,7 @@ class EnclaveHost private constructor(
             check(previousCallState !is Response)
             var response: Response? = null
             try {
-                body(threadID)
+                body(transaction.callID)
             } catch (t: Throwable) {
                 throw when (t) {
                     // No need to wrap an Enclave exception inside another Enclave exception
@@ -939,13 +1219,13 @@ class EnclaveHost private constructor(
 
         private fun sendToEnclave(
             type: InternalCallType,
-            threadID: Long,
+            callID: Long,
             payloadSize: Int,
             payload: (ByteBuffer) -> Unit
         ) {
-            val buffer = ByteBuffer.allocate(1 + Long.SIZE_BYTES + payloadSize).apply {
+            val buffer = enclaveHandle.allocateCommandBuffer(1 + Long.SIZE_BYTES + payloadSize).apply {
                 put(type.ordinal.toByte())
-                putLong(threadID)
+                putLong(callID)
                 payload(this)
             }
             enclaveHandle.sendMessageHandlerCommand(buffer)
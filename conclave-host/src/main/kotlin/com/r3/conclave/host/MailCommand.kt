@@ -4,16 +4,16 @@ package com.r3.conclave.host
  * Represents a mail command from the enclave to the host for it carry out some action on its behalf.
  *
  * These commands are delivered grouped in a list in a callback to [EnclaveHost.start]. The host gathers all the
- * commands it receives within the context of a [EnclaveHost.deliverMail] or [EnclaveHost.callEnclave] call and delivers
- * them in one go in order to the callback on the same thread. This allows the host to provide transactionality when
- * processing mail. For example, the receipt of mail from clients can occur atomically within the same database transaction
- * as the delivery of any mail replies from the enclave.
+ * commands it receives within the context of a [EnclaveHost.deliverMail], [EnclaveHost.deliverMailBatch] or
+ * [EnclaveHost.callEnclave] call and delivers them in one go in order to the callback on the same thread. This allows
+ * the host to provide transactionality when processing mail. For example, the receipt of mail from clients can occur
+ * atomically within the same database transaction as the delivery of any mail replies from the enclave.
  */
 sealed class MailCommand {
     /**
      * A [MailCommand] which is emitted when the enclave wants to send an encrypted message over the network
-     * to a client (via [com.r3.conclave.enclave.Enclave.postMail]). The host should examine the [routingHint] parameter to decide where the
-     * enclave wants it to be sent.
+     * to a client (via [com.r3.conclave.enclave.Enclave.postMail]). The host should examine the [routingHint] parameter
+     * to decide where the enclave wants it to be sent.
      *
      * You don't have to perform the actual send synchronously if that's inappropriate
      * for your app. However, the mail must be recorded for delivery synchronously, so
@@ -35,15 +35,25 @@ sealed class MailCommand {
      * latest one should be passed into the enclave via [EnclaveHost.start]. Failure to do this will result in the
      * enclave's client detecting a roll back attack.
      *
+     * If the enclave is configured with a `persistentMapCheckpointInterval` then most sealed states only contain the
+     * changes since the previous one, and have [isDelta] set. Such a sealed state must be appended to the bytes of the
+     * previous sealed state, and it's the combined bytes which are passed into [EnclaveHost.start]. A sealed state
+     * without [isDelta] set replaces everything that came before it.
+     *
      * @property sealedState The sealed state blob
+     * @property isDelta Whether the sealed state blob is to be appended to the previous sealed state rather than
+     * replacing it.
      */
-    class StoreSealedState(val sealedState: ByteArray) : MailCommand() {
+    class StoreSealedState @JvmOverloads constructor(
+        val sealedState: ByteArray,
+        val isDelta: Boolean = false
+    ) : MailCommand() {
         override fun equals(other: Any?): Boolean {
             if (this === other) return true
             if (other !is StoreSealedState) return false
-            return this.sealedState.contentEquals(other.sealedState)
+            return this.sealedState.contentEquals(other.sealedState) && this.isDelta == other.isDelta
         }
 
-        override fun hashCode(): Int = 31 * sealedState.contentHashCode()
+        override fun hashCode(): Int = 31 * sealedState.contentHashCode() + isDelta.hashCode()
     }
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package com.r3.conclave.host
+
+/**
+ * An encrypted mail received from a remote client, together with its routing hint, for delivery to the enclave as part
+ * of a batch with [EnclaveHost.deliverMailBatch].
+ *
+ * @property mail The encrypted mail received from a remote client.
+ * @property routingHint An arbitrary bit of data identifying the sender on the host side. The enclave can pass this
+ * back through to [MailCommand.PostMail] to ask the host to deliver the reply to the right location.
+ */
+class MailDelivery(val mail: ByteArray, val routingHint: String?) {
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is MailDelivery) return false
+        return this.mail.contentEquals(other.mail) && this.routingHint == other.routingHint
+    }
+
+    override fun hashCode(): Int = 31 * mail.contentHashCode() + (routingHint?.hashCode() ?: 0)
+}
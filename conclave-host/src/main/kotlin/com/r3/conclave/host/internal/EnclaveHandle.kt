@@ -109,6 +109,11 @@ interface EnclaveHandle {
         enclaveInterface.executeOutgoingCall(EnclaveCallType.SET_KDS_PERSISTENCE_KEY, kdsResponseBuffer)
     }
 
+    /**
+     * Allocate a buffer for a command to the enclave message handler, see [sendMessageHandlerCommand].
+     */
+    fun allocateCommandBuffer(size: Int): ByteBuffer = ByteBuffer.allocate(size)
+
     /**
      * Send a command to the enclave message handler.
      */
@@ -40,7 +40,13 @@ abstract class EnclaveHostService : AutoCloseable {
             for (command in commands) {
                 when (command) {
                     is PostMail -> processPostMail(command.routingHint, command.encryptedBytes)
-                    is StoreSealedState -> storeSealedState(command.sealedState)
+                    is StoreSealedState -> {
+                        if (command.isDelta) {
+                            appendSealedState(command.sealedState)
+                        } else {
+                            storeSealedState(command.sealedState)
+                        }
+                    }
                 }
             }
         }
@@ -48,6 +54,9 @@ abstract class EnclaveHostService : AutoCloseable {
 
     abstract fun storeSealedState(sealedState: ByteArray)
 
+    /** Append the sealed state to the one previously stored, see [StoreSealedState.isDelta]. */
+    abstract fun appendSealedState(sealedState: ByteArray)
+
     fun deliverMail(
         encryptedMail: ByteArray,
         routingHint: String,
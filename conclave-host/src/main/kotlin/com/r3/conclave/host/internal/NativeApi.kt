@@ -2,6 +2,7 @@ package com.r3.conclave.host.internal
 
 import com.r3.conclave.common.internal.CpuFeature
 import com.r3.conclave.common.internal.CallInterfaceMessageType
+import com.r3.conclave.utilities.internal.getAllBytes
 import java.nio.ByteBuffer
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
@@ -38,7 +39,43 @@ object NativeApi {
     @Suppress("UNUSED")
     fun receiveOCall(enclaveId: Long, callTypeID: Byte, messageTypeID: Byte, data: ByteBuffer) {
         val hostEnclaveInterface = checkNotNull(hostEnclaveInterfaces[enclaveId])
-        hostEnclaveInterface.handleOCall(enclaveId, callTypeID, CallInterfaceMessageType.fromByte(messageTypeID), data)
+        // The buffer wraps untrusted memory which the enclave reuses for later OCALLs, so make sure it's not written to.
+        hostEnclaveInterface.handleOCall(enclaveId, callTypeID, CallInterfaceMessageType.fromByte(messageTypeID), data.asReadOnlyBuffer())
+    }
+
+    /**
+     * This method is the entry point for the enclave's replies to calls made with a non-zero host frame ID. Unlike
+     * [receiveOCall] this may be called on one of the SGX runtime's switchless worker threads rather than the thread
+     * which made the call.
+     *
+     * @param hostFrameID The ID of the host's stack frame for the call, as given to [sendECall].
+     * @param callTypeID The type of call the reply is for, see [com.r3.conclave.common.internal.EnclaveCallType].
+     * @param messageTypeID Either [CallInterfaceMessageType.RETURN] or [CallInterfaceMessageType.EXCEPTION].
+     * @param data A byte buffer containing message data.
+     */
+    @JvmStatic
+    @Suppress("UNUSED")
+    fun receiveReplyOCall(hostFrameID: Long, callTypeID: Byte, messageTypeID: Byte, data: ByteBuffer) {
+        NativeHostEnclaveInterface.handleReplyOCall(
+            hostFrameID,
+            callTypeID,
+            CallInterfaceMessageType.fromByte(messageTypeID),
+            data.asReadOnlyBuffer()
+        )
+    }
+
+    /**
+     * Called if [receiveReplyOCall] threw on one of the switchless worker threads. There is no Java caller on such a
+     * thread to pass the exception on to, so it's recorded against the call's frame and thrown on the thread which
+     * made the call once the ECALL returns.
+     *
+     * @param hostFrameID The ID of the host's stack frame for the call, as given to [sendECall].
+     * @param throwable The exception thrown by [receiveReplyOCall].
+     */
+    @JvmStatic
+    @Suppress("UNUSED")
+    fun replyOCallFailed(hostFrameID: Long, throwable: Throwable) {
+        NativeHostEnclaveInterface.handleReplyFailure(hostFrameID, throwable)
     }
 
     /**
@@ -49,10 +86,31 @@ object NativeApi {
      * @param callTypeID The type of call which the message is part of, see [com.r3.conclave.common.internal.EnclaveCallType] and [com.r3.conclave.common.internal.HostCallType].
      * @param messageTypeID The purpose of the message, see [com.r3.conclave.common.internal.CallInterfaceMessageType].
      * @param data A byte buffer containing data to send to the enclave.
+     * @param hostFrameID If not zero, the ID the enclave sends its reply to the call with, see [receiveReplyOCall].
      */
     @JvmStatic
-    fun sendECall(enclaveId: Long, callTypeID: Byte, messageTypeID: Byte, data: ByteArray) {
-        Native.jvmECall(enclaveId, callTypeID, messageTypeID, data)
+    fun sendECall(enclaveId: Long, callTypeID: Byte, messageTypeID: Byte, data: ByteArray, hostFrameID: Long) {
+        Native.jvmECall(enclaveId, callTypeID, messageTypeID, data, hostFrameID)
+    }
+
+    /**
+     * Sends a message from the host to the enclave, taking the message data from a byte buffer.
+     * The whole buffer, from index zero up to its limit, is sent. If the buffer is direct then its memory is passed
+     * to the enclave as is, otherwise the bytes are sent via [sendECall] with a byte array.
+     *
+     * @param enclaveId The ID of the enclave to send the message to.
+     * @param callTypeID The type of call which the message is part of, see [com.r3.conclave.common.internal.EnclaveCallType] and [com.r3.conclave.common.internal.HostCallType].
+     * @param messageTypeID The purpose of the message, see [com.r3.conclave.common.internal.CallInterfaceMessageType].
+     * @param data A byte buffer containing data to send to the enclave.
+     * @param hostFrameID If not zero, the ID the enclave sends its reply to the call with, see [receiveReplyOCall].
+     */
+    @JvmStatic
+    fun sendECall(enclaveId: Long, callTypeID: Byte, messageTypeID: Byte, data: ByteBuffer, hostFrameID: Long) {
+        if (data.isDirect) {
+            Native.jvmECallDirect(enclaveId, callTypeID, messageTypeID, data, 0, data.limit(), hostFrameID)
+        } else {
+            sendECall(enclaveId, callTypeID, messageTypeID, data.getAllBytes(avoidCopying = true), hostFrameID)
+        }
     }
 
     /**
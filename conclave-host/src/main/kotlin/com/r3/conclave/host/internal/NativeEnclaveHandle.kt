@@ -44,7 +44,7 @@ class NativeEnclaveHandle(
         NativeLoader.loadHostLibraries(enclaveMode)
         enclaveFile = Files.createTempFile(enclaveClassName, "signed.so").toAbsolutePath()
         enclaveFileUrl.openStream().use { Files.copy(it, enclaveFile, REPLACE_EXISTING) }
-        enclaveId = Native.createEnclave(enclaveFile.toString(), enclaveMode != EnclaveMode.RELEASE)
+        enclaveId = Native.createEnclave(enclaveFile.toString(), enclaveMode != EnclaveMode.RELEASE, switchlessWorkerThreads)
         enclaveInterface = NativeHostEnclaveInterface(enclaveId)
         NativeApi.registerHostEnclaveInterface(enclaveId, enclaveInterface)
 
@@ -83,11 +83,25 @@ class NativeEnclaveHandle(
         }
     }
 
+    /**
+     * Commands are built in a direct buffer so that its memory can be passed to the ECALL as is, rather than being
+     * copied out of a byte array by JNI first, see [NativeApi.sendECall].
+     */
+    override fun allocateCommandBuffer(size: Int): ByteBuffer = ByteBuffer.allocateDirect(size)
+
     override val mockEnclave: Any get() {
         throw IllegalStateException("The enclave instance can only be accessed in mock mode.")
     }
 
     private companion object {
         private val logger = loggerFor<NativeEnclaveHandle>()
+
+        /**
+         * The number of untrusted worker threads to start for servicing switchless OCALLs. Switchless mode is opt-in
+         * and disabled by default. The persistent filesystem OCALLs are switchless, as is the enclave's reply to each
+         * call from the host. A call which doesn't call back into the host therefore only transitions for its ECALL.
+         * Calls from the enclave to the host, and so the host's replies to them, must stay on the calling thread.
+         */
+        private val switchlessWorkerThreads = Integer.getInteger("conclave.switchless.workerThreads", 0)
     }
 }
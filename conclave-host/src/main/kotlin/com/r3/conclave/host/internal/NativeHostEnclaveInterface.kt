@@ -3,6 +3,8 @@ package com.r3.conclave.host.internal
 import com.r3.conclave.common.internal.*
 import com.r3.conclave.utilities.internal.getAllBytes
 import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.collections.ArrayDeque
 
 typealias StackFrame = CallInterfaceStackFrame<EnclaveCallType>
@@ -33,8 +35,16 @@ class NativeHostEnclaveInterface(private val enclaveId: Long) : CallInterface<En
         val stackFrame = StackFrame(callType, null, null)
         stack.addLast(stackFrame)
 
-        NativeApi.sendECall(
-                enclaveId, callType.toByte(), CallInterfaceMessageType.CALL.toByte(), parameterBuffer.getAllBytes(avoidCopying = true))
+        // The enclave sends its reply with the frame's ID, see handleReplyOCall.
+        val frameId = nextFrameId.incrementAndGet()
+        replyFrames[frameId] = stackFrame
+        var replyFailure: Throwable? = null
+        try {
+            NativeApi.sendECall(enclaveId, callType.toByte(), CallInterfaceMessageType.CALL.toByte(), parameterBuffer, frameId)
+        } finally {
+            replyFrames.remove(frameId)
+            replyFailure = replyFailures.remove(frameId)
+        }
 
         /** If the stack frame is not the one we pushed earlier, something funky has happened! */
         check(stackFrame === stack.removeLast()) {
@@ -45,6 +55,11 @@ class NativeHostEnclaveInterface(private val enclaveId: Long) : CallInterface<En
             threadLocalStacks.remove()
         }
 
+        // The reply was received on a switchless worker thread but couldn't be handled there.
+        if (replyFailure != null) {
+            throw replyFailure
+        }
+
         stackFrame.exceptionBuffer?.let {
             throw ThrowableSerialisation.deserialise(it)
         }
@@ -78,11 +93,11 @@ class NativeHostEnclaveInterface(private val enclaveId: Long) : CallInterface<En
              * will return null to the caller on the enclave side.
              */
             if (returnBuffer != null) {
-                NativeApi.sendECall(enclaveId, callType.toByte(), CallInterfaceMessageType.RETURN.toByte(), returnBuffer.getAllBytes(avoidCopying = true))
+                NativeApi.sendECall(enclaveId, callType.toByte(), CallInterfaceMessageType.RETURN.toByte(), returnBuffer, 0)
             }
         } catch (throwable: Throwable) {
             val serializedException = ThrowableSerialisation.serialise(throwable)
-            NativeApi.sendECall(enclaveId, callType.toByte(), CallInterfaceMessageType.EXCEPTION.toByte(), serializedException)
+            NativeApi.sendECall(enclaveId, callType.toByte(), CallInterfaceMessageType.EXCEPTION.toByte(), serializedException, 0)
         }
     }
 
@@ -91,7 +106,7 @@ class NativeHostEnclaveInterface(private val enclaveId: Long) : CallInterface<En
      */
     private fun handleReturnOCall(callType: EnclaveCallType, returnBuffer: ByteBuffer) {
         checkCallType(callType)
-        stack.last().returnBuffer = ByteBuffer.wrap(returnBuffer.getAllBytes())
+        setReply(stack.last(), CallInterfaceMessageType.RETURN, returnBuffer)
     }
 
     /**
@@ -99,6 +114,48 @@ class NativeHostEnclaveInterface(private val enclaveId: Long) : CallInterface<En
      */
     private fun handleExceptionOCall(callType: EnclaveCallType, exceptionBuffer: ByteBuffer) {
         checkCallType(callType)
-        stack.last().exceptionBuffer = ByteBuffer.wrap(exceptionBuffer.getAllBytes())
+        setReply(stack.last(), CallInterfaceMessageType.EXCEPTION, exceptionBuffer)
+    }
+
+    companion object {
+        /**
+         * The frames of the calls which are currently in the enclave, by the ID the enclave sends its reply with. The
+         * IDs are unique across all enclaves as the reply doesn't say which enclave it's from.
+         */
+        private val replyFrames = ConcurrentHashMap<Long, StackFrame>()
+        private val nextFrameId = AtomicLong()
+
+        /** The exceptions thrown while handling replies on switchless worker threads, by frame ID. */
+        private val replyFailures = ConcurrentHashMap<Long, Throwable>()
+
+        /**
+         * Handle return and exception messages which the enclave has sent with a switchless OCALL. These can arrive
+         * on any thread, and so the frame is found by its ID rather than from the thread's stack.
+         */
+        fun handleReplyOCall(frameId: Long, callTypeID: Byte, ocallType: CallInterfaceMessageType, data: ByteBuffer) {
+            val stackFrame = checkNotNull(replyFrames[frameId]) { "Unknown host frame ID $frameId" }
+            check(EnclaveCallType.fromByte(callTypeID) == stackFrame.callType) { "Call type mismatch" }
+            setReply(stackFrame, ocallType, data)
+        }
+
+        /**
+         * Record the exception thrown by [handleReplyOCall] on a switchless worker thread, so that it's thrown by
+         * [executeOutgoingCall] on the calling thread instead of the call returning without a reply.
+         */
+        fun handleReplyFailure(frameId: Long, throwable: Throwable) {
+            check(frameId in replyFrames) { "Unknown host frame ID $frameId" }
+            replyFailures[frameId] = throwable
+        }
+
+        private fun setReply(stackFrame: StackFrame, ocallType: CallInterfaceMessageType, data: ByteBuffer) {
+            // The reply is only consumed once the ECALL has returned, by which point the untrusted memory backing
+            // the buffer has been reused by the enclave. It therefore has to be copied out here.
+            val copy = ByteBuffer.wrap(data.getAllBytes())
+            when (ocallType) {
+                CallInterfaceMessageType.RETURN -> stackFrame.returnBuffer = copy
+                CallInterfaceMessageType.EXCEPTION -> stackFrame.exceptionBuffer = copy
+                CallInterfaceMessageType.CALL -> throw IllegalArgumentException("Not a reply: $ocallType")
+            }
+        }
     }
 }
@@ -5,15 +5,21 @@ import com.r3.conclave.utilities.internal.getAllBytes
 import com.r3.conclave.utilities.internal.readIntLengthPrefixBytes
 import com.r3.conclave.utilities.internal.writeIntLengthPrefixBytes
 import java.io.Closeable
-import java.io.DataInputStream
-import java.io.DataOutputStream
 import java.lang.IllegalStateException
-import java.net.ServerSocket
-import java.net.Socket
+import java.net.InetSocketAddress
 import java.net.SocketTimeoutException
 import java.nio.ByteBuffer
-import java.util.concurrent.ArrayBlockingQueue
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.time.Duration
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 /**
  * This class is a streaming socket based implementation of the [HostEnclaveInterface].
@@ -21,11 +27,39 @@ import java.util.concurrent.atomic.AtomicBoolean
  *  - Serve as the endpoint for calls to make to the enclave, see [com.r3.conclave.common.internal.CallInterface]
  *  - Route calls from the enclave to the appropriate host side call handler, see [com.r3.conclave.common.internal.CallInterface]
  *  - Handle the low-level details of the messaging protocol (socket with streamed ECalls and OCalls).
+ *
+ * Call connections are pooled. A connection is only opened when a call arrives and no idle connection is available,
+ * up to [maxConnections] or the maximum number of concurrent calls supported by the enclave, whichever is lower.
+ * Connections which have been idle for longer than [idleTimeout] are closed again, down to [minConnections].
+ *
+ * Alternatively, if [multiplexedConnections] is non-zero, that many connections are opened at startup and shared by
+ * all calls, see [SocketCallInterfaceMultiplexer]. Each top level call is then a stream on one of the connections, so
+ * concurrent calls are no longer limited by the number of connections and the pool settings are not used.
  */
-class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(), Closeable {
-    private lateinit var serverSocket: ServerSocket
+class SocketHostEnclaveInterface(
+        private val minConnections: Int = 1,
+        private val maxConnections: Int = Int.MAX_VALUE,
+        private val idleTimeout: Duration = Duration.ofSeconds(60),
+        private val multiplexedConnections: Int = 0
+) : CallInterface<EnclaveCallType, HostCallType>(), Closeable {
+    private companion object {
+        private val logger = loggerFor<SocketHostEnclaveInterface>()
+
+        /** How long to wait for the enclave to open a connection it has been asked for. */
+        private val CONNECTION_TIMEOUT = Duration.ofSeconds(30)
+    }
+
+    init {
+        require(minConnections >= 0) { "Minimum connections must not be negative." }
+        require(maxConnections >= 1) { "Maximum connections must be at least one." }
+        require(minConnections <= maxConnections) { "Minimum connections must not exceed maximum connections." }
+        require(multiplexedConnections >= 0) { "Multiplexed connections must not be negative." }
+    }
+
+    private lateinit var listener: ConnectionListener
 
-    private lateinit var callContextPool: ArrayBlockingQueue<EnclaveCallContext>
+    /** The initial connection, kept open to ask the enclave for new call connections. */
+    private lateinit var controlConnection: SocketCallInterfaceConnection
 
     /** Represents the lifecycle of the interface. */
     sealed class State {
@@ -39,7 +73,35 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
 
     val isRunning get() = synchronized(stateManager) { stateManager.state == State.Running }
 
-    private var maxConcurrentCalls = 0
+    /** The effective maximum pool size, limited by the number of concurrent calls the enclave supports. */
+    private var poolCapacity = 0
+
+    private val poolLock = ReentrantLock()
+    private val poolChanged = poolLock.newCondition()
+
+    /** Idle call contexts, least recently used first. Guarded by [poolLock]. */
+    private val idleCallContexts = ArrayDeque<ConnectionCallContext>()
+
+    /** Number of open call connections, including those being opened. Guarded by [poolLock]. */
+    private var openConnections = 0
+
+    private var peakConnections = 0
+    private var acquisitions = 0L
+    private var saturatedAcquisitions = 0L
+    private var totalWaitNanos = 0L
+    private var maxWaitNanos = 0L
+
+    private var idleConnectionReaper: ScheduledExecutorService? = null
+
+    /** Only present in multiplexed mode. */
+    private var multiplexer: SocketCallInterfaceMultiplexer? = null
+
+    /** Source of stream IDs for top level calls in multiplexed mode, zero is reserved. */
+    private val lastStreamID = AtomicInteger()
+
+    /** Number of top level calls in progress in multiplexed mode. Guarded by [poolLock]. */
+    private var activeStreams = 0
+    private var acceptingStreams = true
 
     /**
      * Set up the server socket, binding the specified port.
@@ -49,8 +111,9 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
         synchronized(stateManager) {
             stateManager.transitionStateFrom<State.Created>(to = State.Ready)
             return try {
-                serverSocket = ServerSocket(port)
-                serverSocket.localPort
+                val serverChannel = ServerSocketChannel.open().bind(InetSocketAddress(port))
+                listener = ConnectionListener(serverChannel)
+                (serverChannel.localAddress as InetSocketAddress).port
             } catch (e: Exception) {
                 stateManager.transitionStateFrom<State.Ready>(to = State.Stopped)
                 throw e
@@ -68,47 +131,67 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
             stateManager.transitionStateFrom<State.Ready>(to = State.Running)
 
             try {
-                /** Wait for IO sockets, then close the server socket. */
-                serverSocket.use {serverSocket ->
-                    /**
-                     * Attempt to receive the maximum number of concurrent calls from the enclave.
-                     * Check the enclave subprocess periodically to ensure that it's still alive.
-                     */
-                    val connectionSuccessful = AtomicBoolean(false)
-
-                    val initialConnectionThread = Thread {
-                        serverSocket.accept().use { initialSocket ->
-                            maxConcurrentCalls = DataInputStream(initialSocket.getInputStream()).readInt()
-                        }
-                        connectionSuccessful.set(true)
-                    }
+                /**
+                 * Attempt to receive the maximum number of concurrent calls from the enclave.
+                 * Check the enclave subprocess periodically to ensure that it's still alive.
+                 */
+                val connectionSuccessful = AtomicBoolean(false)
+                var maxConcurrentCalls = 0
+
+                val initialConnectionThread = Thread {
+                    controlConnection = listener.accept()
+                    maxConcurrentCalls = controlConnection.input.readInt()
+                    connectionSuccessful.set(true)
+                }
 
-                    initialConnectionThread.start()
+                initialConnectionThread.start()
 
-                    try {
-                        while (!connectionSuccessful.get()) {
-                            check(everythingOkay()) {
-                                "Error establishing connection with enclave subprocess"
-                            }
-                            Thread.sleep(50)
+                try {
+                    while (!connectionSuccessful.get()) {
+                        check(everythingOkay()) {
+                            "Error establishing connection with enclave subprocess"
                         }
-                    } finally {
-                        initialConnectionThread.join()
+                        Thread.sleep(50)
+                    }
+                } finally {
+                    initialConnectionThread.join()
+                }
+
+                if (multiplexedConnections > 0) {
+                    val multiplexer = SocketCallInterfaceMultiplexer { stream, _ ->
+                        logger.warn("Ignoring call stream ${stream.streamID} opened by the enclave")
+                        stream.close()
                     }
+                    this.multiplexer = multiplexer
+                    repeat(multiplexedConnections) {
+                        controlConnection.output.writeByte(
+                                SocketCallInterfaceControlMessage.OPEN_MULTIPLEXED_CONNECTION.toByte().toInt())
+                        multiplexer.addConnection(listener.accept(CONNECTION_TIMEOUT).channel)
+                    }
+                    return
+                }
+
+                poolCapacity = minOf(maxConcurrentCalls, maxConnections)
 
-                    /**
-                     * Set up a pool of re-usable call contexts, each with their own socket.
-                     * TODO: Create connections lazily as they are required, rather than greedily at startup
-                     */
-                    callContextPool = ArrayBlockingQueue(maxConcurrentCalls + 1)
-                    for (i in 0 until maxConcurrentCalls) {
-                        val socket = serverSocket.accept().apply { tcpNoDelay = true }
-                        val callContext = EnclaveCallContext(socket)
-                        callContextPool.put(callContext)
+                /** Open the minimum number of connections up front, the rest are opened as calls require them. */
+                val initialContexts = (0 until minOf(minConnections, poolCapacity)).map { openCallContext() }
+                poolLock.withLock {
+                    openConnections = initialContexts.size
+                    peakConnections = openConnections
+                    idleCallContexts.addAll(initialContexts)
+                }
+
+                if (!idleTimeout.isZero && !idleTimeout.isNegative) {
+                    val reaperPeriod = maxOf(idleTimeout.toMillis() / 2, 1)
+                    idleConnectionReaper = Executors.newSingleThreadScheduledExecutor {
+                        Thread(it, "Conclave call interface reaper").apply { isDaemon = true }
+                    }.apply {
+                        scheduleWithFixedDelay(::closeIdleConnections, reaperPeriod, reaperPeriod, TimeUnit.MILLISECONDS)
                     }
                 }
             } catch (e: Exception) {
                 stateManager.transitionStateFrom<State.Running>(to = State.Stopped)
+                listener.close()
                 throw e
             }
         }
@@ -126,9 +209,183 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
                 "Call interface is not running."
             }
 
-            /** Empty the call context pool and close all the call contexts. */
-            for (i in 0 until maxConcurrentCalls) {
-                callContextPool.take().close()
+            idleConnectionReaper?.shutdownNow()
+
+            multiplexer?.let { multiplexer ->
+                /** Wait for running calls to finish, then tell the enclave to stop reading from the connections. */
+                poolLock.withLock {
+                    acceptingStreams = false
+                    while (activeStreams > 0) {
+                        poolChanged.awaitUninterruptibly()
+                    }
+                }
+                multiplexer.stop()
+            }
+
+            /** Wait for running calls to return their call contexts to the pool, then close them all. */
+            val callContexts = poolLock.withLock {
+                while (idleCallContexts.size < openConnections) {
+                    poolChanged.awaitUninterruptibly()
+                }
+                openConnections = 0
+                ArrayList(idleCallContexts).also { idleCallContexts.clear() }
+            }
+            callContexts.forEach { it.close() }
+
+            /** Tell the enclave that no more connections will be requested. */
+            controlConnection.use {
+                it.output.writeByte(SocketCallInterfaceControlMessage.STOP.toByte().toInt())
+            }
+            multiplexer?.close()
+            listener.close()
+        }
+    }
+
+    /** Snapshot of the usage of the call connection pool. */
+    val connectionPoolMetrics: ConnectionPoolMetrics
+        get() = poolLock.withLock {
+            ConnectionPoolMetrics(
+                    openConnections = openConnections,
+                    idleConnections = idleCallContexts.size,
+                    peakConnections = peakConnections,
+                    maxConnections = poolCapacity,
+                    acquisitions = acquisitions,
+                    saturatedAcquisitions = saturatedAcquisitions,
+                    totalWaitTime = Duration.ofNanos(totalWaitNanos),
+                    maxWaitTime = Duration.ofNanos(maxWaitNanos)
+            )
+        }
+
+    /**
+     * Usage statistics for the call connection pool.
+     * [saturatedAcquisitions] counts the calls which had to wait because all [maxConnections] connections were busy.
+     * The wait times include the time taken to open a new connection.
+     */
+    data class ConnectionPoolMetrics(
+            val openConnections: Int,
+            val idleConnections: Int,
+            val peakConnections: Int,
+            val maxConnections: Int,
+            val acquisitions: Long,
+            val saturatedAcquisitions: Long,
+            val totalWaitTime: Duration,
+            val maxWaitTime: Duration
+    ) {
+        val averageWaitTime: Duration
+            get() = if (acquisitions == 0L) Duration.ZERO else totalWaitTime.dividedBy(acquisitions)
+    }
+
+    /**
+     * Ask the enclave for a new call connection and accept it. Only the request is serialised, so that a slow or stuck
+     * enclave doesn't hold up other threads for longer than [CONNECTION_TIMEOUT]. The connections are interchangeable,
+     * so it doesn't matter which thread accepts the connection for which request.
+     */
+    private fun openCallContext(): ConnectionCallContext {
+        synchronized(controlConnection) {
+            controlConnection.output.writeByte(SocketCallInterfaceControlMessage.OPEN_CONNECTION.toByte().toInt())
+        }
+        return ConnectionCallContext(listener.accept(CONNECTION_TIMEOUT))
+    }
+
+    /** Take an idle call context from the pool, opening a new connection if there are none and the pool isn't full. */
+    private fun acquireCallContext(): ConnectionCallContext {
+        val startTime = System.nanoTime()
+        var saturated = false
+
+        poolLock.withLock {
+            while (true) {
+                val idleContext = idleCallContexts.removeLastOrNull()
+                if (idleContext != null) {
+                    recordAcquisition(startTime, saturated)
+                    return idleContext
+                }
+                if (openConnections < poolCapacity) {
+                    openConnections++
+                    peakConnections = maxOf(peakConnections, openConnections)
+                    break
+                }
+                saturated = true
+                poolChanged.awaitUninterruptibly()
+            }
+        }
+
+        val newContext = try {
+            openCallContext()
+        } catch (e: Exception) {
+            poolLock.withLock {
+                openConnections--
+                poolChanged.signal()
+            }
+            throw e
+        }
+
+        poolLock.withLock { recordAcquisition(startTime, saturated) }
+        return newContext
+    }
+
+    private fun recordAcquisition(startTime: Long, saturated: Boolean) {
+        val waitNanos = System.nanoTime() - startTime
+        acquisitions++
+        if (saturated) saturatedAcquisitions++
+        totalWaitNanos += waitNanos
+        maxWaitNanos = maxOf(maxWaitNanos, waitNanos)
+    }
+
+    private fun releaseCallContext(callContext: ConnectionCallContext) {
+        poolLock.withLock {
+            callContext.lastUsedTime = System.nanoTime()
+            idleCallContexts.addLast(callContext)
+            poolChanged.signalAll()
+        }
+    }
+
+    private fun openStreamCallContext(multiplexer: SocketCallInterfaceMultiplexer): StreamCallContext {
+        poolLock.withLock {
+            check(acceptingStreams) { "Call interface is not running." }
+            activeStreams++
+        }
+        return try {
+            /** Stream IDs wrap around after 2^31 - 1 calls, skipping the reserved ID zero. */
+            val streamID = lastStreamID.updateAndGet { if (it == Int.MAX_VALUE) 1 else it + 1 }
+            StreamCallContext(multiplexer.openStream(streamID))
+        } catch (e: Exception) {
+            poolLock.withLock {
+                activeStreams--
+                poolChanged.signalAll()
+            }
+            throw e
+        }
+    }
+
+    private fun closeStreamCallContext(callContext: StreamCallContext) {
+        callContext.stream.close()
+        poolLock.withLock {
+            activeStreams--
+            poolChanged.signalAll()
+        }
+    }
+
+    /** Close connections that have been idle for longer than the idle timeout, keeping at least [minConnections]. */
+    private fun closeIdleConnections() {
+        val expiryTime = System.nanoTime() - idleTimeout.toNanos()
+        val expiredContexts = ArrayList<ConnectionCallContext>()
+
+        poolLock.withLock {
+            while (openConnections > minConnections) {
+                val oldest = idleCallContexts.firstOrNull() ?: break
+                if (oldest.lastUsedTime - expiryTime > 0) break
+                idleCallContexts.removeFirst()
+                openConnections--
+                expiredContexts += oldest
+            }
+            if (expiredContexts.isNotEmpty()) poolChanged.signalAll()
+        }
+
+        for (context in expiredContexts) {
+            try {
+                context.close()
+            } catch (e: Exception) {
+                logger.warn("Unable to close idle call interface connection", e)
             }
         }
     }
@@ -138,23 +395,14 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
      * context of a pre-existing enclave call (host->enclave).
      * This class represents that context and any recursive calls that take place within it.
      */
-    private inner class EnclaveCallContext(val socket: Socket) {
+    private abstract inner class EnclaveCallContext {
         private var activeCalls = 0
 
-        private val toEnclave = DataOutputStream(socket.getOutputStream())
-        private val fromEnclave = DataInputStream(socket.getInputStream())
-
         fun hasActiveCalls(): Boolean = (activeCalls > 0)
 
-        fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?) {
-            val message = SocketCallInterfaceMessage(messageType, callTypeID, payload?.getAllBytes(avoidCopying = true))
-            toEnclave.writeIntLengthPrefixBytes(message.toByteArray())
-        }
+        abstract fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?)
 
-        fun receiveMessage(): SocketCallInterfaceMessage {
-            val messageBytes = fromEnclave.readIntLengthPrefixBytes()
-            return SocketCallInterfaceMessage.fromByteArray(messageBytes)
-        }
+        abstract fun receiveMessage(): SocketCallInterfaceMessage
 
         fun sendCallMessage(callType: EnclaveCallType, parameterBuffer: ByteBuffer) {
             sendMessage(SocketCallInterfaceMessageType.CALL, callType.toByte(), parameterBuffer)
@@ -219,12 +467,76 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
             }
         }
 
+    }
+
+    /** A pooled call context with a connection of its own. */
+    private inner class ConnectionCallContext(val connection: SocketCallInterfaceConnection) : EnclaveCallContext() {
+        /** When the context was last returned to the pool, from [System.nanoTime]. Guarded by the pool lock. */
+        var lastUsedTime = System.nanoTime()
+
+        private val toEnclave = connection.output
+        private val fromEnclave = connection.input
+
+        override fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?) {
+            val message = SocketCallInterfaceMessage(messageType, callTypeID, payload?.getAllBytes(avoidCopying = true))
+            toEnclave.writeIntLengthPrefixBytes(message.toByteArray())
+        }
+
+        override fun receiveMessage(): SocketCallInterfaceMessage {
+            val messageBytes = fromEnclave.readIntLengthPrefixBytes()
+            return SocketCallInterfaceMessage.fromByteArray(messageBytes)
+        }
+
         /** Send a stop message to the enclave side worker thread corresponding to this context. */
         fun close() {
             check(!hasActiveCalls()) { "Cannot close a call interface with active calls." }
             toEnclave.writeIntLengthPrefixBytes(SocketCallInterfaceMessage.STOP_MESSAGE.toByteArray())
-            socket.close()
+            connection.close()
+        }
+    }
+
+    /** A call context for a single top level call in multiplexed mode, using a stream on a shared connection. */
+    private inner class StreamCallContext(val stream: SocketCallInterfaceMultiplexer.Stream) : EnclaveCallContext() {
+        override fun sendMessage(messageType: SocketCallInterfaceMessageType, callTypeID: Byte, payload: ByteBuffer?) {
+            stream.send(messageType, callTypeID, payload)
+        }
+
+        override fun receiveMessage(): SocketCallInterfaceMessage = stream.receive().toMessage()
+    }
+
+    /**
+     * Accepts the connections from the enclave. The server channel is non-blocking so that an accept can be given a
+     * timeout, the accepted channels are blocking.
+     */
+    private class ConnectionListener(private val serverChannel: ServerSocketChannel) : Closeable {
+        init {
+            serverChannel.configureBlocking(false)
+        }
+
+        /** Wait for the next connection, for no longer than [timeout] if one is given. */
+        fun accept(timeout: Duration? = null): SocketCallInterfaceConnection {
+            val deadline = timeout?.let { System.nanoTime() + it.toNanos() }
+            Selector.open().use { selector ->
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT)
+                while (true) {
+                    // This throws once the listener is closed, which doesn't wake up the selector, hence the select
+                    // below is never for longer than a second.
+                    serverChannel.accept()?.let { return SocketCallInterfaceConnection(it) }
+                    var waitMillis = 1000L
+                    if (deadline != null) {
+                        val remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+                        if (remainingMillis <= 0) {
+                            throw SocketTimeoutException("Timed out waiting for a connection from the enclave.")
+                        }
+                        waitMillis = minOf(waitMillis, remainingMillis)
+                    }
+                    selector.select(waitMillis)
+                    selector.selectedKeys().clear()
+                }
+            }
         }
+
+        override fun close() = serverChannel.close()
     }
 
     /**
@@ -244,7 +556,10 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
 
         val callContext = when(val existingCallContext = threadLocalCallContext.get()) {
             null -> {
-                val context = callContextPool.take()
+                val context = when (val multiplexer = multiplexer) {
+                    null -> acquireCallContext()
+                    else -> openStreamCallContext(multiplexer)
+                }
                 threadLocalCallContext.set(context)
                 context
             }
@@ -256,7 +571,10 @@ class SocketHostEnclaveInterface : CallInterface<EnclaveCallType, HostCallType>(
         } finally {
             if (!callContext.hasActiveCalls()) {
                 threadLocalCallContext.remove()
-                callContextPool.put(callContext)        // Return to context pool.
+                when (callContext) {
+                    is ConnectionCallContext -> releaseCallContext(callContext)     // Return to context pool.
+                    is StreamCallContext -> closeStreamCallContext(callContext)
+                }
             }
         }
     }
@@ -13,26 +13,44 @@ import com.r3.conclave.common.internal.toPckCertPath
 import com.r3.conclave.host.internal.Native
 import com.r3.conclave.utilities.internal.getRemainingBytes
 import com.r3.conclave.utilities.internal.x509Certs
+import java.time.Duration
 
 class DCAPAttestationService(override val isRelease: Boolean) : HardwareAttestationService() {
+    companion object {
+        /**
+         * The longest time quote collateral is cached for, even if it's not due to be updated until later. Setting
+         * this to zero disables the cache.
+         */
+        private val collateralCacheMaxAge =
+            Duration.ofSeconds(java.lang.Long.getLong("conclave.dcap.collateralCacheMaxAgeSeconds", 86_400))
+
+        /** The collateral only depends on the platform and so the cache is shared by all enclaves. */
+        private val collateralCache = QuoteCollateralCache(collateralCacheMaxAge, fetcher = ::fetchQuoteCollateral)
+
+        private fun fetchQuoteCollateral(key: QuoteCollateralCache.Key): QuoteCollateral {
+            val fields = Native.getQuoteCollateral(key.fmspc.bytes, key.pckCaType)
+            return QuoteCollateral(
+                fields[0] as Int,
+                fields[1].toOpaqueBytes(),
+                fields[2].toOpaqueBytes(),
+                fields[3].toOpaqueBytes(),
+                fields[4].toOpaqueBytes(),
+                fields[5].toOpaqueBytes(),
+                fields[6].toOpaqueBytes(),
+                fields[7].toOpaqueBytes()
+            )
+        }
+
+        private fun Any.toOpaqueBytes(): OpaqueBytes = OpaqueBytes(this as ByteArray)
+    }
+
     override fun doAttestQuote(signedQuote: ByteCursor<SgxSignedQuote>): DcapAttestation {
         val pckCert = signedQuote.toEcdsaP256AuthData()[qeCertData].toPckCertPath().x509Certs[0]
-        val fields = Native.getQuoteCollateral(
-            pckCert.sgxExtension.getBytes(SGX_FMSPC_OID).getRemainingBytes(), // fpsmc
+        val key = QuoteCollateralCache.Key(
+            OpaqueBytes(pckCert.sgxExtension.getBytes(SGX_FMSPC_OID).getRemainingBytes()), // fpsmc
             if ("Processor" in pckCert.issuerDN.name) 0 else 1 // pckCert 'type': 0 - Processor, 1 - Platform
         )
-        val collateral = QuoteCollateral(
-            fields[0] as Int,
-            fields[1].toOpaqueBytes(),
-            fields[2].toOpaqueBytes(),
-            fields[3].toOpaqueBytes(),
-            fields[4].toOpaqueBytes(),
-            fields[5].toOpaqueBytes(),
-            fields[6].toOpaqueBytes(),
-            fields[7].toOpaqueBytes()
-        )
+        val collateral = if (collateralCacheMaxAge.isZero) fetchQuoteCollateral(key) else collateralCache.get(key)
         return DcapAttestation(signedQuote.asReadOnly(), collateral)
     }
-
-    private fun Any.toOpaqueBytes(): OpaqueBytes = OpaqueBytes(this as ByteArray)
 }
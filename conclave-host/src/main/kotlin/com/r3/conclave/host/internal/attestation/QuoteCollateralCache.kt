@@ -0,0 +1,117 @@
+package com.r3.conclave.host.internal.attestation
+
+import com.r3.conclave.common.OpaqueBytes
+import com.r3.conclave.common.internal.attestation.QuoteCollateral
+import com.r3.conclave.host.internal.loggerFor
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit.MILLISECONDS
+
+/**
+ * Caches DCAP quote collateral so that attestations don't need a round trip to the PCCS each time. The collateral is
+ * the same for all quotes from platforms with the same FMSPC and PCK CA type, and so that's what it's keyed on.
+ *
+ * An entry is used until the collateral's [QuoteCollateral.nextUpdate] or until [maxAge] has passed since it was
+ * fetched, whichever is sooner. Entries are refreshed in the background once most of that time has passed, so that
+ * attestations rarely have to wait on the PCCS. If a background refresh fails then the existing entry continues to be
+ * used until it expires, after which the next attestation fetches the collateral itself and gets any error. An entry
+ * which hasn't been read since it was fetched is evicted rather than refreshed, so that keys which are no longer used
+ * aren't fetched forever.
+ *
+ * @property fetcher Fetches the collateral for the given key from the PCCS.
+ */
+class QuoteCollateralCache(
+    private val maxAge: Duration,
+    private val clock: Clock = Clock.systemUTC(),
+    private val refreshExecutor: ScheduledExecutorService = defaultRefreshExecutor,
+    private val nextUpdateOf: (QuoteCollateral) -> Instant = { it.nextUpdate },
+    private val fetcher: (Key) -> QuoteCollateral
+) {
+    companion object {
+        private val logger = loggerFor<QuoteCollateralCache>()
+
+        /** How long to wait before retrying a failed background refresh, if the entry hasn't expired by then. */
+        private val REFRESH_RETRY_INTERVAL = Duration.ofMinutes(1)
+
+        private val defaultRefreshExecutor: ScheduledExecutorService by lazy {
+            Executors.newSingleThreadScheduledExecutor { runnable ->
+                Thread(runnable, "Conclave quote collateral refresh").apply { isDaemon = true }
+            }
+        }
+    }
+
+    /**
+     * @property pckCaType The type of the CA which issued the PCK certificate: 0 for Processor, 1 for Platform.
+     */
+    data class Key(val fmspc: OpaqueBytes, val pckCaType: Int)
+
+    private class Entry(val collateral: QuoteCollateral, val expiry: Instant) {
+        /** Whether the entry has been read since it was fetched, see [refresh]. */
+        @Volatile
+        var read = false
+    }
+
+    private val entries = ConcurrentHashMap<Key, Entry>()
+    /** Makes sure there is only one fetch in progress for each key. */
+    private val fetchLocks = ConcurrentHashMap<Key, Any>()
+
+    fun get(key: Key): QuoteCollateral {
+        readValidEntry(key)?.let { return it.collateral }
+        synchronized(fetchLocks.computeIfAbsent(key) { Any() }) {
+            // Another thread may have fetched the collateral whilst we were waiting.
+            readValidEntry(key)?.let { return it.collateral }
+            return fetchAndCache(key).collateral
+        }
+    }
+
+    private fun readValidEntry(key: Key): Entry? {
+        val entry = entries[key] ?: return null
+        if (clock.instant() >= entry.expiry) return null
+        entry.read = true
+        return entry
+    }
+
+    private fun fetchAndCache(key: Key): Entry {
+        val fetchedAt = clock.instant()
+        val collateral = fetcher(key)
+        val expiry = minOf(nextUpdateOf(collateral), fetchedAt + maxAge)
+        val entry = Entry(collateral, expiry)
+        entries[key] = entry
+        // Refresh once 80% of the entry's lifetime has passed.
+        val lifetime = Duration.between(fetchedAt, expiry)
+        if (!lifetime.isNegative) {
+            scheduleRefresh(key, entry, lifetime.multipliedBy(4).dividedBy(5))
+        }
+        return entry
+    }
+
+    private fun scheduleRefresh(key: Key, entry: Entry, delay: Duration) {
+        refreshExecutor.schedule({ refresh(key, entry) }, delay.toMillis(), MILLISECONDS)
+    }
+
+    private fun refresh(key: Key, entry: Entry) {
+        synchronized(fetchLocks.getValue(key)) {
+            // Nothing to do if the entry has already been replaced by a caller which found it expired.
+            if (entries[key] !== entry) return
+            if (!entry.read) {
+                entries.remove(key)
+                logger.debug("Evicted quote collateral for {} as it hasn't been used since it was fetched", key)
+                return
+            }
+            try {
+                fetchAndCache(key)
+                logger.debug("Refreshed quote collateral for {}", key)
+            } catch (e: Exception) {
+                val remaining = Duration.between(clock.instant(), entry.expiry)
+                logger.warn("Unable to refresh quote collateral for $key, $remaining before it expires", e)
+                if (remaining > REFRESH_RETRY_INTERVAL) {
+                    scheduleRefresh(key, entry, REFRESH_RETRY_INTERVAL)
+                }
+            }
+        }
+    }
+}
@@ -1,41 +1,75 @@
 package com.r3.conclave.host.internal.fatfs
 
 import com.r3.conclave.common.EnclaveMode
-import java.io.RandomAccessFile
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.nio.file.Path
-import kotlin.io.path.pathString
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.WRITE
+import java.util.concurrent.ConcurrentHashMap
 
 /*
 This is a class to manage files that represent FatFs persistent-encrypted
   filesystems in the Host.
 
-The paths of these files are provided as argument when calling EnclaveHost.start function.
-At the moment, we only have 1 file->1 persistent-encrypted filesystem.
+The paths of these files are provided as argument when calling EnclaveHost.start function, one for each
+ persistent-encrypted filesystem, keyed by the path where the Enclave mounts it ("/" for the main one).
+The Enclave passes the mount path of each drive to getDriveSize, which binds the drive id used by the other calls
+ to the file. Different drives have independent files and channels, so their I/O does not contend.
 The read/write functions are called by C++ Host JNI code (cpp/fatfs/host/persistent_disk.cpp) to read and write
  encrypted and shuffled sectors (i.e. fixed-size chunks) of bytes into the files representing the filesystems.
+ Writes arrive in batches of sectors, to reduce the number of OCalls from the Enclave.
+The buffers passed to read/write are direct buffers over the OCall memory, so no bytes are copied through the Java heap.
+Reads and writes use positional FileChannel I/O and can run concurrently. Writes are not synchronous: they are
+ only made durable when the Enclave syncs its filesystem (e.g. when a file is flushed or closed), which calls sync.
+If memoryMapped is true (system property "conclave.filesystem.memoryMapped"), the sectors are instead copied to and
+ from the file mapped in memory (see MappedDrive), with no system call per sector. Syncs still happen at the same points.
 The getDriveSize function is also called by the C++ Host JNI code during the initialization of the filesystem in the Enclave,
 this would indicate that a persistentFileSystemSize bigger than 0 has been provided in the Enclave configuration.
 
 Note that while the creation of these files is directly handled by the Host during the startup of the Enclave,
-   the getDriveSize/read/write calls are triggered only by OCalls from the Enclave.
+   the getDriveSize/read/write/sync calls are triggered only by OCalls from the Enclave.
 As the Enclave configuration cannot be easily linked to the Host, we are using getDriveSize call to validate that the
 Host-Enclave configurations are correct, see all the branch conditions in that function below.
 */
 
-class FileSystemHandler(enclaveFileSystemFilePaths: List<Path>, private val enclaveMode: EnclaveMode) {
+class FileSystemHandler(
+    enclaveFileSystemFilePaths: Map<String, Path>,
+    private val enclaveMode: EnclaveMode,
+    private val memoryMapped: Boolean = java.lang.Boolean.getBoolean("conclave.filesystem.memoryMapped")
+) {
 
-    private class FileSystemFile(val file: RandomAccessFile) {
+    private class FileSystemFile(val channel: FileChannel) {
         //  This is needed when using read/write functions
         //  as the header bytes are not included in the offset provided as input of those functions
+        @Volatile
         var headerSize: Int = 0
+        @Volatile
+        var fileSystemSize: Long = 0
+        //  Only used in memory-mapped mode, created on the first read or write as it needs the sector size
+        @Volatile
+        var mappedDrive: MappedDrive? = null
     }
 
     companion object {
         //                                Header size      Header version    EnclaveMode       FileSystem size
         const val VERSION_1_HEADER_SIZE = Int.SIZE_BYTES + Byte.SIZE_BYTES + Byte.SIZE_BYTES + Long.SIZE_BYTES
+        //  Size of the plaintext FatFs sectors in the Enclave (SECTOR_SIZE in cpp/fatfs/common/include/common.hpp),
+        //  used to work out the number of sectors of the filesystem
+        private const val FATFS_SECTOR_SIZE = 512
+
+        //  The Enclave always ends the mount paths with a '/'
+        private fun normaliseMountPath(mountPath: String): String {
+            return if (mountPath.endsWith("/")) mountPath else "$mountPath/"
+        }
     }
 
-    private val filesystemFiles: MutableList<FileSystemFile>
+    private val filesystemFiles: Map<String, FileSystemFile>
+
+    //  Drive id -> file, bound when the Enclave calls getDriveSize for the drive
+    private val drives = ConcurrentHashMap<Int, FileSystemFile>()
 
     //  setup() and cleanup() are native calls implemented in JNI C++ layer (cpp/fatfs/host/persistent_disk.cpp)
     //  to register and clean up the global reference of JavaVM in C++ .
@@ -44,57 +78,77 @@ class FileSystemHandler(enclaveFileSystemFilePaths: List<Path>, private val encl
 
     init {
         setup()
-        filesystemFiles = mutableListOf()
-
-        enclaveFileSystemFilePaths.forEach { path ->
-            filesystemFiles.add(FileSystemFile(RandomAccessFile(path.pathString, "rws")))
+        filesystemFiles = enclaveFileSystemFilePaths.entries.associate { (mountPath, path) ->
+            normaliseMountPath(mountPath) to FileSystemFile(FileChannel.open(path, CREATE, READ, WRITE))
         }
     }
 
 
     fun close() {
-        filesystemFiles.forEach { it.file.close() }
+        filesystemFiles.values.forEach {
+            //  Anything the Enclave has not synced yet is still made durable
+            it.mappedDrive?.force()
+            //  The mapping is released once it's no longer referenced
+            it.mappedDrive = null
+            it.channel.force(false)
+            it.channel.close()
+        }
         cleanup()
     }
 
 
     @Suppress("unused")
     @Synchronized
-    fun getDriveSize(drive: Int, enclaveFileSystemSizeFromConfig: Long): Long {
+    fun getDriveSize(drive: Int, enclaveFileSystemSizeFromConfig: Long, mountPath: String): Long {
         //  Calling this function can only happen when persistentFileSystemSize in the Enclave
-        //  configuration is bigger than 0, i.e. when the Enclave wants a persisted filesystem
-        val filesystemFile: FileSystemFile? = filesystemFiles.getOrNull(drive)
+        //  configuration is bigger than 0, or additional persistent filesystems are configured,
+        //  i.e. when the Enclave wants a persisted filesystem
+        val filesystemFile: FileSystemFile? = filesystemFiles[normaliseMountPath(mountPath)]
 
         checkNotNull(filesystemFile) {
             //  The Host has not provided a path in the EnclaveHost.start call and no file could be generated
             //    in the init of this class.
-            "The enclave has been configured to use the persistent filesystem " +
-                    "but no storage file was provided in EnclaveHost.start(...)."
+            if (mountPath == "/") {
+                "The enclave has been configured to use the persistent filesystem " +
+                        "but no storage file was provided in EnclaveHost.start(...)."
+            } else {
+                "The enclave has been configured to use a persistent filesystem mounted at $mountPath " +
+                        "but no storage file was provided for it in EnclaveHost.start(...)."
+            }
         }
+        drives[drive] = filesystemFile
 
-        if (filesystemFile.file.length() == 0L) {
+        if (filesystemFile.channel.size() == 0L) {
             //  The Host has correctly provided a path and hence an empty file was generated in the init.
             //    We store EnclaveMode and enclaveFileSystemSize in the header and return 0, to tell the Enclave to
             //    format the filesystem file.
+            val header = ByteBuffer.allocate(VERSION_1_HEADER_SIZE)
+            header.putInt(VERSION_1_HEADER_SIZE)
+            header.put(1)
+            header.put(enclaveMode.ordinal.toByte())
+            header.putLong(enclaveFileSystemSizeFromConfig)
+            header.flip()
+            filesystemFile.channel.writeFully(header, 0)
+            filesystemFile.channel.force(true)
             filesystemFile.headerSize = VERSION_1_HEADER_SIZE
-            filesystemFile.file.writeInt(VERSION_1_HEADER_SIZE)
-            filesystemFile.file.write(1)
-            filesystemFile.file.write(enclaveMode.ordinal)
-            filesystemFile.file.writeLong(enclaveFileSystemSizeFromConfig)
+            filesystemFile.fileSystemSize = enclaveFileSystemSizeFromConfig
             return 0
         } else {
             //  The Host has correctly provided a path and such file already existed, so it was only opened in the init.
             //  We read EnclaveMode and enclaveFileSystemSize from the header to check that they are
             //  consistent, we throw otherwise.
             //  We return the fileSystemSize to tell the Enclave that it can mount the filesystem without formatting it.
-            val headerSize = filesystemFile.file.readInt()
-            val version = filesystemFile.file.read()
+            val header = ByteBuffer.allocate(VERSION_1_HEADER_SIZE)
+            filesystemFile.channel.readFully(header, 0)
+            header.flip()
+            val headerSize = header.getInt()
+            val version = header.get().toInt() and 0xFF
 
             check(version == 1) {
                 "The filesystem file is set with a non valid version"
             }
-            val fileEnclaveModeByte = filesystemFile.file.read()
-            val fileSystemSizeFromHeader = filesystemFile.file.readLong()
+            val fileEnclaveModeByte = header.get().toInt() and 0xFF
+            val fileSystemSizeFromHeader = header.getLong()
 
             filesystemFile.headerSize = headerSize
             val fileEnclaveMode = EnclaveMode.values()[fileEnclaveModeByte]
@@ -107,38 +161,126 @@ class FileSystemHandler(enclaveFileSystemFilePaths: List<Path>, private val encl
                 "The enclave's persistent filesystem size configuration has changed." +
                         " Once set this cannot change. Please revert the value back to $fileSystemSizeFromHeader"
             }
+            filesystemFile.fileSystemSize = fileSystemSizeFromHeader
             return fileSystemSizeFromHeader
         }
     }
 
 
+    /**
+     * Read [numSectors] sectors starting from [sectorId] into [buffer], which is a direct buffer over the OCall memory.
+     */
     @Suppress("unused")
-    @Synchronized
-    fun read(drive: Int, sectorId: Long, numSectors: Int, sectorSize: Int): ByteArray {
-        val fileSystemFile = filesystemFiles[drive]
-
-        val position = sectorId * sectorSize
+    fun read(drive: Int, sectorId: Long, numSectors: Int, sectorSize: Int, buffer: ByteBuffer): Int {
+        val fileSystemFile = drives.getValue(drive)
         val readSize = numSectors * sectorSize
-        val buffer = ByteArray(readSize)
 
-        with(fileSystemFile.file) {
-            seek(position + fileSystemFile.headerSize)
-            readFully(buffer)
+        if (memoryMapped) {
+            val mappedDrive = fileSystemFile.getMappedDrive(sectorSize)
+            for (i in 0 until numSectors) {
+                buffer.limit((i + 1) * sectorSize).position(i * sectorSize)
+                fileSystemFile.readSector(mappedDrive, sectorId + i, sectorSize, buffer)
+            }
+        } else {
+            val position = sectorId * sectorSize
+            buffer.limit(readSize)
+            fileSystemFile.channel.readFully(buffer, position + fileSystemFile.headerSize)
         }
-        return buffer
+        return readSize
     }
 
 
+    /**
+     * Write a batch of sectors, the i-th of which is in [buffer] at offset `i * sectorSize` and goes to the sector
+     * `sectors[i]`. Runs of consecutive sectors are written in a single call. The writes are not durable until [sync]
+     * is called.
+     */
     @Suppress("unused")
-    @Synchronized
-    fun write(drive: Int, inputBuffer: ByteArray, sectorSize: Int, sector: Long): Int {
-        val fileSystemFile = filesystemFiles[drive]
+    fun write(drive: Int, buffer: ByteBuffer, sectorSize: Int, sectors: LongArray): Int {
+        val fileSystemFile = drives.getValue(drive)
+
+        if (memoryMapped) {
+            val mappedDrive = fileSystemFile.getMappedDrive(sectorSize)
+            for (i in sectors.indices) {
+                buffer.limit((i + 1) * sectorSize).position(i * sectorSize)
+                fileSystemFile.writeSector(mappedDrive, sectors[i], sectorSize, buffer)
+            }
+            return sectors.size * sectorSize
+        }
+
+        var runStart = 0
+        while (runStart < sectors.size) {
+            var runEnd = runStart + 1
+            while (runEnd < sectors.size && sectors[runEnd] == sectors[runEnd - 1] + 1) {
+                runEnd++
+            }
+            buffer.limit(runEnd * sectorSize).position(runStart * sectorSize)
+            val position = sectors[runStart] * sectorSize
+            fileSystemFile.channel.writeFully(buffer, position + fileSystemFile.headerSize)
+            runStart = runEnd
+        }
+        return sectors.size * sectorSize
+    }
+
+
+    /**
+     * Make all the writes to the drive so far durable. This is called when the Enclave syncs its filesystem, so one
+     * call commits all the sectors written since the previous one.
+     */
+    @Suppress("unused")
+    fun sync(drive: Int): Int {
+        val fileSystemFile = drives.getValue(drive)
+        fileSystemFile.mappedDrive?.force()
+        fileSystemFile.channel.force(false)
+        return 0
+    }
+
+
+    private fun FileSystemFile.getMappedDrive(sectorSize: Int): MappedDrive {
+        mappedDrive?.let { return it }
+        synchronized(this) {
+            return mappedDrive ?: MappedDrive(
+                channel,
+                headerSize.toLong(),
+                fileSystemSize / FATFS_SECTOR_SIZE,
+                sectorSize
+            ).also { mappedDrive = it }
+        }
+    }
+
+
+    private fun FileSystemFile.readSector(mappedDrive: MappedDrive, sectorId: Long, sectorSize: Int, buffer: ByteBuffer) {
+        if (mappedDrive.contains(sectorId)) {
+            buffer.put(mappedDrive.sector(sectorId))
+        } else {
+            channel.readFully(buffer, sectorId * sectorSize + headerSize)
+        }
+    }
+
+
+    private fun FileSystemFile.writeSector(mappedDrive: MappedDrive, sectorId: Long, sectorSize: Int, buffer: ByteBuffer) {
+        if (mappedDrive.contains(sectorId)) {
+            mappedDrive.sector(sectorId).put(buffer)
+        } else {
+            channel.writeFully(buffer, sectorId * sectorSize + headerSize)
+        }
+    }
+
+
+    private fun FileChannel.readFully(buffer: ByteBuffer, position: Long) {
+        var offset = position
+        while (buffer.hasRemaining()) {
+            val read = read(buffer, offset)
+            if (read == -1) throw EOFException()
+            offset += read
+        }
+    }
+
 
-        with(fileSystemFile.file) {
-            val position = sector * sectorSize
-            seek(position + fileSystemFile.headerSize)
-            write(inputBuffer, 0, sectorSize)
+    private fun FileChannel.writeFully(buffer: ByteBuffer, position: Long) {
+        var offset = position
+        while (buffer.hasRemaining()) {
+            offset += write(buffer, offset)
         }
-        return sectorSize
     }
 }
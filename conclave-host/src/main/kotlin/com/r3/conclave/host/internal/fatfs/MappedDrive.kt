@@ -0,0 +1,67 @@
+package com.r3.conclave.host.internal.fatfs
+
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode.READ_WRITE
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/*
+The sectors of a persistent drive file mapped in memory, so that reading and writing a sector is a memory copy
+  rather than a system call.
+
+A single MappedByteBuffer cannot be bigger than 2GB, so the file is mapped in regions holding a whole number of
+ sectors, each one mapped the first time one of its sectors is accessed. Mapping a region extends the file if needed.
+Only the sectors within the size of the filesystem are mapped, the caller is expected to use the FileChannel for any
+ other sector.
+*/
+internal class MappedDrive(
+    private val channel: FileChannel,
+    private val dataOffset: Long,
+    private val numSectors: Long,
+    private val sectorSize: Int,
+    maxRegionSize: Int = MAX_REGION_SIZE
+) {
+    companion object {
+        private const val MAX_REGION_SIZE = 256 * 1024 * 1024
+    }
+
+    private val sectorsPerRegion = maxRegionSize / sectorSize
+    private val regionSize = sectorsPerRegion.toLong() * sectorSize
+    private val regions = AtomicReferenceArray<MappedByteBuffer>(
+        ((numSectors + sectorsPerRegion - 1) / sectorsPerRegion).toInt()
+    )
+
+    fun contains(sectorId: Long): Boolean = sectorId in 0 until numSectors
+
+    /**
+     * Returns a view of the sector, positioned at its start and with its limit at its end.
+     */
+    fun sector(sectorId: Long): ByteBuffer {
+        val view = region((sectorId / sectorsPerRegion).toInt()).duplicate()
+        val offset = ((sectorId % sectorsPerRegion) * sectorSize).toInt()
+        view.limit(offset + sectorSize).position(offset)
+        return view
+    }
+
+    /**
+     * Write the dirty pages of all the mapped regions to the file.
+     */
+    fun force() {
+        for (index in 0 until regions.length()) {
+            regions.get(index)?.force()
+        }
+    }
+
+    private fun region(index: Int): MappedByteBuffer {
+        regions.get(index)?.let { return it }
+        synchronized(this) {
+            regions.get(index)?.let { return it }
+            val start = index * regionSize
+            val size = minOf(regionSize, numSectors * sectorSize - start)
+            val region = channel.map(READ_WRITE, dataOffset + start, size)
+            regions.set(index, region)
+            return region
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.io.IOException
 import java.net.URL
 import java.nio.file.Files
 import java.nio.file.Path
+import java.time.Duration
 import java.util.concurrent.TimeUnit
 import java.util.zip.GZIPInputStream
 import java.util.zip.ZipInputStream
@@ -38,6 +39,21 @@ class GramineEnclaveHandle(
         private const val GRAMINE_ENTRY_POINT = "java"
         private const val MOCK_MODE_UNSUPPORTED_MESSAGE = "Gramine enclave handle does not support mock mode enclaves"
 
+        /**
+         * Sizing of the call interface connection pool. Connections are opened lazily up to the maximum, which is
+         * also capped by the number of enclave worker threads, and closed again once idle for the timeout.
+         */
+        private val minCallConnections = Integer.getInteger("conclave.gramine.minConnections", 1)
+        private val maxCallConnections = Integer.getInteger("conclave.gramine.maxConnections", Int.MAX_VALUE)
+        private val callConnectionIdleTimeout =
+            Duration.ofMillis(java.lang.Long.getLong("conclave.gramine.connectionIdleTimeoutMillis", 60_000))
+
+        /**
+         * If non-zero, the call interface instead multiplexes all calls over this many connections. The pool settings
+         * above are then ignored.
+         */
+        private val multiplexedCallConnections = Integer.getInteger("conclave.gramine.multiplexedConnections", 0)
+
         private fun getGramineExecutable(enclaveMode: EnclaveMode) =
             when (enclaveMode) {
                 EnclaveMode.SIMULATION -> "gramine-direct"
@@ -67,7 +83,12 @@ class GramineEnclaveHandle(
         enclaveManifestPath = getManifestFromUnzippedBundle()
 
         /** Create a socket host interface. */
-        enclaveInterface = SocketHostEnclaveInterface()
+        enclaveInterface = SocketHostEnclaveInterface(
+            minCallConnections,
+            maxCallConnections,
+            callConnectionIdleTimeout,
+            multiplexedCallConnections
+        )
     }
 
     override fun initialise(attestationParameters: AttestationParameters?) {
@@ -128,6 +149,7 @@ class GramineEnclaveHandle(
         /** Close the call interface if it's running. */
         if (enclaveInterface.isRunning) {
             enclaveInterface.close()
+            logger.debug("Call interface connection pool: {}", enclaveInterface.connectionPoolMetrics)
         }
 
         /** Wait for the gramine process to terminate if it's running. If it doesn't, destroy it forcibly. */
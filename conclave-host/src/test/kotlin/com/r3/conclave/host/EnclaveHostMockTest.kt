@@ -1,7 +1,6 @@
 package com.r3.conclave.host
 
 import com.r3.conclave.common.*
-import com.r3.conclave.common.internal.StateManager
 import com.r3.conclave.enclave.Enclave
 import com.r3.conclave.host.internal.createMockHost
 import com.r3.conclave.internaltesting.threadWithFuture
@@ -17,6 +16,8 @@ import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
 import org.junit.jupiter.params.ParameterizedTest
 import org.junit.jupiter.params.provider.ValueSource
+import java.time.Duration
+import java.util.concurrent.ExecutionException
 import kotlin.random.Random
 
 class EnclaveHostMockTest {
@@ -27,12 +28,8 @@ class EnclaveHostMockTest {
     fun `make sure the host is not leaking any callbacks`() {
         if (checkLeakedCallbacks && ::host.isInitialized) {
             val enclaveCallHandler = host.field("enclaveMessageHandler", EnclaveHost::class.java)
-
-            @Suppress("UNCHECKED_CAST")
-            val enclaveCalls = (enclaveCallHandler.field("threadIDToTransaction") as Map<Long, Any>).values.map {
-                it.javaClass.getDeclaredField("stateManager").apply { isAccessible = true }.get(it) as StateManager<*>
-            }
-            assertThat(enclaveCalls.map { it.state.javaClass.simpleName }).containsOnly("Ready")
+            // The state of each call is removed once it has completed.
+            assertThat(enclaveCallHandler.field("callIDToTransaction") as Map<*, *>).isEmpty()
         }
     }
 
@@ -40,12 +37,7 @@ class EnclaveHostMockTest {
     fun `make sure the enclave is not leaking any callbacks`() {
         if (checkLeakedCallbacks && ::host.isInitialized) {
             val enclaveCallHandler = host.mockEnclave.field("enclaveMessageHandler", Enclave::class.java)
-
-            @Suppress("UNCHECKED_CAST")
-            val enclaveCalls = enclaveCallHandler.field("enclaveCalls") as Map<Long, StateManager<*>>
-            // Check the only callbacks remaining are the ones to the enclave's receiveFromUntrustedHost, which is the
-            // initial state.
-            assertThat(enclaveCalls.values.map { it.state.field("receiveFromUntrustedHost") }).containsOnly(true)
+            assertThat(enclaveCallHandler.field("enclaveCalls") as Map<*, *>).isEmpty()
         }
     }
 
@@ -148,6 +140,49 @@ class EnclaveHostMockTest {
         override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray = bytes + 2
     }
 
+    @Test
+    fun `callEnclaveAsync completes with the enclave response`() {
+        host = createMockHost(SimpleReturnEnclave::class.java)
+        host.start(null, null, null) {  }
+        val futures = (0 until 100).map { host.callEnclaveAsync(byteArrayOf(it.toByte())) }
+        futures.forEachIndexed { index, future ->
+            assertThat(future).succeedsWithin(Duration.ofSeconds(10)).isEqualTo(byteArrayOf(index.toByte(), 2))
+        }
+    }
+
+    @Test
+    fun `callEnclaveAsync completes exceptionally if the enclave throws`() {
+        host = createMockHost(ThrowingEnclave::class.java)
+        host.start(null, null, null) {  }
+        assertThat(host.callEnclaveAsync(throwCommand(throwException = true, message = "Help!")))
+            .failsWithin(Duration.ofSeconds(10))
+            .withThrowableOfType(ExecutionException::class.java)
+            .havingCause()
+            .withMessage("Help!")
+        val response = host.callEnclaveAsync(throwCommand(throwException = false, message = "OK!"))
+        assertThat(response).succeedsWithin(Duration.ofSeconds(10)).isEqualTo("OK!".toByteArray())
+    }
+
+    @Test
+    fun `async calls before start and after close complete exceptionally`() {
+        val host = createMockHost(SimpleReturnEnclave::class.java)
+        assertThat(host.callEnclaveAsync(byteArrayOf()))
+            .failsWithin(Duration.ofSeconds(10))
+            .withThrowableOfType(ExecutionException::class.java)
+            .withCauseInstanceOf(IllegalStateException::class.java)
+        host.start(null, null, null) { }
+        assertThat(host.callEnclaveAsync(byteArrayOf(1))).succeedsWithin(Duration.ofSeconds(10))
+        host.close()
+        assertThat(host.callEnclaveAsync(byteArrayOf()))
+            .failsWithin(Duration.ofSeconds(10))
+            .withThrowableOfType(ExecutionException::class.java)
+            .withCauseInstanceOf(IllegalStateException::class.java)
+        assertThat(host.deliverMailAsync(byteArrayOf(), null))
+            .failsWithin(Duration.ofSeconds(10))
+            .withThrowableOfType(ExecutionException::class.java)
+            .withCauseInstanceOf(IllegalStateException::class.java)
+    }
+
     @Test
     fun `enclave response via callUntrustedHost`() {
         host = createMockHost(SimpleCallbackEnclave::class.java)
@@ -594,6 +629,19 @@ class EnclaveHostMockTest {
         }
     }
 
+    @Test
+    fun `calls from many short-lived threads do not retain any state`() {
+        host = createMockHost(SimpleReturnEnclave::class.java)
+        host.start(null, null, null) { }
+        val futures = (0 until 100).map { index ->
+            threadWithFuture { host.callEnclave(byteArrayOf(index.toByte())) }
+        }
+        futures.forEachIndexed { index, future ->
+            assertThat(future.get()).isEqualTo(byteArrayOf(index.toByte(), 2))
+        }
+        // The @AfterEach checks make sure neither the host nor the enclave have kept the state of these calls.
+    }
+
     private fun EnclaveHost.recordCallbacksFromEnclave(bytes: ByteArray): Pair<ByteArray?, List<ByteArray>> {
         val callback = RecordingCallback()
         val response = callEnclave(bytes, callback)
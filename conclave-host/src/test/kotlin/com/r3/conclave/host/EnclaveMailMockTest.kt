@@ -2,7 +2,6 @@ package com.r3.conclave.host
 
 import com.r3.conclave.client.PostOfficeBuilder
 import com.r3.conclave.common.EnclaveInstanceInfo
-import com.r3.conclave.common.EnclaveStartException
 import com.r3.conclave.common.MockConfiguration
 import com.r3.conclave.common.internal.kds.EnclaveKdsConfig
 import com.r3.conclave.common.kds.KDSKeySpec
@@ -30,20 +29,22 @@ import org.junit.jupiter.params.provider.MethodSource
 import org.junit.jupiter.params.provider.ValueSource
 import java.security.PrivateKey
 import java.security.PublicKey
+import java.util.ConcurrentModificationException
 import javax.crypto.AEADBadTagException
+import kotlin.concurrent.thread
 
 class EnclaveMailMockTest {
     companion object {
         private val messageBytes = "message".toByteArray()
 
-        // Get the set of persistent map and multithreading enablement options for general tests. The case
-        // where the enclave is multithreaded AND the persistent map is excluded, as this is an invalid state.
+        // Get the set of persistent map and multithreading enablement options for general tests.
         @JvmStatic
         fun validPersistentMapEnablementStates(): List<Arguments> {
             return listOf(
                 Arguments.arguments(false, false),
                 Arguments.arguments(false, true),
-                Arguments.arguments(true, false)
+                Arguments.arguments(true, false),
+                Arguments.arguments(true, true)
             )
         }
     }
@@ -340,17 +341,45 @@ class EnclaveMailMockTest {
     }
 
     @Test
-    fun `multi threaded enclaves should throw an error when started if the persistent map is enabled`() {
-        class ThreadSafeNoopEnclave : NoopEnclave() {
+    fun `multi threaded enclaves discard the mail of a call whose persistent map reads conflict`() {
+        class CounterEnclave : Enclave() {
             override val threadSafe: Boolean get() = true
+
+            override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+                val counter = String(persistentMap["counter"] ?: "0".toByteArray())
+                postMail(postOffice(mail).encryptMail(counter.toByteArray()), routingHint)
+                // Give the host the chance to change the counter in a concurrent call.
+                callUntrustedHost(byteArrayOf())
+                persistentMap["counter"] = (counter.toInt() + 1).toString().toByteArray()
+            }
+
+            override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray? {
+                persistentMap["counter"] = bytes
+                return null
+            }
         }
+
         mockConfiguration.enablePersistentMap = true
-        val host = createMockHost(ThreadSafeNoopEnclave::class.java, mockConfiguration)
-        val e = assertThrows<EnclaveLoadException> {
-            host.start(null, null, null) {}
-        }
-        assertThat(e.cause!!).isInstanceOf(EnclaveStartException::class.java)
-        assertThat(e.cause!!).hasMessageStartingWith("The persistent map is not available in multi-threaded enclaves.")
+        val host = createMockHost(CounterEnclave::class.java, mockConfiguration)
+        val capturedCommands = ArrayList<MailCommand>()
+        host.start(null, null, null) { commands -> capturedCommands += commands }
+
+        assertThatThrownBy {
+            host.deliverMail(buildMail(host), "test") {
+                thread { host.callEnclave("10".toByteArray()) }.join()
+                null
+            }
+        }.isInstanceOf(ConcurrentModificationException::class.java)
+        // Only the concurrent call's sealed state has been emitted.
+        assertThat(capturedCommands.single()).isInstanceOf(MailCommand.StoreSealedState::class.java)
+
+        capturedCommands.clear()
+        host.deliverMail(buildMail(host), "test") { null }
+        val postCommand = capturedCommands.filterIsInstance<MailCommand.PostMail>().single()
+        val reply = decryptMail(host, bytes = postCommand.encryptedBytes)
+        assertThat(String(reply.bodyAsBytes)).isEqualTo("10")
+        // The sequence number of the discarded mail is reused.
+        assertThat(reply.sequenceNumber).isZero
     }
 
     @ParameterizedTest
@@ -406,6 +435,103 @@ class EnclaveMailMockTest {
         }
     }
 
+    @ParameterizedTest
+    @MethodSource("validPersistentMapEnablementStates")
+    fun `deliverMailBatch emits the commands for the whole batch together`(
+        threadSafeEnclave: Boolean,
+        enablePersistentMap: Boolean
+    ) {
+        val enclaveClass = if (threadSafeEnclave) {
+            class ThreadSafeMultipleCommandsEnclave : MultipleCommandsEnclave() {
+                override val threadSafe: Boolean get() = true
+            }
+            ThreadSafeMultipleCommandsEnclave::class.java
+        } else {
+            class NonThreadSafeMultipleCommandsEnclave : MultipleCommandsEnclave() {
+                override val threadSafe: Boolean get() = false
+            }
+            NonThreadSafeMultipleCommandsEnclave::class.java
+        }
+
+        val mockConfiguration = MockConfiguration()
+        mockConfiguration.enablePersistentMap = enablePersistentMap
+        val host = createMockHost(enclaveClass, mockConfiguration)
+
+        val capturedCommands = ArrayList<List<MailCommand>>()
+        host.start(null, null, null) { commands -> capturedCommands += commands }
+
+        host.deliverMailBatch((0 until 3).map { MailDelivery(buildMail(host), "test") })
+
+        assertThat(capturedCommands).hasSize(1)
+        val commands = capturedCommands[0]
+        // Only the one sealed state is emitted for the whole batch.
+        assertThat(commands).hasSize(if (enablePersistentMap) 7 else 6)
+        val bodies = commands.take(6).map {
+            String(decryptMail(host, bytes = (it as MailCommand.PostMail).encryptedBytes).bodyAsBytes)
+        }
+        assertThat(bodies).containsExactly("hello", "world", "hello", "world", "hello", "world")
+        if (enablePersistentMap) {
+            assertThat(commands[6]).isInstanceOf(MailCommand.StoreSealedState::class.java)
+        }
+    }
+
+    @Test
+    fun `deliverMailBatch checks sequence numbers in order`() {
+        noop.start(null, null, null) { }
+        val encrypted0 = buildMail(noop, sequenceNumber = 0)
+        val encrypted1 = buildMail(noop, sequenceNumber = 1)
+        noop.deliverMailBatch(listOf(MailDelivery(encrypted0, null), MailDelivery(encrypted1, null)))
+        assertThatIllegalStateException()
+            .isThrownBy { noop.deliverMailBatch(listOf(MailDelivery(encrypted1, null))) }
+            .withMessageContaining("Mail with sequence number 1 on topic topic-123 has already been seen, was expecting 2 instead.")
+    }
+
+    @Test
+    fun `mail which cannot be decrypted fails the whole batch`() {
+        noop.start(null, null, null) { }
+        val noop2 = createMockHost(NoopEnclave::class.java)
+        noop2.start(null, null, null) { }
+
+        val encrypted0 = buildMail(noop, sequenceNumber = 0)
+        val forOtherEnclave = buildMail(noop2)
+        assertThatThrownBy {
+            noop.deliverMailBatch(listOf(MailDelivery(encrypted0, null), MailDelivery(forOtherEnclave, null)))
+        }.hasRootCauseInstanceOf(AEADBadTagException::class.java)
+        // The first mail was not delivered, and so can still be.
+        noop.deliverMail(encrypted0, null)
+    }
+
+    @Test
+    fun `enclave can stream mail bodies`() {
+        class StreamingEnclave : Enclave() {
+            override val streamMailBodies: Boolean get() = true
+            var retainedMail: EnclaveMail? = null
+
+            override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+                if (routingHint == "retain") {
+                    retainedMail = mail
+                } else {
+                    callUntrustedHost(mail.bodyAsStream.readBytes())
+                }
+            }
+        }
+
+        val host = createMockHost(StreamingEnclave::class.java, mockConfiguration)
+        host.start(null, null, null) { }
+        val body = ByteArray(1024 * 1024) { it.toByte() }
+        var received: ByteArray? = null
+        host.deliverMail(buildMail(host, body = body), null) { bytes ->
+            received = bytes
+            null
+        }
+        assertArrayEquals(body, received)
+
+        // The body can't be read once receiveMail has returned.
+        host.deliverMail(buildMail(host, body = body), "retain")
+        val retainedMail = (host.mockEnclave as StreamingEnclave).retainedMail!!
+        assertThatIllegalStateException().isThrownBy { retainedMail.bodyAsStream }
+    }
+
     @Test
     fun `enclave has different encryption key on restart and can't decrypt mail for previous instance`() {
         noop.start(null, null, null) { }
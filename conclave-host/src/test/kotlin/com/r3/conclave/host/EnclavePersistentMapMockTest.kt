@@ -2,7 +2,6 @@ package com.r3.conclave.host
 
 import com.r3.conclave.client.EnclaveClient
 import com.r3.conclave.client.EnclaveRollbackException
-import com.r3.conclave.common.EnclaveStartException
 import com.r3.conclave.common.MockConfiguration
 import com.r3.conclave.enclave.Enclave
 import com.r3.conclave.enclave.EnclavePostOffice
@@ -19,13 +18,14 @@ import org.assertj.core.api.Assertions.*
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Disabled
 import org.junit.jupiter.api.Test
-import org.junit.jupiter.api.assertThrows
 import org.junit.jupiter.params.ParameterizedTest
 import org.junit.jupiter.params.provider.EnumSource
 import org.junit.jupiter.params.provider.ValueSource
 import java.io.DataInputStream
 import java.io.DataOutputStream
 import java.util.*
+import java.util.concurrent.Executors
+import kotlin.concurrent.thread
 
 class EnclavePersistentMapMockTest {
     private var useEchoEnclave = false
@@ -150,6 +150,47 @@ class EnclavePersistentMapMockTest {
         }.isInstanceOf(EnclaveRollbackException::class.java)
     }
 
+    @ParameterizedTest
+    @EnumSource(RestartStrategy::class)
+    fun `changes restored from sealed state log`(restartStrategy: RestartStrategy) {
+        mockConfiguration.persistentMapCheckpointInterval = 3
+        client.sendSingleAction(Put("other", "unchanged"))
+        val writes = (1..10).flatMap { listOf(Put("key$it", "value$it"), Remove("key${it - 1}")) }
+        val value = processActions(restartStrategy, writes + Put("key", "last"), Get("key"))
+        assertThat(value).isEqualTo("last")
+        assertThat(client.sendGet(Get("key10"))).isEqualTo("value10")
+        assertThat(client.sendGet(Get("key9"))).isNull()
+        assertThat(client.sendGet(Get("other"))).isEqualTo("unchanged")
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = [1, 2, 3])
+    fun `host unable to roll back sealed state log if client has received explicit response`(rollBackState: Int) {
+        mockConfiguration.persistentMapCheckpointInterval = 10
+        client.sendSingleAction(Put("key", "v1"))
+        client.sendSingleAction(Put("key", "v2"))
+        client.sendSingleAction(Get("key"))
+        enclaveTransport.restartEnclave(rollBackNumberOfStates = rollBackState)
+        assertThatThrownBy {
+            client.sendSingleAction(Get("key"))
+        }.isInstanceOf(EnclaveRollbackException::class.java)
+    }
+
+    @Test
+    fun `sealed state log can be disabled after restart`() {
+        mockConfiguration.persistentMapCheckpointInterval = 10
+        client.sendSingleAction(Put("key1", "v1"))
+        client.sendSingleAction(Put("key2", "v2"))
+        mockConfiguration.persistentMapCheckpointInterval = 0
+        enclaveTransport.restartEnclave()
+        client.sendSingleAction(Put("key3", "v3"))
+        mockConfiguration.persistentMapCheckpointInterval = 10
+        enclaveTransport.restartEnclave()
+        client.sendSingleAction(Put("key4", "v4"))
+        enclaveTransport.restartEnclave()
+        assertThat((1..4).map { client.sendGet(Get("key$it")) }).containsExactly("v1", "v2", "v3", "v4")
+    }
+
     @Test
     fun `changes to the persistent map made by receiveFromUntrustedHost are preserved`() {
         executeActionsLocally(listOf(Put("key", "value")))
@@ -157,12 +198,59 @@ class EnclavePersistentMapMockTest {
         assertThat(client.sendGet(Get("key"))).isEqualTo("value")
     }
 
+    @ParameterizedTest
+    @EnumSource(RestartStrategy::class)
+    fun `multi-threaded enclave`(restartStrategy: RestartStrategy) {
+        threadSafeEnclave = true
+        val value = processActions(
+            restartStrategy,
+            listOf(Put("key", "new"), Put("other", "value"), Put("key", "modified"), Remove("other")),
+            Get("key")
+        )
+        assertThat(value).isEqualTo("modified")
+        assertThat(client.sendGet(Get("other"))).isNull()
+    }
+
     @Test
-    fun `multi-threaded enclaves not supported`() {
+    fun `conflicting change in multi-threaded enclave fails the call and is not persisted`() {
+        _enclaveTransport = MockEnclaveTransport(CounterEnclave::class, mockConfiguration).also { it.startEnclave() }
+        val host = enclaveTransport.enclaveHost
+        assertThatThrownBy {
+            // The concurrent increment commits whilst the outer one is waiting for the callback to return.
+            host.callEnclave(byteArrayOf(CounterEnclave.INCREMENT)) {
+                thread { host.callEnclave(byteArrayOf(CounterEnclave.INCREMENT)) { null } }.join()
+                null
+            }
+        }.isInstanceOf(ConcurrentModificationException::class.java)
+        assertThat(host.callEnclave(byteArrayOf(CounterEnclave.GET))).isEqualTo(byteArrayOf(1))
+
+        enclaveTransport.restartEnclave()
+        assertThat(enclaveTransport.enclaveHost.callEnclave(byteArrayOf(CounterEnclave.GET))).isEqualTo(byteArrayOf(1))
+    }
+
+    @Test
+    fun `concurrent changes in multi-threaded enclave are all persisted`() {
         threadSafeEnclave = true
-        val e = assertThrows<EnclaveLoadException> { client }
-        assertThat(e.cause!!).isInstanceOf(EnclaveStartException::class.java)
-        assertThat(e.cause!!).hasMessageStartingWith("The persistent map is not available in multi-threaded enclaves.")
+        val clients = (0 until 8).map { enclaveTransport.startNewClient() }
+        val executor = Executors.newFixedThreadPool(clients.size)
+        try {
+            clients.mapIndexed { index, client ->
+                executor.submit {
+                    repeat(10) { client.sendSingleAction(Put("key-$index-$it", "value-$index-$it")) }
+                    assertThat(client.sendGet(Get("key-$index-9"))).isEqualTo("value-$index-9")
+                }
+            }.forEach { it.get() }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        enclaveTransport.restartEnclave()
+        for ((index, client) in clients.withIndex()) {
+            // The clients would detect a rollback if the sealed state was missing any of the changes they've seen.
+            assertThat(client.sendGet(Get("key-$index-9"))).isEqualTo("value-$index-9")
+            client.close()
+        }
+        assertThat(client.sendGet(Get("key-0-0"))).isEqualTo("value-0-0")
     }
 
     @Test
@@ -294,6 +382,28 @@ class EnclavePersistentMapMockTest {
         override val threadSafe: Boolean get() = false
     }
 
+    private class CounterEnclave : Enclave() {
+        override val threadSafe: Boolean get() = true
+
+        override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray? {
+            val counter: Byte = persistentMap["counter"]?.single() ?: 0
+            return when (bytes.single()) {
+                INCREMENT -> {
+                    callUntrustedHost(byteArrayOf())
+                    persistentMap["counter"] = byteArrayOf((counter + 1).toByte())
+                    null
+                }
+                GET -> byteArrayOf(counter)
+                else -> throw IllegalArgumentException(bytes.single().toString())
+            }
+        }
+
+        companion object {
+            const val INCREMENT: Byte = 0
+            const val GET: Byte = 1
+        }
+    }
+
     private abstract class EchoEnclave : Enclave() {
         abstract override val threadSafe: Boolean
 
@@ -4,6 +4,7 @@ import com.r3.conclave.common.internal.CallHandler
 import com.r3.conclave.common.internal.EnclaveCallType
 import com.r3.conclave.common.internal.HostCallType
 import com.r3.conclave.enclave.internal.SocketEnclaveHostInterface
+import com.r3.conclave.utilities.internal.getAllBytes
 import com.r3.conclave.utilities.internal.getRemainingString
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.*
@@ -12,6 +13,8 @@ import org.junit.jupiter.params.provider.ValueSource
 import java.lang.IllegalStateException
 import java.net.ConnectException
 import java.nio.ByteBuffer
+import java.time.Duration
+import java.util.concurrent.CyclicBarrier
 import java.util.concurrent.FutureTask
 import java.util.concurrent.Semaphore
 
@@ -205,6 +208,127 @@ class SocketCallInterfaceTest {
         assertThat(outputString).isEqualTo(inputString)
     }
 
+    /** Start a separate pair of interfaces with the given host side pool settings. */
+    private fun startPooledInterfaces(
+            minConnections: Int,
+            maxConnections: Int,
+            idleTimeout: Duration,
+            multiplexedConnections: Int = 0
+    ): Pair<SocketHostEnclaveInterface, SocketEnclaveHostInterface> {
+        val pooledHostInterface = SocketHostEnclaveInterface(minConnections, maxConnections, idleTimeout, multiplexedConnections)
+        val port = pooledHostInterface.bindPort()
+        val eFuture = FutureTask {
+            SocketEnclaveHostInterface("127.0.0.1", port, ENCLAVE_HOST_INTERFACE_THREADS).apply { start() }
+        }
+        val eThread = Thread(eFuture).apply { start() }
+        pooledHostInterface.start()
+        eThread.join()
+        return Pair(pooledHostInterface, eFuture.get())
+    }
+
+    private fun stopPooledInterfaces(interfaces: Pair<SocketHostEnclaveInterface, SocketEnclaveHostInterface>) {
+        val closeThread = Thread { interfaces.second.close() }.apply { start() }
+        interfaces.first.close()
+        closeThread.join()
+    }
+
+    @Test
+    fun `host interface opens connections lazily`() {
+        val interfaces = startPooledInterfaces(0, ENCLAVE_HOST_INTERFACE_THREADS, Duration.ofMinutes(1))
+        val (pooledHostInterface, pooledEnclaveInterface) = interfaces
+        try {
+            pooledEnclaveInterface.registerCallHandler(EnclaveCallType.CALL_MESSAGE_HANDLER, object : CallHandler {
+                override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer = parameterBuffer
+            })
+            assertThat(pooledHostInterface.connectionPoolMetrics.openConnections).isZero
+
+            repeat(4) {
+                pooledHostInterface.executeOutgoingCall(EnclaveCallType.CALL_MESSAGE_HANDLER, it.toByteBuffer())
+            }
+
+            // Sequential calls re-use a single connection.
+            val metrics = pooledHostInterface.connectionPoolMetrics
+            assertThat(metrics.openConnections).isEqualTo(1)
+            assertThat(metrics.idleConnections).isEqualTo(1)
+            assertThat(metrics.acquisitions).isEqualTo(4)
+            assertThat(metrics.saturatedAcquisitions).isZero
+        } finally {
+            stopPooledInterfaces(interfaces)
+        }
+    }
+
+    @Test
+    fun `host interface records saturation when all connections are busy`() {
+        val interfaces = startPooledInterfaces(0, 1, Duration.ofMinutes(1))
+        val (pooledHostInterface, pooledEnclaveInterface) = interfaces
+        try {
+            val waitSemaphore = Semaphore(0)
+            val callInProgressSemaphore = Semaphore(0)
+            pooledEnclaveInterface.registerCallHandler(EnclaveCallType.CALL_MESSAGE_HANDLER, object : CallHandler {
+                override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
+                    if (parameterBuffer.int == 0) {
+                        callInProgressSemaphore.release()
+                        waitSemaphore.acquireUninterruptibly()
+                    }
+                    return null
+                }
+            })
+
+            val blockingCall = Thread {
+                pooledHostInterface.executeOutgoingCall(EnclaveCallType.CALL_MESSAGE_HANDLER, 0.toByteBuffer())
+            }.apply { start() }
+            callInProgressSemaphore.acquireUninterruptibly()
+
+            val waitingCall = Thread {
+                pooledHostInterface.executeOutgoingCall(EnclaveCallType.CALL_MESSAGE_HANDLER, 1.toByteBuffer())
+            }.apply { start() }
+            waitingCall.join(200)
+            assertThat(waitingCall.isAlive).isTrue
+
+            waitSemaphore.release()
+            blockingCall.join(1000)
+            waitingCall.join(1000)
+            assertThat(waitingCall.isAlive).isFalse
+
+            val metrics = pooledHostInterface.connectionPoolMetrics
+            assertThat(metrics.peakConnections).isEqualTo(1)
+            assertThat(metrics.saturatedAcquisitions).isEqualTo(1)
+            assertThat(metrics.maxWaitTime).isGreaterThan(Duration.ZERO)
+        } finally {
+            stopPooledInterfaces(interfaces)
+        }
+    }
+
+    @Test
+    fun `host interface closes idle connections down to the minimum`() {
+        val interfaces = startPooledInterfaces(1, ENCLAVE_HOST_INTERFACE_THREADS, Duration.ofMillis(50))
+        val (pooledHostInterface, pooledEnclaveInterface) = interfaces
+        try {
+            val barrier = CyclicBarrier(4)
+            pooledEnclaveInterface.registerCallHandler(EnclaveCallType.CALL_MESSAGE_HANDLER, object : CallHandler {
+                override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
+                    barrier.await()
+                    return null
+                }
+            })
+
+            // Four simultaneous calls require four connections.
+            val threads = (0 until 4).map {
+                Thread { pooledHostInterface.executeOutgoingCall(EnclaveCallType.CALL_MESSAGE_HANDLER) }.apply { start() }
+            }
+            threads.forEach { it.join() }
+            assertThat(pooledHostInterface.connectionPoolMetrics.peakConnections).isEqualTo(4)
+
+            val deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos()
+            while (pooledHostInterface.connectionPoolMetrics.openConnections > 1 && System.nanoTime() < deadline) {
+                Thread.sleep(10)
+            }
+            assertThat(pooledHostInterface.connectionPoolMetrics.openConnections).isEqualTo(1)
+        } finally {
+            stopPooledInterfaces(interfaces)
+        }
+    }
+
     /**
      * In native mode, threads literally call the enclave from the host and return out of it. The enclave does not have
      * any threads of its own.
@@ -426,4 +550,69 @@ class SocketCallInterfaceTest {
         assertThat(setOf(hostSideThreadIDs)).hasSize(1)
         assertThat(setOf(enclaveSideThreadIDs)).hasSize(1)
     }
+
+    /** Replace the interfaces under test with a pair which multiplexes calls over the given number of connections. */
+    private fun restartInterfacesMultiplexed(connections: Int) {
+        stopInterfaces()
+        val interfaces = startPooledInterfaces(1, Int.MAX_VALUE, Duration.ofMinutes(1), connections)
+        hostEnclaveInterface = interfaces.first
+        enclaveHostInterface = interfaces.second
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = [0, 1, 2, 4, 8, 16, 32])
+    fun `multiplexed interfaces can perform deeply recursive calls`(recursionDepth: Int) {
+        restartInterfacesMultiplexed(1)
+        configureInterfacesForDeepRecursion { null }
+        val returnValue = hostEnclaveInterface.executeOutgoingCall(EnclaveCallType.CALL_MESSAGE_HANDLER, recursionDepth.toByteBuffer())
+        assertThat(returnValue).isNull()
+    }
+
+    @Test
+    fun `exceptions propagate across multiplexed interfaces`() {
+        restartInterfacesMultiplexed(2)
+        configureInterfacesForDeepRecursion { throw IllegalStateException("End of the line!") }
+
+        val exception = assertThrows<IllegalStateException> {
+            hostEnclaveInterface.executeOutgoingCall(EnclaveCallType.CALL_MESSAGE_HANDLER, 8.toByteBuffer())
+        }
+
+        assertThat(exception).hasMessage("End of the line!")
+    }
+
+    /** More concurrent calls than there are connections or enclave threads. */
+    @ParameterizedTest
+    @ValueSource(ints = [2, 8, 256])
+    fun `multiplexed interfaces can service many concurrent recursive calls`(concurrency: Int) {
+        restartInterfacesMultiplexed(2)
+        configureInterfacesForRecursiveFibonacci()
+
+        val inputs = (0 until concurrency).map { (8..12).random() }
+        val results = arrayOfNulls<Int>(concurrency)
+        val threads = inputs.mapIndexed { index, input ->
+            Thread {
+                results[index] = hostEnclaveInterface.executeOutgoingCall(
+                        EnclaveCallType.CALL_MESSAGE_HANDLER, input.toByteBuffer())!!.int
+            }
+        }
+
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+
+        inputs.forEachIndexed { index, input ->
+            assertThat(results[index]).isEqualTo(referenceFibonacci(input))
+        }
+    }
+
+    @Test
+    fun `multiplexed interfaces send direct buffer payloads`() {
+        restartInterfacesMultiplexed(1)
+        configureEnclaveCallAction { it }
+
+        val inputBytes = ByteArray(1024 * 1024) { it.toByte() }
+        val inputBuffer = ByteBuffer.allocateDirect(inputBytes.size).put(inputBytes)
+        val output = hostEnclaveInterface.executeOutgoingCall(EnclaveCallType.CALL_MESSAGE_HANDLER, inputBuffer)!!
+
+        assertThat(output.getAllBytes()).isEqualTo(inputBytes)
+    }
 }
@@ -0,0 +1,148 @@
+package com.r3.conclave.host.internal.attestation
+
+import com.r3.conclave.common.OpaqueBytes
+import com.r3.conclave.common.internal.attestation.QuoteCollateral
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatIllegalStateException
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
+class QuoteCollateralCacheTest {
+    private val refreshExecutor = Executors.newSingleThreadScheduledExecutor()
+    private val key = QuoteCollateralCache.Key(OpaqueBytes(byteArrayOf(0, 96, 106, 0, 0, 0)), 0)
+    private val otherKey = QuoteCollateralCache.Key(OpaqueBytes(byteArrayOf(0, 96, 106, 0, 0, 0)), 1)
+
+    private var now = Instant.parse("2022-01-01T00:00:00Z")
+    private val clock = object : Clock() {
+        override fun getZone(): ZoneId = ZoneOffset.UTC
+        override fun withZone(zone: ZoneId?): Clock = throw UnsupportedOperationException()
+        override fun instant(): Instant = now
+    }
+
+    private val fetchCount = AtomicInteger()
+    private val nextUpdates = ConcurrentHashMap<QuoteCollateral, Instant>()
+    private var nextUpdate = now + Duration.ofDays(30)
+    private var fetchFails = false
+
+    @AfterEach
+    fun cleanUp() {
+        refreshExecutor.shutdownNow()
+    }
+
+    @Test
+    fun `collateral is fetched once per key`() {
+        val cache = createCache(Duration.ofDays(1))
+        val first = cache.get(key)
+        assertThat(cache.get(key)).isSameAs(first)
+        assertThat(fetchCount.get()).isEqualTo(1)
+        assertThat(cache.get(otherKey)).isNotSameAs(first)
+        assertThat(fetchCount.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `collateral is fetched again once past its next update`() {
+        nextUpdate = now + Duration.ofHours(1)
+        val cache = createCache(Duration.ofDays(1))
+        val first = cache.get(key)
+        now += Duration.ofMinutes(59)
+        assertThat(cache.get(key)).isSameAs(first)
+        now += Duration.ofMinutes(1)
+        assertThat(cache.get(key)).isNotSameAs(first)
+        assertThat(fetchCount.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `collateral is fetched again once past max age`() {
+        val cache = createCache(Duration.ofHours(1))
+        val first = cache.get(key)
+        now += Duration.ofHours(1)
+        assertThat(cache.get(key)).isNotSameAs(first)
+        assertThat(fetchCount.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `fetch failure is reported to the caller once the collateral has expired`() {
+        val cache = createCache(Duration.ofHours(1))
+        cache.get(key)
+        fetchFails = true
+        now += Duration.ofHours(1)
+        assertThatIllegalStateException().isThrownBy { cache.get(key) }
+        fetchFails = false
+        cache.get(key)
+        assertThat(fetchCount.get()).isEqualTo(3)
+    }
+
+    @Test
+    fun `collateral is refreshed in the background before it expires`() {
+        val cache = QuoteCollateralCache(
+            Duration.ofMillis(200),
+            refreshExecutor = refreshExecutor,
+            nextUpdateOf = { Instant.MAX },
+            fetcher = ::fetch
+        )
+        val deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos()
+        // Entries are only refreshed if they're read.
+        while (fetchCount.get() < 3 && System.nanoTime() < deadline) {
+            cache.get(key)
+            Thread.sleep(10)
+        }
+        assertThat(fetchCount.get()).isGreaterThanOrEqualTo(3)
+    }
+
+    @Test
+    fun `collateral which is read is refreshed`() {
+        // The test clock doesn't move, so the entry doesn't expire.
+        val cache = createCache(Duration.ofMillis(200))
+        val first = cache.get(key)
+        assertThat(cache.get(key)).isSameAs(first)
+        awaitRefresh()
+        assertThat(fetchCount.get()).isEqualTo(2)
+        assertThat(cache.get(key)).isNotSameAs(first)
+        assertThat(fetchCount.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `collateral which is not read is evicted instead of refreshed`() {
+        val cache = createCache(Duration.ofMillis(200))
+        cache.get(key)
+        awaitRefresh()
+        assertThat(fetchCount.get()).isEqualTo(1)
+        // The entry hasn't expired, so it's only fetched again because it was evicted.
+        cache.get(key)
+        assertThat(fetchCount.get()).isEqualTo(2)
+    }
+
+    /** Wait for a refresh scheduled after 80% of a 200ms lifetime, as the executor runs one task at a time. */
+    private fun awaitRefresh() {
+        refreshExecutor.schedule({}, 400, MILLISECONDS).get()
+    }
+
+    private fun createCache(maxAge: Duration): QuoteCollateralCache {
+        return QuoteCollateralCache(
+            maxAge,
+            clock,
+            refreshExecutor,
+            nextUpdateOf = { nextUpdates.getValue(it) },
+            fetcher = ::fetch
+        )
+    }
+
+    private fun fetch(key: QuoteCollateralCache.Key): QuoteCollateral {
+        fetchCount.incrementAndGet()
+        check(!fetchFails) { "PCCS is not available" }
+        val empty = OpaqueBytes(ByteArray(0))
+        // Collateral is a data class so make each one distinct.
+        return QuoteCollateral(fetchCount.get(), key.fmspc, empty, empty, empty, empty, empty, empty).also {
+            nextUpdates[it] = nextUpdate
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.r3.conclave.host.internal.fatfs
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.CREATE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.WRITE
+
+class MappedDriveTest {
+    private companion object {
+        private const val HEADER_SIZE = 7L
+        private const val SECTOR_SIZE = 16
+        //  Regions of 4 sectors, so the 10 sectors are in two full regions and a partial one of 2 sectors
+        private const val REGION_SIZE = 4 * SECTOR_SIZE
+        private const val NUM_SECTORS = 10L
+    }
+
+    @TempDir
+    lateinit var tempDir: Path
+
+    private lateinit var channel: FileChannel
+    private lateinit var drive: MappedDrive
+
+    @BeforeEach
+    fun setUp() {
+        channel = FileChannel.open(tempDir.resolve("drive"), CREATE, READ, WRITE)
+        drive = MappedDrive(channel, HEADER_SIZE, NUM_SECTORS, SECTOR_SIZE, REGION_SIZE)
+    }
+
+    @AfterEach
+    fun tearDown() {
+        channel.close()
+    }
+
+    @Test
+    fun `contains only the sectors of the filesystem`() {
+        assertThat(drive.contains(-1)).isFalse
+        assertThat(drive.contains(0)).isTrue
+        assertThat(drive.contains(NUM_SECTORS - 1)).isTrue
+        assertThat(drive.contains(NUM_SECTORS)).isFalse
+    }
+
+    @Test
+    fun `sector views cover exactly one sector`() {
+        for (sectorId in 0 until NUM_SECTORS) {
+            val sector = drive.sector(sectorId)
+            assertThat(sector.remaining()).isEqualTo(SECTOR_SIZE)
+        }
+    }
+
+    @Test
+    fun `sectors in every region including the last partial one are written to the file on force`() {
+        for (sectorId in 0 until NUM_SECTORS) {
+            drive.sector(sectorId).put(sectorBytes(sectorId))
+        }
+        drive.force()
+
+        //  Mapping the last region extends the file up to the end of the last sector
+        assertThat(channel.size()).isEqualTo(HEADER_SIZE + NUM_SECTORS * SECTOR_SIZE)
+        for (sectorId in 0 until NUM_SECTORS) {
+            val buffer = ByteBuffer.allocate(SECTOR_SIZE)
+            channel.read(buffer, HEADER_SIZE + sectorId * SECTOR_SIZE)
+            assertThat(buffer.array()).isEqualTo(sectorBytes(sectorId))
+        }
+    }
+
+    @Test
+    fun `sectors written through the file are read from the mapping`() {
+        val sectorId = NUM_SECTORS - 1
+        channel.write(ByteBuffer.wrap(sectorBytes(sectorId)), HEADER_SIZE + sectorId * SECTOR_SIZE)
+
+        val bytes = ByteArray(SECTOR_SIZE)
+        drive.sector(sectorId).get(bytes)
+        assertThat(bytes).isEqualTo(sectorBytes(sectorId))
+    }
+
+    private fun sectorBytes(sectorId: Long): ByteArray = ByteArray(SECTOR_SIZE) { (sectorId * 31 + it).toByte() }
+}
@@ -14,17 +14,33 @@ import java.security.NoSuchAlgorithmException;
 class AESGCMCipherState implements CipherState {
     public static final int KEY_LENGTH = 32;
     public static final int MAC_LENGTH = 16;
-    private final Cipher cipher;
+    // Looking up a Cipher is far more expensive than the rest of this object, and a new cipher state is created for
+    // every mail. So each thread keeps one Cipher which is re-initialised with the key and nonce of whichever cipher
+    // state is encrypting or decrypting a packet on it, as happens for every packet anyway.
+    private static final ThreadLocal<Cipher> threadCipher = ThreadLocal.withInitial(AESGCMCipherState::newCipher);
+    // A duplicate is used on other threads than the one which destroys it, which then can't reach the thread's Cipher
+    // to wipe our key from it. So a duplicate has a Cipher of its own instead.
+    private final Cipher ownCipher;
+    // The Cipher which was last initialised with our key, if any.
+    private Cipher lastCipher;
     private SecretKeySpec keySpec;
     private long nonce;
 
     AESGCMCipherState() {
+        this(null);
+    }
+
+    private AESGCMCipherState(Cipher ownCipher) {
+        this.ownCipher = ownCipher;
+        nonce = 0;
+    }
+
+    private static Cipher newCipher() {
         try {
-            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            return Cipher.getInstance("AES/GCM/NoPadding");
         } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
             throw new RuntimeException(e);  // Should never happen.
         }
-        nonce = 0;
     }
 
     /**
@@ -86,8 +102,8 @@ class AESGCMCipherState implements CipherState {
         return keySpec != null;
     }
 
-    // Called to encrypt a new packet.
-    private void initCipher(int mode, byte[] authenticatedData) throws InvalidKeyException, InvalidAlgorithmParameterException {
+    // Called to encrypt or decrypt a new packet, returns the current thread's Cipher ready to process it.
+    private Cipher initCipher(int mode, byte[] authenticatedData) throws InvalidKeyException, InvalidAlgorithmParameterException {
         // We expect the nonce to overflow and wrap, we'll happily use the negative numbers because it's only
         // non-repetition that matters, the actual value is unimportant. If we reach -1 then we'd have to
         // encrypt again with a nonce of zero, which would reveal valuable hints to cryptanalysts (see below) so we
@@ -133,9 +149,12 @@ class AESGCMCipherState implements CipherState {
         iv[10] = (byte)(nonce >> 8);
         iv[11] = (byte)nonce;
         ++nonce;
+        Cipher cipher = ownCipher != null ? ownCipher : threadCipher.get();
         cipher.init(mode, keySpec, new GCMParameterSpec(128, iv));
         if (authenticatedData != null)
             cipher.updateAAD(authenticatedData);
+        lastCipher = cipher;
+        return cipher;
     }
 
     /**
@@ -187,7 +206,7 @@ class AESGCMCipherState implements CipherState {
             throw new ShortBufferException();
 
         try {
-            initCipher(Cipher.ENCRYPT_MODE, ad);
+            Cipher cipher = initCipher(Cipher.ENCRYPT_MODE, ad);
             int result = cipher.update(plaintext, plaintextOffset, length, ciphertext, ciphertextOffset);
             result += cipher.doFinal(ciphertext, ciphertextOffset + result);
             return result;
@@ -241,7 +260,7 @@ class AESGCMCipherState implements CipherState {
         if (dataLen > space)
             throw new ShortBufferException();
         try {
-            initCipher(Cipher.DECRYPT_MODE, ad);
+            Cipher cipher = initCipher(Cipher.DECRYPT_MODE, ad);
             return cipher.doFinal(ciphertext, ciphertextOffset, length, plaintext, plaintextOffset);
         } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException e) {
             throw new RuntimeException(e);
@@ -263,10 +282,24 @@ class AESGCMCipherState implements CipherState {
     }
 
     /**
-     * Sets the nonce value.
+     * Creates a new instance of this cipher with the same key, so that
+     * separate instances can be used concurrently. The new instance has
+     * a Cipher of its own, so it can be destroyed from any thread.
+     *
+     * @return A new CipherState of the same class as this one, with a nonce of zero.
+     */
+    @Override
+    public CipherState duplicate() {
+        AESGCMCipherState cipher = new AESGCMCipherState(newCipher());
+        cipher.keySpec = keySpec;
+        return cipher;
+    }
+
+    /**
+     * Sets the nonce value used by the next encryption or decryption.
      * <p>
-     * This function is intended for testing purposes only.  If the nonce
-     * value goes backwards then security may be compromised.
+     * No nonce may be used for more than one encryption with the same key,
+     * see {@link CipherState#setNonce(long)}.
      *
      * @param nonce The new nonce value.
      */
@@ -284,9 +317,17 @@ class AESGCMCipherState implements CipherState {
         // So we instead set the key and IV to all-zeroes to hopefully
         // destroy the sensitive data in the cipher instance.
         keySpec = new SecretKeySpec(new byte[32], "AES");
+        Cipher cipher = lastCipher;
+        lastCipher = null;
+        // The key has never been given to a cipher, or the one it was given to belongs to another thread and is only
+        // overwritten when that thread next processes a packet. That can't be the case for a duplicate.
+        if (cipher == null || (cipher != ownCipher && cipher != threadCipher.get()))
+            return;
+        // Decrypt mode, as the same Cipher refuses to be initialised for encryption twice in a row with the same key
+        // and IV, which it would be by destroying two cipher states on the same thread.
         GCMParameterSpec params = new GCMParameterSpec(128, new byte[96 / 8]);
         try {
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, params);
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, params);
         } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
             // Shouldn't happen.
             throw new IllegalStateException(e);
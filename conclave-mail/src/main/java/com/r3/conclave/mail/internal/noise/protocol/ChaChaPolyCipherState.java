@@ -283,6 +283,14 @@ class ChaChaPolyCipherState implements CipherState {
 		return cipher;
 	}
 
+	@Override
+	public CipherState duplicate() {
+		ChaChaPolyCipherState cipher = new ChaChaPolyCipherState();
+		System.arraycopy(input, 0, cipher.input, 0, input.length);
+		cipher.haskey = haskey;
+		return cipher;
+	}
+
 	@Override
 	public void setNonce(long nonce) {
 		n = nonce;
@@ -149,13 +149,33 @@ public interface CipherState extends Destroyable {
 	CipherState fork(byte[] key, int offset);
 
 	/**
-	 * Sets the nonce value.
+	 * Creates a new instance of this cipher with the same key, so that
+	 * separate instances can be used concurrently.  The nonce of the new
+	 * instance starts at zero.
 	 *
-	 * This function is intended for testing purposes only.  If the nonce
-	 * value goes backwards then security may be compromised.
-	 *
-	 * @param nonce The new nonce value, which must be greater than or equal
-	 * to the current value.
+	 * @return A new CipherState of the same class as this one.
+	 */
+	CipherState duplicate();
+
+	/**
+	 * Sets the nonce value used by the next encryption or decryption.
+	 *
+	 * The nonce may be set to any value, including an earlier one, but the
+	 * caller must make sure that no nonce is ever used for more than one
+	 * encryption with the same key, across this instance and any duplicates
+	 * of it.  Re-using a nonce for decryption is safe.  The callers uphold
+	 * this as follows:
+	 * <ul>
+	 * <li>MailSession.cipherStateFor derives each mail's key with the mail's
+	 * session counter as the nonce, and counters are never handed out
+	 * twice.</li>
+	 * <li>MailEncryptingStream gives each packet's duplicate of the cipher
+	 * the packet's index, so every packet of a mail has its own nonce.</li>
+	 * <li>SeekableMailBodyChannel only decrypts, using the packet index
+	 * that the packet was encrypted with.</li>
+	 * </ul>
+	 *
+	 * @param nonce The new nonce value.
 	 */
 	void setNonce(long nonce);
 }
@@ -1,12 +1,17 @@
 package com.r3.conclave.mail
 
+import com.r3.conclave.mail.internal.ByteBufferSeekableChannel
 import com.r3.conclave.mail.internal.MailDecryptingStream
 import com.r3.conclave.mail.internal.postoffice.AbstractPostOffice
 import com.r3.conclave.mail.internal.privateCurve25519KeyToPublic
 import com.r3.conclave.utilities.internal.EnclaveContext
 import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.SeekableByteChannel
 import java.security.PrivateKey
 import java.security.PublicKey
+import java.util.concurrent.Executor
 
 // TODO: Add sample demo code with a simple HTTP binding, document.
 // TODO: Key types probably need to be public or properly wired to JCA - cannot assume they are only retrieved from
@@ -94,6 +99,27 @@ interface EnclaveMail : EnclaveMailHeader {
      * Whatever data was encrypted into the mail by the sender.
      */
     val bodyAsBytes: ByteArray
+
+    /**
+     * The body of the mail as a stream. Unless the implementation states otherwise this is a stream over
+     * [bodyAsBytes].
+     *
+     * Inside an enclave which has overridden `streamMailBodies` to return true, the body is instead decrypted as it's
+     * read, so that the whole body never has to be held in memory at once. In that case the stream can only be opened
+     * once, and only before [bodyAsBytes] is accessed. It can't be read after `receiveMail` has returned.
+     */
+    val bodyAsStream: InputStream get() = bodyAsBytes.inputStream()
+
+    /**
+     * The body of the mail as a read-only channel which supports random access. Unless the implementation states
+     * otherwise this is a channel over [bodyAsBytes].
+     *
+     * Inside an enclave which streams mail bodies, a mail which was made seekable by the sender (see
+     * [PostOffice.isSeekable]) is decrypted a packet at a time as it's read, and only the packets which are read are
+     * decrypted. The same restrictions as for [bodyAsStream] apply, and only one of the two can be opened. For any other
+     * mail the body is first read into memory.
+     */
+    val bodyAsChannel: SeekableByteChannel get() = ByteBufferSeekableChannel(ByteBuffer.wrap(bodyAsBytes))
 }
 
 /**
@@ -221,6 +247,47 @@ abstract class PostOffice(
             super.minSizePolicy = value
         }
 
+    /**
+     * Whether mail created by this post office is seekable. The body of a seekable mail can be read by the recipient
+     * with random access using [EnclaveMail.bodyAsChannel], decrypting only the parts it needs rather than the whole
+     * mail. This is useful for very large mail of which the enclave only needs to read a few sections.
+     *
+     * A seekable mail is slightly larger, and can only be read by enclaves and post offices of this version of Conclave
+     * or later. By default mail is not seekable.
+     */
+    final override var isSeekable: Boolean
+        get() = super.isSeekable
+        set(value) {
+            super.isSeekable = value
+        }
+
+    /**
+     * Whether this post office is in session mode. Normally each mail is encrypted with a new Noise handshake, which
+     * involves several Diffie-Hellman operations. In session mode the handshake is done once and then shared by all the
+     * mail this post office creates, each mail using its own key derived from it. This is much cheaper when creating
+     * lots of small mail. The sequence numbers of the mail are not affected.
+     *
+     * The handshake is only kept in memory and so a new session is started by each post office instance. Mail in session
+     * mode can only be read by enclaves and post offices of this version of Conclave or later. By default session mode
+     * is off.
+     */
+    final override var isSessionEnabled: Boolean
+        get() = super.isSessionEnabled
+        set(value) {
+            super.isSessionEnabled = value
+        }
+
+    /**
+     * If not null, the executor used to encrypt the 64KB packets of large mail concurrently, so that encrypting them
+     * scales with the number of cores. The resulting mail is the same as if the packets were encrypted one after the
+     * other. By default this is null and the packets are encrypted on the calling thread.
+     */
+    final override var encryptionExecutor: Executor?
+        get() = super.encryptionExecutor
+        set(value) {
+            super.encryptionExecutor = value
+        }
+
     /**
      * Returns the sequence number that will be assigned to the next mail.
      */
@@ -285,6 +352,22 @@ abstract class PostOffice(
         return super.encryptMail(body, envelope, null)
     }
 
+    /**
+     * Encrypts the remaining bytes of [body] in the same way as [encryptMail], but writes the encrypted mail straight
+     * into [destination] rather than returning a new array. The positions of both buffers are advanced. Either buffer
+     * can be direct, which avoids copying the mail in and out of the Java heap when it's going to or from native code
+     * or I/O.
+     *
+     * @return the number of bytes written to [destination].
+     *
+     * @throws IllegalArgumentException If [destination] doesn't have enough space for the encrypted mail. Nothing is
+     * written in this case and the sequence number isn't used up. The exact space needed is given in the message, and is
+     * at least the size of the body plus the padding from [minSizePolicy].
+     */
+    fun encryptMail(body: ByteBuffer, envelope: ByteArray?, destination: ByteBuffer): Int {
+        return super.encryptMail(body, envelope, null, destination)
+    }
+
     /**
      * Decodes and decrypts the mail with [senderPrivateKey] and verifies that the authenticated sender
      * ([EnclaveMail.getAuthenticatedSender](https://docs.conclave.net/api/-conclave%20-core/com.r3.conclave.mail/-enclave-mail/get-authenticated-sender.html)
@@ -302,6 +385,25 @@ abstract class PostOffice(
         return decryptMail(encryptedEnclaveMail, senderPrivateKey, destinationPublicKey)
     }
 
+    /**
+     * Decrypts the mail in the remaining bytes of [encryptedEnclaveMail] in the same way as [decryptMail], but reads
+     * it straight from the buffer and decrypts the body straight into [body]. The position of [encryptedEnclaveMail] is
+     * advanced to the end of the mail, and that of [body] past the decrypted body. Either buffer can be direct.
+     *
+     * The body of the returned mail is a read-only view of the bytes written to [body], and so is only valid for as
+     * long as they aren't overwritten.
+     *
+     * @throws MailDecryptionException If the mail could not be decrypted, either due to key mismatch or due to
+     * corrupted bytes.
+     * @throws IOException If the mail is decryptable but is malformed or corrupted in some way other.
+     * @throws IllegalArgumentException If the mail is not targeted to the destination public key.
+     * @throws java.nio.BufferOverflowException If [body] doesn't have enough space for the decrypted body.
+     */
+    @Throws(MailDecryptionException::class, IOException::class)
+    fun decryptMail(encryptedEnclaveMail: ByteBuffer, body: ByteBuffer): EnclaveMail {
+        return decryptMail(encryptedEnclaveMail, body, senderPrivateKey, destinationPublicKey)
+    }
+
     private class DefaultPostOffice(
         override val destinationPublicKey: PublicKey,
         senderPrivateKey: PrivateKey,
@@ -0,0 +1,34 @@
+package com.r3.conclave.mail.internal
+
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * [InputStream] which reads directly from the remaining bytes of a [ByteBuffer], advancing its position. Unlike a
+ * stream over a channel it doesn't lock or copy through an intermediate array.
+ */
+class ByteBufferInputStream(val buffer: ByteBuffer) : InputStream() {
+    override fun read(): Int {
+        return if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (off < 0 || len < 0 || len > b.size - off) {
+            throw IndexOutOfBoundsException("$off + $len >= ${b.size}")
+        }
+        if (len == 0) return 0
+        if (!buffer.hasRemaining()) return -1
+        val length = minOf(len, buffer.remaining())
+        buffer.get(b, off, length)
+        return length
+    }
+
+    override fun skip(n: Long): Long {
+        if (n <= 0) return 0
+        val length = minOf(n, buffer.remaining().toLong()).toInt()
+        buffer.position(buffer.position() + length)
+        return length.toLong()
+    }
+
+    override fun available(): Int = buffer.remaining()
+}
@@ -0,0 +1,18 @@
+package com.r3.conclave.mail.internal
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * [OutputStream] which writes directly into a [ByteBuffer], advancing its position. Writing more than the remaining
+ * bytes of the buffer throws [java.nio.BufferOverflowException].
+ */
+class ByteBufferOutputStream(private val buffer: ByteBuffer) : OutputStream() {
+    override fun write(b: Int) {
+        buffer.put(b.toByte())
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        buffer.put(b, off, len)
+    }
+}
@@ -0,0 +1,66 @@
+package com.r3.conclave.mail.internal
+
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.NonWritableChannelException
+import java.nio.channels.SeekableByteChannel
+
+/**
+ * A read-only [SeekableByteChannel] over the remaining bytes of a [ByteBuffer], which are not copied. The position of
+ * the given buffer is not changed by reading from the channel.
+ */
+class ByteBufferSeekableChannel(buffer: ByteBuffer) : SeekableByteChannel {
+    private val buffer = buffer.slice()
+    private var position = 0L
+    private var open = true
+
+    @Synchronized
+    override fun read(dst: ByteBuffer): Int {
+        checkOpen()
+        val size = buffer.limit()
+        if (position >= size) return -1
+        val length = minOf(size - position, dst.remaining().toLong()).toInt()
+        val src = buffer.duplicate()
+        src.position(position.toInt())
+        src.limit(position.toInt() + length)
+        dst.put(src)
+        position += length
+        return length
+    }
+
+    @Synchronized
+    override fun position(): Long {
+        checkOpen()
+        return position
+    }
+
+    @Synchronized
+    override fun position(newPosition: Long): SeekableByteChannel {
+        require(newPosition >= 0) { "Position cannot be negative." }
+        checkOpen()
+        position = newPosition
+        return this
+    }
+
+    @Synchronized
+    override fun size(): Long {
+        checkOpen()
+        return buffer.limit().toLong()
+    }
+
+    override fun write(src: ByteBuffer): Int = throw NonWritableChannelException()
+
+    override fun truncate(size: Long): SeekableByteChannel = throw NonWritableChannelException()
+
+    @Synchronized
+    override fun isOpen(): Boolean = open
+
+    @Synchronized
+    override fun close() {
+        open = false
+    }
+
+    private fun checkOpen() {
+        if (!open) throw ClosedChannelException()
+    }
+}
@@ -1,18 +1,137 @@
 package com.r3.conclave.mail.internal
 
 import com.r3.conclave.mail.EnclaveMail
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.SeekableByteChannel
 import java.security.PrivateKey
 import java.security.PublicKey
 
+/**
+ * A decrypted [EnclaveMail]. The body is either given up front as [_bodyAsBytes] or in [bodyBuffer], or is decrypted on
+ * demand from [bodyStream]. The remaining bytes of [bodyBuffer] are the body, which is read from the buffer each time
+ * rather than copied out of it up front.
+ */
 class DecryptedEnclaveMail(
     override val sequenceNumber: Long,
     override val topic: String,
     override val authenticatedSender: PublicKey,
     private val _envelope: ByteArray?,
     val privateHeader: ByteArray?,
-    private val _bodyAsBytes: ByteArray,
-    val kdsPrivateKey: PrivateKey?
+    private var _bodyAsBytes: ByteArray?,
+    val kdsPrivateKey: PrivateKey?,
+    private var bodyStream: InputStream? = null,
+    private val bodyBuffer: ByteBuffer? = null
 ) : EnclaveMail {
+    init {
+        require(listOfNotNull(_bodyAsBytes, bodyStream, bodyBuffer).size == 1) {
+            "Exactly one of the body bytes, stream or buffer is needed."
+        }
+    }
+
+    private var bodyStreamOpened = false
+    private var bodyStreamClosed = false
+    private var bodyChannel: SeekableByteChannel? = null
+
     override val envelope: ByteArray? get() = _envelope?.clone()
-    override val bodyAsBytes: ByteArray get() = _bodyAsBytes.clone()
-}
\ No newline at end of file
+
+    override val bodyAsBytes: ByteArray
+        get() {
+            synchronized(this) {
+                _bodyAsBytes?.let { return it.clone() }
+                bodyBuffer?.let { return ByteArray(it.remaining()).also { bytes -> it.duplicate().get(bytes) } }
+                check(!bodyStreamOpened) { "The body of this mail has already been opened with bodyAsStream." }
+                checkBodyStreamNotClosed()
+                val bytes = bodyStream!!.readBytes()
+                _bodyAsBytes = bytes
+                bodyStream = null
+                return bytes.clone()
+            }
+        }
+
+    /**
+     * If the body is being decrypted on demand then this stream can only be opened once. It cannot be read after the
+     * call the mail was delivered in has returned.
+     */
+    override val bodyAsStream: InputStream
+        get() {
+            synchronized(this) {
+                _bodyAsBytes?.let { return it.inputStream() }
+                bodyBuffer?.let { return ByteBufferInputStream(it.duplicate()) }
+                check(!bodyStreamOpened) { "The body of this mail can only be streamed once." }
+                checkBodyStreamNotClosed()
+                bodyStreamOpened = true
+                return BodyStream(bodyStream!!)
+            }
+        }
+
+    /**
+     * If the body is being decrypted on demand and the mail is seekable then only the packets which are read from this
+     * channel are decrypted. Otherwise the body is read into memory first. As with [bodyAsStream] this can only be
+     * opened once and cannot be read after the call the mail was delivered in has returned.
+     */
+    override val bodyAsChannel: SeekableByteChannel
+        get() {
+            synchronized(this) {
+                _bodyAsBytes?.let { return ByteBufferSeekableChannel(ByteBuffer.wrap(it)) }
+                bodyBuffer?.let { return ByteBufferSeekableChannel(it) }
+                check(!bodyStreamOpened) { "The body of this mail can only be streamed once." }
+                checkBodyStreamNotClosed()
+                val channel = (bodyStream as? MailDecryptingStream)?.openBodyChannel()
+                    // The mail isn't seekable.
+                    ?: return ByteBufferSeekableChannel(ByteBuffer.wrap(bodyAsBytes))
+                bodyStreamOpened = true
+                bodyChannel = channel
+                return BodyChannel(channel)
+            }
+        }
+
+    /**
+     * Stop any further decryption of the body from the underlying stream, as it's no longer valid. Has no effect if
+     * the body was given up front or has already been read into memory.
+     */
+    fun closeBodyStream() {
+        synchronized(this) {
+            bodyStreamClosed = true
+            bodyStream = null
+            bodyChannel?.close()
+            bodyChannel = null
+        }
+    }
+
+    private fun checkBodyStreamNotClosed() {
+        check(!bodyStreamClosed) {
+            "The body of this mail is no longer available as it was not read during the call it was delivered in."
+        }
+    }
+
+    private inner class BodyStream(stream: InputStream) : FilterInputStream(stream) {
+        override fun read(): Int {
+            synchronized(this@DecryptedEnclaveMail) { checkBodyStreamNotClosed() }
+            return super.read()
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            synchronized(this@DecryptedEnclaveMail) { checkBodyStreamNotClosed() }
+            return super.read(b, off, len)
+        }
+
+        override fun skip(n: Long): Long {
+            synchronized(this@DecryptedEnclaveMail) { checkBodyStreamNotClosed() }
+            return super.skip(n)
+        }
+    }
+
+    private inner class BodyChannel(private val channel: SeekableByteChannel) : SeekableByteChannel by channel {
+        override fun read(dst: ByteBuffer): Int {
+            synchronized(this@DecryptedEnclaveMail) { checkBodyStreamNotClosed() }
+            return channel.read(dst)
+        }
+
+        override fun position(newPosition: Long): SeekableByteChannel {
+            channel.position(newPosition)
+            return this
+        }
+    }
+}
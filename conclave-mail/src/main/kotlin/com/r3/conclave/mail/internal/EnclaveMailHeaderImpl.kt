@@ -45,7 +45,16 @@ data class EnclaveMailHeaderImpl(
         }
     }
 
-    fun encodedSize(): Int = 8 + 2 + topic.length + envelope.encodedSize() + keyDerivation.encodedSize()
+    fun encodedSize(): Int = 8 + 2 + topic.modifiedUtf8Size() + envelope.encodedSize() + keyDerivation.encodedSize()
+
+    // The size of the string as written by DataOutputStream.writeUTF, as topics can have non-ASCII letters.
+    private fun String.modifiedUtf8Size(): Int = sumOf { char ->
+        when (char.code) {
+            in 0x0001..0x007F -> 1
+            in 0x0000..0x07FF -> 2
+            else -> 3
+        }.toInt()
+    }
 
     private fun ByteArray?.encodedSize() = if (this != null) 2 + size else 2
 
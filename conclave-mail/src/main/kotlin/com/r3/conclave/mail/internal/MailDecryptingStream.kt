@@ -12,6 +12,9 @@ import java.io.DataInputStream
 import java.io.EOFException
 import java.io.FilterInputStream
 import java.io.InputStream
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.nio.channels.SeekableByteChannel
 import java.security.PrivateKey
 import javax.crypto.AEADBadTagException
 
@@ -36,14 +39,37 @@ import javax.crypto.AEADBadTagException
  * header (if it has been read) and enables decryption of the stream.
  *
  * Marks are not supported by this stream.
+ *
+ * The body of a seekable mail (see [MailEncryptingStream]) can be read with random access using [openBodyChannel]. For
+ * this the same bytes which [input] reads from must also be given as a [ByteBuffer], positioned at the start of the
+ * mail, in [randomAccessInput].
  */
 class MailDecryptingStream(
     input: InputStream,
-    private var privateKey: PrivateKey? = null
+    private var privateKey: PrivateKey? = null,
+    randomAccessInput: ByteBuffer? = null
 ) : FilterInputStream(input) {
     constructor(bytes: ByteArray, privateKey: PrivateKey? = null) : this(bytes.inputStream(), privateKey)
 
+    /**
+     * Decrypts the mail in the remaining bytes of [bytes], which are read directly and not copied. The position of
+     * [bytes] is not changed. The body of a seekable mail can also be read with [openBodyChannel].
+     */
+    constructor(bytes: ByteBuffer, privateKey: PrivateKey? = null) : this(
+        ByteBufferInputStream(bytes.duplicate()),
+        privateKey,
+        randomAccessInput = bytes
+    )
+
+    // The whole of the encrypted mail, if available, for random access with openBodyChannel.
+    private val randomAccessInput = randomAccessInput?.duplicate()
+    // The encrypted mail being read, if it's in a buffer, for finding the size of the body up front.
+    private val bufferInput = input as? ByteBufferInputStream
+    private var bodyChannelOpened = false
+
     private var cipherState: CipherState? = null
+    // The associated data the packets are encrypted with, which is only used by session mail.
+    private var packetAd: ByteArray? = null
 
     // Remember the exception we threw so we can throw it again if the user keeps trying to use the stream.
     private var handshakeFailure: MailDecryptionException? = null
@@ -69,10 +95,12 @@ class MailDecryptingStream(
     // encrypted header is present
     internal var privateHeader: ByteArray? = null
     private var privateHeaderRead: Boolean = false
+    // The size of the body of a seekable mail, sent after the private header.
+    private var bodySize: Long = -1
 
     /**
      * Provide the private key needed to decrypt the stream. If the header has already been read this method will immediately
-     * authenticate it.
+     * authenticate it, unless the mail is part of a session in which case it's authenticated with the first packet.
      */
     fun setPrivateKey(privateKey: PrivateKey) {
         check(!privateKeyProvided) { "Private key has already been provided." }
@@ -97,7 +125,12 @@ class MailDecryptingStream(
         return `in`.readExactlyNBytes(length)
     }
 
-    private class Prologue(val protocol: MailProtocol, val header: EnclaveMailHeaderImpl, val raw: ByteArray)
+    private class Prologue(
+        val protocol: MailProtocol,
+        val header: EnclaveMailHeaderImpl,
+        val isSeekable: Boolean,
+        val raw: ByteArray
+    )
 
     private var _prologue: Prologue? = null
 
@@ -129,7 +162,17 @@ class MailDecryptingStream(
                 val envelope = prologueStream.readLengthPrefixBytes()
                 val keyDerivation = prologueStream.readLengthPrefixBytes()
                 val header = EnclaveMailHeaderImpl(sequenceNumber, topic, envelope, keyDerivation)
-                Prologue(protocol, header, prologueBytes)
+                var isSeekable = false
+                // Any remaining bytes are extensions. We ignore the ones we don't know about for forwards compatibility.
+                while (prologueStream.available() > 0) {
+                    val extensionId = prologueStream.readUnsignedByte()
+                    val extensionData = prologueStream.readLengthPrefixBytes()
+                    if (extensionId == SEEKABLE_PROLOGUE_EXTENSION) {
+                        if (extensionData != null) error("Invalid seekable extension")
+                        isSeekable = true
+                    }
+                }
+                Prologue(protocol, header, isSeekable, prologueBytes)
             } catch (e: EOFException) {
                 error("Truncated prologue", e)
             }
@@ -154,6 +197,7 @@ class MailDecryptingStream(
     private val currentDecryptedBuffer = ByteArray(MAX_PACKET_PLAINTEXT_LENGTH) // Current decrypted packet.
     private var currentUserBytesIndex = 0 // How far through the decrypted packet we got.
     private var currentUserBytesLength = 0 // Real length of user bytes in currentDecryptedBuffer.
+    private var packetsRead = 0L
 
     /** To get [mark] back, wrap this stream in a [java.io.BufferedInputStream]. */
     override fun markSupported(): Boolean {
@@ -196,6 +240,27 @@ class MailDecryptingStream(
         return if (index == off) -1 else index - off
     }
 
+    /**
+     * Reads decrypted bytes into [dst], advancing its position, until either it's full or the end of the mail is reached.
+     * The bytes are copied straight from the decrypted packets into [dst].
+     *
+     * @return The number of bytes read, or -1 if the end of the mail had already been reached.
+     */
+    fun read(dst: ByteBuffer): Int {
+        maybeReadPrivateHeader()
+        if (!dst.hasRemaining()) {
+            return 0
+        }
+        var read = 0
+        while (dst.hasRemaining() && ensureAvailablePacket()) {
+            val length = minOf(currentUserBytesLength - currentUserBytesIndex, dst.remaining())
+            dst.put(currentDecryptedBuffer, currentUserBytesIndex, length)
+            currentUserBytesIndex += length
+            read += length
+        }
+        return if (read == 0) -1 else read
+    }
+
     private fun ensureAvailablePacket(): Boolean {
         while (currentUserBytesIndex == currentUserBytesLength) {
             // We reached the end of the current in memory decrypted packet so read another from the stream.
@@ -207,6 +272,7 @@ class MailDecryptingStream(
     }
 
     private fun readNextPacket() {
+        check(!bodyChannelOpened) { "The body of the mail is being read with openBodyChannel." }
         val cipherState = maybeHandshake()
         val input = `in`
         // Read the length, which includes the MAC tag.
@@ -224,10 +290,11 @@ class MailDecryptingStream(
 
         // Now we can decrypt it.
         val plaintextLength = try {
-            cipherState.decryptWithAd(null, encryptedBuffer, 0, currentDecryptedBuffer, 0, packetLength)
+            cipherState.decryptWithAd(packetAd, encryptedBuffer, 0, currentDecryptedBuffer, 0, packetLength)
         } catch (e: Exception) {
             error(cause = e)
         }
+        packetsRead++
         // The plaintext has a user bytes length field.
         if (plaintextLength < 2) {
             error("Invalid plaintext length of $plaintextLength")
@@ -244,21 +311,53 @@ class MailDecryptingStream(
     }
 
     override fun skip(n: Long): Long {
-        var toSkip = n
-        var c = 0
-        while (toSkip > 0) {
-            if (read() == -1) return c.toLong()
-            toSkip--
-            c++
+        maybeReadPrivateHeader()
+        // Skip over whole chunks of the decrypted packets. Every packet still has to be decrypted to find out how many
+        // user bytes it has, use openBodyChannel to avoid this with seekable mail.
+        var skipped = 0L
+        while (skipped < n && ensureAvailablePacket()) {
+            val length = minOf((currentUserBytesLength - currentUserBytesIndex).toLong(), n - skipped).toInt()
+            currentUserBytesIndex += length
+            skipped += length
         }
-        return c.toLong()
+        return skipped
+    }
+
+    /**
+     * Returns a channel for reading the body of the mail with random access, or null if the mail isn't seekable or this
+     * stream wasn't given a random access input. Only the packets which are read from the channel are decrypted.
+     *
+     * Nothing must have been read from the body yet, and this stream can no longer be used to read it once the channel
+     * is opened. The channel reads directly from the random access input.
+     */
+    fun openBodyChannel(): SeekableByteChannel? {
+        val randomAccessInput = randomAccessInput ?: return null
+        val cipherState = maybeHandshake()
+        maybeReadPrivateHeader()
+        if (!prologue.isSeekable || bodySize < 0) return null
+        check(!bodyChannelOpened) { "The body channel has already been opened." }
+        val bodyStart = 4L + (privateHeader?.size ?: 0) + 8
+        // The packets before the current one are all full.
+        val userBytesRead = (packetsRead - 1) * MAX_PACKET_PAYLOAD_LENGTH + currentUserBytesIndex
+        check(userBytesRead == bodyStart) { "The body of the mail has already been read from." }
+        bodyChannelOpened = true
+        val packets = randomAccessInput.duplicate()
+        var packetsStart = 2 + prologue.raw.size + prologue.protocol.handshakeLength
+        if (prologue.protocol == MailProtocol.SESSION) {
+            packetsStart += 8  // The session counter
+        }
+        packets.position(packets.position() + packetsStart)
+        return SeekableMailBodyChannel(packets, cipherState, packetAd, bodyStart, bodySize)
     }
 
     private fun maybeHandshake(): CipherState {
         cipherState?.let { return it }
         handshakeFailure?.let { throw it }
         try {
-            // We ignore prologue extensions for forwards compatibility.
+            val prologue = prologue
+            if (prologue.protocol == MailProtocol.SESSION) {
+                return sessionHandshake(prologue)
+            }
             setupHandshake(prologue).use { handshake ->
                 _senderPublicKey = handshake.remotePublicKey.publicKey
                 // Setup done, so retrieve the per-message key.
@@ -309,6 +408,10 @@ class MailDecryptingStream(
                 0 -> null
                 else -> readExactlyNBytes(headerSize)
             }
+            if (prologue.isSeekable) {
+                bodySize = readLong()
+                if (bodySize < 0) error("Invalid body size")
+            }
         } catch (e: EOFException) {
             privateHeaderRead = false
             error("Premature end of stream while reading encrypted header")
@@ -318,6 +421,31 @@ class MailDecryptingStream(
         }
     }
 
+    /**
+     * The handshake of a session mail is shared with the other mail in the session, and so the session is looked up in
+     * [MailSessionCache] rather than always doing the handshake. See [MailSession].
+     */
+    private fun sessionHandshake(prologue: Prologue): CipherState {
+        val privateKey = checkNotNull(this.privateKey) { "Private key has not been provided to decrypt the stream." }
+        val handshakeLength = prologue.protocol.handshakeLength
+        val handshakeBuf = try {
+            `in`.readExactlyNBytes(handshakeLength + 8)
+        } catch (e: EOFException) {
+            error("Premature end of stream during handshake")
+        }
+        val counter = ByteBuffer.wrap(handshakeBuf, handshakeLength, 8).long
+        if (counter < 0) error("Invalid session counter $counter")
+        val session = MailSessionCache.INSTANCE.getOrAccept(handshakeBuf.copyOf(handshakeLength), privateKey)
+        _senderPublicKey = session.senderPublicKey.clone()
+        val cipherState = session.cipherStateFor(counter)
+        this.cipherState = cipherState
+        // The session handshake doesn't cover the prologue, which is instead authenticated by the packets. This means
+        // the header of a session mail is only authenticated once the first packet has been read, which decryptMail
+        // always does as it reads the private header.
+        packetAd = prologue.raw
+        return cipherState
+    }
+
     private fun setupHandshake(prologue: Prologue): HandshakeState {
         val privateKey = checkNotNull(this.privateKey) { "Private key has not been provided to decrypt the stream." }
         val handshake = HandshakeState(prologue.protocol.noiseProtocolName, HandshakeState.RESPONDER)
@@ -347,27 +475,104 @@ class MailDecryptingStream(
         return handshake
     }
 
-    fun decryptKdsMail(kdsPrivateyKey: PrivateKey): DecryptedEnclaveMail = decryptMail(kdsPrivateyKey, isKdsKey = true)
+    /**
+     * Decrypt the mail using the given KDS private key. See [decryptMail] for the meaning of [streamBody].
+     */
+    fun decryptKdsMail(kdsPrivateyKey: PrivateKey, streamBody: Boolean = false): DecryptedEnclaveMail {
+        return decryptMail(kdsPrivateyKey, isKdsKey = true, streamBody)
+    }
 
-    fun decryptMail(privateKey: PrivateKey): DecryptedEnclaveMail = decryptMail(privateKey, isKdsKey = false)
+    /**
+     * Decrypt the mail using the given private key.
+     *
+     * @param streamBody If false then the entire body is decrypted straight away. If true then only the handshake and
+     * private header are, and the body is decrypted from this stream as it's read via
+     * [DecryptedEnclaveMail.bodyAsStream]. This stream must then remain readable until the body is no longer needed.
+     */
+    fun decryptMail(privateKey: PrivateKey, streamBody: Boolean = false): DecryptedEnclaveMail {
+        return decryptMail(privateKey, isKdsKey = false, streamBody)
+    }
 
-    private fun decryptMail(privateKey: PrivateKey, isKdsKey: Boolean): DecryptedEnclaveMail {
-        // TODO: Optimise out copies here.
-        //
-        // We end up copying the mail every time it's read, the copy being defensive and thus useful only to protect
-        // against malicious or buggy code inside the enclave. But as enclaves cannot load sandboxed code today,
-        // it ends up being useless. We do it here ONLY to avoid it accidentally being overlooked later, when
+    /**
+     * Decrypt the mail using the given private key, with the body decrypted straight into the remaining space of [body].
+     * The position of [body] is advanced past the decrypted bytes, and the body of the returned mail is a read-only view
+     * of them rather than a copy.
+     *
+     * @throws BufferOverflowException If [body] doesn't have enough space for the body. Nothing is written to it in
+     * this case.
+     */
+    fun decryptMail(privateKey: PrivateKey, body: ByteBuffer): DecryptedEnclaveMail {
+        setPrivateKey(privateKey)
+        maybeReadPrivateHeader()
+        val bodyStart = body.position()
+        // A seekable mail gives the exact size of its body. Otherwise the packets left bound it, but they may also hold
+        // padding, in which case the body is only known to fit once it's been decrypted.
+        val maxBodySize = if (bodySize >= 0) bodySize else maxRemainingUserBytes()
+        if (maxBodySize <= body.remaining()) {
+            while (body.hasRemaining() && read(body) != -1) {
+                // Keep reading until the body buffer is full or the terminator is reached.
+            }
+            check(read() == -1) { "The body is larger than its packets allow." }
+        } else {
+            if (bodySize >= 0) throw BufferOverflowException()
+            val bytes = readBytes()
+            if (bytes.size > body.remaining()) throw BufferOverflowException()
+            body.put(bytes)
+        }
+        val bodyBuffer = body.duplicate()
+        bodyBuffer.limit(body.position())
+        bodyBuffer.position(bodyStart)
+        return DecryptedEnclaveMail(
+            header.sequenceNumber,
+            header.topic,
+            Curve25519PublicKey(senderPublicKey),
+            header.envelope,
+            privateHeader,
+            null,
+            null,
+            bodyBuffer = bodyBuffer.slice().asReadOnlyBuffer()
+        )
+    }
+
+    /**
+     * Returns the most user bytes that are left to read, found from the lengths of the packets which haven't been
+     * decrypted yet, or [Long.MAX_VALUE] if the mail isn't being read from a buffer.
+     */
+    private fun maxRemainingUserBytes(): Long {
+        val bufferInput = bufferInput ?: return Long.MAX_VALUE
+        val macLength = maybeHandshake().macLength
+        val packets = bufferInput.buffer.duplicate()
+        var userBytes = if (currentUserBytesIndex == -1) 0L else (currentUserBytesLength - currentUserBytesIndex).toLong()
+        while (packets.remaining() >= 2) {
+            val packetLength = packets.short.toInt() and 0xFFFF
+            // The payload is what's left once the MAC tag and the user bytes length are removed. The terminator has none.
+            val payloadLength = packetLength - macLength - 2
+            if (payloadLength <= 0 || packetLength > packets.remaining()) break
+            userBytes += payloadLength
+            packets.position(packets.position() + packetLength)
+        }
+        return userBytes
+    }
+
+    private fun decryptMail(privateKey: PrivateKey, isKdsKey: Boolean, streamBody: Boolean): DecryptedEnclaveMail {
+        // The body is copied every time it's read with bodyAsBytes, the copy being defensive and thus useful only to
+        // protect against malicious or buggy code inside the enclave. But as enclaves cannot load sandboxed code
+        // today, it ends up being useless. We do it ONLY to avoid it accidentally being overlooked later, when
         // we do indeed plan to introduce code sandboxing. Then it'd be unintuitive if you could pass an EnclaveMail
         // object into malicious code and the body or envelope comes back changed.
         //
-        // What we should actually do is expose the MailDecryptingStream to the user (as an InputStream). Then they
-        // can either pull from it directly e.g. via a serialisation lib, or copy to a byte array if they want to.
-        // This would also let us avoid the memcopy into the enclave and consumption of EPC because the mail is
-        // encrypted and authenticated in 64kb Noise packet blocks, so it's safe to hold it in unprotected memory
-        // and store just the current decrypted block in EPC, which MailDecryptingStream already does. This would
-        // also make it feasible to access huge mails without the 2GB size limit JVM arrays pose.
+        // Streaming the body avoids both the copy and having the entire plaintext in memory at once. The mail is
+        // encrypted and authenticated in 64kb Noise packet blocks, so only the current decrypted block is held, which
+        // also makes it feasible to access huge mails without the 2GB size limit JVM arrays pose.
         setPrivateKey(privateKey)
-        val mailBody = readBytes()
+        val mailBody = if (streamBody) {
+            // Complete the handshake and read the private header now so that only the body is left in the stream.
+            maybeHandshake()
+            maybeReadPrivateHeader()
+            null
+        } else {
+            readBytes()
+        }
         return DecryptedEnclaveMail(
             header.sequenceNumber,
             header.topic,
@@ -375,7 +580,8 @@ class MailDecryptingStream(
             header.envelope,
             privateHeader,
             mailBody,
-            privateKey.takeIf { isKdsKey }
+            privateKey.takeIf { isKdsKey },
+            bodyStream = if (streamBody) this else null
         )
     }
 
@@ -6,8 +6,13 @@ import com.r3.conclave.mail.internal.noise.protocol.Noise
 import com.r3.conclave.utilities.internal.writeData
 import java.io.FilterOutputStream
 import java.io.OutputStream
+import java.nio.ByteBuffer
 import java.security.PrivateKey
 import java.security.PublicKey
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 
 /**
  * A stream filter that encrypts the input data. Closing this stream writes a termination footer which protects the
@@ -27,6 +32,21 @@ import java.security.PublicKey
  * each time and when writing tests you should treat the output as if it were a stream of random numbers i.e. don't
  * compare the output against a recorded output.
  *
+ * If the size of the body is known up front then the mail can be made seekable by providing it as [bodySize]. Every
+ * packet apart from the last few is always full, and so the packet holding any byte of the body can be calculated,
+ * letting the recipient decrypt just the packets it needs (see [SeekableMailBodyChannel]). The body size is encrypted
+ * after the private header, and a marker extension in the prologue tells the recipient to expect it. Only recipients
+ * which understand this extension can read seekable mail.
+ *
+ * If a [MailSession] is provided then its handshake is used instead of doing a new one, which avoids the cost of the
+ * Diffie-Hellman operations. The session's sender and destination keys must be the same as the ones given here.
+ *
+ * If an [Executor] is provided then packets are encrypted concurrently on it, and written out in order as they
+ * complete. Each packet is still encrypted with its index as the nonce, so the output is the same as if they had been
+ * encrypted one after the other.
+ *
+ * Either way the underlying stream is only flushed by [flush] and [close] rather than after every packet.
+ *
  * This class is not thread safe and requires external synchronization.
  *
  * @param out                  The [OutputStream] to use.
@@ -35,6 +55,10 @@ import java.security.PublicKey
  * @param senderPrivateKey     Your private key. The recipient will receive your public key and be sure
  *                             you encrypted the message.
  * @param minSize              Pad the end of the stream to make sure the number of encrypted bytes is at least this amount.
+ * @param bodySize             If not null, the exact number of bytes that will be written, which makes the mail
+ *                             seekable.
+ * @param session              If not null, the session whose handshake to use.
+ * @param executor             If not null, the executor to encrypt packets concurrently on.
  */
 class MailEncryptingStream(
     out: OutputStream,
@@ -42,17 +66,31 @@ class MailEncryptingStream(
     private val header: EnclaveMailHeaderImpl,
     private val privateHeader: ByteArray?,
     private val senderPrivateKey: PrivateKey,
-    private val minSize: Int
+    private val minSize: Int,
+    private val bodySize: Long? = null,
+    session: MailSession? = null,
+    executor: Executor? = null
 ) : FilterOutputStream(out) {
 
     private val cipherState: CipherState
-    private val buffer = ByteArray(Noise.MAX_PACKET_LEN)
+    private var buffer = ByteArray(Noise.MAX_PACKET_LEN)
     private var bufferPosition = 0
     private var payloadBytesWritten = 0
+    private var userBytesWritten = 0L
+    private val bodyStart: Long
+    // The associated data the packets are encrypted with, which is only used in session mode.
+    private var packetAd: ByteArray? = null
+    private val pipeline: Pipeline?
 
     init {
-        cipherState = handshake()
+        require(bodySize == null || bodySize >= 0) { "Body size cannot be negative." }
+        cipherState = if (session != null) sessionHandshake(session) else handshake()
+        pipeline = executor?.let { Pipeline(it) }
         writePrivateHeader()
+        if (bodySize != null) {
+            writeLong(bodySize)
+        }
+        bodyStart = userBytesWritten
     }
 
     // Emit the necessary headers to set up the Diffie-Hellman "handshake".
@@ -115,6 +153,19 @@ class MailEncryptingStream(
         }
     }
 
+    // Re-use the handshake of the session and derive a new key for this mail from it. The prologue isn't part of the
+    // session handshake and so is authenticated by encrypting the packets with it as the associated data instead.
+    private fun sessionHandshake(session: MailSession): CipherState {
+        val prologue = computePrologue(MailProtocol.SESSION)
+        out.writeShort(prologue.size)
+        out.write(prologue)
+        out.write(session.handshake)
+        val counter = session.nextCounter()
+        out.writeLong(counter)
+        packetAd = prologue
+        return session.cipherStateFor(counter)
+    }
+
     /**
      * Send the encrypted header.
      * First write the size of the buffer, then the bytes of the buffer itself.
@@ -132,17 +183,24 @@ class MailEncryptingStream(
 
     /**
      * The prologue format is the protocol ID followed by the fields in the user header. It's written out prefixed by its
-     * size which allows new fields to be added to the end.
+     * size which allows new fields to be added to the end. These are extensions, each one being an ID byte followed by
+     * the length prefixed extension data.
      */
     private fun computePrologue(protocol: MailProtocol): ByteArray {
         return writeData {
             writeByte(protocol.ordinal)
             header.encodeTo(this)
+            if (bodySize != null) {
+                // The extension is just a marker. The body size itself is encrypted to avoid leaking it.
+                writeByte(SEEKABLE_PROLOGUE_EXTENSION)
+                writeShort(0)
+            }
         }
     }
 
     override fun write(b: Int) {
         buffer[bufferPosition++] = b.toByte()
+        userBytesWritten++
         writePacketIfBufferFull()
     }
 
@@ -170,11 +228,26 @@ class MailEncryptingStream(
             val length = remainingLength.coerceAtMost(MAX_PACKET_PAYLOAD_LENGTH - bufferPosition)
             System.arraycopy(b, currentOffset, buffer, bufferPosition, length)
             bufferPosition += length
+            userBytesWritten += length
             writePacketIfBufferFull()
             currentOffset += length
         }
     }
 
+    /**
+     * Encrypts the remaining bytes of [src], advancing its position to its limit. This is the same as [write] with a
+     * byte array, but the bytes are copied straight from [src] into the packet being encrypted.
+     */
+    fun write(src: ByteBuffer) {
+        while (src.hasRemaining()) {
+            val length = src.remaining().coerceAtMost(MAX_PACKET_PAYLOAD_LENGTH - bufferPosition)
+            src.get(buffer, bufferPosition, length)
+            bufferPosition += length
+            userBytesWritten += length
+            writePacketIfBufferFull()
+        }
+    }
+
     private fun writePacketIfBufferFull() {
         if (bufferPosition == MAX_PACKET_PAYLOAD_LENGTH) {
             writePacket()
@@ -182,6 +255,10 @@ class MailEncryptingStream(
     }
 
     override fun close() {
+        if (bodySize != null) {
+            val written = userBytesWritten - bodyStart
+            check(written == bodySize) { "Body size was given as $bodySize bytes but $written were written." }
+        }
         // First write out any remaining user bytes.
         if (bufferPosition > 0) {
             writePacket()
@@ -195,10 +272,16 @@ class MailEncryptingStream(
         // Finally write the terminator packet: an encryption of an empty payload. This lets the other side know we
         // intended to end the stream and there's no MITM maliciously truncating our packets.
         writePacket()
-        // And propagate the close.
+        pipeline?.finish()
+        // And propagate the close, which also flushes the underlying stream.
         super.close()
     }
 
+    override fun flush() {
+        pipeline?.drain()
+        super.flush()
+    }
+
     /**
      * Write out an encrypted packet of the current state of the buffer, with added padding where necessary. The length
      * of the user bytes is appended to the end of the padding and is encrypted as well. The packet is prefixed by the
@@ -213,12 +296,77 @@ class MailEncryptingStream(
         // Append the user bytes length to the end of the payload so that it's encrypted with it.
         buffer.writeShort(offset = payloadLength, value = bufferPosition)
         val plaintextLength = payloadLength + 2
-        val encryptedLength = cipherState.encryptWithAd(null, buffer, 0, buffer, 0, plaintextLength)
-        check(encryptedLength == plaintextLength + cipherState.macLength)
-        out.writeShort(encryptedLength)
-        out.write(buffer, 0, encryptedLength)
-        out.flush()
+        if (pipeline != null) {
+            // The buffer is handed over to the pipeline, which gives back a free one to carry on with.
+            buffer = pipeline.submit(buffer, plaintextLength)
+        } else {
+            val encryptedLength = cipherState.encryptWithAd(packetAd, buffer, 0, buffer, 0, plaintextLength)
+            check(encryptedLength == plaintextLength + cipherState.macLength)
+            out.writeShort(encryptedLength)
+            out.write(buffer, 0, encryptedLength)
+        }
         payloadBytesWritten += payloadLength
         bufferPosition = 0  // Reset the buffer for the next packet.
     }
+
+    private class InFlightPacket(val buffer: ByteArray, val cipher: CipherState, val encryptedLength: Future<Int>)
+
+    /**
+     * Encrypts packets concurrently on [executor]. Each packet is encrypted in its own buffer with its own copy of the
+     * cipher, using the packet's index as the nonce. At most [MAX_IN_FLIGHT_PACKETS] are encrypted at once, after which
+     * the oldest one is waited for and written out. The buffers and ciphers of written packets are reused.
+     */
+    private inner class Pipeline(private val executor: Executor) {
+        private val inFlight = ArrayDeque<InFlightPacket>()
+        private val freeBuffers = ArrayList<ByteArray>()
+        private val freeCiphers = ArrayList<CipherState>()
+        private var nextNonce = 0L
+
+        fun submit(plaintext: ByteArray, plaintextLength: Int): ByteArray {
+            if (inFlight.size == MAX_IN_FLIGHT_PACKETS) {
+                writeOldest()
+            }
+            val cipher = freeCiphers.removeLastOrNull() ?: cipherState.duplicate()
+            cipher.setNonce(nextNonce++)
+            val packetAd = packetAd
+            val task = FutureTask {
+                cipher.encryptWithAd(packetAd, plaintext, 0, plaintext, 0, plaintextLength).also {
+                    check(it == plaintextLength + cipher.macLength)
+                }
+            }
+            executor.execute(task)
+            inFlight.addLast(InFlightPacket(plaintext, cipher, task))
+            return freeBuffers.removeLastOrNull() ?: ByteArray(Noise.MAX_PACKET_LEN)
+        }
+
+        fun drain() {
+            while (inFlight.isNotEmpty()) {
+                writeOldest()
+            }
+        }
+
+        /** Write out the remaining packets and destroy the copies of the cipher, as no more packets will follow. */
+        fun finish() {
+            drain()
+            freeCiphers.forEach { it.destroy() }
+            freeCiphers.clear()
+        }
+
+        private fun writeOldest() {
+            val packet = inFlight.removeFirst()
+            val encryptedLength = try {
+                packet.encryptedLength.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+            out.writeShort(encryptedLength)
+            out.write(packet.buffer, 0, encryptedLength)
+            freeBuffers += packet.buffer
+            freeCiphers += packet.cipher
+        }
+    }
+
+    private companion object {
+        private val MAX_IN_FLIGHT_PACKETS = 2 * Runtime.getRuntime().availableProcessors()
+    }
 }
@@ -39,4 +39,11 @@ enum class MailProtocol(
      * We add additional byte to the handshake length for compatibility with browsers.
      */
     SENDER_KEY_TRANSMITTED_V2("Noise_X_25519_AESGCM_SHA256", 96 + 1),
+
+    /**
+     * Identical to SENDER_KEY_TRANSMITTED_V2 except the handshake is shared by all the mail in a session (see
+     * [MailSession]). The handshake is followed by the 8 byte counter of the mail within the session, and the packets are
+     * encrypted with the prologue as the associated data.
+     */
+    SESSION("Noise_X_25519_AESGCM_SHA256", 96 + 1),
 }
@@ -0,0 +1,106 @@
+package com.r3.conclave.mail.internal
+
+import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.mail.internal.noise.protocol.CipherState
+import com.r3.conclave.mail.internal.noise.protocol.HandshakeState
+import java.security.PrivateKey
+import java.security.PublicKey
+import javax.crypto.AEADBadTagException
+
+/**
+ * A Noise handshake which is shared by all the mail a post office creates in session mode (see
+ * [MailProtocol.SESSION]), so that the Diffie-Hellman operations are done once per session rather than once per mail.
+ *
+ * The handshake is independent of the mail it's used with, and the resulting key isn't used for encryption directly.
+ * Instead it derives a new key for each mail from a counter which is sent in the mail. The sender never uses the same
+ * counter twice as sessions only exist in memory. The packets of each mail are then encrypted with the mail's prologue
+ * as the associated data, which authenticates the mail's header in place of the handshake.
+ *
+ * @property handshake The Noise handshake message, which is sent in every mail of the session.
+ * @property senderPublicKey The authenticated public key of the sender.
+ */
+class MailSession private constructor(
+    val handshake: ByteArray,
+    val senderPublicKey: ByteArray,
+    private val keyDerivation: CipherState
+) {
+    companion object {
+        // The handshake isn't bound to any particular mail and so has a fixed prologue.
+        private val sessionPrologue = byteArrayOf(MailProtocol.SESSION.ordinal.toByte())
+        private val zeroKey = ByteArray(32)
+
+        /**
+         * Start a new session with the given recipient, by doing the initiator's side of the handshake.
+         */
+        fun create(destinationPublicKey: PublicKey, senderPrivateKey: PrivateKey): MailSession {
+            val protocol = MailProtocol.SESSION
+            return HandshakeState(protocol.noiseProtocolName, HandshakeState.INITIATOR).use { handshake ->
+                handshake.remotePublicKey.setPublicKey(destinationPublicKey.encoded, 0)
+                val localKeyPair = handshake.localKeyPair
+                localKeyPair.setPrivateKey(senderPrivateKey.encoded, 0)
+                handshake.setPrologue(sessionPrologue, 0, sessionPrologue.size)
+                handshake.start()
+                check(handshake.action == HandshakeState.WRITE_MESSAGE)
+                // The same single zero byte payload as SENDER_KEY_TRANSMITTED_V2, for the same reason.
+                val handshakeBytes = ByteArray(protocol.handshakeLength)
+                val handshakeLen = handshake.writeMessage(handshakeBytes, 0, byteArrayOf(0), 0, 1)
+                check(handshakeLen == handshakeBytes.size)
+                check(handshake.action == HandshakeState.SPLIT)
+                val split = handshake.split()
+                split.senderOnly()
+                MailSession(handshakeBytes, localKeyPair.publicKey, split.sender)
+            }
+        }
+
+        /**
+         * Complete the recipient's side of the session [handshake] read from a mail.
+         */
+        fun accept(handshake: ByteArray, privateKey: PrivateKey): MailSession {
+            val protocol = MailProtocol.SESSION
+            return HandshakeState(protocol.noiseProtocolName, HandshakeState.RESPONDER).use { handshakeState ->
+                handshakeState.localKeyPair.setPrivateKey(privateKey.encoded, 0)
+                handshakeState.setPrologue(sessionPrologue, 0, sessionPrologue.size)
+                handshakeState.start()
+                check(handshakeState.action == HandshakeState.READ_MESSAGE)
+                try {
+                    handshakeState.readMessage(handshake, 0, handshake.size, ByteArray(1), 0)
+                } catch (e: AEADBadTagException) {
+                    throw MailDecryptionException(
+                        "The mail could not be decrypted due to either data corruption or key mismatch",
+                        e
+                    )
+                }
+                check(handshakeState.action == HandshakeState.SPLIT)
+                val senderPublicKey = handshakeState.remotePublicKey.publicKey
+                val split = handshakeState.split()
+                split.receiverOnly()
+                MailSession(handshake.clone(), senderPublicKey, split.receiver)
+            }
+        }
+    }
+
+    private var nextCounter = 0L
+
+    /** Returns the counter for the next mail the sender creates in this session. */
+    @Synchronized
+    fun nextCounter(): Long {
+        check(nextCounter >= 0) { "Session has run out of counters." }
+        return nextCounter++
+    }
+
+    /**
+     * Returns a new cipher for the packets of the mail with the given [counter]. Its key is an encryption of zeros by the
+     * session cipher with the counter as the nonce, which is unique for each counter.
+     */
+    @Synchronized
+    fun cipherStateFor(counter: Long): CipherState {
+        val key = ByteArray(zeroKey.size + keyDerivation.macLength)
+        keyDerivation.setNonce(counter)
+        keyDerivation.encryptWithAd(null, zeroKey, 0, key, 0, zeroKey.size)
+        return try {
+            keyDerivation.fork(key, 0)
+        } finally {
+            key.fill(0)
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.r3.conclave.mail.internal
+
+import java.security.PrivateKey
+
+/**
+ * A bounded cache of the [MailSession]s accepted by a recipient, so that the session handshake is only done for the
+ * first mail of each session it receives. A session is only ever looked up with the same handshake bytes and private
+ * key it was accepted with. If it has been evicted, or the recipient has restarted, the handshake is simply done again
+ * as every mail carries it. Once the cache is full the least recently used session is evicted.
+ */
+class MailSessionCache(private val maxSize: Int) {
+    companion object {
+        /** The cache used when decrypting mail. Its size can be set with a system property, zero disables it. */
+        val INSTANCE = MailSessionCache(Integer.getInteger("conclave.mail.sessionCacheSize", 256))
+    }
+
+    private class Key(val privateKey: PrivateKey, val handshake: ByteArray) {
+        override fun equals(other: Any?): Boolean {
+            if (this === other) return true
+            if (other !is Key) return false
+            return this.privateKey == other.privateKey && this.handshake.contentEquals(other.handshake)
+        }
+
+        override fun hashCode(): Int = 31 * privateKey.hashCode() + handshake.contentHashCode()
+    }
+
+    /** Guarded by itself. */
+    private val sessions = object : LinkedHashMap<Key, MailSession>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Key, MailSession>): Boolean = size > maxSize
+    }
+
+    /**
+     * Return the session for the given [handshake] and recipient [privateKey], accepting it if it's not already cached.
+     */
+    fun getOrAccept(handshake: ByteArray, privateKey: PrivateKey): MailSession {
+        if (maxSize == 0) return MailSession.accept(handshake, privateKey)
+
+        val key = Key(privateKey, handshake)
+        synchronized(sessions) {
+            sessions[key]?.let { return it }
+        }
+        // An invalid handshake throws and so is never cached.
+        val session = MailSession.accept(handshake, privateKey)
+        synchronized(sessions) {
+            sessions[key] = session
+        }
+        return session
+    }
+}
@@ -11,6 +11,12 @@ const val MAX_PACKET_PLAINTEXT_LENGTH = Noise.MAX_PACKET_LEN - 16
 // bytes, even though that is encrypted with the payload.
 const val MAX_PACKET_PAYLOAD_LENGTH = MAX_PACKET_PLAINTEXT_LENGTH - 2
 
+// The number of bytes a full packet takes up in the stream, including its length prefix.
+const val FULL_PACKET_SIZE = 2 + Noise.MAX_PACKET_LEN
+
+// ID of the prologue extension which marks the mail as seekable (see MailEncryptingStream).
+const val SEEKABLE_PROLOGUE_EXTENSION = 1
+
 // Utils for encoding a 16 bit unsigned value in big endian.
 fun ByteArray.writeShort(offset: Int, value: Int) {
     this[offset] = (value shr 8).toByte()
@@ -43,6 +49,17 @@ fun InputStream.readInt(): Int {
     return (b1 shl 24) or (b2 shl 16) or (b3 shl 8) or b4
 }
 
+fun OutputStream.writeLong(value: Long) {
+    writeInt((value ushr 32).toInt())
+    writeInt(value.toInt())
+}
+
+fun InputStream.readLong(): Long {
+    val high = readInt().toLong()
+    val low = readInt().toLong() and 0xFFFFFFFFL
+    return (high shl 32) or low
+}
+
 fun privateCurve25519KeyToPublic(privateKey: PrivateKey): Curve25519PublicKey {
     val dh: DHState = Noise.createDH("25519")
     dh.setPrivateKey(privateKey.encoded, 0)
@@ -0,0 +1,150 @@
+package com.r3.conclave.mail.internal
+
+import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.mail.internal.noise.protocol.CipherState
+import com.r3.conclave.mail.internal.noise.protocol.Noise
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.NonWritableChannelException
+import java.nio.channels.SeekableByteChannel
+
+/**
+ * Read-only random access to the body of a seekable mail (see [MailEncryptingStream]).
+ *
+ * Every packet of a seekable mail before the last one holding user bytes is full, so the packet holding any byte of the
+ * body, and where that packet is in the stream, can be calculated directly. Only the packets which are actually read are
+ * decrypted, and seeking is O(1). Each packet is decrypted with its index as the nonce, and so a packet which has been
+ * moved, or a mail which doesn't keep to the seekable layout, will fail to authenticate.
+ *
+ * @param packets The encrypted mail, positioned at its first packet.
+ * @param cipherState The receiver's cipher state from the handshake. It's owned by this channel from now on.
+ * @param packetAd The associated data the packets were encrypted with, if any.
+ * @param bodyStart The offset of the first byte of the body in the user bytes, i.e. after the private header and body
+ * size.
+ * @param bodySize The size of the body as given by the sender.
+ */
+class SeekableMailBodyChannel(
+    packets: ByteBuffer,
+    private val cipherState: CipherState,
+    private val packetAd: ByteArray?,
+    private val bodyStart: Long,
+    private val bodySize: Long
+) : SeekableByteChannel {
+    private val packets = packets.slice()
+    private val encryptedBuffer = ByteArray(Noise.MAX_PACKET_LEN)
+    private val decryptedBuffer = ByteArray(MAX_PACKET_PLAINTEXT_LENGTH)
+    private var decryptedPacketIndex = -1L
+    private var position = 0L
+    private var open = true
+
+    @Synchronized
+    override fun read(dst: ByteBuffer): Int {
+        checkOpen()
+        if (position >= bodySize) return -1
+        var read = 0
+        while (dst.hasRemaining() && position < bodySize) {
+            val userOffset = bodyStart + position
+            ensurePacketDecrypted(userOffset / MAX_PACKET_PAYLOAD_LENGTH)
+            val packetOffset = (userOffset % MAX_PACKET_PAYLOAD_LENGTH).toInt()
+            val length = minOf(
+                (MAX_PACKET_PAYLOAD_LENGTH - packetOffset).toLong(),
+                bodySize - position,
+                dst.remaining().toLong()
+            ).toInt()
+            dst.put(decryptedBuffer, packetOffset, length)
+            position += length
+            read += length
+        }
+        return read
+    }
+
+    private fun ensurePacketDecrypted(index: Long) {
+        if (decryptedPacketIndex == index) return
+        // Forget the previous packet first in case this one fails to decrypt.
+        decryptedPacketIndex = -1
+        val offset = index * FULL_PACKET_SIZE
+        if (offset > packets.limit() - 2) {
+            error("Stream ended before the end of the body. Truncation can imply a MITM attack")
+        }
+        val packetLength = packets.getShort(offset.toInt()).toInt() and 0xFFFF
+        if (packetLength < cipherState.macLength) {
+            error("Packet length $packetLength is less than MAC length ${cipherState.macLength}")
+        }
+        // Copy the packet out before decrypting it so that it can't be changed in the meantime.
+        try {
+            val packet = packets.duplicate()
+            packet.position(offset.toInt() + 2)
+            packet.get(encryptedBuffer, 0, packetLength)
+        } catch (e: BufferUnderflowException) {
+            error("Stream ended before the end of the body. Truncation can imply a MITM attack")
+        }
+
+        // The nonce is just the packet index. Decrypting out of order with it is safe, it's only re-using a nonce for
+        // encryption which isn't.
+        cipherState.setNonce(index)
+        val plaintextLength = try {
+            cipherState.decryptWithAd(packetAd, encryptedBuffer, 0, decryptedBuffer, 0, packetLength)
+        } catch (e: Exception) {
+            error(cause = e)
+        }
+        // Every packet up to the end of the body must be full, apart from the last one.
+        val lastBodyPacket = (bodyStart + bodySize - 1) / MAX_PACKET_PAYLOAD_LENGTH
+        val expectedUserBytesLength = if (index < lastBodyPacket) {
+            MAX_PACKET_PAYLOAD_LENGTH
+        } else {
+            ((bodyStart + bodySize - 1) % MAX_PACKET_PAYLOAD_LENGTH).toInt() + 1
+        }
+        if (plaintextLength < expectedUserBytesLength + 2 ||
+            decryptedBuffer.readShort(offset = plaintextLength - 2) != expectedUserBytesLength) {
+            error("Packet $index does not have the layout of a seekable mail")
+        }
+        decryptedPacketIndex = index
+    }
+
+    @Synchronized
+    override fun position(): Long {
+        checkOpen()
+        return position
+    }
+
+    @Synchronized
+    override fun position(newPosition: Long): SeekableByteChannel {
+        require(newPosition >= 0) { "Position cannot be negative." }
+        checkOpen()
+        position = newPosition
+        return this
+    }
+
+    @Synchronized
+    override fun size(): Long {
+        checkOpen()
+        return bodySize
+    }
+
+    override fun write(src: ByteBuffer): Int = throw NonWritableChannelException()
+
+    override fun truncate(size: Long): SeekableByteChannel = throw NonWritableChannelException()
+
+    @Synchronized
+    override fun isOpen(): Boolean = open
+
+    @Synchronized
+    override fun close() {
+        if (open) {
+            open = false
+            decryptedBuffer.fill(0)
+            cipherState.destroy()
+        }
+    }
+
+    private fun checkOpen() {
+        if (!open) throw ClosedChannelException()
+    }
+
+    private fun error(customMessage: String? = null, cause: Exception? = null): Nothing {
+        var message = if (customMessage != null) "$customMessage. " else ""
+        message += "Corrupt stream or not Conclave Mail."
+        throw MailDecryptionException(message, cause)
+    }
+}
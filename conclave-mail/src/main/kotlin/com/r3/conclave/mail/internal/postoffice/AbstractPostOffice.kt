@@ -2,10 +2,10 @@ package com.r3.conclave.mail.internal.postoffice
 
 import com.r3.conclave.mail.MinSizePolicy
 import com.r3.conclave.mail.internal.*
-import com.r3.conclave.mail.internal.noise.protocol.Noise
-import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
 import java.security.PrivateKey
 import java.security.PublicKey
+import java.util.concurrent.Executor
 
 abstract class AbstractPostOffice {
     abstract val destinationPublicKey: PublicKey
@@ -26,31 +26,103 @@ abstract class AbstractPostOffice {
             _minSizePolicy = value
         }
 
+    open var isSeekable: Boolean = false
+
+    open var isSessionEnabled: Boolean = false
+
+    open var encryptionExecutor: Executor? = null
+
+    // Created on first use when in session mode, and then used for the life of the post office.
+    private var session: MailSession? = null
+
     protected abstract fun getAndIncrementSequenceNumber(): Long
 
     protected fun encryptMail(body: ByteArray, envelope: ByteArray?, privateHeader: ByteArray?): ByteArray {
+        val minSize = minSizePolicy.getMinSize(body.size)
+        // The size of the mail is known exactly up front and so it's encrypted straight into the returned array.
+        val output = ByteArray(getEncryptedSize(body.size, envelope, privateHeader, minSize))
+        encryptMail(ByteBuffer.wrap(body), envelope, privateHeader, minSize, ByteBuffer.wrap(output), output.size)
+        return output
+    }
+
+    /**
+     * Encrypt the remaining bytes of [body] into [destination], advancing the positions of both, and return the size
+     * of the encrypted mail. If [destination] doesn't have enough space then nothing is written and the sequence number
+     * isn't used up.
+     */
+    protected fun encryptMail(
+        body: ByteBuffer,
+        envelope: ByteArray?,
+        privateHeader: ByteArray?,
+        destination: ByteBuffer
+    ): Int {
+        val minSize = minSizePolicy.getMinSize(body.remaining())
+        val encryptedSize = getEncryptedSize(body.remaining(), envelope, privateHeader, minSize)
+        require(destination.remaining() >= encryptedSize) {
+            "The destination buffer has ${destination.remaining()} bytes remaining but the mail needs $encryptedSize."
+        }
+        encryptMail(body, envelope, privateHeader, minSize, destination, encryptedSize)
+        return encryptedSize
+    }
+
+    private fun encryptMail(
+        body: ByteBuffer,
+        envelope: ByteArray?,
+        privateHeader: ByteArray?,
+        minSize: Int,
+        destination: ByteBuffer,
+        encryptedSize: Int
+    ) {
         encryptCalled = true
+        val start = destination.position()
         val header = EnclaveMailHeaderImpl(getAndIncrementSequenceNumber(), topic, envelope, keyDerivation)
-        val minSize = minSizePolicy.getMinSize(body.size)
-        val output = ByteArrayOutputStream(getExpectedSize(header, minSize, body))
-        val stream = MailEncryptingStream(output, destinationPublicKey, header, privateHeader, senderPrivateKey, minSize)
+        val bodySize = body.remaining()
+        val stream = MailEncryptingStream(
+            ByteBufferOutputStream(destination),
+            destinationPublicKey,
+            header,
+            privateHeader,
+            senderPrivateKey,
+            minSize,
+            bodySize = if (isSeekable) bodySize.toLong() else null,
+            session = if (isSessionEnabled) getOrCreateSession() else null,
+            // Only mail with more than one packet benefits from encrypting them concurrently.
+            executor = encryptionExecutor.takeIf { bodySize > MAX_PACKET_PAYLOAD_LENGTH }
+        )
         stream.write(body)
         stream.close()
-        return output.toByteArray()
+        check(destination.position() - start == encryptedSize)
+    }
+
+    private fun getOrCreateSession(): MailSession {
+        return session ?: MailSession.create(destinationPublicKey, senderPrivateKey).also { session = it }
     }
 
-    private fun getExpectedSize(header: EnclaveMailHeaderImpl, minSize: Int, body: ByteArray): Int {
-        // See MailEncryptingStream.maybeHandshake for the header format.
-        // The 1 is for the single byte protocol ID.
-        val prologueSize = 1 + header.encodedSize()
-        val payloadSize = maxOf(body.size, minSize)
-        val packetCount = (payloadSize / MAX_PACKET_PAYLOAD_LENGTH) + 1
+    /**
+     * Returns the exact size of the encrypted mail. See [MailEncryptingStream] for the format.
+     */
+    private fun getEncryptedSize(bodySize: Int, envelope: ByteArray?, privateHeader: ByteArray?, minSize: Int): Int {
+        // The sequence number is a fixed size and so doesn't affect the size of the header.
+        val header = EnclaveMailHeaderImpl(0, topic, envelope, keyDerivation)
+        // The 1 is for the single byte protocol ID, and the seekable extension is 3 bytes.
+        val prologueSize = 1 + header.encodedSize() + (if (isSeekable) 3 else 0)
+        // A session mail also has the 8 byte session counter after the handshake.
+        val handshakeSize = MailProtocol.SENDER_KEY_TRANSMITTED_V2.handshakeLength + (if (isSessionEnabled) 8 else 0)
+        // The user bytes are the size prefixed private header, then the body size if the mail is seekable, then the
+        // body. These are padded up to the min size.
+        val userBytesSize = 4L + (privateHeader?.size ?: 0) + (if (isSeekable) 8 else 0) + bodySize
+        val payloadSize = maxOf(userBytesSize, minSize.toLong())
+        // Every packet but the last is full, and then there's the empty terminator packet.
+        val packetCount = (payloadSize + MAX_PACKET_PAYLOAD_LENGTH - 1) / MAX_PACKET_PAYLOAD_LENGTH + 1
         // The 2 is for the prologue size field.
-        return 2 + prologueSize + MailProtocol.SENDER_KEY_TRANSMITTED_V2.handshakeLength + (packetCount * PACKET_OVERHEAD) + payloadSize
+        val size = 2 + prologueSize + handshakeSize + (packetCount * PACKET_OVERHEAD) + payloadSize
+        require(size <= Int.MAX_VALUE) { "The mail would be larger than the 2GB limit." }
+        return size.toInt()
     }
 
     companion object {
-        private const val PACKET_OVERHEAD = Noise.MAX_PACKET_LEN - MAX_PACKET_PAYLOAD_LENGTH
+        // The packet size field, the MAC and the user bytes length.
+        private const val PACKET_OVERHEAD = FULL_PACKET_SIZE - MAX_PACKET_PAYLOAD_LENGTH
 
         fun checkTopic(topic: String) {
             require(topic.isNotBlank()) { "Topic must not be blank" }
@@ -66,11 +138,40 @@ abstract class AbstractPostOffice {
             expectedSenderPublicKey: PublicKey
         ): DecryptedEnclaveMail {
             val mail = MailDecryptingStream(encryptedMailBytes).decryptMail(recipientPrivateKey)
+            checkSender(mail, expectedSenderPublicKey)
+            return mail
+        }
+
+        /**
+         * Decrypt the mail in the remaining bytes of [encryptedMail] straight into [body]. The position of
+         * [encryptedMail] is advanced to the end of the mail, and that of [body] to the end of the decrypted body.
+         */
+        fun decryptMail(
+            encryptedMail: ByteBuffer,
+            body: ByteBuffer,
+            recipientPrivateKey: PrivateKey,
+            expectedSenderPublicKey: PublicKey
+        ): DecryptedEnclaveMail {
+            // The mail is read directly out of a duplicate of the buffer, whose position then gives the end of the mail.
+            val input = ByteBufferInputStream(encryptedMail.duplicate())
+            val stream = MailDecryptingStream(input, randomAccessInput = encryptedMail)
+            val bodyStart = body.position()
+            val mail = stream.decryptMail(recipientPrivateKey, body)
+            try {
+                checkSender(mail, expectedSenderPublicKey)
+            } catch (e: IllegalArgumentException) {
+                body.position(bodyStart)
+                throw e
+            }
+            encryptedMail.position(input.buffer.position())
+            return mail
+        }
+
+        private fun checkSender(mail: DecryptedEnclaveMail, expectedSenderPublicKey: PublicKey) {
             require(mail.authenticatedSender == expectedSenderPublicKey) {
                 "Mail does not originate from expected sender. Authenticated sender was ${mail.authenticatedSender} " +
                         "but expected $expectedSenderPublicKey."
             }
-            return mail
         }
     }
 }
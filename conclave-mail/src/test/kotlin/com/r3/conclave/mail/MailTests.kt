@@ -5,6 +5,10 @@ import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.params.ParameterizedTest
 import org.junit.jupiter.params.provider.ValueSource
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import kotlin.random.Random
 
 class MailTests {
     private companion object {
@@ -74,9 +78,11 @@ class MailTests {
         assertThatIllegalArgumentException().isThrownBy { PostOffice.create(bob.publicKey, alice, topic) }
     }
 
-    @Test
-    fun corrupted() {
+    @ParameterizedTest
+    @ValueSource(booleans = [false, true])
+    fun corrupted(sessionEnabled: Boolean) {
         val alicePostOffice = PostOffice.create(bob.publicKey, alice, "topic")
+        alicePostOffice.isSessionEnabled = sessionEnabled
         val bobPostOffice = PostOffice.create(alice.publicKey, bob, "topic")
         val bytes = alicePostOffice.encryptMail(message1)
         // Corrupt every byte in the array and check we get an exception with a reasonable
@@ -92,6 +98,146 @@ class MailTests {
         }
     }
 
+    @Test
+    fun `session mode`() {
+        val alicePostOffice = PostOffice.create(bob.publicKey, alice, "topic")
+        alicePostOffice.isSessionEnabled = true
+        val bobPostOffice = PostOffice.create(alice.publicKey, bob, "topic")
+        val mails = List(3) { alicePostOffice.encryptMail(message1, "env".toByteArray()) }
+        // Every mail shares the same handshake, which follows the prologue.
+        val handshakes = mails.map { mail ->
+            val handshakeStart = 2 + (((mail[0].toInt() and 0xFF) shl 8) or (mail[1].toInt() and 0xFF))
+            mail.copyOfRange(handshakeStart, handshakeStart + 97)
+        }
+        for (handshake in handshakes) {
+            assertArrayEquals(handshakes[0], handshake)
+        }
+        for ((index, mail) in mails.withIndex()) {
+            val decrypted = bobPostOffice.decryptMail(mail)
+            assertThat(decrypted.sequenceNumber).isEqualTo(index.toLong())
+            assertArrayEquals(message1, decrypted.bodyAsBytes)
+            assertEquals("env", String(decrypted.envelope!!))
+            assertThat(decrypted.authenticatedSender).isEqualTo(alice.publicKey)
+        }
+    }
+
+    @Test
+    fun `session mail cannot be decrypted with the wrong key`() {
+        val postOffice = PostOffice.create(bob.publicKey)
+        postOffice.isSessionEnabled = true
+        val mail = postOffice.encryptMail(message1)
+        assertThatThrownBy {
+            PostOffice.create(postOffice.senderPublicKey, alice, "default").decryptMail(mail)
+        }.isInstanceOf(MailDecryptionException::class.java)
+        assertArrayEquals(message1, PostOffice.create(postOffice.senderPublicKey, bob, "default").decryptMail(mail).bodyAsBytes)
+    }
+
+    @Test
+    fun `large mail encrypted concurrently`() {
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val postOffice = PostOffice.create(bob.publicKey, alice, "topic")
+            postOffice.encryptionExecutor = executor
+            val body = Random.nextBytes(10 * 1024 * 1024)
+            val mail = postOffice.encryptMail(body)
+            val decrypted = PostOffice.create(alice.publicKey, bob, "topic").decryptMail(mail)
+            assertArrayEquals(body, decrypted.bodyAsBytes)
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = [0, 100, 200 * 1024])
+    fun `encrypt and decrypt with direct buffers`(bodySize: Int) {
+        val alicePostOffice = PostOffice.create(bob.publicKey, alice, "topic")
+        val bobPostOffice = PostOffice.create(alice.publicKey, bob, "topic")
+        val body = Random.nextBytes(bodySize)
+        val bodyBuffer = ByteBuffer.allocateDirect(bodySize + 10).put(body)
+        bodyBuffer.flip()
+
+        val encryptedBuffer = ByteBuffer.allocateDirect(bodySize + 64 * 1024)
+        encryptedBuffer.position(10)
+        val encryptedSize = alicePostOffice.encryptMail(bodyBuffer, "env".toByteArray(), encryptedBuffer)
+        assertThat(bodyBuffer.hasRemaining()).isFalse
+        assertThat(encryptedBuffer.position()).isEqualTo(10 + encryptedSize)
+        // The same mail can be decrypted from a byte array.
+        val encrypted = ByteArray(encryptedSize)
+        encryptedBuffer.flip()
+        encryptedBuffer.position(10)
+        encryptedBuffer.duplicate().get(encrypted)
+        assertArrayEquals(body, bobPostOffice.decryptMail(encrypted).bodyAsBytes)
+
+        val decryptedBuffer = ByteBuffer.allocateDirect(bodySize + 10)
+        decryptedBuffer.position(5)
+        val decrypted = bobPostOffice.decryptMail(encryptedBuffer, decryptedBuffer)
+        assertThat(encryptedBuffer.hasRemaining()).isFalse
+        assertThat(decryptedBuffer.position()).isEqualTo(5 + bodySize)
+        assertThat(decrypted.sequenceNumber).isEqualTo(0L)
+        assertEquals("env", String(decrypted.envelope!!))
+        assertThat(decrypted.authenticatedSender).isEqualTo(alice.publicKey)
+        assertArrayEquals(body, decrypted.bodyAsBytes)
+        assertArrayEquals(body, decrypted.bodyAsStream.readBytes())
+    }
+
+    @Test
+    fun `encrypted size is exact`() {
+        val postOffice = PostOffice.create(bob.publicKey, alice, "tópico")
+        postOffice.isSeekable = true
+        postOffice.isSessionEnabled = true
+        for (minSize in intArrayOf(0, 70 * 1024)) {
+            postOffice.minSizePolicy = MinSizePolicy.fixedMinSize(minSize)
+            // Either side of the boundary of the first packet, which also holds the private header and body size.
+            for (size in intArrayOf(0, 65517 - 12, 65517 - 11, 3 * 65517)) {
+                val body = ByteBuffer.wrap(Random.nextBytes(size))
+                val encryptedSize = postOffice.encryptMail(body, null, ByteBuffer.allocate(size + 128 * 1024))
+                assertThat(postOffice.encryptMail(body.array())).hasSize(encryptedSize)
+            }
+        }
+    }
+
+    @Test
+    fun `destination buffer too small`() {
+        val postOffice = PostOffice.create(bob.publicKey)
+        val destination = ByteBuffer.allocate(message1.size)
+        assertThatIllegalArgumentException().isThrownBy {
+            postOffice.encryptMail(ByteBuffer.wrap(message1), null, destination)
+        }.withMessageContaining("The destination buffer has ${message1.size} bytes remaining")
+        assertThat(destination.position()).isEqualTo(0)
+        assertThat(postOffice.nextSequenceNumber).isEqualTo(0L)
+    }
+
+    @Test
+    fun `body buffer too small`() {
+        val postOffice = PostOffice.create(bob.publicKey, alice, "topic")
+        val encrypted = ByteBuffer.wrap(postOffice.encryptMail(message1))
+        val body = ByteBuffer.allocate(message1.size - 1)
+        assertThatThrownBy {
+            PostOffice.create(alice.publicKey, bob, "topic").decryptMail(encrypted, body)
+        }.isInstanceOf(BufferOverflowException::class.java)
+        assertThat(encrypted.position()).isEqualTo(0)
+        assertThat(body.position()).isEqualTo(0)
+    }
+
+    @Test
+    fun `padded mail body into buffer of exact size`() {
+        val postOffice = PostOffice.create(bob.publicKey, alice, "topic")
+        postOffice.minSizePolicy = MinSizePolicy.fixedMinSize(10 * 1024)
+        val encrypted = ByteBuffer.wrap(postOffice.encryptMail(message1))
+        val body = ByteBuffer.allocate(message1.size)
+        val mail = PostOffice.create(alice.publicKey, bob, "topic").decryptMail(encrypted, body)
+        assertThat(mail.bodyAsBytes).isEqualTo(message1)
+        assertThat(body.hasRemaining()).isFalse
+        assertThat(encrypted.hasRemaining()).isFalse
+
+        encrypted.rewind()
+        val smallBody = ByteBuffer.allocate(message1.size - 1)
+        assertThatThrownBy {
+            PostOffice.create(alice.publicKey, bob, "topic").decryptMail(encrypted, smallBody)
+        }.isInstanceOf(BufferOverflowException::class.java)
+        assertThat(smallBody.array()).isEqualTo(ByteArray(message1.size - 1))
+    }
+
     @Test
     fun `key mismatch`() {
         val mail = PostOffice.create(bob.publicKey).encryptMail(message1)
@@ -14,6 +14,9 @@ import org.junit.jupiter.params.provider.MethodSource
 import java.io.ByteArrayOutputStream
 import java.io.DataInputStream
 import java.io.EOFException
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
 import java.security.PrivateKey
 import kotlin.math.ceil
 import kotlin.random.Random
@@ -57,6 +60,9 @@ class MailStreamsTest {
             512 * 1024,
         )
 
+        @JvmStatic
+        fun getPrivateHeaderSizes(): List<Int> = privateHeaderSizes.toList()
+
         /**
          * Get configurations for parameterizable tests
          */
@@ -326,15 +332,243 @@ class MailStreamsTest {
         }.withMessage("2147483647 + 1 >= 1")
     }
 
+    @Test
+    fun `decrypted mail with streamed body`() {
+        val data = Random.nextBytes(3 * MAX_PACKET_PAYLOAD_LENGTH)
+        val encrypted = encryptMessage(message = data)
+        val mail = MailDecryptingStream(encrypted).decryptMail(receivingPrivateKey, streamBody = true)
+        // The headers are available before the body has been read.
+        assertThat(mail.topic).isEqualTo(header.topic)
+        assertArrayEquals(privateHeader, mail.privateHeader)
+        assertArrayEquals(data, mail.bodyAsStream.readBytes())
+        assertThatIllegalStateException().isThrownBy { mail.bodyAsStream }
+        assertThatIllegalStateException().isThrownBy { mail.bodyAsBytes }
+    }
+
+    @Test
+    fun `streamed body can be read as bytes instead`() {
+        val encrypted = encryptMessage()
+        val mail = MailDecryptingStream(encrypted).decryptMail(receivingPrivateKey, streamBody = true)
+        assertArrayEquals(msg, mail.bodyAsBytes)
+        // The body is now in memory and so can be read any number of times.
+        assertArrayEquals(msg, mail.bodyAsBytes)
+        assertArrayEquals(msg, mail.bodyAsStream.readBytes())
+    }
+
+    @Test
+    fun `streamed body cannot be read once closed`() {
+        val encrypted = encryptMessage(message = Random.nextBytes(2 * MAX_PACKET_PAYLOAD_LENGTH))
+        val mail = MailDecryptingStream(encrypted).decryptMail(receivingPrivateKey, streamBody = true)
+        val stream = mail.bodyAsStream
+        stream.read()
+        mail.closeBodyStream()
+        assertThatIllegalStateException().isThrownBy { stream.read() }
+    }
+
+    @Test
+    fun `corruption in streamed body is detected as it's read`() {
+        val encrypted = encryptMessage(message = Random.nextBytes(2 * MAX_PACKET_PAYLOAD_LENGTH))
+        encrypted[encrypted.size - 20]++
+        val mail = MailDecryptingStream(encrypted).decryptMail(receivingPrivateKey, streamBody = true)
+        assertThatThrownBy { mail.bodyAsStream.readBytes() }.isInstanceOf(MailDecryptionException::class.java)
+    }
+
+    @ParameterizedTest
+    @MethodSource("getPrivateHeaderSizes")
+    fun `seekable body can be read with random access`(privateHeaderSize: Int) {
+        val data = Random.nextBytes(5 * MAX_PACKET_PAYLOAD_LENGTH + 123)
+        val privateHeader = if (privateHeaderSize < 0) null else Random.nextBytes(privateHeaderSize)
+        val encrypted = encryptMessage(privateHeader = privateHeader, message = data, seekable = true)
+        val channel = decryptSeekable(encrypted).openBodyChannel()!!
+        assertThat(channel.size()).isEqualTo(data.size.toLong())
+        for (position in intArrayOf(3 * MAX_PACKET_PAYLOAD_LENGTH - 10, 0, data.size - 50, MAX_PACKET_PAYLOAD_LENGTH)) {
+            val dst = ByteBuffer.allocate(100)
+            channel.position(position.toLong())
+            while (dst.hasRemaining() && channel.read(dst) != -1) {}
+            dst.flip()
+            val expected = data.copyOfRange(position, minOf(position + 100, data.size))
+            assertArrayEquals(expected, ByteArray(dst.remaining()).also { dst.get(it) })
+        }
+        assertThat(channel.read(ByteBuffer.allocate(1))).isEqualTo(-1)
+    }
+
+    @Test
+    fun `seekable mail can still be read as a stream`() {
+        val data = Random.nextBytes(2 * MAX_PACKET_PAYLOAD_LENGTH)
+        val encrypted = encryptMessage(message = data, minSize = 4 * MAX_PACKET_PAYLOAD_LENGTH, seekable = true)
+        val mds = MailDecryptingStream(encrypted, receivingPrivateKey)
+        assertArrayEquals(data, mds.readFully())
+        assertArrayEquals(privateHeader, mds.privateHeader)
+    }
+
+    @Test
+    fun `only the packets read from a seekable body are decrypted`() {
+        val data = Random.nextBytes(4 * MAX_PACKET_PAYLOAD_LENGTH)
+        val encrypted = encryptMessage(message = data, seekable = true)
+        // Corrupt the last full packet.
+        encrypted[encrypted.size - 100]++
+        val channel = decryptSeekable(encrypted).openBodyChannel()!!
+        val dst = ByteBuffer.allocate(MAX_PACKET_PAYLOAD_LENGTH)
+        channel.position(MAX_PACKET_PAYLOAD_LENGTH.toLong())
+        assertThat(channel.read(dst)).isEqualTo(MAX_PACKET_PAYLOAD_LENGTH)
+        assertArrayEquals(data.copyOfRange(MAX_PACKET_PAYLOAD_LENGTH, 2 * MAX_PACKET_PAYLOAD_LENGTH), dst.array())
+        channel.position(data.size - 100L)
+        assertThatThrownBy { channel.read(ByteBuffer.allocate(1)) }.isInstanceOf(MailDecryptionException::class.java)
+    }
+
+    @Test
+    fun `mail which is not seekable has no body channel`() {
+        val encrypted = encryptMessage()
+        assertThat(decryptSeekable(encrypted).openBodyChannel()).isNull()
+        // The mail's channel falls back to reading the body into memory.
+        val mail = MailDecryptingStream(encrypted.inputStream(), randomAccessInput = ByteBuffer.wrap(encrypted))
+            .decryptMail(receivingPrivateKey, streamBody = true)
+        val dst = ByteBuffer.allocate(msg.size)
+        mail.bodyAsChannel.position(1).read(dst)
+        assertArrayEquals(msg.copyOfRange(1, msg.size), dst.array().copyOf(msg.size - 1))
+    }
+
+    @Test
+    fun `seekable streamed body cannot be read once closed`() {
+        val encrypted = encryptMessage(message = Random.nextBytes(2 * MAX_PACKET_PAYLOAD_LENGTH), seekable = true)
+        val mail = MailDecryptingStream(encrypted.inputStream(), randomAccessInput = ByteBuffer.wrap(encrypted))
+            .decryptMail(receivingPrivateKey, streamBody = true)
+        val channel = mail.bodyAsChannel
+        channel.read(ByteBuffer.allocate(10))
+        assertThatIllegalStateException().isThrownBy { mail.bodyAsStream }
+        mail.closeBodyStream()
+        assertThatIllegalStateException().isThrownBy { channel.read(ByteBuffer.allocate(10)) }
+    }
+
+    @Test
+    fun `seekable mail must have the body size it was created with`() {
+        val baos = ByteArrayOutputStream()
+        val encrypt = MailEncryptingStream(
+            baos,
+            receivingPrivateKey.publicKey,
+            header,
+            privateHeader,
+            senderPrivateKey,
+            0,
+            bodySize = msg.size + 1L
+        )
+        encrypt.write(msg)
+        assertThatIllegalStateException().isThrownBy { encrypt.close() }
+    }
+
+    @Test
+    fun `skip over packets`() {
+        val data = Random.nextBytes(3 * MAX_PACKET_PAYLOAD_LENGTH)
+        val mds = MailDecryptingStream(encryptMessage(message = data), receivingPrivateKey)
+        val offset = 2 * MAX_PACKET_PAYLOAD_LENGTH + 5
+        assertThat(mds.skip(offset.toLong())).isEqualTo(offset.toLong())
+        assertArrayEquals(data.copyOfRange(offset, data.size), mds.readFully())
+        assertThat(mds.skip(1)).isEqualTo(0)
+    }
+
+    @Test
+    fun `mail in the same session have different keys`() {
+        val session = MailSession.create(receivingPrivateKey.publicKey, senderPrivateKey)
+        val data = Random.nextBytes(MAX_PACKET_PAYLOAD_LENGTH)
+        val first = encryptMessage(message = data, session = session)
+        val second = encryptMessage(message = data, session = session)
+        // There are three packets, each with a length prefix, user bytes length and MAC, and only the session counter
+        // differs before them.
+        val packetsStart = first.size - (data.size + privateHeader.size + 4 + 3 * (2 + 2 + 16))
+        assertArrayEquals(first.copyOf(packetsStart - 8), second.copyOf(packetsStart - 8))
+        assertFalse(first.copyOfRange(packetsStart, first.size).contentEquals(second.copyOfRange(packetsStart, second.size)))
+        for (encrypted in listOf(first, second)) {
+            val mds = MailDecryptingStream(encrypted, receivingPrivateKey)
+            assertArrayEquals(data, mds.readFully())
+            assertArrayEquals(senderPrivateKey.publicKey.encoded, mds.senderPublicKey)
+        }
+    }
+
+    @Test
+    fun `session mail can be read with random access`() {
+        val session = MailSession.create(receivingPrivateKey.publicKey, senderPrivateKey)
+        val data = Random.nextBytes(3 * MAX_PACKET_PAYLOAD_LENGTH)
+        val encrypted = encryptMessage(message = data, seekable = true, session = session)
+        val channel = decryptSeekable(encrypted).openBodyChannel()!!
+        val dst = ByteBuffer.allocate(10)
+        channel.position(2L * MAX_PACKET_PAYLOAD_LENGTH)
+        assertThat(channel.read(dst)).isEqualTo(10)
+        assertArrayEquals(data.copyOfRange(2 * MAX_PACKET_PAYLOAD_LENGTH, 2 * MAX_PACKET_PAYLOAD_LENGTH + 10), dst.array())
+    }
+
+    @Test
+    fun `header of session mail is authenticated`() {
+        val session = MailSession.create(receivingPrivateKey.publicKey, senderPrivateKey)
+        val encrypted = encryptMessage(session = session)
+        // Change the sequence number, which is the 8 bytes after the prologue length and protocol ID.
+        encrypted[2 + 1 + 7]++
+        val mds = MailDecryptingStream(encrypted)
+        assertThat(mds.header.sequenceNumber).isEqualTo(header.sequenceNumber + 1)
+        assertThatThrownBy { mds.decryptMail(receivingPrivateKey) }.isInstanceOf(MailDecryptionException::class.java)
+    }
+
+    @ParameterizedTest
+    @MethodSource("getPrivateHeaderSizes")
+    fun `packets can be encrypted concurrently`(privateHeaderSize: Int) {
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val privateHeader = if (privateHeaderSize < 0) null else Random.nextBytes(privateHeaderSize)
+            for (dataSize in intArrayOf(0, MAX_PACKET_PAYLOAD_LENGTH, 100 * MAX_PACKET_PAYLOAD_LENGTH + 1)) {
+                val data = Random.nextBytes(dataSize)
+                val encrypted = encryptMessage(
+                    privateHeader = privateHeader,
+                    minSize = 3 * MAX_PACKET_PAYLOAD_LENGTH,
+                    message = data,
+                    executor = executor
+                )
+                val mds = MailDecryptingStream(encrypted, receivingPrivateKey)
+                assertArrayEquals(data, mds.readFully())
+                assertArrayEquals(privateHeader?.takeIf { it.isNotEmpty() }, mds.privateHeader)
+            }
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun `seekable session mail can be encrypted concurrently`() {
+        val session = MailSession.create(receivingPrivateKey.publicKey, senderPrivateKey)
+        val data = Random.nextBytes(10 * MAX_PACKET_PAYLOAD_LENGTH)
+        val encrypted = encryptMessage(message = data, seekable = true, session = session, executor = Executor { it.run() })
+        val channel = decryptSeekable(encrypted).openBodyChannel()!!
+        val dst = ByteBuffer.allocate(data.size)
+        while (dst.hasRemaining()) {
+            channel.read(dst)
+        }
+        assertArrayEquals(data, dst.array())
+    }
+
+    private fun decryptSeekable(encrypted: ByteArray): MailDecryptingStream {
+        return MailDecryptingStream(encrypted.inputStream(), receivingPrivateKey, ByteBuffer.wrap(encrypted))
+    }
+
     private fun encryptMessage(
         senderPrivateKey: PrivateKey = Companion.senderPrivateKey,
         header: EnclaveMailHeaderImpl = Companion.header,
         privateHeader: ByteArray? = Companion.privateHeader,
         minSize: Int = 0,
-        message: ByteArray = msg
+        message: ByteArray = msg,
+        seekable: Boolean = false,
+        session: MailSession? = null,
+        executor: Executor? = null
     ): ByteArray {
         val baos = ByteArrayOutputStream()
-        val encrypt = MailEncryptingStream(baos, receivingPrivateKey.publicKey, header, privateHeader, senderPrivateKey, minSize)
+        val encrypt = MailEncryptingStream(
+            baos,
+            receivingPrivateKey.publicKey,
+            header,
+            privateHeader,
+            senderPrivateKey,
+            minSize,
+            bodySize = if (seekable) message.size.toLong() else null,
+            session = session,
+            executor = executor
+        )
         encrypt.write(message)
         encrypt.close()
         return baos.toByteArray()
@@ -15,6 +15,7 @@ import org.springframework.web.bind.annotation.*
 import java.io.DataInputStream
 import java.io.DataOutputStream
 import java.nio.file.Path
+import java.nio.file.StandardOpenOption
 import java.time.Duration
 import javax.annotation.PostConstruct
 import javax.annotation.PreDestroy
@@ -92,6 +93,10 @@ class EnclaveWebController {
                     it.write(sealedState)
                 }
             }
+            override fun appendSealedState(sealedState: ByteArray) {
+                val sealedStateFile = checkNotNull(sealedStateFile) { "sealed.state.file is not set" }
+                sealedStateFile.outputStream(StandardOpenOption.APPEND).use { it.write(sealedState) }
+            }
         }
         val sealedState = loadSealedState()
         val kdsConfiguration = loadKdsConfiguration()
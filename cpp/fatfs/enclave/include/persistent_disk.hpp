@@ -3,6 +3,7 @@
 
 #include <vector>
 #include <string>
+#include <memory>
 
 #include "sgx_tcrypto.h"
 
@@ -10,6 +11,8 @@
 #include "diskio.hpp"
 
 #include "disk.hpp"
+#include "sector_cache.hpp"
+#include "sector_worker_pool.hpp"
 
 #define ENCRYPTION 1
 #define SECTOR_SHUFFLING 1
@@ -21,6 +24,9 @@
 #define SECTOR_SIZE_AND_MAC SECTOR_SIZE
 #endif
 
+//  Maximum number of sectors sent to the Host in a single write OCall
+#define MAX_WRITE_BATCH_SECTORS 64
+
 
 namespace conclave {
 
@@ -32,6 +38,12 @@ namespace conclave {
       The Host writes such bytes into a a single file according to a path established
       when the Enclave is loaded by the Host itself.
       Encryption and sector shuffling provide further obfuscation.
+      Decrypted sectors are kept in a bounded LRU cache, writes are held in the cache
+      and sent to the Host when evicted or when FatFs syncs the filesystem.
+      Writes are collected into a batch and sent to the Host in a single OCall, together
+      with the (shuffled) id of each sector.
+      When the pool of sector workers has any threads, the sectors of a write batch and those
+      of a multi-sector read are encrypted and decrypted in parallel.
     */
     class PersistentDisk : public FatFsDisk {
 
@@ -41,11 +53,28 @@ namespace conclave {
 
         sgx_aes_gcm_128bit_key_t encryption_key_ = {0};
 
-        unsigned char buffer_encryption_[SECTOR_SIZE_AND_MAC] = {0};
+        SectorCache cache_;
+
+        const SectorCache::WriteBack write_back_;
+
+        const SectorCache::Submit submit_writes_;
+
+        //  Shared with the other persistent disks, it has no workers if the option is not enabled
+        const std::shared_ptr<SectorWorkerPool> workers_;
+
+        //  Plaintext sectors waiting to be encrypted when the batch is submitted
+        std::vector<unsigned char> write_batch_plain_;
+
+        std::vector<unsigned char> write_batch_buffer_;
 
-        unsigned char buffer_writes_[SECTOR_SIZE_AND_MAC] = {0};
+        std::vector<unsigned long> write_batch_sectors_;
 
-        unsigned long buffer_index_ = 0;
+        //  Encrypted sectors of a read, with their (shuffled) id and their index in the read
+        std::vector<unsigned char> read_batch_buffer_;
+
+        std::vector<unsigned long> read_batch_sectors_;
+
+        std::vector<BYTE> read_batch_indexes_;
 
         int encrypt(const unsigned long sector_id,
                     const BYTE* input_buffer,
@@ -59,12 +88,28 @@ namespace conclave {
 
         unsigned long mapSectorId(const unsigned long sector_id);
 
+        //  The id of the sector in the file of the Host
+        unsigned long hostSectorId(const LBA_t sector);
+
+        //  Reads the sector as stored by the Host, that is encrypted
+        DRESULT readFromHost(const unsigned long sector_id, BYTE* output_buf);
+
+        //  Adds the sector to the current batch, which is submitted when full
+        DRESULT writeToHost(const LBA_t sector, const BYTE* input_buf);
+
+        //  Encrypts the current batch and sends it to the Host
+        DRESULT submitWrites();
+
+        //  Writes back the cache and asks the Host to make the writes durable (CTRL_SYNC)
         DRESULT flush();
 
     public:
         PersistentDisk(const BYTE drive,
                        const unsigned long size,
-                       const unsigned char* encryption_key);
+                       const unsigned long cache_size,
+                       const unsigned char* encryption_key,
+                       const std::string& mount_path,
+                       const std::shared_ptr<SectorWorkerPool>& workers);
 
         virtual ~PersistentDisk();
 
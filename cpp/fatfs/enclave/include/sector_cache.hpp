@@ -0,0 +1,79 @@
+#ifndef _FATFS_SECTOR_CACHE
+#define _FATFS_SECTOR_CACHE
+
+#include <list>
+#include <functional>
+#include <unordered_map>
+
+#include "common.hpp"
+#include "diskio.hpp"
+
+namespace conclave {
+
+    /*
+      Bounded LRU cache of decrypted sectors, used by the persistent filesystem to avoid
+      an OCall and a decryption for every sector that FatFs reads again, typically the FAT
+      and directory sectors.
+      Sectors written by FatFs are kept dirty in the cache and only sent to the Host when they
+      are evicted or when the cache is flushed, which happens on every CTRL_SYNC.
+      A write back only queues the sector, the queued sectors are sent to the Host by a separate
+      submit. A sector stays dirty, or is kept aside if it was evicted, until the submit succeeds,
+      so a failed submit does not lose it.
+      The sectors are indexed by their logical (FatFs) id, the caller is responsible for
+      any mapping and encryption when writing them back.
+      This class is not thread safe, the access to a disk is serialised by FatFsFileManager.
+    */
+    class SectorCache {
+
+    public:
+        //  Queues the sector to be sent to the Host
+        using WriteBack = std::function<DRESULT(LBA_t sector, const BYTE* input_buf)>;
+
+        //  Sends the queued sectors to the Host. The queue is emptied whether or not this succeeds.
+        using Submit = std::function<DRESULT()>;
+
+        SectorCache(const unsigned long max_sectors);
+
+        //  Returns false if the capacity is zero, in which case the cache does not hold anything.
+        bool isEnabled() const;
+
+        //  Copies the sector into output_buf and marks it as the most recently used one.
+        //  Returns false if the sector is not in the cache.
+        bool get(const LBA_t sector, BYTE* output_buf);
+
+        //  Adds or replaces the sector. If the cache is full, the least recently used sector is
+        //  evicted and, if dirty, written back first. An evicted dirty sector is kept until the next
+        //  submit succeeds. The sector is not added if the write back fails.
+        DRESULT put(const LBA_t sector, const BYTE* input_buf, const bool dirty, const WriteBack& write_back);
+
+        //  Submits the sectors written back so far. If this fails, the evicted sectors go back in the
+        //  cache as dirty, unless they have been written again since.
+        DRESULT submit(const Submit& submit_writes);
+
+        //  Writes back all the dirty sectors in ascending order and submits them, after which they
+        //  are marked as clean.
+        DRESULT flush(const WriteBack& write_back, const Submit& submit_writes);
+
+        void clear();
+
+    private:
+        struct Entry {
+            LBA_t sector;
+            bool dirty;
+            BYTE data[SECTOR_SIZE];
+        };
+
+        const unsigned long max_sectors_;
+
+        //  Most recently used first
+        std::list<Entry> entries_;
+
+        std::unordered_map<LBA_t, std::list<Entry>::iterator> index_;
+
+        //  Dirty sectors which have been evicted and written back, but not submitted yet. Oldest first.
+        std::list<Entry> evicted_;
+
+        void restoreEvicted();
+    };
+}
+#endif  //  End of _FATFS_SECTOR_CACHE
@@ -0,0 +1,72 @@
+#ifndef _FATFS_SECTOR_WORKER_POOL
+#define _FATFS_SECTOR_WORKER_POOL
+
+#include <atomic>
+#include <condition_variable>
+#include <functional>
+#include <mutex>
+#include <vector>
+
+#include "enclave_thread.h"
+
+namespace conclave {
+
+    /*
+      Fixed set of Enclave threads, created with EnclaveThreadFactory, used by the persistent filesystems
+      to encrypt and decrypt the sectors of a multi-sector read or write in parallel.
+      The calling thread takes part in the work, so a pool of N workers spreads a batch across N + 1 threads.
+      Each worker holds a TCS until the pool is stopped, hence the pool is shared by all the persistent
+      filesystems. Only one batch runs on the workers at a time, a batch submitted while the workers are
+      busy with another filesystem is run on the calling thread alone.
+    */
+    class SectorWorkerPool {
+
+    public:
+        //  Processes the sector at the given index of the batch, returns 0 on success
+        using Task = std::function<int(const size_t index)>;
+
+        SectorWorkerPool(const unsigned int num_workers);
+
+        virtual ~SectorWorkerPool();
+
+        //  Asks the Host for the worker threads. Returns false if not all of them could be started,
+        //    in which case the pool uses the ones that did.
+        bool start();
+
+        //  Wakes up the workers so that they exit and waits for them. Batches run after this are serial.
+        void stop();
+
+        //  Runs task(0) ... task(count - 1) and returns once all of them have completed.
+        //  Returns 0 if all the tasks succeeded, -1 otherwise.
+        int run(const size_t count, const Task& task);
+
+    private:
+        const unsigned int num_workers_;
+
+        std::vector<r3::conclave::Thread> threads_;
+
+        //  Held by the thread whose batch is on the workers
+        std::mutex run_mutex_;
+
+        std::mutex mutex_;
+        std::condition_variable batch_available_;
+        std::condition_variable batch_done_;
+
+        bool stopping_ = false;
+        unsigned long batch_id_ = 0;
+        unsigned int busy_workers_ = 0;
+
+        const Task* task_ = nullptr;
+        size_t count_ = 0;
+        std::atomic<size_t> next_index_{0};
+        std::atomic<bool> failed_{false};
+
+        void work();
+
+        //  Takes the tasks of the current batch one by one until there is none left
+        void runTasks();
+
+        int runSerially(const size_t count, const Task& task);
+    };
+}
+#endif  //  End of _FATFS_SECTOR_WORKER_POOL
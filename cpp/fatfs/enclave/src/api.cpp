@@ -22,16 +22,21 @@
 #include "disk.hpp"
 #include "inmemory_disk.hpp"
 #include "persistent_disk.hpp"
+#include "sector_worker_pool.hpp"
 #include "fatfs_file_manager.hpp"
 #include "fatfs_result.hpp"
 
 static const int kMaxNumFiles = 500000;
 
-//  The size of the filesystems is currently limited to Fat32 max size, which is 2T.
-//  Note that this value of 2T comes from the maximum value of the number of sectors
-//    that we can specify on 32 bits (4G) times the bytes for each sector (512).
-static const unsigned long kMaxInMemorySize = ((unsigned long)UINT_MAX * SECTOR_SIZE);
-static const unsigned long kMaxPersistentSize = ((unsigned long)UINT_MAX * SECTOR_SIZE);
+//  FatFs is built with exFAT and 64-bit LBA support, so the number of sectors is no longer limited to 32 bits.
+//  Volumes smaller than 32G are still formatted as FAT, bigger ones as exFAT (see FM_ANY in f_mkfs).
+//  The size of the filesystems is limited to 256T (2^39 sectors of 512 bytes), which keeps the
+//    sector tables of the persistent filesystem to a few megabytes of Enclave memory.
+static const unsigned long kMaxInMemorySize = (1ul << 39) * SECTOR_SIZE;
+static const unsigned long kMaxPersistentSize = (1ul << 39) * SECTOR_SIZE;
+
+//  One FatFs volume is kept for the in-memory filesystem
+static const int kMaxPersistentDrives = FF_VOLUMES - 1;
 
 static int currentFirstAvailableHandle  = 100000;
 static int currentDummyHandle = currentFirstAvailableHandle;
@@ -39,6 +44,9 @@ static std::unordered_set<int> dummyHandles;
 static std::mutex dummyHandleMutex;
 static std::vector<std::shared_ptr<conclave::FatFsFileManager> > filesystems;
 
+//  Shared by all the persistent filesystems, the threads are started in setupFileSystems and stopped in shutdownFileSystems
+static std::shared_ptr<conclave::SectorWorkerPool> sectorWorkers = std::make_shared<conclave::SectorWorkerPool>(0);
+
 static std::string currentPath = "/";
 static JavaVM *jvm = NULL;
 
@@ -47,9 +55,12 @@ enum FileSystemType { IN_MEMORY, PERSISTENT };
 std::unique_ptr<conclave::FatFsDisk> createDiskHandler(const FileSystemType type,
                                                        const BYTE drive_id,
                                                        const unsigned long size,
-                                                       const unsigned char* encryption_key) {
+                                                       const unsigned long cache_size,
+                                                       const unsigned char* encryption_key,
+                                                       const std::string& mount_path) {
     if (type == FileSystemType::PERSISTENT) {
-        return std::unique_ptr<conclave::FatFsDisk>(new conclave::PersistentDisk(drive_id, size, encryption_key));
+        return std::unique_ptr<conclave::FatFsDisk>(
+            new conclave::PersistentDisk(drive_id, size, cache_size, encryption_key, mount_path, sectorWorkers));
     } else if (type == FileSystemType::IN_MEMORY) {
         return std::unique_ptr<conclave::FatFsDisk>(new conclave::InMemoryDisk(drive_id, size));
     } else {
@@ -62,11 +73,12 @@ std::unique_ptr<conclave::FatFsDisk> createDiskHandler(const FileSystemType type
 static std::shared_ptr<conclave::FatFsFileManager> createFileSystem(const FileSystemType type,
                                                                     const BYTE drive,
                                                                     const unsigned long size,
+                                                                    const unsigned long cache_size,
                                                                     const unsigned char* encryption_key,
                                                                     const std::string& mount_path) {
     const int first_handle = currentFirstAvailableHandle;
     const int max_handle = currentFirstAvailableHandle + kMaxNumFiles -1;
-    auto disk_handler = createDiskHandler(type, drive, size, encryption_key);
+    auto disk_handler = createDiskHandler(type, drive, size, cache_size, encryption_key, mount_path);
     auto filesystem = std::make_shared<conclave::FatFsFileManager>(first_handle,
                                                                    max_handle,
                                                                    encryption_key,
@@ -118,9 +130,12 @@ static bool getJniEncryptionKey(JNIEnv* env,
 //  The initialization of the persistent disk depends on the present of the
 //    file/filesystem path on the host.
 //  When loading the enclave, we do an OCall and we check the presence of the file on the host.
-static conclave::DiskInitialization getInitializationType(JNIEnv* env, const unsigned char drive, const unsigned long persistent_size) {
+static conclave::DiskInitialization getInitializationType(JNIEnv* env,
+                                                         const unsigned char drive,
+                                                         const unsigned long persistent_size,
+                                                         const std::string& mount_path) {
     long host_file_size = -1;
-    host_disk_get_size_ocall(&host_file_size, drive, persistent_size);
+    host_disk_get_size_ocall(&host_file_size, drive, persistent_size, mount_path.c_str());
     FATFS_DEBUG_PRINT("Host disk size %ld\n", host_file_size);
 
     const bool host_has_thrown_exception = (host_file_size == -1);
@@ -174,6 +189,43 @@ static void handleInitException(JNIEnv* env, const FatFsResult result, const std
 }
 
 
+//  Create, format or mount a persistent filesystem, raising an exception if that fails
+static bool setupPersistentFileSystem(JNIEnv* env,
+                                      const unsigned char drive,
+                                      const unsigned long size,
+                                      const unsigned long cache_size,
+                                      const unsigned char* encryption_key,
+                                      const std::string& mount_path) {
+    if (size > kMaxPersistentSize) {
+        const std::string msg("Wrong persistent filesystem's sizes have been provided, "
+                              "please choose a value smaller than " + std::to_string(kMaxPersistentSize + 1) + " bytes");
+        raiseException(env, msg.c_str());
+        return false;
+    }
+    conclave::DiskInitialization initialization = getInitializationType(env, drive, size, mount_path);
+        
+    if (initialization == conclave::DiskInitialization::ERROR) {
+        //  The Host has thrown an exception as well
+        raiseException(env, "Filesystems not initialized");
+        return false;
+    }
+    auto filesystem = createFileSystem(FileSystemType::PERSISTENT,
+                                       drive,
+                                       size,
+                                       cache_size,
+                                       encryption_key,
+                                       mount_path);
+    FatFsResult initResult = filesystem->init(initialization);
+
+    if (initResult != FatFsResult::OK) {
+        handleInitException(env, initResult, "persistent");
+        return false;
+    }
+    filesystems.push_back(filesystem);
+    return true;
+}
+
+
 //  Main entry point to setup the in-memory and persistent filesystem
 //  Note: the "return" instruction after raising an exception is compulsory
 //    as when throwing JNI exceptions we immediately want to return to Java/Kotlin
@@ -183,10 +235,14 @@ JNIEXPORT void JNICALL Java_com_r3_conclave_enclave_internal_Native_setupFileSys
                                                                                      jobject,
                                                                                      jlong in_memory_size,
                                                                                      jlong persistent_size,
+                                                                                     jlong persistent_cache_size,
+                                                                                     jint persistent_encryption_threads,
                                                                                      jstring in_memory_mount_path_in,
                                                                                      jstring persistent_mount_path_in,
+                                                                                     jobjectArray additional_persistent_mount_paths_in,
+                                                                                     jlongArray additional_persistent_sizes_in,
                                                                                      jbyteArray encryption_key_in) {
-    FATFS_DEBUG_PRINT("Sizes: %lu, %lu\n", in_memory_size, persistent_size);
+    FATFS_DEBUG_PRINT("Sizes: %lu, %lu, %lu\n", in_memory_size, persistent_size, persistent_cache_size);
 
     if (encryption_key_in == nullptr) {
         raiseException(env, "Filesystems not initialized, key not passed in");
@@ -212,48 +268,69 @@ JNIEXPORT void JNICALL Java_com_r3_conclave_enclave_internal_Native_setupFileSys
         return;
     }
 
-    if ((unsigned long)persistent_size > kMaxPersistentSize) {
-        const std::string msg("Wrong persistent filesystem's sizes have been provided, "
-                              "please choose a value smaller than " + std::to_string(kMaxPersistentSize + 1) + " bytes");
+    if (persistent_cache_size < 0) {
+        raiseException(env, "The persistent filesystem's cache size cannot be negative");
+        return;
+    }
+
+    if (persistent_encryption_threads < 0) {
+        raiseException(env, "The number of persistent filesystem's encryption threads cannot be negative");
+        return;
+    }
+    const jsize num_additional_drives = env->GetArrayLength(additional_persistent_sizes_in);
+
+    if (num_additional_drives != env->GetArrayLength(additional_persistent_mount_paths_in) ||
+        num_additional_drives + (persistent_size > 0 ? 1 : 0) > kMaxPersistentDrives) {
+        const std::string msg("Wrong number of persistent filesystems, "
+                              "please configure no more than " + std::to_string(kMaxPersistentDrives));
         raiseException(env, msg.c_str());
         return;
     }
+    std::vector<jlong> additional_persistent_sizes(num_additional_drives);
+    env->GetLongArrayRegion(additional_persistent_sizes_in, 0, num_additional_drives, additional_persistent_sizes.data());
+
+    if (persistent_encryption_threads > 0 && (persistent_size > 0 || num_additional_drives > 0)) {
+        sectorWorkers = std::make_shared<conclave::SectorWorkerPool>(persistent_encryption_threads);
+
+        if (!sectorWorkers->start()) {
+            //  Not fatal, the sectors are processed by fewer threads
+            FATFS_DEBUG_PRINT("Not all the %d encryption threads could be started\n", persistent_encryption_threads);
+        }
+    }
+
     unsigned char drive = 0;
     /*
-      Note: the persistent filesystem, when present, needs to be the first one. This is because
-      we are using the drive id to map the filesystem here in the Enclave with the index of 
-      the related file representing the filesystem in the Host (FileSystemHandler.kt).
-      We can surely remove this assumption and improve this function, but this would require
-      some effort that we can postpone.
-      TO DO: Improve the mapping between the Enclave persistent filesystem and the Host file
+      Note: the Host maps each persistent filesystem to its file by mount path (see getDriveSize in
+      FileSystemHandler.kt), which is passed in the first OCall for the drive. The drive ids only
+      need to be unique and are assigned in order: the persistent filesystem mounted at the root,
+      the additional persistent filesystems and then the in-memory one.
     */
     
-    if (persistent_size > 0) {
-        conclave::DiskInitialization initialization = getInitializationType(env, drive, persistent_size);
-        
-        if (initialization == conclave::DiskInitialization::ERROR) {
-            //  The Host has thrown an exception as well
-            raiseException(env, "Filesystems not initialized");
-            return;
-        }
-        auto filesystem = createFileSystem(FileSystemType::PERSISTENT,
-                                           drive++,
-                                           persistent_size,
-                                           encryption_key,
-                                           persistent_mount_path);
-        FatFsResult initResult = filesystem->init(initialization);
+    if (persistent_size > 0 &&
+        !setupPersistentFileSystem(env, drive++, persistent_size, persistent_cache_size, encryption_key, persistent_mount_path)) {
+        return;
+    }
 
-        if (initResult != FatFsResult::OK) {
-            handleInitException(env, initResult, "persistent");
+    for (jsize i = 0; i < num_additional_drives; i++) {
+        jstring mount_path_in = (jstring)env->GetObjectArrayElement(additional_persistent_mount_paths_in, i);
+        const std::string mount_path = getJniMountPath(env, mount_path_in);
+        env->DeleteLocalRef(mount_path_in);
+
+        if (!setupPersistentFileSystem(env,
+                                       drive++,
+                                       additional_persistent_sizes[i],
+                                       persistent_cache_size,
+                                       encryption_key,
+                                       mount_path)) {
             return;
         }
-        filesystems.push_back(filesystem);
     }
     
     if (in_memory_size > 0) {
         auto filesystem = createFileSystem(FileSystemType::IN_MEMORY,
                                            drive++,
                                            in_memory_size,
+                                           0,
                                            encryption_key,
                                            in_memory_mount_path);
         FatFsResult initResult = filesystem->init(conclave::DiskInitialization::FORMAT);
@@ -279,6 +356,17 @@ DLSYM_STATIC {
 };
 
 
+//  Release the threads held by the filesystems, called when the Enclave is shut down.
+//  The filesystems keep working afterwards, with the sectors encrypted and decrypted on the calling thread.
+JNIEXPORT void JNICALL Java_com_r3_conclave_enclave_internal_Native_shutdownFileSystems(JNIEnv*, jobject) {
+    DEBUG_PRINT_FUNCTION;
+    sectorWorkers->stop();
+}
+DLSYM_STATIC {
+    DLSYM_ADD(Java_com_r3_conclave_enclave_internal_Native_shutdownFileSystems);
+};
+
+
 static std::string normalizePath(const std::string& path_in) {
     std::string path(path_in);
 
@@ -297,6 +385,7 @@ static std::string normalizePath(const std::string& path_in) {
     and "/tmp" for the in-memory one, a file like this "/test.txt" will be handled by the persistent
     filesystem, a file like "/tmp/test.txt" will be handled by the in-memory filesystem and
     a file like "/tmptest.txt" will be handled by the persistent one.
+    The same applies to the mount points of any additional persistent filesystem, e.g. "/archive".
 */
 static std::shared_ptr<conclave::FatFsFileManager> getFatFsInstanceFromPath(const char* path_in) {
 
@@ -314,27 +403,21 @@ static std::shared_ptr<conclave::FatFsFileManager> getFatFsInstanceFromPath(cons
             found_instances.push_back(it);
         }
     }
-    if (found_instances.size() == 1) {
-        FATFS_DEBUG_PRINT("Found filesystem for path %s\n", path.c_str());
-        return found_instances.at(0);
-    } else if (found_instances.size() == 2) {
-        //  This is the case where a path has matching two filesystems: one with a mount point "/"
-        //    and another with a "child" mount point, for example "/tmp".
-        //  The assumption here is that the root is always "/" and that we always have a root.
-        const std::string root = "/";
-
-        for (auto& it : found_instances) {
-            if (it->getMountPath() != root) {
-                FATFS_DEBUG_PRINT("Found filesystem with mount %s for path %s\n", it->getMountPath().c_str(), path.c_str());
-                return it;
-            }
-        }
-        FATFS_DEBUG_PRINT("Filesystem not selected, mount checks failed for path %s\n", path.c_str());
-        return nullptr;
-    } else {
+    if (found_instances.empty()) {
         FATFS_DEBUG_PRINT("Filesystem not found for path: %s\n", path.c_str());
         return nullptr;
     }
+    //  A path can match several filesystems when their mount points are nested, for example "/"
+    //    and "/tmp", in which case the filesystem with the longest mount point is the owner.
+    auto owner = found_instances.at(0);
+
+    for (auto& it : found_instances) {
+        if (it->getMountPath().size() > owner->getMountPath().size()) {
+            owner = it;
+        }
+    }
+    FATFS_DEBUG_PRINT("Found filesystem with mount %s for path %s\n", owner->getMountPath().c_str(), path.c_str());
+    return owner;
 };
 
 
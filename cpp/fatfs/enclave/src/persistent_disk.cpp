@@ -31,15 +31,31 @@ namespace conclave {
     
     PersistentDisk::PersistentDisk(const BYTE drive,
                                    const unsigned long size,
-                                   const unsigned char* encryption_key) :
-        FatFsDisk(drive, size) {
-
+                                   const unsigned long cache_size,
+                                   const unsigned char* encryption_key,
+                                   const std::string& mount_path,
+                                   const std::shared_ptr<SectorWorkerPool>& workers) :
+        FatFsDisk(drive, size),
+        cache_(cache_size / SECTOR_SIZE),
+        write_back_([this](LBA_t sector, const BYTE* input_buf) { return writeToHost(sector, input_buf); }),
+        submit_writes_([this]() { return submitWrites(); }),
+        workers_(workers) {
+
+        //  The sector id is the IV, so each drive needs its own key. The drive mounted at the root keeps
+        //    the original derivation, the others add their mount path, which does not change across restarts
+        //    (unlike the drive id, which depends on which other drives are configured).
+        const std::string derivation_text = (mount_path == "/") ?
+            "R3 persistent filesystem I" :
+            "R3 persistent filesystem I " + mount_path;
         sgx_sha256_hash_t hash_encryption_key;
-        getHashFromKey("R3 persistent filesystem I",
+        getHashFromKey(derivation_text.c_str(),
                        encryption_key,
                        sizeof(sgx_aes_gcm_128bit_key_t),
                        &hash_encryption_key);
         memcpy(&encryption_key_, &hash_encryption_key, sizeof(sgx_aes_gcm_128bit_key_t));
+        write_batch_plain_.resize(MAX_WRITE_BATCH_SECTORS * SECTOR_SIZE);
+        write_batch_buffer_.resize(MAX_WRITE_BATCH_SECTORS * SECTOR_SIZE_AND_MAC);
+        write_batch_sectors_.reserve(MAX_WRITE_BATCH_SECTORS);
     };
 
 
@@ -100,12 +116,12 @@ namespace conclave {
         const unsigned long num_sectors = getNumSectors();
         const unsigned long square_root = std::ceil(std::sqrt(num_sectors));
 
-        //  The number of sectors can't be bigger than 2^32 - 1 (see GET_SECTOR_COUNT in diskIoCtl below)
-        //  Hence the sector tables can just be of LBA_t type (currently "unsigned int").
-        //  This is to save memory when the tables are big.
+        //  The number of sectors is bounded by kMaxPersistentSize in api.cpp (see GET_SECTOR_COUNT in diskIoCtl below)
+        //  Hence the sector tables can just be of LBA_t type, each table holding about the square root
+        //    of the number of sectors.
         const LBA_t size_table_1 = square_root - (square_root % SECTOR_SIZE) + SECTOR_SIZE;
         //  We do not want this value to be zero in case the number of sectors is very small
-        const LBA_t size_table_2 = std::max(num_sectors / size_table_1, 1ul);
+        const LBA_t size_table_2 = std::max<LBA_t>(num_sectors / size_table_1, 1);
         sectors_table_1_.reserve(size_table_1);
         sectors_table_2_.reserve(size_table_2);
 
@@ -138,17 +154,98 @@ namespace conclave {
         return mapped_sector_id;
     }
 #endif  //  End of SECTOR_SHUFFLING
-                               
 
-    DRESULT PersistentDisk::flush() {
+
+    unsigned long PersistentDisk::hostSectorId(const LBA_t sector) {
+#if SECTOR_SHUFFLING
+        return mapSectorId(sector);
+#else
+        return sector;
+#endif
+    }
+
+
+    DRESULT PersistentDisk::readFromHost(const unsigned long sector_id, BYTE* output_buf) {
+        int res = 0;
+        host_encrypted_read_ocall(&res,
+                                  getDriveId(),
+                                  sector_id,
+                                  1,
+                                  SECTOR_SIZE_AND_MAC,
+                                  output_buf,
+                                  SECTOR_SIZE_AND_MAC);
+        if (res < 0) {
+            FATFS_DEBUG_PRINT("Read failed, result: %d\n", res);
+            return RES_ERROR;
+        }
+        return RES_OK;
+    }
+
+
+    DRESULT PersistentDisk::writeToHost(const LBA_t sector, const BYTE* input_buf) {
+        const size_t batch_index = write_batch_sectors_.size();
+#if ENCRYPTION
+        memcpy(write_batch_plain_.data() + batch_index * SECTOR_SIZE, input_buf, SECTOR_SIZE);
+#else
+        memcpy(write_batch_buffer_.data() + batch_index * SECTOR_SIZE_AND_MAC, input_buf, SECTOR_SIZE);
+#endif
+        write_batch_sectors_.push_back(hostSectorId(sector));
+
+        if (write_batch_sectors_.size() == MAX_WRITE_BATCH_SECTORS) {
+            return submitWrites();
+        }
+        return RES_OK;
+    }
+
+
+    DRESULT PersistentDisk::submitWrites() {
+        const unsigned int num_sectors = write_batch_sectors_.size();
+
+        if (num_sectors == 0) {
+            return RES_OK;
+        }
+#if ENCRYPTION
+        const int res_encrypt = workers_->run(num_sectors, [this](const size_t i) {
+            return encrypt(write_batch_sectors_[i],
+                           write_batch_plain_.data() + i * SECTOR_SIZE,
+                           write_batch_buffer_.data() + i * SECTOR_SIZE_AND_MAC);
+        });
+
+        if (res_encrypt != 0) {
+            write_batch_sectors_.clear();
+            return RES_ERROR;
+        }
+#endif
         int res = -1;
-        const unsigned int sector_size = SECTOR_SIZE_AND_MAC;
-        host_encrypted_write_ocall(&res,
-                                   getDriveId(),
-                                   buffer_writes_,
-                                   sector_size,
-                                   buffer_index_);
+        host_encrypted_write_batch_ocall(&res,
+                                         getDriveId(),
+                                         write_batch_buffer_.data(),
+                                         num_sectors * SECTOR_SIZE_AND_MAC,
+                                         SECTOR_SIZE_AND_MAC,
+                                         write_batch_sectors_.data(),
+                                         num_sectors);
+        write_batch_sectors_.clear();
+
         if (res < 0) {
+            FATFS_DEBUG_PRINT("Write failed, result: %d\n", res);
+            return RES_ERROR;
+        }
+        return RES_OK;
+    }
+
+
+    DRESULT PersistentDisk::flush() {
+        const DRESULT res = cache_.flush(write_back_, submit_writes_);
+
+        if (res != RES_OK) {
+            return res;
+        }
+        //  Ask the Host to make all the writes so far durable in one go
+        int res_sync = -1;
+        host_disk_sync_ocall(&res_sync, getDriveId());
+
+        if (res_sync < 0) {
+            FATFS_DEBUG_PRINT("Sync failed, result: %d\n", res_sync);
             return RES_ERROR;
         }
         return RES_OK;
@@ -158,62 +255,60 @@ namespace conclave {
     DRESULT PersistentDisk::diskRead(BYTE* output_buf,
                                      LBA_t sector,
                                      BYTE num_reads) {
-        DRESULT res_flush = flush();
+        //  A pending write might be for one of the sectors we are about to read
+        DRESULT res = cache_.submit(submit_writes_);
 
-        if (res_flush != RES_OK) {
-            return RES_ERROR;
+        if (res != RES_OK) {
+            return res;
         }
-        int res = 0;
-    
-        BYTE* p_output_buf = output_buf;
-        int i = 0;
-    
-        while (i < num_reads) {
-#if SECTOR_SHUFFLING
-            const unsigned long sector_id = mapSectorId(sector + i);
-#else
-            const unsigned long sector_id = sector + i;
-#endif
+        read_batch_sectors_.clear();
+        read_batch_indexes_.clear();
 
-#if ENCRYPTION
-            host_encrypted_read_ocall(&res,
-                                      getDriveId(),
-                                      sector_id,
-                                      1,
-                                      SECTOR_SIZE_AND_MAC,
-                                      buffer_encryption_,
-                                      SECTOR_SIZE_AND_MAC);
-            if (res < 0) {
-                FATFS_DEBUG_PRINT("Read failed, result: %d\n", res);
-                return RES_ERROR;
-            }
-            const int res_decrypt = decrypt(sector_id, buffer_encryption_, p_output_buf);
+        if (read_batch_buffer_.size() < num_reads * SECTOR_SIZE_AND_MAC) {
+            read_batch_buffer_.resize(num_reads * SECTOR_SIZE_AND_MAC);
+        }
 
-            if (res_decrypt != 0) {
-                return RES_ERROR;
+        //  First fetch all the sectors which are not in the cache, nothing is evicted until they are decrypted
+        for (BYTE i = 0; i < num_reads; i++) {
+            if (cache_.get(sector + i, output_buf + i * SECTOR_SIZE)) {
+                continue;
             }
+            const unsigned long sector_id = hostSectorId(sector + i);
+#if ENCRYPTION
+            BYTE* p_host_buf = read_batch_buffer_.data() + read_batch_sectors_.size() * SECTOR_SIZE_AND_MAC;
 #else
-            host_encrypted_read_ocall(&res,
-                                      getDriveId(),
-                                      sector_id,
-                                      1,
-                                      SECTOR_SIZE_AND_MAC,
-                                      p_output_buf,
-                                      SECTOR_SIZE_AND_MAC);
-            if (res < 0) {
-                FATFS_DEBUG_PRINT("Read failed, result: %d\n", res);
-                return RES_ERROR;
-            }
+            BYTE* p_host_buf = output_buf + i * SECTOR_SIZE;
 #endif
+            res = readFromHost(sector_id, p_host_buf);
 
-            p_output_buf += SECTOR_SIZE;
-            i++;
+            if (res != RES_OK) {
+                return res;
+            }
+            read_batch_sectors_.push_back(sector_id);
+            read_batch_indexes_.push_back(i);
         }
-        if (res == -1) {
+
+#if ENCRYPTION
+        const int res_decrypt = workers_->run(read_batch_sectors_.size(), [this, output_buf](const size_t i) {
+            return decrypt(read_batch_sectors_[i],
+                           read_batch_buffer_.data() + i * SECTOR_SIZE_AND_MAC,
+                           output_buf + read_batch_indexes_[i] * SECTOR_SIZE);
+        });
+
+        if (res_decrypt != 0) {
             return RES_ERROR;
-        } else {
-            return RES_OK;
         }
+#endif
+
+        for (const BYTE i : read_batch_indexes_) {
+            res = cache_.put(sector + i, output_buf + i * SECTOR_SIZE, false, write_back_);
+
+            if (res != RES_OK) {
+                return res;
+            }
+        }
+        //  Sectors evicted by this read
+        return cache_.submit(submit_writes_);
     }
 
 #if _READONLY == 0
@@ -221,37 +316,18 @@ namespace conclave {
                                       LBA_t sector,
                                       BYTE num_writes) {
         const BYTE* p_input_buf = input_buf;
-        unsigned int i_num = 0;
 
-        unsigned char* p_output_buf = buffer_writes_;
+        for (BYTE i = 0; i < num_writes; i++) {
+            //  With the cache disabled this queues the sector straight for the Host
+            const DRESULT res = cache_.put(sector + i, p_input_buf, true, write_back_);
 
-        while (i_num < num_writes) {
-#if SECTOR_SHUFFLING
-            const unsigned long sector_id = mapSectorId(sector + i_num);
-#else
-            const unsigned long sector_id = sector + i_num;
-#endif
-            buffer_index_ = sector_id;
-            
-#if ENCRYPTION
-            const int res_encrypt = encrypt(sector_id, p_input_buf, p_output_buf);
-
-            if (res_encrypt == -1) {
-                return RES_ERROR;
-            }
-#else
-            memcpy(p_output_buf, p_input_buf, SECTOR_SIZE);
-#endif
-            p_input_buf += SECTOR_SIZE;
-        
-            DRESULT res = flush();
-    
             if (res != RES_OK) {
-                return RES_ERROR;
+                return res;
             }
-            i_num ++;
+            p_input_buf += SECTOR_SIZE;
         }
-        return RES_OK;
+        //  Sectors evicted by this write, or all of them if the cache is disabled
+        return cache_.submit(submit_writes_);
     }
 #endif
 
@@ -274,9 +350,9 @@ namespace conclave {
             break;
 
         case GET_SECTOR_COUNT:
-            //  As LBA_t is currently a 4 bytes value, getNumSectors should not return a value bigger than
-            //    2 ^ 32 - 1. This is currently always the case as we throw an exception in
-            //    case the related filesystem size requires a bigger number of sectors.
+            //  LBA_t is a 8 bytes value (FF_LBA64), so any number of sectors returned by getNumSectors fits.
+            //  The number is still bounded as we throw an exception in case the related filesystem size
+            //    is too big.
             //  See the const kMaxInMemorySize, kMaxPersistentSize and the JNI setupFileSystems function in api.cpp
             *((LBA_t*)buf) = getNumSectors();
             result = RES_OK;
@@ -302,6 +378,14 @@ namespace conclave {
     void PersistentDisk::diskStop() {
         DEBUG_PRINT_FUNCTION;
 
+        //  The sector tables are still needed to write back what is left in the cache
+        const DRESULT res = flush();
+
+        if (res != RES_OK) {
+            FATFS_DEBUG_PRINT("Error: could not write back the cached sectors, result: %d\n", res);
+        }
+        cache_.clear();
+
 #if SECTOR_SHUFFLING
         sectors_table_1_.clear();
         sectors_table_2_.clear();
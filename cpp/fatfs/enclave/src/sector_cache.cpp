@@ -0,0 +1,153 @@
+#include <vector>
+#include <algorithm>
+#include <string.h>
+
+#include "sector_cache.hpp"
+
+namespace conclave {
+
+    SectorCache::SectorCache(const unsigned long max_sectors) : max_sectors_(max_sectors) {
+        index_.reserve(max_sectors);
+    }
+
+
+    bool SectorCache::isEnabled() const {
+        return max_sectors_ > 0;
+    }
+
+
+    bool SectorCache::get(const LBA_t sector, BYTE* output_buf) {
+        auto it = index_.find(sector);
+
+        if (it == index_.end()) {
+            return false;
+        }
+        entries_.splice(entries_.begin(), entries_, it->second);
+        memcpy(output_buf, it->second->data, SECTOR_SIZE);
+        return true;
+    }
+
+
+    DRESULT SectorCache::put(const LBA_t sector,
+                             const BYTE* input_buf,
+                             const bool dirty,
+                             const WriteBack& write_back) {
+        if (!isEnabled()) {
+            return dirty ? write_back(sector, input_buf) : RES_OK;
+        }
+        auto it = index_.find(sector);
+
+        if (it != index_.end()) {
+            entries_.splice(entries_.begin(), entries_, it->second);
+            memcpy(it->second->data, input_buf, SECTOR_SIZE);
+            it->second->dirty = it->second->dirty || dirty;
+            return RES_OK;
+        }
+
+        //  The cache can be over capacity after evicted sectors have been put back, see restoreEvicted
+        while (entries_.size() >= max_sectors_) {
+            auto last = std::prev(entries_.end());
+
+            if (last->dirty) {
+                const DRESULT res = write_back(last->sector, last->data);
+
+                if (res != RES_OK) {
+                    restoreEvicted();
+                    return res;
+                }
+            }
+            index_.erase(last->sector);
+
+            if (last->dirty) {
+                //  Keep the sector until the Host has it
+                evicted_.splice(evicted_.end(), entries_, last);
+            } else if (entries_.size() == max_sectors_) {
+                //  Reuse the node of the least recently used sector
+                entries_.splice(entries_.begin(), entries_, last);
+                break;
+            } else {
+                entries_.erase(last);
+            }
+        }
+
+        if (entries_.size() < max_sectors_) {
+            entries_.emplace_front();
+        }
+        Entry& entry = entries_.front();
+        entry.sector = sector;
+        entry.dirty = dirty;
+        memcpy(entry.data, input_buf, SECTOR_SIZE);
+        index_[sector] = entries_.begin();
+        return RES_OK;
+    }
+
+
+    DRESULT SectorCache::submit(const Submit& submit_writes) {
+        const DRESULT res = submit_writes();
+
+        if (res == RES_OK) {
+            evicted_.clear();
+        } else {
+            restoreEvicted();
+        }
+        return res;
+    }
+
+
+    DRESULT SectorCache::flush(const WriteBack& write_back, const Submit& submit_writes) {
+        std::vector<Entry*> dirty_entries;
+
+        for (Entry& entry : entries_) {
+            if (entry.dirty) {
+                dirty_entries.push_back(&entry);
+            }
+        }
+        //  Writing in sector order gives the Host sequential runs whenever possible
+        std::sort(dirty_entries.begin(), dirty_entries.end(), [](const Entry* a, const Entry* b) {
+            return a->sector < b->sector;
+        });
+
+        for (Entry* entry : dirty_entries) {
+            const DRESULT res = write_back(entry->sector, entry->data);
+
+            if (res != RES_OK) {
+                restoreEvicted();
+                return res;
+            }
+        }
+        //  Some of the sectors might have been sent already, but only now are they all known to be with the Host
+        const DRESULT res = submit(submit_writes);
+
+        if (res != RES_OK) {
+            return res;
+        }
+
+        for (Entry* entry : dirty_entries) {
+            entry->dirty = false;
+        }
+        return RES_OK;
+    }
+
+
+    void SectorCache::restoreEvicted() {
+        //  Newest first, so that an older copy of a sector evicted more than once is dropped
+        while (!evicted_.empty()) {
+            auto last = std::prev(evicted_.end());
+
+            if (index_.find(last->sector) == index_.end()) {
+                //  Back in as the least recently used, it's still dirty
+                entries_.splice(entries_.end(), evicted_, last);
+                index_[last->sector] = std::prev(entries_.end());
+            } else {
+                evicted_.erase(last);
+            }
+        }
+    }
+
+
+    void SectorCache::clear() {
+        entries_.clear();
+        index_.clear();
+        evicted_.clear();
+    }
+}
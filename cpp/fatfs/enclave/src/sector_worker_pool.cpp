@@ -0,0 +1,122 @@
+#include "common.hpp"
+
+#include "sector_worker_pool.hpp"
+
+namespace conclave {
+
+    //  Splitting a batch costs a wake up of the workers, which is only worth it if each thread gets
+    //    a few sectors to encrypt or decrypt
+    static const size_t kMinSectorsPerThread = 8;
+
+
+    SectorWorkerPool::SectorWorkerPool(const unsigned int num_workers) : num_workers_(num_workers) {
+        threads_.reserve(num_workers);
+    }
+
+
+    SectorWorkerPool::~SectorWorkerPool() {
+        stop();
+    }
+
+
+    bool SectorWorkerPool::start() {
+        for (unsigned int i = 0; i < num_workers_; i++) {
+            r3::conclave::Thread thread = r3::conclave::EnclaveThreadFactory::create([this] { work(); });
+            const sgx_status_t res = thread.start();
+
+            if (res != SGX_SUCCESS) {
+                FATFS_DEBUG_PRINT("Error: could not start a sector worker, error code: %d\n", res);
+                return false;
+            }
+            threads_.push_back(std::move(thread));
+        }
+        return true;
+    }
+
+
+    void SectorWorkerPool::stop() {
+        std::lock_guard<std::mutex> run_lock(run_mutex_);
+        {
+            std::lock_guard<std::mutex> lock(mutex_);
+            stopping_ = true;
+        }
+        batch_available_.notify_all();
+
+        for (auto& thread : threads_) {
+            thread.join();
+        }
+        threads_.clear();
+    }
+
+
+    int SectorWorkerPool::run(const size_t count, const Task& task) {
+        if (count < 2 * kMinSectorsPerThread) {
+            return runSerially(count, task);
+        }
+        std::unique_lock<std::mutex> run_lock(run_mutex_, std::try_to_lock);
+
+        if (!run_lock.owns_lock() || threads_.empty()) {
+            return runSerially(count, task);
+        }
+        {
+            std::lock_guard<std::mutex> lock(mutex_);
+            task_ = &task;
+            count_ = count;
+            next_index_ = 0;
+            failed_ = false;
+            busy_workers_ = threads_.size();
+            batch_id_++;
+        }
+        batch_available_.notify_all();
+        runTasks();
+
+        //  The task is owned by the caller, so no worker can still be using it when we return
+        std::unique_lock<std::mutex> lock(mutex_);
+        batch_done_.wait(lock, [this] { return busy_workers_ == 0; });
+        task_ = nullptr;
+        return failed_ ? -1 : 0;
+    }
+
+
+    int SectorWorkerPool::runSerially(const size_t count, const Task& task) {
+        for (size_t i = 0; i < count; i++) {
+            if (task(i) != 0) {
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+
+    void SectorWorkerPool::runTasks() {
+        size_t index;
+
+        while (!failed_ && (index = next_index_.fetch_add(1)) < count_) {
+            if ((*task_)(index) != 0) {
+                failed_ = true;
+            }
+        }
+    }
+
+
+    void SectorWorkerPool::work() {
+        unsigned long last_batch_id = 0;
+        std::unique_lock<std::mutex> lock(mutex_);
+
+        while (true) {
+            batch_available_.wait(lock, [&] { return stopping_ || batch_id_ != last_batch_id; });
+
+            if (stopping_) {
+                return;
+            }
+            last_batch_id = batch_id_;
+            lock.unlock();
+            runTasks();
+            lock.lock();
+
+            if (--busy_workers_ == 0) {
+                batch_done_.notify_one();
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+#include <gtest/gtest.h>
+#include <string.h>
+#include <utility>
+#include <vector>
+
+#include <sector_cache.cpp>
+
+using namespace std;
+using namespace conclave;
+
+/**
+ * Records the sectors written back by the cache, and fails the write back of failing_sector.
+ * Like PersistentDisk, the sectors written back since the last submit are dropped if the submit fails.
+ */
+struct WriteBackRecorder {
+    vector<pair<LBA_t, BYTE>> writes;
+    vector<pair<LBA_t, BYTE>> submitted;
+    LBA_t failing_sector = static_cast<LBA_t>(-1);
+    bool failing_submit = false;
+    size_t queued = 0;
+
+    SectorCache::WriteBack callback() {
+        return [this](LBA_t sector, const BYTE* input_buf) {
+            if (sector == failing_sector) {
+                return RES_ERROR;
+            }
+            writes.emplace_back(sector, input_buf[0]);
+            queued++;
+            return RES_OK;
+        };
+    }
+
+    SectorCache::Submit submit() {
+        return [this]() {
+            const auto first = writes.end() - queued;
+            queued = 0;
+
+            if (failing_submit) {
+                return RES_ERROR;
+            }
+            submitted.insert(submitted.end(), first, writes.end());
+            return RES_OK;
+        };
+    }
+};
+
+static vector<BYTE> sector_data(BYTE value) {
+    return vector<BYTE>(SECTOR_SIZE, value);
+}
+
+static bool contains(SectorCache& cache, LBA_t sector, BYTE value) {
+    vector<BYTE> buf(SECTOR_SIZE);
+    return cache.get(sector, buf.data()) && buf == sector_data(value);
+}
+
+TEST(sector_cache, get_returns_what_was_put) {
+    SectorCache cache(4);
+    WriteBackRecorder recorder;
+
+    EXPECT_EQ(cache.put(7, sector_data(1).data(), false, recorder.callback()), RES_OK);
+    EXPECT_TRUE(contains(cache, 7, 1));
+    EXPECT_FALSE(contains(cache, 8, 1));
+    EXPECT_TRUE(recorder.writes.empty());
+}
+
+TEST(sector_cache, evicts_least_recently_used) {
+    SectorCache cache(2);
+    WriteBackRecorder recorder;
+
+    cache.put(1, sector_data(1).data(), false, recorder.callback());
+    cache.put(2, sector_data(2).data(), false, recorder.callback());
+    //  Reading sector 1 makes sector 2 the least recently used
+    EXPECT_TRUE(contains(cache, 1, 1));
+    cache.put(3, sector_data(3).data(), false, recorder.callback());
+
+    EXPECT_TRUE(contains(cache, 1, 1));
+    EXPECT_FALSE(contains(cache, 2, 2));
+    EXPECT_TRUE(contains(cache, 3, 3));
+    EXPECT_TRUE(recorder.writes.empty());
+}
+
+TEST(sector_cache, writes_back_dirty_sector_on_eviction) {
+    SectorCache cache(2);
+    WriteBackRecorder recorder;
+
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+    cache.put(2, sector_data(2).data(), false, recorder.callback());
+    EXPECT_TRUE(recorder.writes.empty());
+
+    cache.put(3, sector_data(3).data(), false, recorder.callback());
+    ASSERT_EQ(recorder.writes.size(), 1u);
+    EXPECT_EQ(recorder.writes[0], make_pair(static_cast<LBA_t>(1), static_cast<BYTE>(1)));
+
+    //  The clean sector is evicted without being written back
+    cache.put(4, sector_data(4).data(), false, recorder.callback());
+    EXPECT_EQ(recorder.writes.size(), 1u);
+}
+
+TEST(sector_cache, replacing_a_sector_keeps_it_dirty) {
+    SectorCache cache(1);
+    WriteBackRecorder recorder;
+
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+    cache.put(1, sector_data(5).data(), false, recorder.callback());
+    cache.put(2, sector_data(2).data(), false, recorder.callback());
+
+    ASSERT_EQ(recorder.writes.size(), 1u);
+    EXPECT_EQ(recorder.writes[0], make_pair(static_cast<LBA_t>(1), static_cast<BYTE>(5)));
+}
+
+TEST(sector_cache, flush_writes_dirty_sectors_in_order_and_cleans_them) {
+    SectorCache cache(4);
+    WriteBackRecorder recorder;
+
+    cache.put(9, sector_data(9).data(), true, recorder.callback());
+    cache.put(3, sector_data(3).data(), false, recorder.callback());
+    cache.put(5, sector_data(5).data(), true, recorder.callback());
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_OK);
+    vector<pair<LBA_t, BYTE>> expected = {{1, 1}, {5, 5}, {9, 9}};
+    EXPECT_EQ(recorder.writes, expected);
+
+    //  Nothing is dirty anymore, so neither a second flush nor evictions write anything back
+    recorder.writes.clear();
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_OK);
+    for (LBA_t sector = 10; sector < 14; sector++) {
+        cache.put(sector, sector_data(0).data(), false, recorder.callback());
+    }
+    EXPECT_TRUE(recorder.writes.empty());
+    EXPECT_TRUE(contains(cache, 13, 0));
+}
+
+TEST(sector_cache, failed_flush_keeps_sectors_dirty) {
+    SectorCache cache(4);
+    WriteBackRecorder recorder;
+
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+    cache.put(2, sector_data(2).data(), true, recorder.callback());
+    recorder.failing_sector = 2;
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_ERROR);
+
+    //  Sector 1 was written back but never submitted, so it's still dirty as well. The copy queued by
+    //  the failed flush is submitted too.
+    recorder.failing_sector = static_cast<LBA_t>(-1);
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_OK);
+    vector<pair<LBA_t, BYTE>> expected = {{1, 1}, {1, 1}, {2, 2}};
+    EXPECT_EQ(recorder.submitted, expected);
+}
+
+TEST(sector_cache, zero_capacity_writes_through) {
+    SectorCache cache(0);
+    WriteBackRecorder recorder;
+
+    EXPECT_FALSE(cache.isEnabled());
+    EXPECT_EQ(cache.put(1, sector_data(1).data(), true, recorder.callback()), RES_OK);
+    EXPECT_EQ(cache.put(2, sector_data(2).data(), false, recorder.callback()), RES_OK);
+
+    vector<pair<LBA_t, BYTE>> expected = {{1, 1}};
+    EXPECT_EQ(recorder.writes, expected);
+    EXPECT_FALSE(contains(cache, 1, 1));
+    EXPECT_FALSE(contains(cache, 2, 2));
+
+    recorder.failing_sector = 3;
+    EXPECT_EQ(cache.put(3, sector_data(3).data(), true, recorder.callback()), RES_ERROR);
+}
+
+TEST(sector_cache, failed_write_back_leaves_cache_unchanged) {
+    SectorCache cache(2);
+    WriteBackRecorder recorder;
+
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+    cache.put(2, sector_data(2).data(), false, recorder.callback());
+    recorder.failing_sector = 1;
+
+    EXPECT_EQ(cache.put(3, sector_data(3).data(), false, recorder.callback()), RES_ERROR);
+    EXPECT_FALSE(contains(cache, 3, 3));
+    EXPECT_TRUE(contains(cache, 2, 2));
+    EXPECT_TRUE(contains(cache, 1, 1));
+
+    //  Sector 1 is still dirty, so it's written back once the Host accepts it
+    recorder.failing_sector = static_cast<LBA_t>(-1);
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_OK);
+    vector<pair<LBA_t, BYTE>> expected = {{1, 1}};
+    EXPECT_EQ(recorder.writes, expected);
+}
+
+TEST(sector_cache, failed_submit_keeps_flushed_sectors_dirty) {
+    SectorCache cache(4);
+    WriteBackRecorder recorder;
+
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+    cache.put(2, sector_data(2).data(), true, recorder.callback());
+    recorder.failing_submit = true;
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_ERROR);
+    EXPECT_TRUE(recorder.submitted.empty());
+
+    //  Both sectors are written back again by the next flush
+    recorder.failing_submit = false;
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_OK);
+    vector<pair<LBA_t, BYTE>> expected = {{1, 1}, {2, 2}};
+    EXPECT_EQ(recorder.submitted, expected);
+}
+
+TEST(sector_cache, failed_submit_restores_evicted_sectors) {
+    SectorCache cache(2);
+    WriteBackRecorder recorder;
+
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+    cache.put(2, sector_data(2).data(), true, recorder.callback());
+    cache.put(3, sector_data(3).data(), false, recorder.callback());
+    cache.put(4, sector_data(4).data(), false, recorder.callback());
+    vector<pair<LBA_t, BYTE>> evicted = {{1, 1}, {2, 2}};
+    EXPECT_EQ(recorder.writes, evicted);
+    EXPECT_FALSE(contains(cache, 1, 1));
+
+    recorder.failing_submit = true;
+    EXPECT_EQ(cache.submit(recorder.submit()), RES_ERROR);
+    EXPECT_TRUE(contains(cache, 1, 1));
+    EXPECT_TRUE(contains(cache, 2, 2));
+
+    recorder.failing_submit = false;
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_OK);
+    EXPECT_EQ(recorder.submitted, evicted);
+
+    //  The cache shrinks back to its capacity as sectors are added
+    recorder.writes.clear();
+    cache.put(5, sector_data(5).data(), false, recorder.callback());
+    cache.put(6, sector_data(6).data(), false, recorder.callback());
+    EXPECT_TRUE(recorder.writes.empty());
+    EXPECT_TRUE(contains(cache, 5, 5));
+    EXPECT_TRUE(contains(cache, 6, 6));
+    EXPECT_FALSE(contains(cache, 1, 1));
+    EXPECT_FALSE(contains(cache, 2, 2));
+    EXPECT_FALSE(contains(cache, 3, 3));
+    EXPECT_FALSE(contains(cache, 4, 4));
+}
+
+TEST(sector_cache, failed_submit_keeps_latest_copy_of_evicted_sector) {
+    SectorCache cache(1);
+    WriteBackRecorder recorder;
+
+    //  Sector 1 is evicted twice before the submit, and then written a third time
+    cache.put(1, sector_data(1).data(), true, recorder.callback());
+    cache.put(2, sector_data(2).data(), false, recorder.callback());
+    cache.put(1, sector_data(5).data(), true, recorder.callback());
+    cache.put(2, sector_data(2).data(), false, recorder.callback());
+    recorder.failing_submit = true;
+    EXPECT_EQ(cache.submit(recorder.submit()), RES_ERROR);
+    EXPECT_TRUE(contains(cache, 1, 5));
+
+    cache.put(1, sector_data(6).data(), true, recorder.callback());
+    cache.put(3, sector_data(3).data(), false, recorder.callback());
+    EXPECT_EQ(cache.submit(recorder.submit()), RES_ERROR);
+    EXPECT_TRUE(contains(cache, 1, 6));
+
+    recorder.failing_submit = false;
+    EXPECT_EQ(cache.flush(recorder.callback(), recorder.submit()), RES_OK);
+    vector<pair<LBA_t, BYTE>> expected = {{1, 6}};
+    EXPECT_EQ(recorder.submitted, expected);
+}
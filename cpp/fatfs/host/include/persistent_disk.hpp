@@ -12,7 +12,7 @@ extern "C" {
 
 }
 
-long host_disk_get_size(const unsigned char drive, const unsigned long persistent_size);
+long host_disk_get_size(const unsigned char drive, const unsigned long persistent_size, const char* mount_path);
 
 int host_disk_start(const unsigned char drive);
 
@@ -27,6 +27,9 @@ int host_disk_read(const unsigned char drive,
 int host_disk_write(const unsigned char drive,
                     const unsigned char* buf,
                     const unsigned int sector_size,
-                    const unsigned long sector);
+                    const unsigned long* sectors,
+                    const unsigned int num_sectors);
+
+int host_disk_sync(const unsigned char drive);
 
 #endif
@@ -21,10 +21,71 @@
 static jobject obj;
 static JavaVM *jvm = NULL;
 
+//  The methods of FileSystemHandler.kt, looked up once in setup
+static jmethodID get_drive_size_mid = nullptr;
+static jmethodID read_mid = nullptr;
+static jmethodID write_mid = nullptr;
+static jmethodID sync_mid = nullptr;
+
+/*
+  OCalls can run on threads which are not attached to the JVM (e.g. the switchless worker threads).
+  Rather than attaching and detaching the thread on every OCall, each thread is attached the first
+  time it needs the JVM and detached when it exits. Threads which were already attached, like the
+  Java threads that called into the Enclave, are used as they are and never detached here.
+*/
+class JvmThreadAttachment {
+public:
+    JNIEnv* env = nullptr;
+    bool attached_here = false;
+
+    ~JvmThreadAttachment() {
+        if (attached_here && jvm != NULL) {
+            jvm->DetachCurrentThread();
+        }
+    }
+};
+
+static thread_local JvmThreadAttachment thread_attachment;
+
+static JNIEnv* getJniEnv() {
+    if (thread_attachment.env != nullptr) {
+        return thread_attachment.env;
+    }
+    JNIEnv* env = NULL;
+
+    if (jvm->GetEnv((void**)&env, JNI_VERSION_1_8) == JNI_OK) {
+        thread_attachment.env = env;
+        return env;
+    }
+    //  As a daemon, so that an attached thread does not prevent the JVM from exiting
+    if (jvm->AttachCurrentThreadAsDaemon((void**)&env, NULL) != JNI_OK) {
+        return nullptr;
+    }
+    thread_attachment.env = env;
+    thread_attachment.attached_here = true;
+    return env;
+}
+
+/*
+  On a thread that was already attached, a pending exception is left to the Java code that called
+  into the Enclave, which will see it when the ECall returns. A thread attached here has no Java caller,
+  so the exception is printed and cleared to keep the thread usable for the following OCalls.
+*/
+static bool checkException(JNIEnv* env) {
+    if (!env->ExceptionCheck()) {
+        return false;
+    }
+    if (thread_attachment.attached_here) {
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+    return true;
+}
+
 /*
   This is called by Java/Kotlin (FileSystemHandler.kt) during the setup of the files
   that represent the FatFs persistent-encrypted filesystems.
-  It is only needed to set the global reference of the JavaVM
+  It sets the global reference of the JavaVM and looks up the methods called by the OCalls
 */
 JNIEXPORT void JNICALL Java_com_r3_conclave_host_internal_fatfs_FileSystemHandler_setup(JNIEnv* input_env,
                                                                                         jobject input_obj) {
@@ -41,14 +102,18 @@ JNIEXPORT void JNICALL Java_com_r3_conclave_host_internal_fatfs_FileSystemHandle
     if (cls == nullptr) {
         FATFS_DEBUG_PRINT("Class not found %d\n", -1);
         return;
-    }    
+    }
+    get_drive_size_mid = input_env->GetMethodID(cls, "getDriveSize", "(IJLjava/lang/String;)J");
+    read_mid = input_env->GetMethodID(cls, "read", "(IJIILjava/nio/ByteBuffer;)I");
+    write_mid = input_env->GetMethodID(cls, "write", "(ILjava/nio/ByteBuffer;I[J)I");
+    sync_mid = input_env->GetMethodID(cls, "sync", "(I)I");
 }
 
 
 /*
   This is called by Java/Kotlin (FileSystemHandler.kt) at the closing of the class instance
   that handles the files representing the FatFs persistent-encrypted filesystems.
-  It is only needed to clean up the global reference of the JavaVM 
+  It is only needed to clean up the global reference of the JavaVM
 */
 JNIEXPORT void JNICALL Java_com_r3_conclave_host_internal_fatfs_FileSystemHandler_cleanup(JNIEnv* input_env,
                                                                                           jobject) {
@@ -56,46 +121,48 @@ JNIEXPORT void JNICALL Java_com_r3_conclave_host_internal_fatfs_FileSystemHandle
     input_env->DeleteGlobalRef(obj);
     jvm = NULL;
     obj = NULL;
+    get_drive_size_mid = nullptr;
+    read_mid = nullptr;
+    write_mid = nullptr;
+    sync_mid = nullptr;
 }
 
 /*
   Call the Java/Kotkin layer to get the size of the file that represents the filesystem,
   to understand if the file is present or needs to be created and then to establish if the
   filesystem needs to be initialized or just loaded.
+  The mount path tells the Host which of its files is used for the drive.
 */
-long host_disk_get_size(const unsigned char drive, const unsigned long persistent_size) {
+long host_disk_get_size(const unsigned char drive, const unsigned long persistent_size, const char* mount_path) {
     DEBUG_PRINT_FUNCTION;
-    JNIEnv* env = NULL;
-    jint rs = jvm->AttachCurrentThread((void**)&env, NULL);
+    JNIEnv* env = getJniEnv();
 
-    if (rs != JNI_OK) {
+    if (env == nullptr) {
         FATFS_DEBUG_PRINT("JNI Crash %d\n", drive);
         return -1;
     }
-    auto cls = env->GetObjectClass(obj);
 
-    if (cls == nullptr) {
-        jvm->DetachCurrentThread();     
-        return -1;
-    }    
-    jmethodID mid = env->GetMethodID(cls, "getDriveSize", "(IJ)J");
-    
-    if (mid == nullptr) {
+    if (get_drive_size_mid == nullptr) {
         FATFS_DEBUG_PRINT("Host not getting the file size of drive %d\n", drive);
-        jvm->DetachCurrentThread();
         return -1;
-    }           
+    }
+    jstring jmount_path = env->NewStringUTF(mount_path);
+
+    if (jmount_path == NULL) {
+        checkException(env);
+        return -1;
+    }
     long res = env->CallLongMethod(obj,
-                                   mid,
+                                   get_drive_size_mid,
                                    static_cast<int>(drive),
-                                   persistent_size);
-    if (env->ExceptionCheck()) {
-        //  We rely on the DetachCurrentThread below to handle the pending exception and make the
-        //  Host JNI aware of it (we could clear and rethrow it, but the effect would be the same).
-        //  We also tell the Enclave that this has happened by returning a -1, so that it exits accordingly  
+                                   persistent_size,
+                                   jmount_path);
+    env->DeleteLocalRef(jmount_path);
+
+    if (checkException(env)) {
+        //  We tell the Enclave that this has happened by returning a -1, so that it exits accordingly
         res = -1;
     }
-    jvm->DetachCurrentThread();
     return res;
 }
 
@@ -109,94 +176,112 @@ int host_disk_read(const unsigned char drive,
                    unsigned char* buf) {
     FATFS_DEBUG_PRINT_RW("Read - Sector Id %d - Num %d - Size %d - Drive %d\n", sector_id, num_sectors, sector_size, drive);
 
-    JNIEnv* env = NULL;
-    jint rs = jvm->AttachCurrentThread((void**)&env, NULL);
+    JNIEnv* env = getJniEnv();
 
-    if (rs != JNI_OK) {
+    if (env == nullptr) {
         FATFS_DEBUG_PRINT("JNI Crash %d\n", drive);
         return -1;
     }
-    auto cls = env->GetObjectClass(obj);
 
-    if (cls == nullptr) {
-        jvm->DetachCurrentThread();     
-        FATFS_DEBUG_PRINT("JNI No class found %d\n", drive);
-        return -1;
-    }
-    const jmethodID mid = env->GetMethodID(cls, "read", "(IJII)[B");
-    
-    if (mid == nullptr) {
-        jvm->DetachCurrentThread();
+    if (read_mid == nullptr) {
         FATFS_DEBUG_PRINT("JNI No method found %d\n", drive);
         return -1;
-    }    
-    jbyteArray read_buffer = (jbyteArray) env->CallObjectMethod(obj,
-                                                                mid,
-                                                                static_cast<int>(drive),
-                                                                sector_id,
-                                                                static_cast<int>(num_sectors),
-                                                                sector_size);
+    }
+    //  The Host reads straight into the OCall buffer
+    jobject read_buffer = env->NewDirectByteBuffer(buf, num_sectors * sector_size);
+
     if (read_buffer == NULL) {
-        jvm->DetachCurrentThread();
+        checkException(env);
         FATFS_DEBUG_PRINT("JNI No buffer found %d\n", drive);
         return -1;
     }
-    jsize len = env->GetArrayLength(read_buffer);
-    jbyte* jbuf = env->GetByteArrayElements(read_buffer, 0);
-    memcpy(buf, (unsigned char*)jbuf, len);
-    env->ReleaseByteArrayElements(read_buffer, jbuf, 0);
-    jvm->DetachCurrentThread();
+    int len = env->CallIntMethod(obj,
+                                 read_mid,
+                                 static_cast<int>(drive),
+                                 sector_id,
+                                 static_cast<int>(num_sectors),
+                                 sector_size,
+                                 read_buffer);
+    env->DeleteLocalRef(read_buffer);
+
+    if (checkException(env)) {
+        len = -1;
+    }
     return len;
 }
 
 
 /*
-  Call Java/Kotlin (FileSystemHandler.kt) to write bytes to the file that represents the filesystem.
+  Call Java/Kotlin (FileSystemHandler.kt) to write a batch of sectors to the file that represents the filesystem.
+  The buffer holds num_sectors sectors of sector_size bytes each, the i-th of which is written at sectors[i].
 */
 int host_disk_write(const unsigned char drive,
                     const unsigned char* buf,
                     const unsigned int sector_size,
-                    const unsigned long index) {
-    FATFS_DEBUG_PRINT_RW("Drive %d, Index %d, Sector size %d\n", drive, index, sector_size);
+                    const unsigned long* sectors,
+                    const unsigned int num_sectors) {
+    FATFS_DEBUG_PRINT_RW("Drive %d, First index %d, Num %d, Sector size %d\n", drive, sectors[0], num_sectors, sector_size);
 
-    JNIEnv* env = NULL;
-    jint rs = jvm->AttachCurrentThread((void**)&env, NULL);
+    JNIEnv* env = getJniEnv();
 
-    if (rs != JNI_OK) {
+    if (env == nullptr) {
         FATFS_DEBUG_PRINT("JNI Crash %d\n", drive);
         return -1;
     }
-    auto cls = env->GetObjectClass(obj);
-    
-    if (cls == nullptr) {
-        FATFS_DEBUG_PRINT("Class not found %d\n", drive);
-        jvm->DetachCurrentThread();
+
+    if (write_mid == nullptr) {
+        FATFS_DEBUG_PRINT("Host not writing to drive %d, method not found\n", drive);
         return -1;
     }
-    jmethodID mid = env->GetMethodID(cls, "write", "(I[BIJ)I");
+    //  The Host writes straight from the OCall buffer, which is not modified
+    jobject jbuf = env->NewDirectByteBuffer(const_cast<unsigned char*>(buf), sector_size * num_sectors);
+    jlongArray jsectors_array = env->NewLongArray(num_sectors);
 
-    if (mid == nullptr) {
-        FATFS_DEBUG_PRINT("Host not writing to drive %d, method not found\n", drive);
-        jvm->DetachCurrentThread();
+    if (jbuf == NULL || jsectors_array == NULL) {
+        checkException(env);
+        FATFS_DEBUG_PRINT("Host not writing to drive %d, buffer not created\n", drive);
         return -1;
     }
+    static_assert(sizeof(unsigned long) == sizeof(jlong), "Sector ids are passed as a jlong array");
+    env->SetLongArrayRegion(jsectors_array, 0, num_sectors, (const jlong*)sectors);
 
-    jbyteArray jbuf_array = env->NewByteArray(sector_size);
+    int res = env->CallIntMethod(obj,
+                                 write_mid,
+                                 static_cast<int>(drive),
+                                 jbuf,
+                                 sector_size,
+                                 jsectors_array);
+    env->DeleteLocalRef(jbuf);
+    env->DeleteLocalRef(jsectors_array);
 
-    if (jbuf_array == NULL) {
-        FATFS_DEBUG_PRINT("Host not writing to drive %d, byte array not created\n", drive);
-        jvm->DetachCurrentThread();
+    if (checkException(env)) {
+        res = -1;
+    }
+    return res;
+}
+
+
+/*
+  Call Java/Kotlin (FileSystemHandler.kt) to make the writes to the file that represents the filesystem durable.
+*/
+int host_disk_sync(const unsigned char drive) {
+    FATFS_DEBUG_PRINT_RW("Sync - Drive %d\n", drive);
+
+    JNIEnv* env = getJniEnv();
+
+    if (env == nullptr) {
+        FATFS_DEBUG_PRINT("JNI Crash %d\n", drive);
         return -1;
-    } 
-    env->SetByteArrayRegion(jbuf_array, 0, sector_size, (const jbyte*)buf);
+    }
 
-    const int res = env->CallIntMethod(obj,
-                                       mid,
-                                       static_cast<int>(drive),
-                                       jbuf_array,
-                                       sector_size,
-                                       index);
+    if (sync_mid == nullptr) {
+        FATFS_DEBUG_PRINT("Host not syncing drive %d, method not found\n", drive);
+        return -1;
+    }
+    int res = env->CallIntMethod(obj, sync_mid, static_cast<int>(drive));
 
-    jvm->DetachCurrentThread();
+    if (checkException(env)) {
+        res = -1;
+    }
     return res;
 }
@@ -0,0 +1,36 @@
+#pragma once
+
+#include <cstdint>
+
+namespace r3 { namespace conclave {
+
+/**
+ * Keeps track of the host's call interface frame for the jvm_ecall the current thread is in. The enclave passes it
+ * back with the reply to the call, which lets the host match the reply to its call without relying on the reply
+ * arriving on the calling thread. This is what allows replies to be sent with a switchless OCALL.
+ *
+ * Nested ECALLs each get their own frame, and the outer frame is restored when they return. A frame ID of zero
+ * means the ECALL isn't expecting a reply, for example because it is itself a reply to an OCALL.
+ */
+class HostFrameContext {
+public:
+    explicit HostFrameContext(uint64_t host_frame_id) : previous_(current_) {
+        current_ = host_frame_id;
+    }
+
+    ~HostFrameContext() {
+        current_ = previous_;
+    }
+
+    HostFrameContext(const HostFrameContext&) = delete;
+    HostFrameContext& operator=(const HostFrameContext&) = delete;
+
+    static uint64_t current() {
+        return current_;
+    }
+
+private:
+    const uint64_t previous_;
+    static thread_local uint64_t current_;
+};
+}}
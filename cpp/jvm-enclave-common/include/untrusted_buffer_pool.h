@@ -0,0 +1,75 @@
+#pragma once
+
+#include <cstddef>
+#include <mutex>
+#include <vector>
+
+namespace r3 { namespace conclave {
+
+/**
+ * A pool of buffers in untrusted host memory which the enclave uses to pass large OCALL payloads to the host.
+ *
+ * Allocating untrusted memory requires an OCALL of its own, as does freeing it, so rather than paying for two extra
+ * enclave transitions on every large OCALL the buffers are kept and reused. Buffers are grouped into power of two size
+ * classes, starting at 128KB, and only a small number of buffers are kept per size class. Requests larger than the
+ * biggest size class are allocated and freed on every use.
+ *
+ * The contents of the buffers are visible to, and can be modified by, the host at any time. They must therefore only
+ * ever be used to send data out of the enclave.
+ */
+class UntrustedBufferPool {
+public:
+    /**
+     * Access the pool instance.
+     */
+    static UntrustedBufferPool& instance();
+
+    /**
+     * Acquire an untrusted buffer which can hold at least the given number of bytes.
+     *
+     * @param size The minimum size of the buffer.
+     * @param capacity Set to the actual size of the returned buffer, which must be passed back in to release.
+     *
+     * @return The buffer, or nullptr if the host failed to allocate the memory.
+     */
+    void* acquire(size_t size, size_t& capacity);
+
+    /**
+     * Return a buffer previously obtained from acquire back to the pool. If the pool for the buffer's size class is
+     * already full then the buffer is freed instead.
+     *
+     * @param buffer The buffer to release.
+     * @param capacity The capacity of the buffer as returned by acquire.
+     */
+    void release(void* buffer, size_t capacity);
+
+    /**
+     * Free all the buffers held by the pool back to the host. Called when the enclave is being destroyed, as the
+     * host memory would otherwise stay allocated for the life of the host process. Buffers acquired after this are
+     * pooled again as normal.
+     */
+    void drain();
+
+private:
+    static constexpr size_t MIN_SIZE_CLASS_BITS = 17;   // 128KB
+    static constexpr size_t MAX_SIZE_CLASS_BITS = 24;   // 16MB
+    static constexpr size_t SIZE_CLASS_COUNT = MAX_SIZE_CLASS_BITS - MIN_SIZE_CLASS_BITS + 1;
+    static constexpr size_t MAX_BUFFERS_PER_SIZE_CLASS = 4;
+
+    UntrustedBufferPool() = default;
+    ~UntrustedBufferPool() = default;
+    UntrustedBufferPool(const UntrustedBufferPool&) = delete;
+    UntrustedBufferPool& operator=(const UntrustedBufferPool&) = delete;
+
+    /**
+     * Returns the size class the given size falls into, or SIZE_CLASS_COUNT if it is too big to be pooled.
+     */
+    static size_t size_class(size_t size);
+
+    static void* allocate_buffer(size_t size);
+    static void free_buffer(void* buffer);
+
+    std::mutex mutex_;
+    std::vector<void*> free_buffers_[SIZE_CLASS_COUNT];
+};
+}}
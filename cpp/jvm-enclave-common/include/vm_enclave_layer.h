@@ -37,10 +37,17 @@ extern "C" {
 											 jobject,
 											 jlong in_memory_size,											
 											 jlong persistent_size,
+											 jlong persistent_cache_size,
+											 jint persistent_encryption_threads,
 											 jstring in_memory_mount_path_in,
 											 jstring persistent_mount_path_in,
+											 jobjectArray additional_persistent_mount_paths_in,
+											 jlongArray additional_persistent_sizes_in,
 											 jbyteArray encryption_key_in);
 
+    //  Function called by Kotlin Enclave when it is shut down to release the threads held by the filesystems
+    JNIEXPORT void JNICALL Java_com_r3_conclave_enclave_internal_Native_shutdownFileSystems(JNIEnv *jniEnv, jobject);
+
     // Debug print and trace functions for stubs and debug output
     extern void debug_print_enclave(const char* msg, int length, bool allow_debug_print);
     int enclave_print(const char *s, ...);
@@ -7,6 +7,8 @@
 #include <dlsym_symbols.h>
 #include <enclave_thread.h>
 #include <aex_assert.h>
+#include <untrusted_buffer_pool.h>
+#include <host_frame_context.h>
 
 #include <sgx_eid.h>
 #include <sgx_tseal.h>
@@ -21,9 +23,13 @@
 #include <algorithm>
 #include <stdexcept>
 
+thread_local uint64_t r3::conclave::HostFrameContext::current_ = 0;
 
 namespace {
 
+// The ordinal of CallInterfaceMessageType.CALL
+const jbyte CALL_MESSAGE_TYPE = 0;
+
 // TODO: Fix C++ exception catching in SGX and terminate with an exception instead of aborting
 void abortOnJniException(JNIEnv *jniEnv) {
     if (jniEnv->ExceptionCheck() == JNI_TRUE) {
@@ -86,7 +92,12 @@ JNIEXPORT void JNICALL Java_com_r3_conclave_enclave_internal_Native_jvmOCall
     // If the data is "small" we can pass it on the untrusted stack and
     // save ourselves 2 ocalls and a malloc/free!
     if (size < 131072) {
-        auto returnCode = jvm_ocall_stack(callTypeID, messageTypeID, inputBuffer, size);
+        // A reply to the host's ECALL is matched to the call by its frame ID, and so can be sent switchless. A call to
+        // the host has to stay on this thread, as the host may call back into the enclave whilst handling it.
+        const auto hostFrameID = r3::conclave::HostFrameContext::current();
+        auto returnCode = (messageTypeID != CALL_MESSAGE_TYPE && hostFrameID != 0)
+                ? jvm_ocall_reply(callTypeID, messageTypeID, inputBuffer, size, hostFrameID)
+                : jvm_ocall_stack(callTypeID, messageTypeID, inputBuffer, size);
         jniEnv->ReleaseByteArrayElements(data, inputBuffer, 0);
         if (returnCode != SGX_SUCCESS) {
             raiseException(jniEnv, getErrorMessage(returnCode));
@@ -94,26 +105,22 @@ JNIEXPORT void JNICALL Java_com_r3_conclave_enclave_internal_Native_jvmOCall
         return;
     }
 
-    void *inputBufferUntrusted = NULL;
-    auto returnCode = allocate_untrusted_memory(&inputBufferUntrusted, size);
-    if (returnCode != SGX_SUCCESS) {
-        raiseException(jniEnv, getErrorMessage(returnCode));
-    } else if (inputBufferUntrusted == NULL) {
+    // Larger payloads are copied into untrusted memory taken from a pool, which saves the malloc and free OCALLs
+    // that would otherwise be needed for each payload.
+    auto& pool = r3::conclave::UntrustedBufferPool::instance();
+    size_t capacity = 0;
+    void *inputBufferUntrusted = pool.acquire(size, capacity);
+    if (inputBufferUntrusted == nullptr) {
+        jniEnv->ReleaseByteArrayElements(data, inputBuffer, JNI_ABORT);
         raiseException(jniEnv, "Failed to allocate host side buffer for ocall data.");
-    } else if (!sgx_is_outside_enclave(inputBufferUntrusted, size)) {
-        // This suggests a malicious host so just abort the enclave.
-        abort();
+        return;
     }
 
     memcpy(inputBufferUntrusted, inputBuffer, size);
-    jniEnv->ReleaseByteArrayElements(data, inputBuffer, 0);
-
-    returnCode = jvm_ocall_heap(callTypeID, messageTypeID, inputBufferUntrusted, size);
-    if (returnCode != SGX_SUCCESS) {
-        raiseException(jniEnv, getErrorMessage(returnCode));
-    }
+    jniEnv->ReleaseByteArrayElements(data, inputBuffer, JNI_ABORT);
 
-    returnCode = free_untrusted_memory(&inputBufferUntrusted);
+    auto returnCode = jvm_ocall_heap(callTypeID, messageTypeID, inputBufferUntrusted, size);
+    pool.release(inputBufferUntrusted, capacity);
     if (returnCode != SGX_SUCCESS) {
         raiseException(jniEnv, getErrorMessage(returnCode));
     }
@@ -0,0 +1,91 @@
+#include "untrusted_buffer_pool.h"
+
+#include <jvm_t.h>
+#include <sgx_trts.h>
+
+#include <cstdlib>
+#include <climits>
+
+namespace r3 { namespace conclave {
+
+UntrustedBufferPool& UntrustedBufferPool::instance() {
+    static UntrustedBufferPool pool;
+    return pool;
+}
+
+size_t UntrustedBufferPool::size_class(size_t size) {
+    size_t bits = MIN_SIZE_CLASS_BITS;
+    while (bits <= MAX_SIZE_CLASS_BITS && (static_cast<size_t>(1) << bits) < size) {
+        ++bits;
+    }
+    return bits - MIN_SIZE_CLASS_BITS;
+}
+
+void* UntrustedBufferPool::allocate_buffer(size_t size) {
+    if (size > INT_MAX) {
+        return nullptr;
+    }
+    void* buffer = nullptr;
+    auto returnCode = allocate_untrusted_memory(&buffer, static_cast<int>(size));
+    if (returnCode != SGX_SUCCESS || buffer == nullptr) {
+        return nullptr;
+    }
+    if (!sgx_is_outside_enclave(buffer, size)) {
+        // This suggests a malicious host so just abort the enclave.
+        abort();
+    }
+    return buffer;
+}
+
+void UntrustedBufferPool::free_buffer(void* buffer) {
+    free_untrusted_memory(&buffer);
+}
+
+void* UntrustedBufferPool::acquire(size_t size, size_t& capacity) {
+    const auto index = size_class(size);
+    if (index == SIZE_CLASS_COUNT) {
+        capacity = size;
+        return allocate_buffer(size);
+    }
+
+    capacity = static_cast<size_t>(1) << (index + MIN_SIZE_CLASS_BITS);
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        auto& free_buffers = free_buffers_[index];
+        if (!free_buffers.empty()) {
+            void* buffer = free_buffers.back();
+            free_buffers.pop_back();
+            return buffer;
+        }
+    }
+    return allocate_buffer(capacity);
+}
+
+void UntrustedBufferPool::release(void* buffer, size_t capacity) {
+    const auto index = size_class(capacity);
+    if (index != SIZE_CLASS_COUNT && capacity == (static_cast<size_t>(1) << (index + MIN_SIZE_CLASS_BITS))) {
+        std::lock_guard<std::mutex> lock(mutex_);
+        auto& free_buffers = free_buffers_[index];
+        if (free_buffers.size() < MAX_BUFFERS_PER_SIZE_CLASS) {
+            free_buffers.push_back(buffer);
+            return;
+        }
+    }
+    free_buffer(buffer);
+}
+
+void UntrustedBufferPool::drain() {
+    std::vector<void*> buffers;
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        for (auto& free_buffers : free_buffers_) {
+            buffers.insert(buffers.end(), free_buffers.begin(), free_buffers.end());
+            free_buffers.clear();
+        }
+    }
+    // Freeing is an OCALL, so it's done without holding the lock.
+    for (void* buffer : buffers) {
+        free_buffer(buffer);
+    }
+}
+}}
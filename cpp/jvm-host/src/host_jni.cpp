@@ -1,5 +1,6 @@
 #include <host_jni.h>
 #include <sgx_urts.h>
+#include <sgx_uswitchless.h>
 #include <jvm_u.h>
 #include <iostream>
 #include <string>
@@ -38,6 +39,37 @@ void debug_print_edl(const char *str, int n) {
 
 static bool signal_registered = false;
 
+// Used by jvm_ocall_reply, which may run on a switchless worker thread that has no EcallContext. The class and method
+// are looked up up front as FindClass on such a thread would only search the system class loader.
+static JavaVM *java_vm = nullptr;
+static jclass native_api_class = nullptr;
+static jmethodID receive_reply_ocall_method = nullptr;
+static jmethodID reply_ocall_failed_method = nullptr;
+static std::once_flag reply_ocall_init_flag;
+
+static void initialise_reply_ocall(JNIEnv *jniEnv) {
+    std::call_once(reply_ocall_init_flag, [jniEnv] {
+        jniEnv->GetJavaVM(&java_vm);
+        auto local_class = jniEnv->FindClass("com/r3/conclave/host/internal/NativeApi");
+        native_api_class = static_cast<jclass>(jniEnv->NewGlobalRef(local_class));
+        receive_reply_ocall_method = jniEnv->GetStaticMethodID(native_api_class, "receiveReplyOCall",
+                                                               "(JBBLjava/nio/ByteBuffer;)V");
+        reply_ocall_failed_method = jniEnv->GetStaticMethodID(native_api_class, "replyOCallFailed",
+                                                              "(JLjava/lang/Throwable;)V");
+    });
+}
+
+// Detaches a switchless worker thread from the JVM when the SGX runtime stops it.
+struct WorkerThreadAttachment {
+    bool attached = false;
+    ~WorkerThreadAttachment() {
+        if (attached) {
+            java_vm->DetachCurrentThread();
+        }
+    }
+};
+static thread_local WorkerThreadAttachment worker_thread_attachment;
+
 JNIEXPORT jint JNICALL Java_com_r3_conclave_host_internal_Native_getDeviceStatus(JNIEnv *, jclass) {
 #ifdef SGX_SIM
     // If in simulation mode, simulate device capabilities.
@@ -95,16 +127,33 @@ static void initialise_enclave(sgx_enclave_id_t enclave_id) {
 jlong JNICALL Java_com_r3_conclave_host_internal_Native_createEnclave(JNIEnv *jniEnv,
                                                                       jclass,
                                                                       jstring enclavePath,
-                                                                      jboolean isDebug) {
+                                                                      jboolean isDebug,
+                                                                      jint switchlessWorkerThreads) {
 
     initialise_abort_handler();
+    initialise_reply_ocall(jniEnv);
         
     JniString path(jniEnv, enclavePath);
 
     sgx_launch_token_t token = {0};
     sgx_enclave_id_t enclave_id = {0};
     int updated = 0;
-    auto returnCode = sgx_create_enclave(path.c_str, isDebug, &token, &updated, &enclave_id, nullptr);
+    sgx_status_t returnCode;
+    if (switchlessWorkerThreads > 0) {
+        // Switchless OCALLs are serviced by untrusted worker threads polling a queue in untrusted memory, rather
+        // than by exiting the enclave. Only OCALLs marked with transition_using_threads in the EDL make use of them,
+        // so no trusted workers are needed. ECALLs can't be switchless, as the enclave's calls back to the host have
+        // to arrive on the thread which made the ECALL.
+        sgx_uswitchless_config_t us_config = SGX_USWITCHLESS_CONFIG_INITIALIZER;
+        us_config.num_uworkers = static_cast<uint32_t>(switchlessWorkerThreads);
+        us_config.num_tworkers = 0;
+        const void* enclave_ex_p[32] = { 0 };
+        enclave_ex_p[SGX_CREATE_ENCLAVE_EX_SWITCHLESS_BIT_IDX] = &us_config;
+        returnCode = sgx_create_enclave_ex(path.c_str, isDebug, &token, &updated, &enclave_id, nullptr,
+                                           SGX_CREATE_ENCLAVE_EX_SWITCHLESS, enclave_ex_p);
+    } else {
+        returnCode = sgx_create_enclave(path.c_str, isDebug, &token, &updated, &enclave_id, nullptr);
+    }
     if (returnCode == SGX_SUCCESS) {
         initialise_enclave(enclave_id);
         return enclave_id;
@@ -145,7 +194,8 @@ void JNICALL Java_com_r3_conclave_host_internal_Native_jvmECall(JNIEnv *jniEnv,
                                                                 jlong enclaveId,
                                                                 jbyte callTypeID,
                                                                 jbyte messageTypeID,
-                                                                jbyteArray data) {
+                                                                jbyteArray data,
+                                                                jlong hostFrameID) {
     try {
         // Prepare input buffer
         auto size = jniEnv->GetArrayLength(data);
@@ -159,7 +209,8 @@ void JNICALL Java_com_r3_conclave_host_internal_Native_jvmECall(JNIEnv *jniEnv,
                                     callTypeID,
                                     messageTypeID,
                                     inputBuffer,
-                                    size);
+                                    size,
+                                    static_cast<uint64_t>(hostFrameID));
         jniEnv->ReleaseByteArrayElements(data, inputBuffer, 0);
 
         if (returnCode != SGX_SUCCESS) {
@@ -170,6 +221,46 @@ void JNICALL Java_com_r3_conclave_host_internal_Native_jvmECall(JNIEnv *jniEnv,
     }
 }
 
+void JNICALL Java_com_r3_conclave_host_internal_Native_jvmECallDirect(JNIEnv *jniEnv,
+                                                                      jclass,
+                                                                      jlong enclaveId,
+                                                                      jbyte callTypeID,
+                                                                      jbyte messageTypeID,
+                                                                      jobject data,
+                                                                      jint offset,
+                                                                      jint length,
+                                                                      jlong hostFrameID) {
+    // The memory of a direct byte buffer is passed as is to the enclave, avoiding the copy GetByteArrayElements
+    // would otherwise make. The buffer is kept alive by the calling Java frame for the duration of the ECALL.
+    auto address = static_cast<uint8_t*>(jniEnv->GetDirectBufferAddress(data));
+    if (address == nullptr) {
+        raiseException(jniEnv, "ECALL data is not a direct byte buffer");
+        return;
+    }
+    const auto capacity = jniEnv->GetDirectBufferCapacity(data);
+    if (offset < 0 || length < 0 || static_cast<jlong>(offset) + length > capacity) {
+        raiseException(jniEnv, "ECALL data offset and length are out of the bounds of the buffer");
+        return;
+    }
+
+    try {
+        // Set the enclave ID TLS so that OCALLs have access to it
+        EcallContext context(static_cast<sgx_enclave_id_t>(enclaveId), jniEnv, {});
+        auto returnCode = jvm_ecall(static_cast<sgx_enclave_id_t>(enclaveId),
+                                    callTypeID,
+                                    messageTypeID,
+                                    address + offset,
+                                    length,
+                                    static_cast<uint64_t>(hostFrameID));
+
+        if (returnCode != SGX_SUCCESS) {
+            raiseException(jniEnv, getErrorMessage(returnCode));
+        }
+    } catch (JNIException&) {
+        // No-op: the host JVM will deal with it
+    }
+}
+
 typedef struct sgx_init_quote_request {
     sgx_target_info_t target_info;
     sgx_epid_group_id_t epid_group_id;
@@ -267,6 +358,50 @@ void jvm_ocall(char callTypeID, char messageTypeID, void* data, int dataLengthBy
     }
 }
 
+// Called by the EDL with the enclave's reply to a jvm_ecall. This is a switchless OCALL, so it's either run on one of the
+// SGX runtime's worker threads, or on the calling thread if switchless mode is disabled or all the workers are busy.
+void jvm_ocall_reply(char callTypeID, char messageTypeID, void* data, int dataLengthBytes, uint64_t hostFrameID) {
+    JNIEnv *jniEnv = nullptr;
+    if (EcallContext::available()) {
+        jniEnv = EcallContext::getJniEnv();
+    } else if (java_vm->GetEnv(reinterpret_cast<void **>(&jniEnv), JNI_VERSION_1_8) == JNI_EDETACHED) {
+        if (java_vm->AttachCurrentThreadAsDaemon(reinterpret_cast<void **>(&jniEnv), nullptr) != JNI_OK) {
+            throw std::runtime_error("Cannot attach switchless worker thread to the JVM");
+        }
+        worker_thread_attachment.attached = true;
+    }
+
+    jobject javaBuffer = nullptr;
+    try {
+        // As with jvm_ocall, the buffer is only valid until this function returns and Java copies what it needs.
+        javaBuffer = jniEnv->NewDirectByteBuffer(data, dataLengthBytes);
+        checkJniException(jniEnv);
+        jniEnv->CallStaticVoidMethod(native_api_class, receive_reply_ocall_method,
+                                     static_cast<jlong>(hostFrameID), callTypeID, messageTypeID, javaBuffer);
+        checkJniException(jniEnv);
+    } catch (JNIException&) {
+        // On the calling thread the host JVM deals with the exception once the ECALL returns. A worker thread has no
+        // Java caller to pass it on to, so it's recorded against the call's frame instead and thrown on the calling
+        // thread once the ECALL has returned.
+        if (!EcallContext::available()) {
+            auto throwable = jniEnv->ExceptionOccurred();
+            jniEnv->ExceptionClear();
+            jniEnv->CallStaticVoidMethod(native_api_class, reply_ocall_failed_method,
+                                         static_cast<jlong>(hostFrameID), throwable);
+            if (jniEnv->ExceptionCheck()) {
+                // The frame is no longer known, so there's nowhere left to report this but the console.
+                jniEnv->ExceptionDescribe();
+                jniEnv->ExceptionClear();
+            }
+            jniEnv->DeleteLocalRef(throwable);
+        }
+    }
+    // Worker threads never return to Java, so their local references have to be freed explicitly.
+    if (javaBuffer != nullptr) {
+        jniEnv->DeleteLocalRef(javaBuffer);
+    }
+}
+
 // Called by the EDL when the enclave has decided to allocate the buffer on the untrusted stack
 void jvm_ocall_stack(char callTypeID, char messageTypeID, void* data, int dataLengthBytes) {
     jvm_ocall(callTypeID, messageTypeID, data, dataLengthBytes);
@@ -302,19 +437,27 @@ void host_encrypted_read_ocall(int* res,
 }
 
 
-void host_encrypted_write_ocall(int* res,
-                                const unsigned char drive,
-                                const unsigned char* buf,
-                                const unsigned int sector_size,
-                                const unsigned long sector) {
-    const int res_f = host_disk_write(drive, buf, sector_size, sector);
+void host_encrypted_write_batch_ocall(int* res,
+                                      const unsigned char drive,
+                                      const unsigned char* buf,
+                                      const unsigned int buf_size,
+                                      const unsigned int sector_size,
+                                      const unsigned long* sectors,
+                                      const unsigned int num_sectors) {
+    const int res_f = host_disk_write(drive, buf, sector_size, sectors, num_sectors);
+    *res = res_f;
+}
+
+void host_disk_sync_ocall(int* res, const unsigned char drive) {
+    const int res_f = host_disk_sync(drive);
     *res = res_f;
 }
 
 void host_disk_get_size_ocall(long* res,
                               const unsigned char drive,
-                              const unsigned long persistent_size) {
-    const long res_f = host_disk_get_size(drive, persistent_size);
+                              const unsigned long persistent_size,
+                              const char* mount_path) {
+    const long res_f = host_disk_get_size(drive, persistent_size, mount_path);
     *res = res_f;
 }
 
@@ -10,7 +10,7 @@ extern "C" {
 void Java_com_r3_conclave_enclave_internal_substratevm_EntryPoint_entryPoint(graal_isolatethread_t*, char, char, char*, int);
 void Java_com_r3_conclave_enclave_internal_substratevm_EntryPoint_internalError(graal_isolatethread_t*, char*, int);
 
-void jvm_ecall(char callTypeID, char messageTypeID, void* bufferIn, int bufferSize);
+void jvm_ecall(char callTypeID, char messageTypeID, void* bufferIn, int bufferSize, uint64_t hostFrameID);
 void ecall_attach_thread(void);
 void ecall_finalize_enclave();
 void throw_jvm_runtime_exception(const char *message);
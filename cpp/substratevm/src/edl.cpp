@@ -16,6 +16,8 @@
 #include "substrate_jvm.h"
 #include "enclave_shared_data.h"
 #include "enclave_init.h"
+#include "host_frame_context.h"
+#include "untrusted_buffer_pool.h"
 
 using namespace std;
 
@@ -32,11 +34,12 @@ extern "C" {
 int printf(const char *s, ...);
 }
 
-void jvm_ecall(char callTypeID, char messageTypeID, void *data, int dataLengthBytes) {
+void jvm_ecall(char callTypeID, char messageTypeID, void *data, int dataLengthBytes, uint64_t hostFrameID) {
     enclave_trace(">>> Enclave\n");
 
     using namespace r3::conclave;
     auto jniEnv = Jvm::instance().jniEnv();
+    HostFrameContext hostFrameContext(hostFrameID);
 
     // Make sure this enclave has determined the host shared data address
     EnclaveSharedData::instance().init();
@@ -57,6 +60,8 @@ void ecall_finalize_enclave() {
     enclave_trace("ecall_finalize_enclave\n");
     using namespace r3::conclave;
     Jvm::instance().close();
+    // Nothing can make an OCALL now the JVM is closed, so the pooled host buffers can be given back.
+    UntrustedBufferPool::instance().drain();
 }
 
 void throw_jvm_runtime_exception(const char *message) {
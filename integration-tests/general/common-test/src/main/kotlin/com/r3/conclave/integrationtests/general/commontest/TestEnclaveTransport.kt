@@ -101,5 +101,8 @@ open class TestEnclaveTransport(
         override fun storeSealedState(sealedState: ByteArray) {
             this@TestEnclaveTransport.sealedState = sealedState
         }
+        override fun appendSealedState(sealedState: ByteArray) {
+            this@TestEnclaveTransport.sealedState = checkNotNull(this@TestEnclaveTransport.sealedState) + sealedState
+        }
     }
 }
@@ -0,0 +1,8 @@
+package com.r3.conclave.integrationtests.general.parallelfilesystemenclave
+
+import com.r3.conclave.integrationtests.general.commonenclave.AbstractTestActionEnclave
+
+/**
+ * This enclave is used to test the persistent filesystem with sector encryption threads, see its build.gradle.
+ */
+class ParallelFileSystemEnclave : AbstractTestActionEnclave()
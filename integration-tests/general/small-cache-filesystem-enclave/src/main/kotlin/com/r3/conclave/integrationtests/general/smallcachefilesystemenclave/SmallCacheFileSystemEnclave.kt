@@ -0,0 +1,8 @@
+package com.r3.conclave.integrationtests.general.smallcachefilesystemenclave
+
+import com.r3.conclave.integrationtests.general.commonenclave.AbstractTestActionEnclave
+
+/**
+ * This enclave is used to test the persistent filesystem with a tiny sector cache, see its build.gradle.
+ */
+class SmallCacheFileSystemEnclave : AbstractTestActionEnclave()
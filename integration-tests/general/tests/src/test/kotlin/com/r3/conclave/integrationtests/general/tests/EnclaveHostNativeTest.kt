@@ -9,6 +9,8 @@ import com.r3.conclave.integrationtests.general.commontest.AbstractEnclaveAction
 import com.r3.conclave.integrationtests.general.commontest.TestUtils.graalvmOnlyTest
 import org.assertj.core.api.Assertions.*
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.ValueSource
 import java.net.SocketException
 
 class EnclaveHostNativeTest : AbstractEnclaveActionTest() {
@@ -72,6 +74,15 @@ class EnclaveHostNativeTest : AbstractEnclaveActionTest() {
         assertThat(called).isEqualTo(50)
     }
 
+    // Commands to native enclaves are built in a direct buffer and sent with Native.jvmECallDirect.
+    @ParameterizedTest
+    @ValueSource(ints = [0, 1, 4096, 1024 * 1024])
+    fun `ECALL from direct buffer`(size: Int) {
+        graalvmOnlyTest()
+        val payload = ByteArray(size) { (it % 251).toByte() }
+        assertThat(callEnclave(Echo(payload))).isEqualTo(payload)
+    }
+
     @Test
     fun `get cpu capabilities`() {
         val text = EnclaveHost.getCapabilitiesDiagnostics()
@@ -0,0 +1,49 @@
+package com.r3.conclave.integrationtests.general.tests
+
+import com.r3.conclave.integrationtests.general.common.tasks.EcallOcallRecursionAction
+import com.r3.conclave.integrationtests.general.common.tasks.Echo
+import com.r3.conclave.integrationtests.general.common.tasks.Thrower
+import com.r3.conclave.integrationtests.general.common.toByteArray
+import com.r3.conclave.integrationtests.general.common.toInt
+import com.r3.conclave.integrationtests.general.commontest.AbstractEnclaveActionTest
+import com.r3.conclave.integrationtests.general.commontest.TestUtils.graalvmOnlyTest
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatExceptionOfType
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+
+/**
+ * These tests are run by the switchlessTest task, which sets conclave.switchless.workerThreads. The enclave's replies
+ * to the host's calls are then received on the SGX runtime's worker threads rather than on the calling thread.
+ */
+class SwitchlessTests : AbstractEnclaveActionTest() {
+    @BeforeEach
+    fun nativeOnly() {
+        graalvmOnlyTest()
+    }
+
+    @Test
+    fun `reply from a worker thread`() {
+        val payload = ByteArray(64 * 1024) { (it % 251).toByte() }
+        repeat(100) {
+            assertThat(callEnclave(Echo(payload))).isEqualTo(payload)
+        }
+    }
+
+    @Test
+    fun `exception reply from a worker thread`() {
+        assertThatExceptionOfType(RuntimeException::class.java).isThrownBy {
+            callEnclave(Thrower())
+        }.withMessage(Thrower.CHEERS)
+    }
+
+    @Test
+    fun `nested calls each receive their own reply`() {
+        var called = 0
+        callEnclave(EcallOcallRecursionAction(100)) { bytes ->
+            called++
+            (bytes.toInt() - 1).toByteArray()
+        }
+        assertThat(called).isEqualTo(50)
+    }
+}
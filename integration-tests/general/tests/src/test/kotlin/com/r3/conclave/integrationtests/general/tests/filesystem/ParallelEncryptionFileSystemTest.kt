@@ -0,0 +1,26 @@
+package com.r3.conclave.integrationtests.general.tests.filesystem
+
+import com.r3.conclave.integrationtests.general.commontest.TestUtils.graalvmOnlyTest
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.ValueSource
+import kotlin.random.Random
+
+class ParallelEncryptionFileSystemTest : FileSystemEnclaveTest(
+    "com.r3.conclave.integrationtests.general.parallelfilesystemenclave.ParallelFileSystemEnclave"
+) {
+    @ParameterizedTest
+    @ValueSource(booleans = [false, true])
+    fun `multi-megabyte file survives a restart when sectors are encrypted in parallel`(useKds: Boolean) {
+        graalvmOnlyTest() // CON-1259: Make sure using enclave file system with Gramine produces graceful exception
+        this.useKds = useKds
+        // Large enough that FatFs reads and writes it in batches of well over the 16 sectors needed to use the
+        // encryption threads.
+        val data = Random.nextBytes(4 * 1024 * 1024 + 123)
+        val path = "/parallel.bin"
+
+        filesWrite(path, data)
+        filesReadAllBytes(path, data)
+        restartEnclave()
+        filesReadAllBytes(path, data)
+    }
+}
@@ -0,0 +1,28 @@
+package com.r3.conclave.integrationtests.general.tests.filesystem
+
+import com.r3.conclave.integrationtests.general.commontest.TestUtils.graalvmOnlyTest
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.ValueSource
+import kotlin.random.Random
+
+class SmallCacheFileSystemTest : FileSystemEnclaveTest(
+    "com.r3.conclave.integrationtests.general.smallcachefilesystemenclave.SmallCacheFileSystemEnclave"
+) {
+    @ParameterizedTest
+    @ValueSource(booleans = [false, true])
+    fun `files survive a restart when the sector cache is smaller than the data written`(useKds: Boolean) {
+        graalvmOnlyTest() // CON-1259: Make sure using enclave file system with Gramine produces graceful exception
+        this.useKds = useKds
+        // The 4k cache only holds 8 sectors, so the FAT and directory sectors are evicted and written back repeatedly
+        // whilst the files are written.
+        val files = (0 until 20).associate { "/small-cache-$it.bin" to Random.nextBytes(Random.nextInt(1, 64 * 1024)) }
+
+        for ((path, data) in files) {
+            filesWrite(path, data)
+        }
+        restartEnclave()
+        for ((path, data) in files) {
+            filesReadAllBytes(path, data)
+        }
+    }
+}
@@ -49,11 +49,25 @@ class GenerateEnclavePropertiesTest : AbstractPluginTaskTest() {
         assertThat(enclaveProperties()).containsEntry(name, newValue.toString())
     }
 
+    @ParameterizedTest
+    @CsvSource(
+        "persistentFileSystemEncryptionThreads, 0, 4"
+    )
+    fun `optional integer config in enclave properties`(name: String, defaultValue: Int, newValue: Int) {
+        assertThat(buildGradleFile).content().doesNotContain(name)
+        runTaskAfterInputChangeAndAssertItsIncremental {
+            assertThat(enclaveProperties()).containsEntry(name, defaultValue.toString())
+            addSimpleEnclaveConfig(name, newValue)
+        }
+        assertThat(enclaveProperties()).containsEntry(name, newValue.toString())
+    }
+
     @ParameterizedTest
     @CsvSource(
         "maxPersistentMapSize, 16777216, 32m, 33554432",
         "inMemoryFileSystemSize, 67108864, 100m, 104857600",
-        "persistentFileSystemSize, 0, 1g, 1073741824"
+        "persistentFileSystemSize, 0, 1g, 1073741824",
+        "persistentFileSystemCacheSize, 1048576, 4m, 4194304"
     )
     fun `optional size bytes config in enclave properties`(name: String, defaultRawValue: Long, newBytesValue: String,
                                                            newRawValue: Long) {
@@ -65,6 +79,22 @@ class GenerateEnclavePropertiesTest : AbstractPluginTaskTest() {
         assertThat(enclaveProperties()).containsEntry(name, newRawValue.toString())
     }
 
+    @Test
+    fun `additionalPersistentFileSystems config`() {
+        assertThat(buildGradleFile).content().doesNotContain("additionalPersistentFileSystems")
+        runTaskAfterInputChangeAndAssertItsIncremental {
+            assertThat(enclaveProperties().keys).noneMatch {
+                (it as String).startsWith("additionalPersistentFileSystems.")
+            }
+            addEnclaveConfigBlock("""additionalPersistentFileSystems = ["/scratch/": "64m", "/archive": "1g"]""")
+        }
+        assertThat(enclaveProperties())
+            .containsEntry("additionalPersistentFileSystems.0.mountPath", "/archive")
+            .containsEntry("additionalPersistentFileSystems.0.size", "1073741824")
+            .containsEntry("additionalPersistentFileSystems.1.mountPath", "/scratch")
+            .containsEntry("additionalPersistentFileSystems.1.size", "67108864")
+    }
+
     @Test
     fun `kds-kdsEnclaveConstraint`() {
         assertThat(buildGradleFile).content().doesNotContain("kdsEnclaveConstraint")
@@ -86,5 +86,9 @@ class MockEnclaveTransport(
         override fun storeSealedState(sealedState: ByteArray) {
             sealedStates += sealedState
         }
+
+        override fun appendSealedState(sealedState: ByteArray) {
+            sealedStates += sealedStates.last() + sealedState
+        }
     }
 }
@@ -5,6 +5,7 @@ import org.gradle.api.Action
 import org.gradle.api.file.ConfigurableFileCollection
 import org.gradle.api.model.ObjectFactory
 import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.MapProperty
 import org.gradle.api.provider.Property
 import org.gradle.api.tasks.*
 import javax.inject.Inject
@@ -25,10 +26,20 @@ open class ConclaveExtension @Inject constructor(objects: ObjectFactory) {
     @get:Input
     val maxPersistentMapSize: Property<String> = objects.property(String::class.java).convention("16m")
     @get:Input
+    val persistentMapCheckpointInterval: Property<Int> = objects.property(Int::class.java).convention(0)
+    @get:Input
     val inMemoryFileSystemSize: Property<String> = objects.property(String::class.java).convention("64m")
     @get:Input
     val persistentFileSystemSize: Property<String> = objects.property(String::class.java).convention("0")
     @get:Input
+    val persistentFileSystemCacheSize: Property<String> = objects.property(String::class.java).convention("1m")
+    @get:Input
+    val persistentFileSystemEncryptionThreads: Property<Int> = objects.property(Int::class.java).convention(0)
+    // Mount path -> size
+    @get:Input
+    val additionalPersistentFileSystems: MapProperty<String, String> =
+        objects.mapProperty(String::class.java, String::class.java).convention(emptyMap())
+    @get:Input
     val maxThreads: Property<Int> = objects.property(Int::class.java).convention(100)
     @get:Input
     val deadlockTimeout: Property<Int> = objects.property(Int::class.java).convention(10)
@@ -12,6 +12,11 @@ import java.util.*
 import javax.inject.Inject
 
 open class GenerateEnclaveProperties @Inject constructor(objects: ObjectFactory) : ConclaveTask() {
+    companion object {
+        // The enclave has 8 FatFs volumes: the in-memory filesystem, the persistent one mounted at the root and these
+        private const val MAX_ADDITIONAL_PERSISTENT_FILE_SYSTEMS = 6
+    }
+
     @get:Nested
     val conclaveExtension: Property<ConclaveExtension> = objects.property(ConclaveExtension::class.java)
 
@@ -103,6 +108,55 @@ open class GenerateEnclaveProperties @Inject constructor(objects: ObjectFactory)
             useOwnCodeSignerAndProductID.toString()
     }
 
+    private fun applyPersistentFileSystemEncryptionThreads(
+        properties: SortedMap<String, String>,
+        conclave: ConclaveExtension
+    ) {
+        val encryptionThreads = conclave.persistentFileSystemEncryptionThreads.get()
+        // Each encryption thread holds one of the enclave's threads for as long as the enclave is running
+        if (encryptionThreads < 0 || encryptionThreads >= conclave.maxThreads.get()) {
+            throw GradleException(
+                "persistentFileSystemEncryptionThreads must be between 0 and maxThreads - 1 " +
+                        "(${conclave.maxThreads.get() - 1}), but it is $encryptionThreads."
+            )
+        }
+        properties["persistentFileSystemEncryptionThreads"] = encryptionThreads.toString()
+    }
+
+    private fun applyAdditionalPersistentFileSystems(properties: SortedMap<String, String>, conclave: ConclaveExtension) {
+        val additionalFileSystems = conclave.additionalPersistentFileSystems.get()
+        if (additionalFileSystems.isEmpty()) {
+            return
+        }
+        if (properties["inMemoryFileSystemSize"] == "0" && properties["persistentFileSystemSize"] == "0") {
+            throw GradleException(
+                "additionalPersistentFileSystems are mounted under the root filesystem, please also enable " +
+                        "either inMemoryFileSystemSize or persistentFileSystemSize."
+            )
+        }
+        if (additionalFileSystems.size > MAX_ADDITIONAL_PERSISTENT_FILE_SYSTEMS) {
+            throw GradleException(
+                "No more than $MAX_ADDITIONAL_PERSISTENT_FILE_SYSTEMS additionalPersistentFileSystems can be configured."
+            )
+        }
+        val mountPaths = HashSet<String>()
+        for ((index, entry) in additionalFileSystems.entries.sortedBy { it.key }.withIndex()) {
+            val mountPath = entry.key.trimEnd('/')
+            if (!mountPath.startsWith("/") || mountPath == "/tmp" || !mountPaths.add(mountPath)) {
+                throw GradleException(
+                    "Invalid mount path '${entry.key}' in additionalPersistentFileSystems. It must be an absolute " +
+                            "path other than / and /tmp, and each mount path can only be used once."
+                )
+            }
+            val size = GenerateEnclaveConfig.getSizeBytes(entry.value)
+            if (size <= 0) {
+                throw GradleException("The size of the persistent filesystem mounted at $mountPath must be positive.")
+            }
+            properties["additionalPersistentFileSystems.$index.mountPath"] = mountPath
+            properties["additionalPersistentFileSystems.$index.size"] = size.toString()
+        }
+    }
+
     override fun action() {
         // TODO Use inputs.properties to enumerate all property values and automatically dump them into the
         //  properties file
@@ -114,10 +168,15 @@ open class GenerateEnclaveProperties @Inject constructor(objects: ObjectFactory)
         properties["enablePersistentMap"] = conclave.enablePersistentMap.get().toString()
         properties["maxPersistentMapSize"] =
             GenerateEnclaveConfig.getSizeBytes(conclave.maxPersistentMapSize.get()).toString()
+        properties["persistentMapCheckpointInterval"] = conclave.persistentMapCheckpointInterval.get().toString()
         properties["inMemoryFileSystemSize"] =
             GenerateEnclaveConfig.getSizeBytes(conclave.inMemoryFileSystemSize.get()).toString()
         properties["persistentFileSystemSize"] =
             GenerateEnclaveConfig.getSizeBytes(conclave.persistentFileSystemSize.get()).toString()
+        properties["persistentFileSystemCacheSize"] =
+            GenerateEnclaveConfig.getSizeBytes(conclave.persistentFileSystemCacheSize.get()).toString()
+        applyPersistentFileSystemEncryptionThreads(properties, conclave)
+        applyAdditionalPersistentFileSystems(properties, conclave)
 
         applyKDSConfig(properties)
 
@@ -370,6 +370,9 @@ open class NativeImage @Inject constructor(
                 "-H:NativeLinkerOption=-nodefaultlibs",
                 "-H:NativeLinkerOption=-nostartfiles",
                 "-H:NativeLinkerOption=-Wl,--whole-archive,-l$trtsLib,--no-whole-archive",
+                // The switchless library must be linked in full as its trusted worker entry points are only
+                // referenced from the EDL.
+                "-H:NativeLinkerOption=-Wl,--whole-archive,-lsgx_tswitchless,--no-whole-archive",
                 "-H:NativeLinkerOption=-Wl,--start-group,-lsgx_tstdc,-lsgx_tcxx,-lsgx_tcrypto,-l$serviceLib,--end-group",
                 "-H:NativeLinkerOption=-Wl,-Bstatic",
                 // We don't specify -Bsymbolic here, because the behaviour of this flag in combination with the others